@@ -1,4 +1,16 @@
 #!/bin/sh
 
-sudo java -jar PIRcatcam-assembly-4.0.0.jar
+JAR=PIRcatcam-assembly-4.0.0.jar
+CDS=PIRcatcam.jsa
+
+# Start from the class data sharing archive if there is one for this jar, otherwise, on Java 13 or later, make one
+# when the program stops, for next time.
+if [ -f $CDS ] && [ ! $JAR -nt $CDS ]; then
+    JAVA_OPTS="-XX:SharedArchiveFile=$CDS"
+elif java -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ArchiveClassesAtExit; then
+    rm -f $CDS
+    JAVA_OPTS="-XX:ArchiveClassesAtExit=$CDS"
+fi
+
+sudo java $JAVA_OPTS -jar $JAR
 
@@ -0,0 +1,52 @@
+package com.stronans.PIRcatcam;
+
+import com.stronans.camera.Camera;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Startup on stubbed hardware, for {@link StartupBenchmark}. The zones are those in the given properties, but every
+ * camera is tests/fake-raspivid.sh, every picture check tests/fake-raspividyuv.sh, everything is stored in a
+ * temporary folder and the sensors are {@link SimulatedMotionSource}s taking a given time to set up, as GPIO does.
+ */
+public class ColdStart {
+    private static final String FAKE_VIDEO_TOOL = "tests/fake-raspivid.sh";
+    private static final String FAKE_CONFIRM_TOOL = "tests/fake-raspividyuv.sh";
+
+    /**
+     * Start the zones from the given properties on stubbed hardware.
+     *
+     * @param gpioMillis Time the sensors take to set up
+     * @return The controller, ready for capture.
+     */
+    public static ZoneController start(Properties properties, long gpioMillis) throws IOException {
+        Path store = Files.createTempDirectory("coldstart");
+        Properties stubbed = new Properties();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.endsWith(".video.tool")) {
+                value = FAKE_VIDEO_TOOL;
+            } else if (key.endsWith(".confirm.tool")) {
+                value = FAKE_CONFIRM_TOOL;
+            } else if (key.endsWith(".store.path") || key.endsWith(".event.index")) {
+                value = store.resolve(key).toString();
+            }
+            stubbed.setProperty(key, value);
+        }
+        stubbed.setProperty(ZoneConfig.PROGRAM_ROOT + "video.tool", FAKE_VIDEO_TOOL);
+        stubbed.setProperty(ZoneConfig.PROGRAM_ROOT + "confirm.tool", FAKE_CONFIRM_TOOL);
+        Camera.setVideoTool(FAKE_VIDEO_TOOL);
+
+        ZoneController controller = new ZoneController(ZoneConfig.load(stubbed::getProperty),
+                pins -> new SimulatedMotionSource(pins.length, gpioMillis),
+                Long.parseLong(stubbed.getProperty(ListenForActivity.SENSOR_DEBOUNCE,
+                        Integer.toString(ListenForActivity.DEFAULT_DEBOUNCE_MS)).trim()),
+                Long.parseLong(stubbed.getProperty(ListenForActivity.SENSOR_HOLD_OFF,
+                        Integer.toString(ListenForActivity.DEFAULT_HOLD_OFF_MS)).trim()));
+        controller.start();
+        return controller;
+    }
+}
@@ -0,0 +1,24 @@
+package com.stronans.PIRcatcam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of naming a recording, which builds its DateTimeFormatter on every call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetNameBenchmark {
+    private final LocalDateTime timeStamp = LocalDateTime.of(2017, 5, 12, 3, 12, 45);
+
+    @Benchmark
+    public String getName() {
+        return ListenForActivity.getName("/home/pi/catcam/images/cc-", ".h264", timeStamp);
+    }
+}
@@ -0,0 +1,60 @@
+package com.stronans.PIRcatcam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from reading the settings to ready for capture, on stubbed hardware, see {@link ColdStart}. Each measurement
+ * is the first start in a fresh JVM, so class loading is in it, as it is after a power cut.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({"1", "3"})
+    private int zones;
+
+    // Time the sensors take to set up, GPIO on a Pi Zero takes around a second.
+    @Param({"0", "1000"})
+    private long gpioMillis;
+
+    private final Properties properties = new Properties();
+    private ZoneController controller;
+
+    @Setup
+    public void setup() {
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.store.path", "images");
+        properties.setProperty("com.stronans.catcam.event.index", "events.idx");
+        StringBuilder names = new StringBuilder();
+        for (int z = 0; z < zones; z++) {
+            properties.setProperty("com.stronans.catcam.zone.z" + z + ".sensor.pins", Integer.toString(z));
+            properties.setProperty("com.stronans.catcam.zone.z" + z + ".store.path", "z" + z);
+            properties.setProperty("com.stronans.catcam.zone.z" + z + ".event.index", "z" + z + ".idx");
+            names.append(z == 0 ? "" : ",").append("z").append(z);
+        }
+        properties.setProperty("com.stronans.catcam.zones", names.toString());
+    }
+
+    @Benchmark
+    public ZoneController toReady() throws Exception {
+        controller = ColdStart.start(properties, gpioMillis);
+        return controller;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        if (controller != null) {
+            controller.shutdown();
+            controller = null;
+        }
+    }
+}
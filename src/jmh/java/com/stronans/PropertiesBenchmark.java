@@ -0,0 +1,33 @@
+package com.stronans;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading properties, run from the project folder so ./catcam.properties is found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesBenchmark {
+    private ProgramProperties properties;
+
+    @Setup
+    public void setup() {
+        properties = ProgramProperties.getInstance("catcam.properties");
+    }
+
+    @Benchmark
+    public String getString() {
+        return properties.getString("com.stronans.catcam.video.settings");
+    }
+
+    @Benchmark
+    public int getInt() {
+        return properties.getInt("com.stronans.catcam.drop.off", 15);
+    }
+}
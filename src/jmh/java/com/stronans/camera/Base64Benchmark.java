@@ -0,0 +1,63 @@
+package com.stronans.camera;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a still to Base64, as a String the way getEncodedStillImage does and streamed through Base64Writer.
+ * Add -prof gc to the JMH arguments to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    private byte[] image;
+
+    private final WritableByteChannel discard = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        image = Files.readAllBytes(Paths.get("tests/image.jpg"));
+    }
+
+    @Benchmark
+    public String encodeToString() {
+        return Base64.getEncoder().encodeToString(image);
+    }
+
+    @Benchmark
+    public void streamToChannel() throws Exception {
+        Base64Writer writer = Base64Writer.acquire().to(discard);
+        try {
+            writer.write(image, 0, image.length);
+            writer.finish();
+        } finally {
+            writer.release();
+        }
+    }
+}
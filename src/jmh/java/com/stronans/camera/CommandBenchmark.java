@@ -0,0 +1,29 @@
+package com.stronans.camera;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of joining the camera command lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private final String settings = "-a 12 -sh 20 -vs -ex antishake -ex night -t 0";
+    private final String name = "/home/pi/catcam/images/cc-2017-05-12-03-12-45.h264";
+
+    @Benchmark
+    public String pausedVideoCommand() {
+        return Camera.command("raspivid", "-s -i pause", settings, "-n -o ", name);
+    }
+
+    @Benchmark
+    public String stillCommand() {
+        return Camera.command("raspistill", Camera.STILL_DEFAULTS, "-n -o -");
+    }
+}
@@ -0,0 +1,50 @@
+package com.stronans.camera;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One hour queries against an event index holding ten years of recordings, 48 a day.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventIndexBenchmark {
+    private static final long MINUTE = 60_000L;
+    private static final long BASE = 1_500_000_000_000L;
+    private static final int RECORDINGS = 10 * 365 * 48;
+
+    private EventIndex index;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Path dir = Files.createTempDirectory("index");
+        index = new EventIndex(dir.resolve("events.idx"));
+        for (int i = 0; i < RECORDINGS; i++) {
+            long start = BASE + i * 30 * MINUTE;
+            index.recordingStarted(start, "/store/cc-" + (i / 48) + ".h264", i % 48 * 1000L);
+            index.recordingStopped(start + MINUTE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public List<EventIndex.Clip> queryHour() {
+        next = (next + 7919) % RECORDINGS;
+        long from = BASE + next * 30 * MINUTE + 10 * MINUTE;
+        return index.query(from, from + 60 * MINUTE);
+    }
+}
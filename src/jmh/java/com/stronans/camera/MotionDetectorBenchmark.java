@@ -0,0 +1,48 @@
+package com.stronans.camera;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames a second one core can run through MotionDetector, on synthetic noisy frames at the confirmation size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionDetectorBenchmark {
+    @Param({"128x96", "320x240"})
+    public String size;
+
+    @Param({"1", "2"})
+    public int step;
+
+    private MotionDetector detector;
+    private byte[][] frames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+
+        detector = new MotionDetector(width, height, step, 25);
+        frames = new byte[8][width * height];
+        Random random = new Random(42);
+        for (byte[] frame : frames) {
+            random.nextBytes(frame);
+        }
+        detector.changedPermille(frames[0], 0);
+    }
+
+    @Benchmark
+    public int changedPermille() {
+        next = (next + 1) & 7;
+        return detector.changedPermille(frames[next], 0);
+    }
+}
@@ -0,0 +1,40 @@
+package com.stronans.camera;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of toggling the camera between recording and paused, against a stub process that ignores SIGUSR1.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetActiveBenchmark {
+    private Process stub;
+    private CameraProcess camera;
+    private boolean active;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new ProcessBuilder("sh", "-c", "trap '' USR1; while true; do sleep 1; done").start();
+        Thread.sleep(200);
+        camera = new CameraProcess(stub);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        stub.destroy();
+        stub.waitFor();
+    }
+
+    @Benchmark
+    public CameraProcess.Status toggle() {
+        active = !active;
+        camera.setActive(active);
+        return camera.status();
+    }
+}
@@ -0,0 +1,40 @@
+package com.stronans.metrics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording a latency, alone and with four threads recording into the same histogram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+    private final Histogram histogram = new Histogram("bench_seconds", "Benchmark",
+            Histogram.decades(10_000L, 100_000_000_000L), 1_000_000_000L);
+
+    @State(Scope.Thread)
+    public static class Values {
+        long next = 1;
+
+        long value() {
+            next = next * 6364136223846793005L + 1442695040888963407L;
+            return (next >>> 40) * 64;         // Up to about 1 s in nanos.
+        }
+    }
+
+    @Benchmark
+    public void record(Values values) {
+        histogram.record(values.value());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Values values) {
+        histogram.record(values.value());
+    }
+}
@@ -0,0 +1,208 @@
+package com.stronans.PIRcatcam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Sensor edges saved to a file, to replay them later, see {@link TraceRecorder} and {@link TraceReplay}.
+ * <p>
+ * The file starts with a header: the magic "CCET", a version byte, the epoch millis the trace began, the number
+ * of sensors and the Pi4J pin address of each. Then one variable length number per edge, seven bits to the byte
+ * lowest first, holding the micros since the edge before shifted up six bits, the sensor index shifted up one and
+ * the level in the lowest bit. An edge within 32 ms of the last, as chatter is, takes three bytes, within four
+ * seconds, as in a visit, four bytes and within nine minutes five. A trace cut off part way through an edge, by a
+ * crash or a power cut, ends at the last whole edge.
+ */
+public class EdgeTrace {
+    private static final int MAGIC = 0x43434554;    // "CCET"
+    private static final int VERSION = 1;
+    private static final int SENSOR_BITS = 5;       // Matches MotionPipeline.MAX_SENSORS.
+
+    private EdgeTrace() {
+    }
+
+    /**
+     * Saves edges as they happen. Each edge is flushed out as it is written, edges are seconds apart and a trace
+     * should survive the Pi losing power.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startNanos;
+        private long lastNanos;
+        private long edges;
+
+        /**
+         * @param path Trace file, replaced if it exists
+         * @param pins Pi4J pin address of each sensor
+         */
+        public Writer(Path path, int[] pins) throws IOException {
+            this(Files.newOutputStream(path), pins, System.currentTimeMillis(), System.nanoTime());
+        }
+
+        /**
+         * @param startMillis Epoch millis the trace begins
+         * @param startNanos  {@link System#nanoTime()} at the same moment, edge times are taken from here
+         */
+        public Writer(OutputStream out, int[] pins, long startMillis, long startNanos) throws IOException {
+            if (pins.length > 1 << SENSOR_BITS) {
+                throw new IllegalArgumentException("At most " + (1 << SENSOR_BITS) + " sensors [" + pins.length + "]");
+            }
+
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.startNanos = startNanos;
+            lastNanos = startNanos;
+
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(startMillis);
+            this.out.writeByte(pins.length);
+            for (int pin : pins) {
+                this.out.writeInt(pin);
+            }
+            this.out.flush();
+        }
+
+        /**
+         * Save an edge. Edges a little out of order, from different pins' threads, are saved as at the same time
+         * as the one before.
+         *
+         * @param nanos {@link System#nanoTime()} of the edge
+         */
+        public synchronized void edge(int sensor, boolean high, long nanos) throws IOException {
+            long micros = Math.max(0, nanos - lastNanos) / 1000;
+            lastNanos += micros * 1000;
+
+            long value = micros << (SENSOR_BITS + 1) | (long) sensor << 1 | (high ? 1 : 0);
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+            out.flush();
+            edges++;
+        }
+
+        public synchronized long edges() {
+            return edges;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} the trace begins at.
+         */
+        public long startNanos() {
+            return startNanos;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a trace back, one edge at a time: call {@link #next()} then read the edge.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final int[] pins;
+
+        private long nanos;
+        private int sensor;
+        private boolean high;
+
+        public Reader(Path path) throws IOException {
+            this(Files.newInputStream(path));
+        }
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            try {
+                if (this.in.readInt() != MAGIC) {
+                    throw new IOException("Not an edge trace");
+                }
+                int version = this.in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException("Edge trace version " + version + " not known");
+                }
+                startMillis = this.in.readLong();
+                pins = new int[this.in.readUnsignedByte()];
+                for (int i = 0; i < pins.length; i++) {
+                    pins[i] = this.in.readInt();
+                }
+            } catch (EOFException e) {
+                throw new IOException("Edge trace header cut off", e);
+            }
+        }
+
+        /**
+         * @return Epoch millis the trace began.
+         */
+        public long startMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return Pi4J pin address of each sensor.
+         */
+        public int[] pins() {
+            return pins.clone();
+        }
+
+        /**
+         * Move to the next edge.
+         *
+         * @return false at the end of the trace.
+         */
+        public boolean next() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.read();
+                if (b < 0) {
+                    return false;       // The end, or an edge cut off part way.
+                }
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            nanos += (value >>> (SENSOR_BITS + 1)) * 1000;
+            sensor = (int) (value >>> 1) & ((1 << SENSOR_BITS) - 1);
+            high = (value & 1) != 0;
+            if (sensor >= pins.length) {
+                throw new IOException("Edge on sensor " + sensor + " of " + pins.length);
+            }
+            return true;
+        }
+
+        /**
+         * @return Nanos from the start of the trace to this edge.
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        public int sensor() {
+            return sensor;
+        }
+
+        public boolean high() {
+            return high;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.stronans.PIRcatcam;
+
+import com.pi4j.io.gpio.*;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * PIR sensors on Raspberry Pi GPIO pins, numbered as wiringPi/Pi4J pin addresses. Making the GPIO controller loads
+ * the native library and takes a while, it needs no settings, so it can be started with {@link #prepare()} before
+ * they are read.
+ */
+public class GpioMotionSource implements MotionSource {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(GpioMotionSource.class);
+
+    // Made once, on whichever thread gets to it first, the factory is not safe to call from two at once.
+    private static final FutureTask<GpioController> controller = new FutureTask<>(GpioFactory::getInstance);
+
+    private final int[] addresses;
+    private GpioController gpio;
+
+    public GpioMotionSource(int... addresses) {
+        this.addresses = addresses.clone();
+    }
+
+    @Override
+    public int sensors() {
+        return addresses.length;
+    }
+
+    @Override
+    public void start(final EdgeListener listener) {
+        // create gpio controller, or wait for the one being made
+        gpio = controller();
+
+        for (int i = 0; i < addresses.length; i++) {
+            Pin pin = RaspiPin.getPinByAddress(addresses[i]);
+            if (pin == null) {
+                throw new IllegalArgumentException("No such GPIO pin [" + addresses[i] + "]");
+            }
+
+            // provision as an input pin with its internal pull down resistor enabled
+            GpioPinDigitalInput input = gpio.provisionDigitalInputPin(pin, PinPullResistance.PULL_DOWN);
+            final int sensor = i;
+            input.addListener(new GpioPinListenerDigital() {
+                @Override
+                public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+                    listener.edge(sensor, event.getState().isHigh(), System.nanoTime());
+                }
+            });
+            log.info("Listening for motion on {}", pin);
+        }
+    }
+
+    /**
+     * Start making the GPIO controller on a thread of its own, so it is ready or nearly so when the pins are wanted.
+     */
+    public static void prepare() {
+        Thread thread = new Thread(controller, "gpio-setup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static GpioController controller() {
+        // Does nothing if it has been run already, or is running.
+        controller.run();
+        try {
+            return controller.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for GPIO", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Unable to set up GPIO", cause);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (gpio != null) {
+            // stop all GPIO activity/threads by shutting down the GPIO controller
+            // (this method will forcefully shutdown all GPIO monitoring threads and scheduled tasks)
+            gpio.shutdown();
+            log.info("shutdown GPIO.");
+        }
+    }
+}
@@ -10,21 +10,38 @@ package com.stronans.PIRcatcam;
  * **********************************************************************
  */
 
-import com.pi4j.io.gpio.*;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 import com.stronans.ProgramProperties;
+import com.stronans.PropertiesWatcher;
 import com.stronans.camera.Camera;
-import com.stronans.camera.CameraProcess;
+import com.stronans.camera.EventIndex;
+import com.stronans.camera.SignalChannel;
+import com.stronans.export.DirectorySink;
+import com.stronans.export.ExportQueue;
+import com.stronans.export.ExportSink;
+import com.stronans.export.Exporter;
+import com.stronans.export.HttpSink;
+import com.stronans.metrics.Metrics;
+import com.stronans.web.StillCache;
+import com.stronans.web.WebServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.DateTimeException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.StringJoiner;
-
-import static java.time.temporal.ChronoUnit.DAYS;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /**
  *
@@ -35,28 +52,53 @@ public class ListenForActivity {
      */
     private static final Logger log = LogManager.getLogger(ListenForActivity.class);
     //
-    private static final String PROGRAM_ROOT = "com.stronans.catcam.";
-
-    private static final String VIDEO_SETTINGS = PROGRAM_ROOT + "video.settings";
-    private static final String NAME_STUB = PROGRAM_ROOT + "filename.stub";
-    private static final String STORE_PATH = PROGRAM_ROOT + "store.path";
-    private static final String FILE_EXTENSION = PROGRAM_ROOT + "file.extension";
-    private static final String TIME_TO_RECORD = PROGRAM_ROOT + "time.record";      // Milliseconds
-    private static final String DROP_OFF_RATE = PROGRAM_ROOT + "drop.off";          // Number of seconds before camera switch off
-
-    private static final String TIME_SET = "-t ";
-
-    private static final Pin GPIO_MOVEMENT_PIN = RaspiPin.GPIO_06;
+    private static final String PROGRAM_ROOT = ZoneConfig.PROGRAM_ROOT;
 
-    private static final int DEFAULT_CUT_OFF_SECS = 15;
+    private static final String VIDEO_TOOL = PROGRAM_ROOT + "video.tool";           // Replacement for raspivid
+    static final String SENSOR_DEBOUNCE = PROGRAM_ROOT + "sensor.debounce.ms";
+    static final String SENSOR_HOLD_OFF = PROGRAM_ROOT + "sensor.holdoff.ms";
+    private static final String HTTP_PORT = PROGRAM_ROOT + "http.port";            // 0 for no web server
+    private static final String HTTP_BIND = PROGRAM_ROOT + "http.bind";
+    private static final String HTTP_THREADS = PROGRAM_ROOT + "http.threads";
+    private static final String HTTP_STREAMS = PROGRAM_ROOT + "http.streams";
+    private static final String HTTP_FPS = PROGRAM_ROOT + "http.mjpeg.fps";
+    private static final String HTTP_STILL_AGE = PROGRAM_ROOT + "http.still.max.age.ms";
+    private static final String STILL_SETTINGS = PROGRAM_ROOT + "still.settings";
+    private static final String CONFIG_WATCH = PROGRAM_ROOT + "config.watch";      // false to only read at start
+    private static final String TRACE_PATH = PROGRAM_ROOT + "trace.path";          // Stub of edge trace files
+    private static final String EXPORT_TARGET = PROGRAM_ROOT + "export.target";    // URL or folder, empty for none
+    private static final String EXPORT_THREADS = PROGRAM_ROOT + "export.threads";
+    private static final String EXPORT_QUEUE = PROGRAM_ROOT + "export.queue.mb";
+    private static final String EXPORT_BATCH = PROGRAM_ROOT + "export.batch.kb";
+    private static final String EXPORT_BATCH_WAIT = PROGRAM_ROOT + "export.batch.wait.minutes";
+    private static final String EXPORT_CHUNK = PROGRAM_ROOT + "export.chunk.kb";
+    private static final String EXPORT_RATE = PROGRAM_ROOT + "export.rate.kb";
+    private static final String EXPORT_RETRY_MIN = PROGRAM_ROOT + "export.retry.min.ms";
+    private static final String EXPORT_RETRY_MAX = PROGRAM_ROOT + "export.retry.max.ms";
+    private static final String EXPORT_SCAN = PROGRAM_ROOT + "export.scan.seconds";
+    private static final String EXPORT_TIMEOUT = PROGRAM_ROOT + "export.timeout.ms";
+    private static final String EXPORT_WHILE_RECORDING = PROGRAM_ROOT + "export.while.recording";
 
-    private static int cutOffSeconds = DEFAULT_CUT_OFF_SECS;
-    private static int cutOffCounter;
-    private static final Object syncVar = new Object();
+    static final int DEFAULT_DEBOUNCE_MS = 20;
+    static final int DEFAULT_HOLD_OFF_MS = 250;
+    private static final String DEFAULT_HTTP_BIND = "127.0.0.1";
+    private static final int DEFAULT_HTTP_THREADS = 8;
+    private static final int DEFAULT_HTTP_STREAMS = 2;
+    private static final int DEFAULT_HTTP_FPS = 2;
+    private static final int DEFAULT_STILL_AGE_MS = 500;
+    private static final int STILL_BUFFERS = 4;
+    private static final int STILL_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_EXPORT_THREADS = 1;
+    private static final int DEFAULT_EXPORT_QUEUE_MB = 1024;
+    private static final int DEFAULT_EXPORT_BATCH_KB = 4096;
+    private static final int DEFAULT_EXPORT_BATCH_WAIT_MINUTES = 10;
+    private static final int DEFAULT_EXPORT_CHUNK_KB = 256;
+    private static final int DEFAULT_EXPORT_RETRY_MIN_MS = 5000;
+    private static final int DEFAULT_EXPORT_RETRY_MAX_MS = 600000;
+    private static final int DEFAULT_EXPORT_SCAN_SECONDS = 30;
+    private static final int DEFAULT_EXPORT_TIMEOUT_MS = 15000;
 
-    private static CameraProcess videoCamera;
-
-    private static String getName(String root, String extension, LocalDateTime dateTimeStamp) {
+    static String getName(String root, String extension, LocalDateTime dateTimeStamp) {
         DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
         String result = "";
 
@@ -76,89 +118,218 @@ public class ListenForActivity {
 
         log.info("PIR Detector started");
 
-        properties = ProgramProperties.getInstance("catcam.properties");
-
-        StringJoiner joiner = new StringJoiner(" ");
-        String videoProperties = joiner.add(properties.getString(VIDEO_SETTINGS))
-                .add(TIME_SET + properties.getString(TIME_TO_RECORD))
-                .add(Camera.VIDEO_DEFAULTS).toString();
-
-        joiner = new StringJoiner("/");
-        String fileName = joiner.add(properties.getString(STORE_PATH))
-                .add(properties.getString(NAME_STUB)).toString();
+        // Neither needs the settings, so both get going while they are read.
+        GpioMotionSource.prepare();
+        Thread mbeans = new Thread(Metrics::registerMBeans, "mbeans");
+        mbeans.setDaemon(true);
+        mbeans.start();
 
-        String fileExtension = properties.getString(FILE_EXTENSION);
-
-        cutOffSeconds = properties.getInt(DROP_OFF_RATE, DEFAULT_CUT_OFF_SECS);
-
-        // create gpio controller
-        final GpioController gpio = GpioFactory.getInstance();
-
-        // provision GPIO_MOVEMENT_PIN as an input pin with its internal pull down resistor enabled
-        final GpioPinDigitalInput movementDetected = gpio.provisionDigitalInputPin(GPIO_MOVEMENT_PIN, PinPullResistance.PULL_DOWN);
-
-        LocalDateTime timeStamp = LocalDateTime.now();
+        properties = ProgramProperties.getInstance("catcam.properties");
 
-        videoCamera = Camera.getPausedNamedVideo(getName(fileName, fileExtension, timeStamp), videoProperties);
+        String videoTool = properties.getString(VIDEO_TOOL);
+        if (videoTool != null) {
+            Camera.setVideoTool(videoTool);
+        }
 
-        // create and register gpio pin listener
-        movementDetected.addListener(new GpioPinListenerDigital() {
-                                         @Override
-                                         public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
-                                             log.debug("Event fired [" + (event.getState().isHigh() ? "High" : "Low") + "]");
+        final String trace = properties.getString(TRACE_PATH);
+        final ZoneController controller = new ZoneController(ZoneConfig.load(properties),
+                pins -> traceEdges(new GpioMotionSource(pins), pins, trace),
+                properties.getInt(SENSOR_DEBOUNCE, DEFAULT_DEBOUNCE_MS),
+                properties.getInt(SENSOR_HOLD_OFF, DEFAULT_HOLD_OFF_MS));
+        controller.start();
+        log.info("Ready for capture, " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start");
 
-                                             if (event.getState().isHigh()) {
-                                                 // Start capture
-                                                 videoCamera.setActive(true);
-                                                 synchronized (syncVar) {
-                                                     cutOffCounter = cutOffSeconds;      // Reset to the cut off seconds.
-                                                 }
-                                             }
-                                         }
-                                     }
-        );
+        final WebServer web = startWebServer(properties, controller);
+        final Exporter exporter = startExport(properties, controller);
+        final PropertiesWatcher watcher = watchProperties(properties, controller);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
                                                  @Override
                                                  public void run() {
-                                                     // stop all GPIO activity/threads by shutting down the GPIO controller
-                                                     // (this method will forcefully shutdown all GPIO monitoring threads and scheduled tasks)
-                                                     gpio.shutdown();
-                                                     log.info("shutdown GPIO.");
-                                                     videoCamera.setActive(false);
-                                                     videoCamera.shutdown();
-                                                     log.info("shutdown camera.");
+                                                     if (watcher != null) {
+                                                         watcher.shutdown();
+                                                     }
+                                                     if (web != null) {
+                                                         web.shutdown();
+                                                         Camera.stopStillEngine();
+                                                     }
+                                                     if (exporter != null) {
+                                                         exporter.shutdown();
+                                                     }
+                                                     controller.shutdown();
+                                                     SignalChannel signals = SignalChannel.getInstance();
+                                                     log.info("Signals sent " + signals.signals() + ", mean " + (signals.meanLatencyNanos() / 1000)
+                                                             + " us, max " + (signals.maxLatencyNanos() / 1000) + " us");
+                                                     log.info("Triggers " + Metrics.TRIGGER_TO_RECORDING.getCount() + ", p99 "
+                                                             + Metrics.TRIGGER_TO_RECORDING.getP99() + " s, max "
+                                                             + Metrics.TRIGGER_TO_RECORDING.getMax() + " s");
                                                      log.info("Exiting program.");
                                                  }
                                              }
         );
 
-        log.info("Ready for capture");
-
         // keep program running until user aborts (CTRL-C or SIGINT)
-        for (; ; ) {
-            Thread.sleep(1000);         // Sleep for a 1 second
+        controller.awaitShutdown();
+    }
+
+    /**
+     * Save the source's edges to a trace file if a path is set, see {@link TraceReplay}. Without one, or if the file
+     * cannot be made, the source is used as it is.
+     */
+    private static MotionSource traceEdges(MotionSource source, int[] pins, String stub) {
+        if (stub == null || stub.trim().isEmpty()) {
+            return source;
+        }
+
+        Path path = Paths.get(getName(stub.trim(), ".trace", LocalDateTime.now()));
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            return new TraceRecorder(source, pins, path);
+        } catch (IOException e) {
+            log.error("Unable to record edges to " + path, e);
+            return source;
+        }
+    }
+
+    /**
+     * Apply changes to the properties file while running, unless turned off. A change that fails validation is
+     * refused whole and the zones carry on as they were.
+     *
+     * @return The watcher, null if there is none.
+     */
+    private static PropertiesWatcher watchProperties(ProgramProperties properties, ZoneController controller) {
+        if ("false".equalsIgnoreCase(properties.getString(CONFIG_WATCH)) || properties.file() == null) {
+            return null;
+        }
 
-            if (cutOffCounter > 0) {
-                synchronized (syncVar) {
-                    cutOffCounter--;
+        try {
+            return new PropertiesWatcher(properties, () -> {
+                List<ZoneConfig> configs;
+                try {
+                    configs = ZoneConfig.load(properties);
+                } catch (IllegalArgumentException e) {
+                    log.error("Changed properties refused: " + e.getMessage());
+                    return;
                 }
-                log.debug("cutOffCounter = " + cutOffCounter);
-            } else {
-                if (videoCamera.status() != CameraProcess.Status.Paused) {
-                    // Stop capture
-                    videoCamera.setActive(false);
-                    // If we have crossed over midnight of the day the video was started then create a new named video.
-                    if(LocalDateTime.now().truncatedTo(DAYS).isAfter(timeStamp.truncatedTo(DAYS))) {
-                        videoCamera.shutdown();
-                        log.info("shutdown camera.");
-                        timeStamp = LocalDateTime.now();
-
-                        videoCamera = Camera.getPausedNamedVideo(getName(fileName, fileExtension, timeStamp), videoProperties);
+                controller.reconfigure(configs);
+            });
+        } catch (IOException e) {
+            log.error("Unable to watch properties for changes", e);
+            return null;
+        }
+    }
+
+    /**
+     * Copy finished recordings off the Pi if a target is set, an http(s) URL or a folder. Each store folder has its
+     * own queue, all share the link.
+     *
+     * @return The running exporter, null if there is none.
+     */
+    private static Exporter startExport(ProgramProperties properties, ZoneController controller) {
+        String target = properties.getString(EXPORT_TARGET);
+        if (target == null || target.trim().isEmpty()) {
+            return null;
+        }
+        target = target.trim();
+
+        try {
+            ExportSink sink = target.startsWith("http://") || target.startsWith("https://")
+                    ? new HttpSink(target, properties.getInt(EXPORT_TIMEOUT, DEFAULT_EXPORT_TIMEOUT_MS))
+                    : new DirectorySink(Paths.get(target));
+
+            Map<String, ExportQueue> queues = new LinkedHashMap<>();
+            for (Zone zone : controller.zones()) {
+                String store = zone.config().storePath();
+                ExportQueue queue = queues.get(store);
+                if (queue == null) {
+                    Set<String> extensions = new HashSet<>();
+                    for (Zone other : controller.zones()) {
+                        if (store.equals(other.config().storePath())) {
+                            extensions.add(other.config().fileExtension());
+                        }
+                    }
+                    queue = new ExportQueue(Paths.get(store), extensions,
+                            properties.getInt(EXPORT_QUEUE, DEFAULT_EXPORT_QUEUE_MB) * 1024L * 1024L,
+                            properties.getInt(EXPORT_BATCH, DEFAULT_EXPORT_BATCH_KB) * 1024L,
+                            TimeUnit.MINUTES.toMillis(properties.getInt(EXPORT_BATCH_WAIT, DEFAULT_EXPORT_BATCH_WAIT_MINUTES)));
+                    queues.put(store, queue);
+                }
+                queue.addActive(zone::currentFile);
+                queue.addActive(zone::timelapseFile);
+            }
+
+            final List<Zone> zones = controller.zones();
+            BooleanSupplier recording = () -> {
+                for (Zone zone : zones) {
+                    if (zone.session().isRecording()) {
+                        return true;
                     }
                 }
+                return false;
+            };
+            boolean whileRecording = "true".equalsIgnoreCase(properties.getString(EXPORT_WHILE_RECORDING));
+
+            Exporter exporter = new Exporter(new ArrayList<>(queues.values()), sink,
+                    properties.getInt(EXPORT_THREADS, DEFAULT_EXPORT_THREADS),
+                    properties.getInt(EXPORT_CHUNK, DEFAULT_EXPORT_CHUNK_KB) * 1024,
+                    properties.getInt(EXPORT_RATE, 0) * 1024L,
+                    properties.getInt(EXPORT_RETRY_MIN, DEFAULT_EXPORT_RETRY_MIN_MS),
+                    properties.getInt(EXPORT_RETRY_MAX, DEFAULT_EXPORT_RETRY_MAX_MS),
+                    whileRecording ? () -> false : recording);
+            exporter.start(TimeUnit.SECONDS.toMillis(properties.getInt(EXPORT_SCAN, DEFAULT_EXPORT_SCAN_SECONDS)));
+            log.info("Exporting recordings to " + target);
+            return exporter;
+        } catch (IOException e) {
+            log.error("Unable to export recordings to " + target, e);
+            return null;
+        }
+    }
+
+    /**
+     * Serve stills and recordings over HTTP if a port is set.
+     *
+     * @return The running server, null if there is none.
+     */
+    private static WebServer startWebServer(ProgramProperties properties, ZoneController controller) {
+        int port = properties.getInt(HTTP_PORT, 0);
+        if (port <= 0) {
+            return null;
+        }
+
+        Map<String, Path> stores = new LinkedHashMap<>();
+        Map<String, EventIndex> indexes = new LinkedHashMap<>();
+        for (Zone zone : controller.zones()) {
+            stores.put(zone.config().name(), Paths.get(zone.config().storePath()));
+            if (zone.events() != null) {
+                indexes.put(zone.config().name(), zone.events());
             }
         }
-//        log.info("Exiting program.");
+
+        String settings = properties.getString(STILL_SETTINGS);
+        String stillSettings = settings != null ? settings : Camera.STILL_DEFAULTS;
+        try {
+            // Keep raspistill running so a still costs a frame rather than a camera start.
+            Camera.startStillEngine(stillSettings, STILL_BUFFERS, STILL_BUFFER_BYTES);
+        } catch (IOException e) {
+            log.warn("Unable to keep the still camera running, each still will start it: " + e.getMessage());
+        }
+        StillCache stills = new StillCache(stillSettings, properties.getInt(HTTP_STILL_AGE, DEFAULT_STILL_AGE_MS));
+
+        String bind = properties.getString(HTTP_BIND);
+        try {
+            WebServer web = new WebServer(bind != null ? bind.trim() : DEFAULT_HTTP_BIND, port,
+                    properties.getInt(HTTP_THREADS, DEFAULT_HTTP_THREADS),
+                    properties.getInt(HTTP_STREAMS, DEFAULT_HTTP_STREAMS), stills, stores, indexes,
+                    properties.getInt(HTTP_FPS, DEFAULT_HTTP_FPS));
+            web.start();
+            return web;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Unable to start web server on port " + port, e);
+            Camera.stopStillEngine();
+            return null;
+        }
     }
 }
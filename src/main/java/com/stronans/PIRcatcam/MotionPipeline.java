@@ -0,0 +1,203 @@
+package com.stronans.PIRcatcam;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns raw sensor edges into motion events. Each sensor is debounced, a rising edge within the debounce time of
+ * the sensor's last edge is chatter, and held off, once a sensor has reported motion it is not reported again
+ * for the hold off time. Motion from all sensors is handed to one consumer thread through a coalescing mailbox,
+ * a bitmask of the sensors that fired and the time of the latest, so a burst arriving while the consumer is busy
+ * becomes a single event. No locks are taken and nothing is allocated per edge. Started driven, there is no
+ * consumer thread and whoever feeds the source calls {@link #deliver()}, so a replay runs it on one thread.
+ * <p>
+ * The source can be started with {@link #listen()} before there is anyone to tell, while the cameras start. Motion
+ * seen meanwhile waits in the mailbox, as it would for a busy consumer, and is handed over on {@link #start()} with
+ * the time of its edge.
+ */
+public class MotionPipeline {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(MotionPipeline.class);
+
+    /**
+     * Told about motion, always on the pipeline's own thread.
+     */
+    public interface MotionListener {
+        /**
+         * @param sensors Bitmask of the sensors that saw motion since the last call
+         * @param nanos   {@link System#nanoTime()} of the latest of them
+         */
+        void motion(int sensors, long nanos);
+    }
+
+    public static final int MAX_SENSORS = 32;
+
+    private final MotionSource source;
+    private final MotionListener listener;
+    private final long debounceNanos;
+    private final long holdOffNanos;
+
+    private final AtomicLongArray lastEdge;
+    private final AtomicLongArray lastMotion;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong pendingNanos = new AtomicLong();
+
+    private final AtomicLong edges = new AtomicLong();
+    private final AtomicLong chatter = new AtomicLong();
+    private final AtomicLong heldOff = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private boolean listening;
+
+    public MotionPipeline(MotionSource source, long debounceMillis, long holdOffMillis, MotionListener listener) {
+        if (source.sensors() > MAX_SENSORS) {
+            throw new IllegalArgumentException("At most " + MAX_SENSORS + " sensors [" + source.sensors() + "]");
+        }
+
+        this.source = source;
+        this.listener = listener;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.holdOffNanos = TimeUnit.MILLISECONDS.toNanos(holdOffMillis);
+        this.lastEdge = new AtomicLongArray(source.sensors());
+        this.lastMotion = new AtomicLongArray(source.sensors());
+
+        // Start every sensor as long quiet.
+        long quiet = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        for (int i = 0; i < source.sensors(); i++) {
+            lastEdge.set(i, quiet);
+            lastMotion.set(i, quiet);
+        }
+        pendingNanos.set(quiet);
+
+        consumer = new Thread(this::consume, "motion");
+        consumer.setDaemon(true);
+    }
+
+    /**
+     * Start taking edges, holding the motion until {@link #start()}.
+     */
+    public synchronized void listen() {
+        if (!listening) {
+            listening = true;
+            source.start(this::edge);
+        }
+    }
+
+    /**
+     * Start the consumer thread, handing over any motion seen since {@link #listen()}, and the source if it is not
+     * already listened to.
+     */
+    public void start() {
+        if (pending.get() != 0) {
+            log.info("Motion seen while starting, handing it over");
+        }
+        consumer.start();
+        listen();
+    }
+
+    /**
+     * Start taking edges without the consumer thread, motion is only handed over when {@link #deliver()} is called.
+     * A replay uses this to decide when each edge's motion arrives.
+     */
+    public void startDriven() {
+        listen();
+    }
+
+    /**
+     * Hand any motion waiting to the listener, on the calling thread.
+     *
+     * @return true if there was some.
+     */
+    public boolean deliver() {
+        int sensors = pending.getAndSet(0);
+        if (sensors == 0) {
+            return false;
+        }
+
+        delivered.incrementAndGet();
+        try {
+            listener.motion(sensors, pendingNanos.get());
+        } catch (RuntimeException e) {
+            log.error("Motion listener failed", e);
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        source.shutdown();
+        running = false;
+        LockSupport.unpark(consumer);
+    }
+
+    public long edges() {
+        return edges.get();
+    }
+
+    public long chatter() {
+        return chatter.get();
+    }
+
+    public long heldOff() {
+        return heldOff.get();
+    }
+
+    public long delivered() {
+        return delivered.get();
+    }
+
+    private void edge(int sensor, boolean high, long nanos) {
+        edges.incrementAndGet();
+
+        long previous = lastEdge.getAndSet(sensor, nanos);
+        if (!high) {
+            return;
+        }
+        if (nanos - previous < debounceNanos) {
+            chatter.incrementAndGet();
+            return;
+        }
+
+        long motion = lastMotion.get(sensor);
+        if (nanos - motion < holdOffNanos || !lastMotion.compareAndSet(sensor, motion, nanos)) {
+            heldOff.incrementAndGet();
+            return;
+        }
+
+        post(1 << sensor, nanos);
+    }
+
+    private void post(int sensors, long nanos) {
+        long latest;
+        do {
+            latest = pendingNanos.get();
+        } while (nanos - latest > 0 && !pendingNanos.compareAndSet(latest, nanos));
+
+        int mask;
+        do {
+            mask = pending.get();
+        } while (!pending.compareAndSet(mask, mask | sensors));
+
+        if (mask == 0) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void consume() {
+        while (running) {
+            if (!deliver()) {
+                LockSupport.park(this);
+            }
+        }
+    }
+}
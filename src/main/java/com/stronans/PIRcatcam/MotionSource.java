@@ -0,0 +1,27 @@
+package com.stronans.PIRcatcam;
+
+/**
+ * Where motion sensor edges come from, the GPIO pins on the Pi or a simulation in tests.
+ */
+public interface MotionSource {
+    /**
+     * Told about every raw edge on every sensor, from whichever thread the source uses.
+     */
+    interface EdgeListener {
+        /**
+         * @param sensor Index of the sensor in the source's list of pins
+         * @param high   true for a rising edge
+         * @param nanos  {@link System#nanoTime()} when the edge was seen
+         */
+        void edge(int sensor, boolean high, long nanos);
+    }
+
+    /**
+     * @return Number of sensors, edges are reported with an index below this.
+     */
+    int sensors();
+
+    void start(EdgeListener listener);
+
+    void shutdown();
+}
@@ -0,0 +1,197 @@
+package com.stronans.PIRcatcam;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when recording starts and stops. Each motion event pushes the drop off deadline back, and a single
+ * task on the scheduler fires at the deadline to stop recording, so nothing runs while the camera is idle.
+ * No locks are taken, the deadline and the state are both atomics and every state change is a compare and set,
+ * which also keeps the start and stop calls to the camera in order. A trigger allocates nothing: scheduling the
+ * stop does, so a session given a hand off executor schedules it there rather than on the triggering thread.
+ * Deadlines are kept in {@link System#nanoTime()}, which the clock being stepped, as NTP does to a Pi with no
+ * real time clock once it finds the network, does not move. Wall time is for the event index only.
+ */
+public class RecordingSession {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(RecordingSession.class);
+
+    /**
+     * Told when the camera should start and stop, always from one thread at a time.
+     */
+    public interface Listener {
+        void recordingStarted();
+
+        void recordingStopped();
+    }
+
+    private static final int IDLE = 0;
+    private static final int RECORDING = 1;
+    private static final int STOPPING = 2;
+
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier nanos;
+    private final Executor handOff;
+    private final Runnable expiry = this::expire;
+    private final Runnable arm = this::arm;
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private final AtomicLong deadline = new AtomicLong();     // In nanos.
+    private volatile long lastTrigger;
+    private volatile long dropOffMillis;
+
+    public RecordingSession(Listener listener, long dropOffMillis, ScheduledExecutorService scheduler) {
+        this(listener, dropOffMillis, scheduler, System::nanoTime);
+    }
+
+    /**
+     * @param nanos Monotonic time in nanos, as {@link System#nanoTime()}, the scheduler's delays must agree with it
+     */
+    public RecordingSession(Listener listener, long dropOffMillis, ScheduledExecutorService scheduler,
+                            LongSupplier nanos) {
+        this(listener, dropOffMillis, scheduler, nanos, Runnable::run);
+    }
+
+    /**
+     * @param handOff Runs the scheduling of the stop for a recording just started, see
+     *                {@link ZoneController#handOff()}. Its {@code execute} must not allocate.
+     */
+    public RecordingSession(Listener listener, long dropOffMillis, ScheduledExecutorService scheduler,
+                            LongSupplier nanos, Executor handOff) {
+        this.listener = listener;
+        this.dropOffMillis = dropOffMillis;
+        this.scheduler = scheduler;
+        this.nanos = nanos;
+        this.handOff = handOff;
+    }
+
+    /**
+     * Motion seen, start recording if idle and keep recording until drop off time after this.
+     */
+    public void trigger() {
+        long now = nanos.getAsLong();
+        lastTrigger = now;
+        long current;
+        do {
+            // The drop off is read after the deadline, so a change to it made meanwhile fails the set and is seen.
+            current = deadline.get();
+        } while (!deadline.compareAndSet(current, now + TimeUnit.MILLISECONDS.toNanos(dropOffMillis)));
+
+        if (state.get() == IDLE) {
+            start();
+        }
+        // If stopping, the stopping thread sees the new deadline once it is done and starts again.
+    }
+
+    /**
+     * Stop recording now rather than at the deadline, unless motion arrives first.
+     */
+    public void stop() {
+        if (state.get() == RECORDING) {
+            deadline.set(nanos.getAsLong());
+            scheduler.execute(expiry);
+        }
+    }
+
+    public boolean isRecording() {
+        return state.get() != IDLE;
+    }
+
+    /**
+     * @return Time in nanos, as the session's time source, at which recording stops unless motion is seen again.
+     */
+    public long deadline() {
+        return deadline.get();
+    }
+
+    public long dropOffMillis() {
+        return dropOffMillis;
+    }
+
+    /**
+     * Change the drop off, straight away: a recording under way stops the new drop off after the last motion. The
+     * deadline is worked out again from the last motion and set by compare and set, so motion arriving meanwhile
+     * is never lost.
+     */
+    public void setDropOffMillis(long dropOffMillis) {
+        if (dropOffMillis == this.dropOffMillis) {
+            return;
+        }
+        this.dropOffMillis = dropOffMillis;
+        if (state.get() != RECORDING) {
+            return;
+        }
+
+        long current;
+        long moved;
+        do {
+            current = deadline.get();
+            if (current - nanos.getAsLong() <= 0) {
+                return;         // Due already, or stopped early, the expiry stops it.
+            }
+            moved = lastTrigger + TimeUnit.MILLISECONDS.toNanos(dropOffMillis);
+        } while (!deadline.compareAndSet(current, moved));
+
+        if (moved - current < 0) {
+            // The expiry already scheduled is now late, the later one finds nothing to do.
+            schedule(moved);
+        }
+    }
+
+    private void start() {
+        if (state.compareAndSet(IDLE, RECORDING)) {
+            listener.recordingStarted();
+            handOff.execute(arm);
+        }
+    }
+
+    private void arm() {
+        schedule(deadline.get());
+    }
+
+    private void expire() {
+        if (pending()) {
+            schedule(deadline.get());
+            return;
+        }
+
+        if (!state.compareAndSet(RECORDING, STOPPING)) {
+            return;
+        }
+        if (pending()) {
+            // Motion arrived between the check and the change of state.
+            state.set(RECORDING);
+            schedule(deadline.get());
+            return;
+        }
+
+        listener.recordingStopped();
+        state.set(IDLE);
+
+        if (pending()) {
+            log.debug("Motion while stopping, restarting");
+            start();
+        }
+    }
+
+    /**
+     * @return true if the deadline is still to come, compared as a difference so nanos wrapping does no harm.
+     */
+    private boolean pending() {
+        return deadline.get() - nanos.getAsLong() > 0;
+    }
+
+    private void schedule(long at) {
+        scheduler.schedule(expiry, Math.max(0, at - nanos.getAsLong()), TimeUnit.NANOSECONDS);
+    }
+}
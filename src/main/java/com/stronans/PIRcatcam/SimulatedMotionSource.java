@@ -0,0 +1,61 @@
+package com.stronans.PIRcatcam;
+
+/**
+ * Motion sensors driven by calls from code, for tests and for replaying recorded edges.
+ */
+public class SimulatedMotionSource implements MotionSource {
+    private final int sensors;
+    private final long startMillis;
+    private volatile EdgeListener listener;
+
+    public SimulatedMotionSource(int sensors) {
+        this(sensors, 0);
+    }
+
+    /**
+     * @param startMillis Time taken to start, as setting up GPIO does. Edges are taken straight away.
+     */
+    public SimulatedMotionSource(int sensors, long startMillis) {
+        this.sensors = sensors;
+        this.startMillis = startMillis;
+    }
+
+    @Override
+    public int sensors() {
+        return sensors;
+    }
+
+    @Override
+    public void start(EdgeListener listener) {
+        this.listener = listener;
+        if (startMillis > 0) {
+            try {
+                Thread.sleep(startMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Raise an edge now.
+     */
+    public void edge(int sensor, boolean high) {
+        edge(sensor, high, System.nanoTime());
+    }
+
+    /**
+     * Raise an edge with a given time stamp.
+     */
+    public void edge(int sensor, boolean high, long nanos) {
+        EdgeListener current = listener;
+        if (current != null) {
+            current.edge(sensor, high, nanos);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        listener = null;
+    }
+}
@@ -0,0 +1,71 @@
+package com.stronans.PIRcatcam;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Passes another source's edges on and saves each to an {@link EdgeTrace} file as well, after it has been passed
+ * on so the trace costs the motion nothing. If the trace cannot be written the edges carry on without it.
+ */
+public class TraceRecorder implements MotionSource {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(TraceRecorder.class);
+
+    private final MotionSource source;
+    private final EdgeTrace.Writer trace;
+    private final Path path;
+    private volatile boolean failed;
+
+    /**
+     * @param source Edges to pass on
+     * @param pins   Pi4J pin address of each of the source's sensors
+     * @param path   Trace file, replaced if it exists
+     */
+    public TraceRecorder(MotionSource source, int[] pins, Path path) throws IOException {
+        this.source = source;
+        this.path = path;
+        trace = new EdgeTrace.Writer(path, pins);
+    }
+
+    @Override
+    public int sensors() {
+        return source.sensors();
+    }
+
+    @Override
+    public void start(EdgeListener listener) {
+        source.start((sensor, high, nanos) -> {
+            listener.edge(sensor, high, nanos);
+            record(sensor, high, nanos);
+        });
+        log.info("Recording edges to {}", path);
+    }
+
+    @Override
+    public void shutdown() {
+        source.shutdown();
+        try {
+            trace.close();
+        } catch (IOException e) {
+            log.error("Closing edge trace " + path, e);
+        }
+        log.info("Recorded {} edges to {}", trace.edges(), path);
+    }
+
+    private void record(int sensor, boolean high, long nanos) {
+        if (failed) {
+            return;
+        }
+        try {
+            trace.edge(sensor, high, nanos);
+        } catch (IOException e) {
+            failed = true;
+            log.error("Writing edge trace " + path + ", no more edges will be saved", e);
+        }
+    }
+}
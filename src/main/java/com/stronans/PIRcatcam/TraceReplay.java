@@ -0,0 +1,313 @@
+package com.stronans.PIRcatcam;
+
+import com.stronans.ProgramProperties;
+import com.stronans.camera.SimulatedCamera;
+import com.stronans.metrics.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays an {@link EdgeTrace} through the same motion pipeline and recording sessions the cameras run on, with
+ * {@link SimulatedCamera}s, and reports the recordings that come out, so a change to the debounce, hold off or
+ * drop off can be tried on real motion on any machine. Time is made up, see {@link VirtualScheduler}: as fast as
+ * possible a month of motion replays in seconds, or at a given speed, 1 for real time. Either way the recordings
+ * are the same. Each motion event's decision, the pipeline and the sessions, is timed in real time.
+ * <p>
+ * Run as <code>TraceReplay &lt;trace&gt; [properties] [--speed n] [--intervals]</code>, the properties default to
+ * catcam.properties. Zones, pins and drop offs are taken from the properties, sensors are matched to zones by pin.
+ */
+public class TraceReplay {
+    private final List<ZoneConfig> configs;
+    private final long debounceMillis;
+    private final long holdOffMillis;
+
+    /**
+     * One zone's recordings.
+     */
+    public static class ZoneResult {
+        private final String name;
+        private final List<long[]> recordings = new ArrayList<>();
+        private final SimulatedCamera camera = new SimulatedCamera();
+
+        ZoneResult(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return Start and end epoch millis, in made up time, of each recording.
+         */
+        public List<long[]> recordings() {
+            return Collections.unmodifiableList(recordings);
+        }
+
+        public long recordedMillis() {
+            long total = 0;
+            for (long[] recording : recordings) {
+                total += recording[1] - recording[0];
+            }
+            return total;
+        }
+
+        public long longestMillis() {
+            long longest = 0;
+            for (long[] recording : recordings) {
+                longest = Math.max(longest, recording[1] - recording[0]);
+            }
+            return longest;
+        }
+
+        public long toggles() {
+            return camera.toggles();
+        }
+
+        /**
+         * @return Times the camera was told to be what it already was, should be 0.
+         */
+        public long unchanged() {
+            return camera.unchanged();
+        }
+    }
+
+    /**
+     * What a replay did.
+     */
+    public static class Result {
+        private final List<ZoneResult> zones = new ArrayList<>();
+        private final Histogram decisions = new Histogram("replay_decision_seconds",
+                "Time from a motion edge to the sessions having acted on it", Histogram.decades(100, 100_000_000),
+                1_000_000_000);
+        private long startMillis;
+        private long edges;
+        private long chatter;
+        private long heldOff;
+        private long events;
+        private long traceNanos;
+        private long wallNanos;
+
+        public List<ZoneResult> zones() {
+            return Collections.unmodifiableList(zones);
+        }
+
+        /**
+         * @return Time from each motion event reaching the pipeline to the sessions having acted on it, seconds.
+         */
+        public Histogram decisions() {
+            return decisions;
+        }
+
+        public long edges() {
+            return edges;
+        }
+
+        public long chatter() {
+            return chatter;
+        }
+
+        public long heldOff() {
+            return heldOff;
+        }
+
+        /**
+         * @return Motion events handed to the sessions.
+         */
+        public long events() {
+            return events;
+        }
+
+        /**
+         * @return Nanos from the start of the trace to its last edge.
+         */
+        public long traceNanos() {
+            return traceNanos;
+        }
+
+        /**
+         * @return Real nanos the replay took.
+         */
+        public long wallNanos() {
+            return wallNanos;
+        }
+
+        public void print(PrintStream out, boolean intervals) {
+            double wallSeconds = wallNanos / 1e9;
+            out.println("Trace from " + Instant.ofEpochMilli(startMillis) + ", " + edges + " edges over "
+                    + String.format("%.1f", traceNanos / 3.6e12) + " hours");
+            out.println("Replayed in " + TimeUnit.NANOSECONDS.toMillis(wallNanos) + " ms, "
+                    + Math.round(edges / Math.max(wallSeconds, 1e-9)) + " edges/s, "
+                    + Math.round(traceNanos / (double) Math.max(wallNanos, 1)) + "x real time");
+            out.println("Pipeline: chatter " + chatter + ", held off " + heldOff + ", motion events " + events);
+            out.println("Decision latency: p50 " + micros(decisions.getP50()) + " us, p99 " + micros(decisions.getP99())
+                    + " us, max " + micros(decisions.getMax()) + " us");
+            for (ZoneResult zone : zones) {
+                out.println("Zone " + zone.name + ": " + zone.recordings.size() + " recordings, "
+                        + TimeUnit.MILLISECONDS.toSeconds(zone.recordedMillis()) + " s recorded, longest "
+                        + TimeUnit.MILLISECONDS.toSeconds(zone.longestMillis()) + " s, toggles " + zone.toggles()
+                        + (zone.unchanged() > 0 ? ", wrong toggles " + zone.unchanged() : ""));
+                if (intervals) {
+                    for (long[] recording : zone.recordings) {
+                        out.println("  " + Instant.ofEpochMilli(recording[0]) + " - " + Instant.ofEpochMilli(recording[1])
+                                + " " + (recording[1] - recording[0]) + " ms");
+                    }
+                }
+            }
+        }
+
+        private static long micros(double seconds) {
+            return Math.round(seconds * 1e6);
+        }
+    }
+
+    public TraceReplay(List<ZoneConfig> configs, long debounceMillis, long holdOffMillis) {
+        this.configs = configs;
+        this.debounceMillis = debounceMillis;
+        this.holdOffMillis = holdOffMillis;
+    }
+
+    /**
+     * Replay a trace to its end and until every recording has stopped.
+     *
+     * @param speed Made up seconds to each real one, 1 for real time, 0 for as fast as possible
+     */
+    public Result run(EdgeTrace.Reader trace, double speed) throws IOException, InterruptedException {
+        Result result = new Result();
+        result.startMillis = trace.startMillis();
+        VirtualScheduler scheduler = new VirtualScheduler(trace.startMillis());
+
+        // Each zone's sensors, matched by pin.
+        int[] pins = trace.pins();
+        int[] zoneSensors = new int[configs.size()];
+        RecordingSession[] sessions = new RecordingSession[configs.size()];
+        for (int z = 0; z < configs.size(); z++) {
+            ZoneConfig config = configs.get(z);
+            for (int pin : config.pins()) {
+                for (int sensor = 0; sensor < pins.length; sensor++) {
+                    if (pins[sensor] == pin) {
+                        zoneSensors[z] |= 1 << sensor;
+                    }
+                }
+            }
+
+            ZoneResult zone = new ZoneResult(config.name());
+            result.zones.add(zone);
+            sessions[z] = new RecordingSession(new RecordingSession.Listener() {
+                private long startedMillis;
+
+                @Override
+                public void recordingStarted() {
+                    zone.camera.setActive(true);
+                    startedMillis = scheduler.clock().millis();
+                }
+
+                @Override
+                public void recordingStopped() {
+                    zone.camera.setActive(false);
+                    zone.recordings.add(new long[]{startedMillis, scheduler.clock().millis()});
+                }
+            }, config.dropOffMillis(), scheduler, scheduler::nanos);
+        }
+
+        SimulatedMotionSource source = new SimulatedMotionSource(pins.length);
+        MotionPipeline pipeline = new MotionPipeline(source, debounceMillis, holdOffMillis, (sensors, nanos) -> {
+            for (int z = 0; z < zoneSensors.length; z++) {
+                if ((sensors & zoneSensors[z]) != 0) {
+                    sessions[z].trigger();
+                }
+            }
+        });
+        pipeline.startDriven();
+
+        // Edge times are moved to now, the pipeline starts every sensor as quiet for a day before that.
+        long base = System.nanoTime();
+        long wallStart = base;
+        while (trace.next()) {
+            long at = trace.nanos();
+            advance(scheduler, at, speed, wallStart);
+
+            long begin = System.nanoTime();
+            source.edge(trace.sensor(), trace.high(), base + at);
+            if (pipeline.deliver()) {
+                result.decisions.recordSince(begin);
+            }
+            result.traceNanos = at;
+        }
+        long due;
+        while ((due = scheduler.nextDue()) != Long.MAX_VALUE) {
+            advance(scheduler, due, speed, wallStart);
+        }
+        result.wallNanos = System.nanoTime() - wallStart;
+
+        result.edges = pipeline.edges();
+        result.chatter = pipeline.chatter();
+        result.heldOff = pipeline.heldOff();
+        result.events = pipeline.delivered();
+        return result;
+    }
+
+    /**
+     * Move made up time on, at the given speed waiting for real time to catch up with each task on the way.
+     */
+    private static void advance(VirtualScheduler scheduler, long target, double speed, long wallStart)
+            throws InterruptedException {
+        if (speed > 0) {
+            long due;
+            while ((due = scheduler.nextDue()) <= target) {
+                waitUntil(wallStart + (long) (due / speed));
+                scheduler.advanceTo(due);
+            }
+            waitUntil(wallStart + (long) (target / speed));
+        }
+        scheduler.advanceTo(target);
+    }
+
+    private static void waitUntil(long nanos) throws InterruptedException {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        String tracePath = null;
+        String propertiesPath = "catcam.properties";
+        double speed = 0;
+        boolean intervals = false;
+        boolean named = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--speed") && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--intervals")) {
+                intervals = true;
+            } else if (tracePath == null) {
+                tracePath = args[i];
+            } else if (!named) {
+                propertiesPath = args[i];
+                named = true;
+            }
+        }
+        if (tracePath == null) {
+            System.err.println("Usage: TraceReplay <trace> [properties] [--speed n] [--intervals]");
+            System.exit(2);
+        }
+
+        ProgramProperties properties = ProgramProperties.getInstance(propertiesPath);
+        TraceReplay replay = new TraceReplay(ZoneConfig.load(properties),
+                properties.getInt(ListenForActivity.SENSOR_DEBOUNCE, ListenForActivity.DEFAULT_DEBOUNCE_MS),
+                properties.getInt(ListenForActivity.SENSOR_HOLD_OFF, ListenForActivity.DEFAULT_HOLD_OFF_MS));
+
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(Paths.get(tracePath))) {
+            replay.run(trace, speed).print(System.out, intervals);
+        }
+    }
+}
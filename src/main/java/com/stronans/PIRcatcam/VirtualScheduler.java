@@ -0,0 +1,225 @@
+package com.stronans.PIRcatcam;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler and a clock in made up time, for replaying a day's motion in a moment. Time only moves when
+ * {@link #advanceTo(long)} is called, which runs every task falling due on the way in time order, tasks due at
+ * the same time in the order they were scheduled. Nothing runs on a thread of its own: tasks run on the thread
+ * calling {@link #advanceTo(long)}, and the scheduler is only for use from that one thread.
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private final long startMillis;
+    private final Clock clock = new VirtualClock();
+    private long nanos;                 // Since the start.
+    private long sequence;
+    private boolean shutdown;
+
+    /**
+     * @param startMillis Epoch millis the clock starts at
+     */
+    public VirtualScheduler(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * @return The made up time as a clock, in UTC.
+     */
+    public Clock clock() {
+        return clock;
+    }
+
+    /**
+     * @return Nanos since the start.
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Nanos since the start the next task is due at, {@link Long#MAX_VALUE} if there is none.
+     */
+    public long nextDue() {
+        Task<?> next = queue.peek();
+        return next != null ? next.at : Long.MAX_VALUE;
+    }
+
+    /**
+     * Move time forward, running the tasks due by then. Time never goes back, an earlier time runs what is due now.
+     *
+     * @param target Nanos since the start
+     * @return Number of tasks run.
+     */
+    public int advanceTo(long target) {
+        int ran = 0;
+        Task<?> next;
+        while ((next = queue.peek()) != null && next.at <= target) {
+            queue.poll();
+            nanos = Math.max(nanos, next.at);
+            next.run();
+            ran++;
+        }
+        nanos = Math.max(nanos, target);
+        return ran;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Task<>(Executors.callable(command), unit.toNanos(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Task<>(callable, unit.toNanos(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be above 0 [" + period + "]");
+        }
+        return add(new Task<>(Executors.callable(command), unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be above 0 [" + delay + "]");
+        }
+        // With no time taken to run a task the two are the same.
+        return add(new Task<>(Executors.callable(command), unit.toNanos(initialDelay), unit.toNanos(delay)));
+    }
+
+    /**
+     * Run the command when time next moves, see {@link #advanceTo(long)}.
+     */
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> waiting = new ArrayList<>(queue);
+        queue.clear();
+        return waiting;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    /**
+     * Nothing runs unless time is moved, so this does not wait.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private <V> Task<V> add(Task<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler shut down");
+        }
+        queue.add(task);
+        return task;
+    }
+
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long period;
+        private long at;
+        private long order;
+
+        Task(Callable<V> callable, long delay, long period) {
+            super(callable);
+            this.at = nanos + Math.max(0, delay);
+            this.period = period;
+            order = sequence++;
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset() && !shutdown) {
+                at += period;
+                order = sequence++;
+                queue.add(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                queue.remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(at - nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof Task) {
+                Task<?> task = (Task<?>) other;
+                int result = Long.compare(at, task.at);
+                return result != 0 ? result : Long.compare(order, task.order);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private class VirtualClock extends Clock {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException("Virtual clock is in UTC");
+        }
+
+        @Override
+        public long millis() {
+            return startMillis + nanos / 1_000_000;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(startMillis).plusNanos(nanos);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.stronans.PIRcatcam;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.CameraProcess;
+import com.stronans.camera.CameraSupervisor;
+import com.stronans.camera.EventIndex;
+import com.stronans.camera.FragmentedMp4Writer;
+import com.stronans.camera.LumaMonitor;
+import com.stronans.camera.PreRollCamera;
+import com.stronans.camera.SegmentWriter;
+import com.stronans.camera.StorageManager;
+import com.stronans.camera.StreamOutput;
+import com.stronans.camera.TimelapseArchive;
+import com.stronans.camera.TimelapseSchedule;
+import com.stronans.camera.VideoCapture;
+import com.stronans.camera.WriteBehind;
+import com.stronans.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+/**
+ * One camera and its recording session. Changed settings are taken up while running, see {@link #reconfigure}.
+ */
+public class Zone implements RecordingSession.Listener {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(Zone.class);
+
+    private static final int TIMELAPSE_BUFFERS = 2;
+    private static final long CONFIRM_START_MS = 5000;     // Longest the motion camera may take to give a picture.
+
+    private volatile ZoneConfig config;
+    private volatile VideoCapture videoCamera;
+    private volatile SegmentWriter segments;
+    private WriteBehind writeBehind;
+    private final Object cameraLock = new Object();     // Held while the camera is changed, or started or stopped.
+    private volatile boolean cameraChanged;             // Camera settings changed, restart at the next file.
+    private volatile LocalDateTime videoStarted;
+    private volatile String videoName;
+    private volatile File videoFile;
+    private EventIndex events;
+    private RecordingSession session;
+    private ScheduledExecutorService scheduler;
+    private Executor handOff;
+    private final Runnable started = this::started;
+    private final Runnable stopped = this::stopped;
+
+    // Optional check of PIR triggers against the picture.
+    private LumaMonitor confirmation;
+    private volatile long recordingStartedMillis;
+    private final Runnable confirmCheck = this::checkConfirmed;
+    private volatile boolean confirmationLost;
+
+    // Optional timelapse stills from the stream while paused.
+    private TimelapseSchedule timelapse;
+    private TimelapseArchive timelapseArchive;
+
+    // For the metrics, when the latest motion was sensed and when recording last started or stopped.
+    private volatile long edgeNanos;
+    private volatile long stateChangedMillis;
+
+    public Zone(ZoneConfig config) {
+        this.config = config;
+    }
+
+    public ZoneConfig config() {
+        return config;
+    }
+
+    /**
+     * Start the camera, paused, with the session timing on the given scheduler.
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        start(scheduler, Runnable::run, null, null);
+    }
+
+    /**
+     * As {@link #start(ScheduledExecutorService)}, doing the work a trigger sets off that need not hold it up on
+     * the given hand off, see {@link ZoneController#handOff()}, writing a streaming camera's files through the given
+     * write behind and keeping the file being written safe from the storage manager, either may be null.
+     */
+    public void start(ScheduledExecutorService scheduler, Executor handOff, WriteBehind writeBehind,
+                      StorageManager storage) {
+        videoStarted = LocalDateTime.now();
+
+        if (config.eventIndex() != null) {
+            try {
+                events = new EventIndex(Paths.get(config.eventIndex()));
+            } catch (IOException e) {
+                log.error("Zone " + config.name() + " running without an event index", e);
+            }
+        }
+
+        if (config.streaming()) {
+            this.writeBehind = writeBehind;
+        }
+        if (config.timelapse()) {
+            timelapse = new TimelapseSchedule(config.timelapseIntervalMillis(), config.timelapseMotionIntervalMillis(),
+                    config.timelapseMotionWindowMillis(), config.timelapseNightIntervalMillis(),
+                    config.timelapseNightFrom(), config.timelapseNightTo(), ZoneId.systemDefault());
+            timelapseArchive = new TimelapseArchive(config.timelapseStem(), ZoneId.systemDefault(), TIMELAPSE_BUFFERS,
+                    config.timelapseBufferSize());
+        }
+        videoCamera = supervise();
+        if (storage != null) {
+            storage.addActive(this::currentFile);
+            storage.addActive(this::timelapseFile);
+        }
+
+        if (config.confirm()) {
+            confirmation = Camera.getLumaMonitor(config.confirmTool(), config.confirmSettings(),
+                    config.confirmWidth(), config.confirmHeight(), config.confirmStep(),
+                    config.confirmPixelThreshold(), config.confirmPermille());
+            awaitConfirmation();
+        }
+
+        this.scheduler = scheduler;
+        this.handOff = handOff;
+        session = new RecordingSession(this, config.dropOffMillis(), scheduler, System::nanoTime, handOff);
+        stateChangedMillis = System.currentTimeMillis();
+        log.info("Zone " + config.name() + " ready");
+    }
+
+    /**
+     * Motion seen by one of this zone's sensors.
+     */
+    public void trigger() {
+        trigger(System.nanoTime());
+    }
+
+    /**
+     * As {@link #trigger()}, for motion sensed at the given {@link System#nanoTime()}, so the time from the sensor
+     * to the camera is measured.
+     */
+    public void trigger(long edgeNanos) {
+        this.edgeNanos = edgeNanos;
+        session.trigger();
+    }
+
+    /**
+     * Take up changed settings. The drop off applies at once, to a recording under way too. New camera settings
+     * need the camera started again, which is done at the next file boundary: straight away if the camera is
+     * paused, otherwise when the recording stops, so no recording is cut short. Anything else is only logged, it
+     * needs a restart.
+     *
+     * @return Names of the settings that changed and were not taken up.
+     */
+    public List<String> reconfigure(ZoneConfig next) {
+        ZoneConfig current = config;
+        List<String> changes = current.changes(next);
+        if (changes.isEmpty()) {
+            return changes;
+        }
+
+        ZoneConfig live = current.withLive(next);
+        List<String> ignored = new ArrayList<>(changes);
+        ignored.removeAll(live.changes(current));
+
+        config = live;
+        if (live.dropOffMillis() != current.dropOffMillis()) {
+            session.setDropOffMillis(live.dropOffMillis());
+            log.info("Zone " + live.name() + " drop off now " + live.dropOffMillis() + " ms");
+        }
+        if (!live.videoSettings().equals(current.videoSettings()) || !live.videoTool().equals(current.videoTool())) {
+            cameraChanged = true;
+            scheduler.execute(this::changeCameraIfPaused);
+        }
+        if (!ignored.isEmpty()) {
+            log.warn("Zone " + live.name() + " settings " + ignored + " changed, restart to apply them");
+        }
+
+        return ignored;
+    }
+
+    public RecordingSession session() {
+        return session;
+    }
+
+    /**
+     * @return Name of the file the camera is writing, null before it has started one.
+     */
+    public String currentFile() {
+        SegmentWriter writer = segments;
+        if (config.streaming()) {
+            return writer != null ? writer.currentName() : null;
+        }
+        return videoName;
+    }
+
+    /**
+     * @return Name of the timelapse file being written, null if there is none.
+     */
+    public String timelapseFile() {
+        return timelapseArchive != null ? timelapseArchive.currentName() : null;
+    }
+
+    public TimelapseArchive timelapse() {
+        return timelapseArchive;
+    }
+
+    public VideoCapture camera() {
+        return videoCamera;
+    }
+
+    /**
+     * @return Index of this zone's recordings, null if there is none.
+     */
+    public EventIndex events() {
+        return events;
+    }
+
+    public LumaMonitor confirmation() {
+        return confirmation;
+    }
+
+    @Override
+    public void recordingStarted() {
+        long edge = edgeNanos;
+        Metrics.PAUSED.record(changeState());
+        Metrics.TRIGGER.recordSince(edge);
+        if (timelapse != null) {
+            timelapse.motion(stateChangedMillis);
+        }
+
+        // Noted now, indexed on the hand off: the index forces its file out and that can take a while. Handed
+        // over before the camera is told, its file has not grown by the time the hand off reads the length.
+        recordingStartedMillis = System.currentTimeMillis();
+        if (events != null || confirmation != null) {
+            handOff.execute(started);
+        }
+
+        // Start capture
+        synchronized (cameraLock) {
+            videoCamera.setActive(true);
+        }
+        Metrics.TRIGGER_TO_RECORDING.recordSince(edge);
+    }
+
+    /**
+     * The hand off's part of a recording starting.
+     */
+    private void started() {
+        indexStart();
+
+        if (confirmation != null) {
+            scheduler.schedule(confirmCheck, config.confirmWindowMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The hand off's part of a recording stopping, after its start on the same thread.
+     */
+    private void stopped() {
+        events.recordingStopped(System.currentTimeMillis());
+    }
+
+    @Override
+    public void recordingStopped() {
+        synchronized (cameraLock) {
+            // Stop capture
+            videoCamera.setActive(false);
+            Metrics.RECORDING.record(changeState());
+            if (timelapse != null) {
+                timelapse.motion(stateChangedMillis);
+            }
+            if (events != null) {
+                handOff.execute(stopped);
+            }
+            // If we have crossed over midnight of the day the video was started then create a new named video.
+            if (cameraChanged
+                    || !config.streaming() && LocalDateTime.now().truncatedTo(DAYS).isAfter(videoStarted.truncatedTo(DAYS))) {
+                changeCamera();
+            }
+        }
+    }
+
+    private void changeCameraIfPaused() {
+        synchronized (cameraLock) {
+            if (cameraChanged && !session.isRecording()) {
+                changeCamera();
+            }
+        }
+    }
+
+    /**
+     * Start the camera again with the current settings, a new file is begun. Called holding the camera lock.
+     */
+    private void changeCamera() {
+        cameraChanged = false;
+        videoCamera.shutdown();
+        log.info("shutdown camera.");
+
+        videoCamera = supervise();
+    }
+
+    /**
+     * The camera, started again whenever it dies.
+     */
+    private CameraSupervisor supervise() {
+        ZoneConfig settings = config;
+        return new CameraSupervisor(settings.name(), this::spawnCamera, settings.respawnMinMillis(), settings.respawnMaxMillis());
+    }
+
+    private VideoCapture spawnCamera(CameraProcess.Status initial) {
+        if (config.streaming()) {
+            return startStreaming();
+        }
+        // A camera started again after dying must not write over the file of the one before.
+        videoStarted = LocalDateTime.now();
+        return startNamed(initial);
+    }
+
+    /**
+     * @return Millis since recording last started or stopped.
+     */
+    private long changeState() {
+        long now = System.currentTimeMillis();
+        long spell = now - stateChangedMillis;
+        stateChangedMillis = now;
+        return spell;
+    }
+
+    /**
+     * Refuse to start if the motion camera gives no picture, rather than run trusting every trigger. On a Pi with
+     * one camera a second program cannot open it while the video camera has it.
+     */
+    private void awaitConfirmation() {
+        boolean running;
+        try {
+            running = confirmation.awaitFrame(CONFIRM_START_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+        if (!running) {
+            confirmation.shutdown();
+            videoCamera.shutdown();
+            throw new IllegalStateException("Zone " + config.name() + " motion camera gave no picture ["
+                    + config.confirmTool() + "], it needs a camera of its own or frames from the video camera");
+        }
+    }
+
+    /**
+     * Stop a recording the picture has not backed up. Only the check for the current recording acts. If the motion
+     * camera has died since it started every trigger is trusted, which is logged the once as an error.
+     */
+    private void checkConfirmed() {
+        long started = recordingStartedMillis;
+        long window = config.confirmWindowMillis();
+
+        if (!session.isRecording() || System.currentTimeMillis() - started < window) {
+            return;
+        }
+        if (!confirmation.isAlive()) {
+            if (!confirmationLost) {
+                confirmationLost = true;
+                log.error("Zone {} motion camera has stopped, triggers are no longer confirmed", config.name());
+            }
+            return;
+        }
+        if (!confirmation.motionSince(started - window)) {
+            log.info("Zone {} motion not confirmed by camera, stopping", config.name());
+            session.stop();
+        }
+    }
+
+    public void shutdown() {
+        if (confirmation != null) {
+            confirmation.shutdown();
+        }
+        if (videoCamera != null) {          // Null if it failed to start before the camera.
+            videoCamera.setActive(false);
+            videoCamera.shutdown();
+        }
+        if (timelapseArchive != null) {
+            try {
+                timelapseArchive.close();
+            } catch (IOException e) {
+                log.error("Closing timelapse", e);
+            }
+        }
+        if (events != null) {
+            try {
+                events.recordingStopped(System.currentTimeMillis());
+                events.close();
+            } catch (IOException e) {
+                log.error("Closing event index", e);
+            }
+        }
+        log.info("shutdown camera " + config.name() + ".");
+    }
+
+    /**
+     * Index a recording as it starts. A streaming camera's clip begins with the pre-roll, its place in the output
+     * is only known once that is written, see {@link #clipStarted(String, long)}.
+     */
+    private void indexStart() {
+        if (events == null) {
+            return;
+        }
+
+        try {
+            if (config.streaming()) {
+                events.recordingStarted(recordingStartedMillis - config.preRollMillis(), null, 0);
+            } else {
+                events.recordingStarted(recordingStartedMillis, videoName, videoFile.length());
+            }
+        } catch (IOException e) {
+            log.error("Indexing recording", e);
+        }
+    }
+
+    private void clipStarted(String file, long offset) {
+        try {
+            events.moved(file, offset);
+        } catch (IOException e) {
+            log.error("Indexing recording", e);
+        }
+    }
+
+    /**
+     * One camera process until the settings change, files are changed at keyframes by day, size or duration.
+     * Written as the camera's H.264 or, for .mp4 files, as fragmented MP4.
+     */
+    private VideoCapture startStreaming() {
+        ZoneConfig settings = config;
+        segments = new SegmentWriter(time -> ListenForActivity.getName(settings.fileRoot(), settings.fileExtension(), time),
+                settings.segmentBytes(), settings.segmentMillis(), writeBehind);
+        StreamOutput output = settings.mp4() ? new FragmentedMp4Writer(segments, settings.frameRate()) : segments;
+        VideoCapture camera = Camera.getStreamingVideo(settings.videoTool(), output, settings.videoSettings(),
+                settings.preRollBufferSize(), settings.preRollMillis());
+        if (timelapseArchive != null) {
+            ((PreRollCamera) camera).setTimelapse(timelapse, timelapseArchive);
+        }
+        if (events != null) {
+            // After the start it belongs to, which may still be waiting on the hand off.
+            ((PreRollCamera) camera).setClipListener((file, offset) -> handOff.execute(() -> clipStarted(file, offset)));
+        }
+        return camera;
+    }
+
+    private VideoCapture startNamed(CameraProcess.Status initial) {
+        videoName = ListenForActivity.getName(config.fileRoot(), config.fileExtension(), videoStarted);
+        videoFile = new File(videoName);
+        return Camera.getNamedVideo(config.videoTool(), videoName, config.videoSettings(), initial);
+    }
+}
@@ -0,0 +1,668 @@
+package com.stronans.PIRcatcam;
+
+import com.stronans.ProgramProperties;
+import com.stronans.camera.Camera;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.function.Function;
+
+/**
+ * Settings for one camera and the sensors that trigger it. With <code>com.stronans.catcam.zones</code> listing
+ * zone names, each setting is looked up as <code>com.stronans.catcam.zone.&lt;name&gt;.&lt;setting&gt;</code> first and
+ * then as the plain <code>com.stronans.catcam.&lt;setting&gt;</code>, so zones only need to give what differs.
+ * Without a zone list there is a single zone made from the plain settings.
+ * <p>
+ * A config never changes once made. When the properties are reloaded the settings a running zone can take up,
+ * see {@link #LIVE_SETTINGS}, are carried into a copy of its config with {@link #withLive(ZoneConfig)}, the rest
+ * need a restart.
+ */
+public class ZoneConfig {
+    static final String PROGRAM_ROOT = "com.stronans.catcam.";
+
+    private static final String ZONES = PROGRAM_ROOT + "zones";                     // Comma separated zone names
+    private static final String ZONE_ROOT = PROGRAM_ROOT + "zone.";
+
+    private static final String VIDEO_SETTINGS = "video.settings";
+    private static final String NAME_STUB = "filename.stub";
+    private static final String STORE_PATH = "store.path";
+    private static final String FILE_EXTENSION = "file.extension";
+    private static final String TIME_TO_RECORD = "time.record";      // Milliseconds
+    private static final String DROP_OFF_RATE = "drop.off";          // Number of seconds before camera switch off
+    private static final String DROP_OFF_MILLIS = "drop.off.ms";     // As drop.off in milliseconds, takes precedence
+    private static final String VIDEO_TOOL = "video.tool";           // Replacement for raspivid
+    private static final String CAPTURE_STREAM = "capture.stream";   // true to read the camera stream in process
+    private static final String PRE_ROLL = "preroll.ms";             // Milliseconds kept before a trigger
+    private static final String PRE_ROLL_BUFFER = "preroll.buffer.kb";
+    private static final String SEGMENT_SIZE = "segment.max.mb";     // 0 is no limit
+    private static final String SEGMENT_TIME = "segment.max.minutes";  // 0 is no limit
+    private static final String SENSOR_PINS = "sensor.pins";         // Comma separated Pi4J pin addresses
+    private static final String EVENT_INDEX = "event.index";         // Recording index file, "none" for no index
+    private static final String STORAGE_QUOTA = "storage.quota.mb";          // 0 is no limit
+    private static final String STORAGE_MIN_FREE = "storage.min.free.mb";    // 0 is no limit
+    private static final String STORAGE_KEEP = "storage.keep.pattern";       // Glob of file names kept longer
+    private static final String STORAGE_KEEP_HOURS = "storage.keep.hours";
+    private static final String STORAGE_SWEEP = "storage.sweep.seconds";
+    private static final String WRITE_BEHIND = "writebehind.kb";             // 0 writes on the camera thread
+    private static final String WRITE_BLOCK = "writebehind.block.kb";
+    private static final String CONFIRM = "confirm.enabled";         // true to check PIR triggers against the picture
+    private static final String CONFIRM_TOOL = "confirm.tool";
+    private static final String CONFIRM_SETTINGS = "confirm.settings";
+    private static final String CONFIRM_WIDTH = "confirm.width";
+    private static final String CONFIRM_HEIGHT = "confirm.height";
+    private static final String CONFIRM_STEP = "confirm.step";
+    private static final String CONFIRM_PIXEL = "confirm.pixel.threshold";
+    private static final String CONFIRM_PERMILLE = "confirm.permille";
+    private static final String CONFIRM_WINDOW = "confirm.window.ms";
+    private static final String RESPAWN_MIN = "camera.respawn.min.ms";   // Wait after a camera dies, doubling
+    private static final String RESPAWN_MAX = "camera.respawn.max.ms";
+    private static final String TIMELAPSE = "timelapse.enabled";      // true to keep stills while paused
+    private static final String TIMELAPSE_INTERVAL = "timelapse.interval.seconds";
+    private static final String TIMELAPSE_MOTION_INTERVAL = "timelapse.motion.interval.seconds";
+    private static final String TIMELAPSE_MOTION_WINDOW = "timelapse.motion.window.minutes";
+    private static final String TIMELAPSE_NIGHT_INTERVAL = "timelapse.night.interval.seconds";
+    private static final String TIMELAPSE_NIGHT_FROM = "timelapse.night.from";    // Hour of the day
+    private static final String TIMELAPSE_NIGHT_TO = "timelapse.night.to";
+    private static final String TIMELAPSE_BUFFER = "timelapse.buffer.kb";         // Largest keyframe kept
+
+    private static final String TIME_SET = "-t ";
+    private static final String MP4_EXTENSION = ".mp4";
+    private static final double DEFAULT_FRAME_RATE = 30;            // raspivid's own
+
+    private static final String DEFAULT_SENSOR_PINS = "6";          // GPIO_06
+    private static final int DEFAULT_CUT_OFF_SECS = 15;
+    private static final int DEFAULT_PRE_ROLL_BUFFER_KB = 4096;
+    private static final String DEFAULT_CONFIRM_TOOL = "raspividyuv";
+    private static final String DEFAULT_CONFIRM_SETTINGS = "-fps 5";
+
+    private static final String NO_INDEX = "none";
+
+    public static final String DEFAULT_ZONE = "default";
+
+    /**
+     * Settings a running zone takes up when changed.
+     */
+    public static final List<String> LIVE_SETTINGS = Collections.unmodifiableList(Arrays.asList(
+            VIDEO_TOOL, VIDEO_SETTINGS, TIME_TO_RECORD, DROP_OFF_RATE, DROP_OFF_MILLIS, CONFIRM_WINDOW));
+
+    private final String name;
+    private final String videoTool;
+    private final String videoSettings;
+    private final long dropOffMillis;
+    private final long confirmWindowMillis;
+    private final String storePath;
+    private final String fileRoot;
+    private final String fileExtension;
+    private final boolean streaming;
+    private final int preRollMillis;
+    private final int preRollBufferSize;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final int[] pins;
+    private final String eventIndex;
+    private final long storageQuotaBytes;
+    private final long storageMinFreeBytes;
+    private final String storageKeepPattern;
+    private final long storageKeepMillis;
+    private final long storageSweepMillis;
+    private final int writeBehindBytes;
+    private final int writeBlockBytes;
+    private final boolean confirm;
+    private final String confirmTool;
+    private final String confirmSettings;
+    private final int confirmWidth;
+    private final int confirmHeight;
+    private final int confirmStep;
+    private final int confirmPixelThreshold;
+    private final int confirmPermille;
+    private final long respawnMinMillis;
+    private final long respawnMaxMillis;
+    private final boolean timelapse;
+    private final long timelapseIntervalMillis;
+    private final long timelapseMotionIntervalMillis;
+    private final long timelapseMotionWindowMillis;
+    private final long timelapseNightIntervalMillis;
+    private final int timelapseNightFrom;
+    private final int timelapseNightTo;
+    private final int timelapseBufferSize;
+
+    private ZoneConfig(Function<String, String> properties, String name, String prefix) {
+        this.name = name;
+
+        StringJoiner joiner = new StringJoiner(" ");
+        videoSettings = joiner.add(get(properties, prefix, VIDEO_SETTINGS))
+                .add(TIME_SET + get(properties, prefix, TIME_TO_RECORD))
+                .add(Camera.VIDEO_DEFAULTS).toString();
+
+        storePath = get(properties, prefix, STORE_PATH);
+        joiner = new StringJoiner("/");
+        fileRoot = joiner.add(storePath)
+                .add(get(properties, prefix, NAME_STUB)).toString();
+
+        fileExtension = get(properties, prefix, FILE_EXTENSION);
+
+        String tool = get(properties, prefix, VIDEO_TOOL);
+        videoTool = tool != null ? tool : Camera.getVideoTool();
+
+        dropOffMillis = dropOffMillis(properties, prefix);
+
+        streaming = Boolean.parseBoolean(get(properties, prefix, CAPTURE_STREAM));
+        preRollMillis = getInt(properties, prefix, PRE_ROLL, 0);
+        preRollBufferSize = getInt(properties, prefix, PRE_ROLL_BUFFER, DEFAULT_PRE_ROLL_BUFFER_KB) * 1024;
+        segmentBytes = getInt(properties, prefix, SEGMENT_SIZE, 0) * 1024L * 1024L;
+        segmentMillis = getInt(properties, prefix, SEGMENT_TIME, 0) * 60_000L;
+
+        String pinList = get(properties, prefix, SENSOR_PINS);
+        pins = parsePins(pinList == null ? DEFAULT_SENSOR_PINS : pinList);
+
+        String index = prefix != null ? properties.apply(prefix + EVENT_INDEX) : null;
+        if (index == null) {
+            index = properties.apply(PROGRAM_ROOT + EVENT_INDEX);
+            if (index != null && prefix != null && !NO_INDEX.equals(index.trim())) {
+                index = zoneFile(index.trim(), name);   // Two zones writing one index would corrupt it.
+            }
+        }
+        if (index == null) {
+            index = storePath + (DEFAULT_ZONE.equals(name) ? "/events.idx" : "/events-" + name + ".idx");
+        }
+        eventIndex = NO_INDEX.equals(index.trim()) ? null : index.trim();
+
+        storageQuotaBytes = getInt(properties, prefix, STORAGE_QUOTA, 0) * 1024L * 1024L;
+        storageMinFreeBytes = getInt(properties, prefix, STORAGE_MIN_FREE, 0) * 1024L * 1024L;
+        storageKeepPattern = get(properties, prefix, STORAGE_KEEP);
+        storageKeepMillis = getInt(properties, prefix, STORAGE_KEEP_HOURS, 0) * 3_600_000L;
+        storageSweepMillis = getInt(properties, prefix, STORAGE_SWEEP, 60) * 1000L;
+        writeBehindBytes = getInt(properties, prefix, WRITE_BEHIND, 0) * 1024;
+        writeBlockBytes = getInt(properties, prefix, WRITE_BLOCK, 256) * 1024;
+
+        confirm = Boolean.parseBoolean(get(properties, prefix, CONFIRM));
+        String value = get(properties, prefix, CONFIRM_TOOL);
+        confirmTool = value != null ? value : DEFAULT_CONFIRM_TOOL;
+        value = get(properties, prefix, CONFIRM_SETTINGS);
+        confirmSettings = value != null ? value : DEFAULT_CONFIRM_SETTINGS;
+        confirmWidth = getInt(properties, prefix, CONFIRM_WIDTH, 128);
+        confirmHeight = getInt(properties, prefix, CONFIRM_HEIGHT, 96);
+        confirmStep = getInt(properties, prefix, CONFIRM_STEP, 1);
+        confirmPixelThreshold = getInt(properties, prefix, CONFIRM_PIXEL, 25);
+        confirmPermille = getInt(properties, prefix, CONFIRM_PERMILLE, 10);
+        confirmWindowMillis = getInt(properties, prefix, CONFIRM_WINDOW, 2000);
+        respawnMinMillis = getInt(properties, prefix, RESPAWN_MIN, 1000);
+        respawnMaxMillis = getInt(properties, prefix, RESPAWN_MAX, 60_000);
+
+        timelapse = Boolean.parseBoolean(get(properties, prefix, TIMELAPSE));
+        timelapseIntervalMillis = getInt(properties, prefix, TIMELAPSE_INTERVAL, 60) * 1000L;
+        timelapseMotionIntervalMillis = getInt(properties, prefix, TIMELAPSE_MOTION_INTERVAL, 10) * 1000L;
+        timelapseMotionWindowMillis = getInt(properties, prefix, TIMELAPSE_MOTION_WINDOW, 10) * 60_000L;
+        timelapseNightIntervalMillis = getInt(properties, prefix, TIMELAPSE_NIGHT_INTERVAL, 600) * 1000L;
+        timelapseNightFrom = getInt(properties, prefix, TIMELAPSE_NIGHT_FROM, 22);
+        timelapseNightTo = getInt(properties, prefix, TIMELAPSE_NIGHT_TO, 6);
+        timelapseBufferSize = getInt(properties, prefix, TIMELAPSE_BUFFER, 512) * 1024;
+    }
+
+    /**
+     * A copy of one config with the live settings, see {@link #LIVE_SETTINGS}, taken from another.
+     */
+    private ZoneConfig(ZoneConfig base, ZoneConfig live) {
+        name = base.name;
+        videoTool = live.videoTool;
+        videoSettings = live.videoSettings;
+        dropOffMillis = live.dropOffMillis;
+        confirmWindowMillis = live.confirmWindowMillis;
+        storePath = base.storePath;
+        fileRoot = base.fileRoot;
+        fileExtension = base.fileExtension;
+        streaming = base.streaming;
+        preRollMillis = base.preRollMillis;
+        preRollBufferSize = base.preRollBufferSize;
+        segmentBytes = base.segmentBytes;
+        segmentMillis = base.segmentMillis;
+        pins = base.pins;
+        eventIndex = base.eventIndex;
+        storageQuotaBytes = base.storageQuotaBytes;
+        storageMinFreeBytes = base.storageMinFreeBytes;
+        storageKeepPattern = base.storageKeepPattern;
+        storageKeepMillis = base.storageKeepMillis;
+        storageSweepMillis = base.storageSweepMillis;
+        writeBehindBytes = base.writeBehindBytes;
+        writeBlockBytes = base.writeBlockBytes;
+        confirm = base.confirm;
+        confirmTool = base.confirmTool;
+        confirmSettings = base.confirmSettings;
+        confirmWidth = base.confirmWidth;
+        confirmHeight = base.confirmHeight;
+        confirmStep = base.confirmStep;
+        confirmPixelThreshold = base.confirmPixelThreshold;
+        confirmPermille = base.confirmPermille;
+        respawnMinMillis = base.respawnMinMillis;
+        respawnMaxMillis = base.respawnMaxMillis;
+        timelapse = base.timelapse;
+        timelapseIntervalMillis = base.timelapseIntervalMillis;
+        timelapseMotionIntervalMillis = base.timelapseMotionIntervalMillis;
+        timelapseMotionWindowMillis = base.timelapseMotionWindowMillis;
+        timelapseNightIntervalMillis = base.timelapseNightIntervalMillis;
+        timelapseNightFrom = base.timelapseNightFrom;
+        timelapseNightTo = base.timelapseNightTo;
+        timelapseBufferSize = base.timelapseBufferSize;
+    }
+
+    /**
+     * Read every zone from the properties.
+     */
+    public static List<ZoneConfig> load(ProgramProperties properties) {
+        return load(properties::getString);
+    }
+
+    /**
+     * Read every zone from whatever looks up property values, e.g. {@link java.util.Properties#getProperty(String)}.
+     */
+    public static List<ZoneConfig> load(Function<String, String> properties) {
+        String zones = properties.apply(ZONES);
+        if (zones == null || zones.trim().isEmpty()) {
+            return Collections.singletonList(new ZoneConfig(properties, DEFAULT_ZONE, null).validate());
+        }
+
+        List<ZoneConfig> result = new ArrayList<>();
+        Set<Path> indexes = new HashSet<>();
+        for (String zone : zones.split(",")) {
+            String name = zone.trim();
+            ZoneConfig config = new ZoneConfig(properties, name, ZONE_ROOT + name + ".").validate();
+            Path index = config.eventIndex() != null ? Paths.get(config.eventIndex()).toAbsolutePath().normalize() : null;
+            if (index != null && !indexes.add(index)) {
+                throw new IllegalArgumentException("Zone " + name + " shares its event index with another zone ["
+                        + config.eventIndex() + "]");
+            }
+            result.add(config);
+        }
+
+        return result;
+    }
+
+    /**
+     * This config with the live settings taken from another, for a running zone after the properties changed.
+     */
+    public ZoneConfig withLive(ZoneConfig next) {
+        return new ZoneConfig(this, next);
+    }
+
+    /**
+     * @return Names of the settings that differ from another config, empty if none.
+     */
+    public List<String> changes(ZoneConfig other) {
+        List<String> result = new ArrayList<>();
+        diff(result, VIDEO_TOOL, videoTool, other.videoTool);
+        diff(result, VIDEO_SETTINGS, videoSettings, other.videoSettings);
+        diff(result, DROP_OFF_MILLIS, dropOffMillis, other.dropOffMillis);
+        diff(result, CONFIRM_WINDOW, confirmWindowMillis, other.confirmWindowMillis);
+        diff(result, STORE_PATH, fileRoot, other.fileRoot);
+        diff(result, FILE_EXTENSION, fileExtension, other.fileExtension);
+        diff(result, CAPTURE_STREAM, streaming, other.streaming);
+        diff(result, PRE_ROLL, preRollMillis, other.preRollMillis);
+        diff(result, PRE_ROLL_BUFFER, preRollBufferSize, other.preRollBufferSize);
+        diff(result, SEGMENT_SIZE, segmentBytes, other.segmentBytes);
+        diff(result, SEGMENT_TIME, segmentMillis, other.segmentMillis);
+        if (!Arrays.equals(pins, other.pins)) {
+            result.add(SENSOR_PINS);
+        }
+        diff(result, EVENT_INDEX, eventIndex, other.eventIndex);
+        diff(result, STORAGE_QUOTA, storageQuotaBytes, other.storageQuotaBytes);
+        diff(result, STORAGE_MIN_FREE, storageMinFreeBytes, other.storageMinFreeBytes);
+        diff(result, STORAGE_KEEP, storageKeepPattern, other.storageKeepPattern);
+        diff(result, STORAGE_KEEP_HOURS, storageKeepMillis, other.storageKeepMillis);
+        diff(result, STORAGE_SWEEP, storageSweepMillis, other.storageSweepMillis);
+        diff(result, WRITE_BEHIND, writeBehindBytes, other.writeBehindBytes);
+        diff(result, WRITE_BLOCK, writeBlockBytes, other.writeBlockBytes);
+        diff(result, CONFIRM, confirm, other.confirm);
+        diff(result, CONFIRM_TOOL, confirmTool, other.confirmTool);
+        diff(result, CONFIRM_SETTINGS, confirmSettings, other.confirmSettings);
+        diff(result, CONFIRM_WIDTH, confirmWidth, other.confirmWidth);
+        diff(result, CONFIRM_HEIGHT, confirmHeight, other.confirmHeight);
+        diff(result, CONFIRM_STEP, confirmStep, other.confirmStep);
+        diff(result, CONFIRM_PIXEL, confirmPixelThreshold, other.confirmPixelThreshold);
+        diff(result, CONFIRM_PERMILLE, confirmPermille, other.confirmPermille);
+        diff(result, RESPAWN_MIN, respawnMinMillis, other.respawnMinMillis);
+        diff(result, RESPAWN_MAX, respawnMaxMillis, other.respawnMaxMillis);
+        diff(result, TIMELAPSE, timelapse, other.timelapse);
+        diff(result, TIMELAPSE_INTERVAL, timelapseIntervalMillis, other.timelapseIntervalMillis);
+        diff(result, TIMELAPSE_MOTION_INTERVAL, timelapseMotionIntervalMillis, other.timelapseMotionIntervalMillis);
+        diff(result, TIMELAPSE_MOTION_WINDOW, timelapseMotionWindowMillis, other.timelapseMotionWindowMillis);
+        diff(result, TIMELAPSE_NIGHT_INTERVAL, timelapseNightIntervalMillis, other.timelapseNightIntervalMillis);
+        diff(result, TIMELAPSE_NIGHT_FROM, timelapseNightFrom, other.timelapseNightFrom);
+        diff(result, TIMELAPSE_NIGHT_TO, timelapseNightTo, other.timelapseNightTo);
+        diff(result, TIMELAPSE_BUFFER, timelapseBufferSize, other.timelapseBufferSize);
+        return result;
+    }
+
+    private static void diff(List<String> result, String key, Object value, Object other) {
+        if (!Objects.equals(value, other)) {
+            result.add(key);
+        }
+    }
+
+    /**
+     * Reject settings the zone could not run with, so a bad edit is refused whole rather than half applied.
+     */
+    private ZoneConfig validate() {
+        if (dropOffMillis <= 0) {
+            throw new IllegalArgumentException("Zone " + name + " drop off must be more than 0 [" + dropOffMillis + "]");
+        }
+        if (storePath == null || fileExtension == null) {
+            throw new IllegalArgumentException("Zone " + name + " needs " + STORE_PATH + " and " + FILE_EXTENSION);
+        }
+        if (mp4() != fileExtension.equalsIgnoreCase(MP4_EXTENSION)) {
+            throw new IllegalArgumentException("Zone " + name + " can only write " + MP4_EXTENSION + " with "
+                    + CAPTURE_STREAM);
+        }
+        if (timelapse && !streaming) {
+            throw new IllegalArgumentException("Zone " + name + " can only keep timelapse stills with " + CAPTURE_STREAM);
+        }
+        if (timelapseNightFrom < 0 || timelapseNightFrom > 23 || timelapseNightTo < 0 || timelapseNightTo > 23) {
+            throw new IllegalArgumentException("Zone " + name + " timelapse night hours must be 0 to 23");
+        }
+        if (pins.length == 0 || preRollMillis < 0 || segmentBytes < 0 || segmentMillis < 0 || respawnMinMillis < 0) {
+            throw new IllegalArgumentException("Zone " + name + " has a negative size or time, or no sensor pins");
+        }
+
+        return this;
+    }
+
+    private static String get(Function<String, String> properties, String prefix, String key) {
+        String result = null;
+        if (prefix != null) {
+            result = properties.apply(prefix + key);
+        }
+
+        return result != null ? result : properties.apply(PROGRAM_ROOT + key);
+    }
+
+    private static int getInt(Function<String, String> properties, String prefix, String key, int defaultVal) {
+        String value = get(properties, prefix, key);
+        if (value == null) {
+            return defaultVal;
+        }
+
+        return parseInt(key, value);
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property " + key + " is not a number [" + value + "]");
+        }
+    }
+
+    /**
+     * Drop off in milliseconds. A zone's own setting, in either unit, wins over the plain ones, and within each
+     * milliseconds win over seconds.
+     */
+    private static long dropOffMillis(Function<String, String> properties, String prefix) {
+        if (prefix != null) {
+            String millis = properties.apply(prefix + DROP_OFF_MILLIS);
+            String seconds = properties.apply(prefix + DROP_OFF_RATE);
+            if (millis != null) {
+                return parseInt(DROP_OFF_MILLIS, millis);
+            }
+            if (seconds != null) {
+                return parseInt(DROP_OFF_RATE, seconds) * 1000L;
+            }
+        }
+        String millis = properties.apply(PROGRAM_ROOT + DROP_OFF_MILLIS);
+        if (millis != null) {
+            return parseInt(DROP_OFF_MILLIS, millis);
+        }
+        String seconds = properties.apply(PROGRAM_ROOT + DROP_OFF_RATE);
+        return (seconds != null ? parseInt(DROP_OFF_RATE, seconds) : DEFAULT_CUT_OFF_SECS) * 1000L;
+    }
+
+    /**
+     * @return The file name with the zone name added before its extension, e.g. events.idx to events-front.idx.
+     */
+    private static String zoneFile(String file, String zone) {
+        int dot = file.lastIndexOf('.');
+        if (dot <= file.lastIndexOf('/') + 1) {
+            return file + "-" + zone;
+        }
+        return file.substring(0, dot) + "-" + zone + file.substring(dot);
+    }
+
+    private static int[] parsePins(String pins) {
+        String[] parts = pins.split(",");
+        int[] result = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+
+        return result;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String videoTool() {
+        return videoTool;
+    }
+
+    public String videoSettings() {
+        return videoSettings;
+    }
+
+    public String storePath() {
+        return storePath;
+    }
+
+    /**
+     * @return Store path and file name stub, recordings are named this plus a time stamp plus the extension.
+     */
+    public String fileRoot() {
+        return fileRoot;
+    }
+
+    public String fileExtension() {
+        return fileExtension;
+    }
+
+    public long dropOffMillis() {
+        return dropOffMillis;
+    }
+
+    public boolean streaming() {
+        return streaming;
+    }
+
+    /**
+     * @return true to write the stream as fragmented MP4, a streaming zone with the .mp4 file extension.
+     */
+    public boolean mp4() {
+        return streaming && fileExtension.equalsIgnoreCase(MP4_EXTENSION);
+    }
+
+    /**
+     * @return Frames a second the video settings ask for with -fps or --framerate, otherwise raspivid's own.
+     */
+    public double frameRate() {
+        String[] parts = videoSettings.trim().split("\\s+");
+        for (int i = 0; i < parts.length - 1; i++) {
+            if (parts[i].equals("-fps") || parts[i].equals("--framerate")) {
+                try {
+                    double result = Double.parseDouble(parts[i + 1]);
+                    if (result > 0) {
+                        return result;
+                    }
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+
+        return DEFAULT_FRAME_RATE;
+    }
+
+    public int preRollMillis() {
+        return preRollMillis;
+    }
+
+    public int preRollBufferSize() {
+        return preRollBufferSize;
+    }
+
+    public long segmentBytes() {
+        return segmentBytes;
+    }
+
+    public long segmentMillis() {
+        return segmentMillis;
+    }
+
+    public int[] pins() {
+        return pins.clone();
+    }
+
+    /**
+     * @return Path of the recording index, null for none.
+     */
+    public String eventIndex() {
+        return eventIndex;
+    }
+
+    public long storageQuotaBytes() {
+        return storageQuotaBytes;
+    }
+
+    public long storageMinFreeBytes() {
+        return storageMinFreeBytes;
+    }
+
+    /**
+     * @return Glob of recording file names kept for {@link #storageKeepMillis()} longer, null for none.
+     */
+    public String storageKeepPattern() {
+        return storageKeepPattern;
+    }
+
+    public long storageKeepMillis() {
+        return storageKeepMillis;
+    }
+
+    public long storageSweepMillis() {
+        return storageSweepMillis;
+    }
+
+    /**
+     * @return RAM held for writing recordings behind the camera, 0 to write directly.
+     */
+    public int writeBehindBytes() {
+        return writeBehindBytes;
+    }
+
+    public int writeBlockBytes() {
+        return writeBlockBytes;
+    }
+
+    public boolean confirm() {
+        return confirm;
+    }
+
+    public String confirmTool() {
+        return confirmTool;
+    }
+
+    public String confirmSettings() {
+        return confirmSettings;
+    }
+
+    public int confirmWidth() {
+        return confirmWidth;
+    }
+
+    public int confirmHeight() {
+        return confirmHeight;
+    }
+
+    public int confirmStep() {
+        return confirmStep;
+    }
+
+    public int confirmPixelThreshold() {
+        return confirmPixelThreshold;
+    }
+
+    public int confirmPermille() {
+        return confirmPermille;
+    }
+
+    /**
+     * @return How long after recording starts the picture must have changed by, counting the same time before.
+     */
+    public long confirmWindowMillis() {
+        return confirmWindowMillis;
+    }
+
+    /**
+     * @return Wait before starting a camera again after it died, doubled for each death in a row.
+     */
+    public long respawnMinMillis() {
+        return respawnMinMillis;
+    }
+
+    public long respawnMaxMillis() {
+        return respawnMaxMillis;
+    }
+
+    /**
+     * @return true to keep keyframes as timelapse stills while paused, streaming zones only.
+     */
+    public boolean timelapse() {
+        return timelapse;
+    }
+
+    /**
+     * @return Path and start of the timelapse file names, the date and extension are added.
+     */
+    public String timelapseStem() {
+        return fileRoot + "timelapse-";
+    }
+
+    public long timelapseIntervalMillis() {
+        return timelapseIntervalMillis;
+    }
+
+    /**
+     * @return Between stills for {@link #timelapseMotionWindowMillis()} after motion.
+     */
+    public long timelapseMotionIntervalMillis() {
+        return timelapseMotionIntervalMillis;
+    }
+
+    public long timelapseMotionWindowMillis() {
+        return timelapseMotionWindowMillis;
+    }
+
+    /**
+     * @return Between stills from the hour {@link #timelapseNightFrom()} to the hour {@link #timelapseNightTo()}.
+     */
+    public long timelapseNightIntervalMillis() {
+        return timelapseNightIntervalMillis;
+    }
+
+    public int timelapseNightFrom() {
+        return timelapseNightFrom;
+    }
+
+    public int timelapseNightTo() {
+        return timelapseNightTo;
+    }
+
+    public int timelapseBufferSize() {
+        return timelapseBufferSize;
+    }
+}
@@ -0,0 +1,314 @@
+package com.stronans.PIRcatcam;
+
+import com.stronans.camera.StorageManager;
+import com.stronans.camera.WriteBehind;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Runs any number of zones in one program. All sensors feed one {@link MotionPipeline}, each zone is triggered by
+ * motion on its own pins, and all the zone sessions share one small scheduler pool, so threads do not grow with
+ * the number of cameras. Zones sharing a store folder share one storage manager, run from the first zone's
+ * settings for it, and all streaming zones share one write behind, made from the first zone's settings. Work a
+ * trigger sets off that allocates or blocks, scheduling the stop and writing the event index, is handed to one
+ * thread through a bounded array queue, so the motion thread allocates nothing from edge to camera.
+ * <p>
+ * On start the sensors are set up and every zone's camera started at the same time, rather than one after another,
+ * so after a power cut capture is ready as soon as the slowest of them is. Motion the sensors see before then is
+ * held by the pipeline and handed to the zones once they are all ready.
+ */
+public class ZoneController {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(ZoneController.class);
+
+    private static final int MAX_SCHEDULER_THREADS = 2;
+    private static final int HAND_OFF_QUEUE = 256;
+
+    private final List<Zone> zones = new ArrayList<>();
+    private final int[] zoneSensors;             // Bitmask of pipeline sensors for each zone.
+    private final int[] pins;                    // Pin address for each pipeline sensor.
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor handOff;
+    private final MotionSource source;
+    private final MotionPipeline motion;
+    private final Map<String, StorageManager> storage = new LinkedHashMap<>();
+    private final List<StorageManager> zoneStorage = new ArrayList<>();
+    private final WriteBehind writeBehind;
+    private ScheduledExecutorService storageScheduler;
+
+    /**
+     * @param configs        Zones to run
+     * @param sourceFactory  Makes the motion source for the given pin addresses
+     * @param debounceMillis Sensor debounce
+     * @param holdOffMillis  Sensor hold off
+     */
+    public ZoneController(List<ZoneConfig> configs, Function<int[], MotionSource> sourceFactory,
+                          long debounceMillis, long holdOffMillis) {
+        // Give every distinct pin one sensor number, zones may share pins.
+        Map<Integer, Integer> sensorForPin = new LinkedHashMap<>();
+        zoneSensors = new int[configs.size()];
+
+        for (int z = 0; z < configs.size(); z++) {
+            ZoneConfig config = configs.get(z);
+            for (int pin : config.pins()) {
+                Integer sensor = sensorForPin.get(pin);
+                if (sensor == null) {
+                    sensor = sensorForPin.size();
+                    sensorForPin.put(pin, sensor);
+                }
+                zoneSensors[z] |= 1 << sensor;
+            }
+            zones.add(new Zone(config));
+        }
+
+        pins = new int[sensorForPin.size()];
+        for (Map.Entry<Integer, Integer> entry : sensorForPin.entrySet()) {
+            pins[entry.getValue()] = entry.getKey();
+        }
+
+        scheduler = Executors.newScheduledThreadPool(Math.min(MAX_SCHEDULER_THREADS, Math.max(1, zones.size())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "session-" + count.incrementAndGet());
+                    }
+                });
+        // Started now, a running thread taking from an array queue allocates nothing per task. Full, the caller
+        // does the work itself rather than lose it.
+        handOff = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HAND_OFF_QUEUE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "hand-off");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        handOff.prestartAllCoreThreads();
+
+        // One storage manager for each store folder with a limit.
+        for (ZoneConfig config : configs) {
+            StorageManager manager = storage.get(config.storePath());
+            if (manager == null && (config.storageQuotaBytes() > 0 || config.storageMinFreeBytes() > 0)) {
+                Set<String> extensions = new HashSet<>();
+                for (ZoneConfig other : configs) {
+                    if (config.storePath().equals(other.storePath())) {
+                        extensions.add(other.fileExtension());
+                    }
+                }
+                manager = new StorageManager(Paths.get(config.storePath()), extensions, config.storageQuotaBytes(),
+                        config.storageMinFreeBytes(), config.storageKeepPattern(), config.storageKeepMillis());
+                storage.put(config.storePath(), manager);
+            }
+            zoneStorage.add(manager);
+        }
+
+        ZoneConfig first = configs.get(0);
+        boolean streaming = configs.stream().anyMatch(ZoneConfig::streaming);
+        writeBehind = streaming && first.writeBehindBytes() > 0
+                ? new WriteBehind(Math.max(2, first.writeBehindBytes() / first.writeBlockBytes()), first.writeBlockBytes())
+                : null;
+
+        source = sourceFactory.apply(pins.clone());
+        motion = new MotionPipeline(source, debounceMillis, holdOffMillis, this::motion);
+    }
+
+    public void start() {
+        ExecutorService startup = Executors.newFixedThreadPool(zones.size() + 1, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "startup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Future<?>> starting = new ArrayList<>();
+        starting.add(startup.submit(motion::listen));
+        for (int z = 0; z < zones.size(); z++) {
+            final int zone = z;
+            starting.add(startup.submit(
+                    () -> zones.get(zone).start(scheduler, handOff, writeBehind, zoneStorage.get(zone))));
+        }
+        startup.shutdown();
+        try {
+            awaitAll(starting);
+
+            if (!storage.isEmpty()) {
+                storageScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "storage");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // Each from the first zone using it.
+                Set<StorageManager> started = new HashSet<>();
+                for (int z = 0; z < zones.size(); z++) {
+                    StorageManager manager = zoneStorage.get(z);
+                    if (manager != null && started.add(manager)) {
+                        manager.start(storageScheduler, zones.get(z).config().storageSweepMillis());
+                    }
+                }
+            }
+            motion.start();
+        } catch (RuntimeException | Error e) {
+            // Stop what did start, cameras and threads, rather than leave them running for nothing.
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Take up changed settings, see {@link Zone#reconfigure(ZoneConfig)}. Zones are matched by name, zones added or
+     * removed need a restart.
+     *
+     * @return true if every change was taken up.
+     */
+    public boolean reconfigure(List<ZoneConfig> configs) {
+        Map<String, ZoneConfig> byName = new LinkedHashMap<>();
+        for (ZoneConfig config : configs) {
+            byName.put(config.name(), config);
+        }
+
+        boolean complete = true;
+        for (Zone zone : zones) {
+            ZoneConfig next = byName.remove(zone.config().name());
+            if (next == null) {
+                log.warn("Zone " + zone.config().name() + " removed, restart to apply");
+                complete = false;
+            } else {
+                complete &= zone.reconfigure(next).isEmpty();
+            }
+        }
+        if (!byName.isEmpty()) {
+            log.warn("Zones " + byName.keySet() + " added, restart to apply");
+            complete = false;
+        }
+
+        return complete;
+    }
+
+    public List<Zone> zones() {
+        return Collections.unmodifiableList(zones);
+    }
+
+    public MotionPipeline motion() {
+        return motion;
+    }
+
+    /**
+     * @return Storage manager for a zone's store folder, null if it has no limits.
+     */
+    public StorageManager storage(Zone zone) {
+        return zoneStorage.get(zones.indexOf(zone));
+    }
+
+    public WriteBehind writeBehind() {
+        return writeBehind;
+    }
+
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return Runs, in order, work the motion thread hands off. Executing a task made beforehand allocates nothing.
+     */
+    public Executor handOff() {
+        return handOff;
+    }
+
+    /**
+     * Block until {@link #shutdown()}.
+     */
+    public void awaitShutdown() throws InterruptedException {
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        motion.shutdown();
+        log.info("Motion edges " + motion.edges() + ", chatter " + motion.chatter()
+                + ", held off " + motion.heldOff() + ", events " + motion.delivered());
+        scheduler.shutdownNow();
+        handOff.shutdown();
+        try {
+            handOff.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (storageScheduler != null) {
+            storageScheduler.shutdownNow();
+        }
+        for (Zone zone : zones) {
+            zone.shutdown();
+        }
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+            log.info("Write behind " + writeBehind.bytes() + " bytes in " + writeBehind.writes() + " writes, "
+                    + writeBehind.stalls() + " stalls, slowest " + writeBehind.maxWriteNanos() / 1000 + " us");
+        }
+    }
+
+    /**
+     * Wait for all, failing with the first to fail once the rest are done, so all that started can be stopped.
+     */
+    private static void awaitAll(List<Future<?>> futures) {
+        ExecutionException failed = null;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failed = failed != null ? failed : e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting", e);
+        }
+        if (failed != null) {
+            Throwable cause = failed.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Unable to start", cause);
+        }
+    }
+
+    private void motion(int sensors, long nanos) {
+        log.debug("Motion on sensors {}", box(sensors));
+
+        for (int z = 0; z < zoneSensors.length; z++) {
+            if ((sensors & zoneSensors[z]) != 0) {
+                zones.get(z).trigger(nanos);
+            }
+        }
+    }
+}
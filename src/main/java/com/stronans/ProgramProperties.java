@@ -7,11 +7,19 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 
 /**
- * Program Properties class.
+ * Program Properties class. The values are held as an immutable snapshot, numbers already parsed, behind a
+ * volatile reference, so reads take no lock and a {@link #reload()} swaps in a whole new set at once.
  */
 public final class ProgramProperties {
     /**
@@ -25,7 +33,32 @@ public final class ProgramProperties {
      */
     private static Logger log = LogManager.getLogger(ProgramProperties.class);
     private final String fileName;
-    private Properties properties = null;
+    private volatile Snapshot snapshot = new Snapshot(new Properties());
+    private volatile Path source;           // File the properties came from, null if from the class path.
+
+    /**
+     * One set of values as loaded, never changed.
+     */
+    private static final class Snapshot {
+        private final Map<String, String> values;
+        private final Map<String, Integer> ints;
+
+        Snapshot(Properties properties) {
+            Map<String, String> strings = new HashMap<>();
+            Map<String, Integer> numbers = new HashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                String value = properties.getProperty(key);
+                strings.put(key, value);
+                try {
+                    numbers.put(key, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Not a number, getInt gives the default.
+                }
+            }
+            values = Collections.unmodifiableMap(strings);
+            ints = Collections.unmodifiableMap(numbers);
+        }
+    }
 
     /**
      * Default constructor.
@@ -76,7 +109,7 @@ public final class ProgramProperties {
                 fileName = DEFAULT_PROPERTIES_FILE_NAME;
             }
 
-            properties = load(fileName);
+            snapshot = new Snapshot(load(fileName));
         } catch (Exception ie) {
             log.warn("Warning: Could not load properties file " + ie);
         }
@@ -93,25 +126,76 @@ public final class ProgramProperties {
 
         try {
             // **NOTE** Has to be 'this.getClass' or you will get all sorts of problems finding file.
-            InputStream inputStream = this.getClass().getResourceAsStream("/" + configFileName);
+            URL resource = this.getClass().getResource("/" + configFileName);
+            InputStream inputStream = resource != null ? resource.openStream() : null;
+            if (resource != null && "file".equals(resource.getProtocol())) {
+                source = Paths.get(resource.toURI());
+            }
 
             if (inputStream == null) {
                 File file = new File("./" + configFileName);
                 inputStream = new FileInputStream(file);
+                source = file.toPath().toAbsolutePath().normalize();
             }
 
-            appProperties.load(inputStream);
+            try {
+                appProperties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
 
             log.debug("Loaded application properties as follows:\n");
             logProperties(appProperties);
 
-        } catch (IOException ioException) {
+        } catch (IOException | URISyntaxException ioException) {
             log.error("Error initialising the application properties", ioException);
         }
 
         return appProperties;
     }
 
+    /**
+     * Read the file again and swap in the new values if they differ.
+     *
+     * @return true if anything changed.
+     * @throws IOException if the file cannot be read, the old values are kept.
+     */
+    public boolean reload() throws IOException {
+        Path file = source;
+        if (file == null) {
+            return false;
+        }
+
+        Properties appProperties = new Properties();
+        try (InputStream inputStream = new FileInputStream(file.toFile())) {
+            appProperties.load(inputStream);
+        }
+
+        Snapshot next = new Snapshot(appProperties);
+        if (next.values.equals(snapshot.values)) {
+            return false;
+        }
+
+        snapshot = next;
+        log.info("Reloaded program properties from " + file);
+        logProperties(appProperties);
+        return true;
+    }
+
+    /**
+     * @return The file the properties were read from, null if they came from the class path and cannot change.
+     */
+    public Path file() {
+        return source;
+    }
+
+    /**
+     * @return Every property as loaded, never changed, a later reload gives a new map.
+     */
+    public Map<String, String> values() {
+        return snapshot.values;
+    }
+
     /**
      * Get the Named property from the properties list.
      *
@@ -119,15 +203,7 @@ public final class ProgramProperties {
      * @return {@link String}
      */
     public String getString(String propertyName) {
-        String result = null;
-
-        try {
-            result = properties.getProperty(propertyName);
-        } catch (Exception e) {
-            log.error("Could not load property, " + propertyName);
-        }
-
-        return result;
+        return snapshot.values.get(propertyName);
     }
 
     /**
@@ -137,16 +213,12 @@ public final class ProgramProperties {
      * @return {@link int}
      */
     public int getInt(String propertyName, int defaultVal ) {
-        int result = defaultVal;
-        String temp;
+        Snapshot current = snapshot;
+        Integer result = current.ints.get(propertyName);
 
-        try {
-            temp = properties.getProperty(propertyName);
-
-            result = Integer.parseInt(temp);
-        } catch (Exception e) {
+        if (result == null) {
             log.error("Could not load property, " + propertyName);
-            result = defaultVal;
+            return defaultVal;
         }
 
         return result;
@@ -0,0 +1,112 @@
+package com.stronans;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Reloads {@link ProgramProperties} when its file changes and tells a listener if the values are different. The
+ * folder is watched rather than the file, so editors that save by writing a new file and renaming it over the old
+ * one are seen too. Changes are gathered for a short settle time, an editor saving in several writes gives one
+ * reload of the finished file.
+ */
+public class PropertiesWatcher {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(PropertiesWatcher.class);
+
+    private static final long SETTLE_MS = 250;
+
+    private final ProgramProperties properties;
+    private final Runnable listener;
+    private final WatchService watcher;
+    private final Path file;
+    private final Thread thread;
+
+    /**
+     * @param properties Properties loaded from a file, see {@link ProgramProperties#file()}
+     * @param listener   Run on the watcher's thread after the properties have changed
+     */
+    public PropertiesWatcher(ProgramProperties properties, Runnable listener) throws IOException {
+        this.properties = properties;
+        this.listener = listener;
+        file = properties.file();
+        if (file == null) {
+            throw new IOException("Properties were not read from a file, nothing to watch");
+        }
+
+        watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher, ENTRY_MODIFY, ENTRY_CREATE);
+
+        thread = new Thread(this::watch, "config-watch");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Watching " + file + " for changes");
+    }
+
+    public void shutdown() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            log.error("Closing properties watcher", e);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = ours(key);
+
+                // Let the editor finish, taking anything else it does meanwhile.
+                Thread.sleep(SETTLE_MS);
+                while ((key = watcher.poll()) != null) {
+                    changed |= ours(key);
+                }
+
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Properties watcher closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean ours(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && file.getFileName().equals(context)) {
+                result = true;
+            }
+        }
+        key.reset();
+        return result;
+    }
+
+    private void reload() {
+        try {
+            if (properties.reload()) {
+                listener.run();
+            }
+        } catch (IOException e) {
+            log.error("Reloading " + file + ", keeping the old properties", e);
+        } catch (RuntimeException e) {
+            log.error("Applying changed properties from " + file, e);
+        }
+    }
+}
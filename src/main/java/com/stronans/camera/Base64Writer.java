@@ -0,0 +1,146 @@
+package com.stronans.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Base64 encodes a stream of bytes into a fixed staging buffer and passes it on to a channel or stream whenever
+ * the buffer fills, so encoding an image takes constant memory however large the image is. Writers are pooled,
+ * take one with {@link #acquire()} and give it back with {@link #release()}.
+ * Output matches {@link java.util.Base64#getEncoder()}, no line breaks and padded.
+ */
+public class Base64Writer {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final int STAGING_SIZE = 48 * 1024;        // Multiple of 4, a whole number of output quanta.
+    private static final ConcurrentLinkedQueue<Base64Writer> pool = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer direct = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private final byte[] heap = new byte[STAGING_SIZE];
+    private final ByteBuffer heapStaging = ByteBuffer.wrap(heap);
+    private final byte[] carry = new byte[3];
+    private int carried;
+
+    private ByteBuffer staging;
+    private WritableByteChannel channel;
+    private OutputStream stream;
+
+    private Base64Writer() {
+    }
+
+    public static Base64Writer acquire() {
+        Base64Writer writer = pool.poll();
+        return writer != null ? writer : new Base64Writer();
+    }
+
+    public void release() {
+        channel = null;
+        stream = null;
+        carried = 0;
+        pool.offer(this);
+    }
+
+    /**
+     * Start encoding to a channel, staged through a direct buffer.
+     */
+    public Base64Writer to(WritableByteChannel channel) {
+        this.channel = channel;
+        this.stream = null;
+        this.staging = direct;
+        staging.clear();
+        carried = 0;
+        return this;
+    }
+
+    /**
+     * Start encoding to a stream, staged through a heap array.
+     */
+    public Base64Writer to(OutputStream stream) {
+        this.stream = stream;
+        this.channel = null;
+        this.staging = heapStaging;
+        staging.clear();
+        carried = 0;
+        return this;
+    }
+
+    /**
+     * Encode the next part of the input.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        // Complete a group left over from the last call.
+        while (carried > 0 && carried < 3 && offset < end) {
+            carry[carried++] = data[offset++];
+        }
+        if (carried == 3) {
+            encode(carry[0], carry[1], carry[2]);
+            carried = 0;
+        }
+
+        int whole = offset + (end - offset) / 3 * 3;
+        for (int i = offset; i < whole; i += 3) {
+            encode(data[i], data[i + 1], data[i + 2]);
+        }
+
+        for (int i = whole; i < end; i++) {
+            carry[carried++] = data[i];
+        }
+    }
+
+    /**
+     * Encode what is left with padding and flush everything to the output.
+     */
+    public void finish() throws IOException {
+        if (carried == 1) {
+            int b0 = carry[0] & 0xFF;
+            room();
+            staging.put(ALPHABET[b0 >>> 2]);
+            staging.put(ALPHABET[(b0 << 4) & 0x3F]);
+            staging.put((byte) '=');
+            staging.put((byte) '=');
+        } else if (carried == 2) {
+            int b0 = carry[0] & 0xFF;
+            int b1 = carry[1] & 0xFF;
+            room();
+            staging.put(ALPHABET[b0 >>> 2]);
+            staging.put(ALPHABET[((b0 << 4) | (b1 >>> 4)) & 0x3F]);
+            staging.put(ALPHABET[(b1 << 2) & 0x3F]);
+            staging.put((byte) '=');
+        }
+        carried = 0;
+        flush();
+    }
+
+    private void encode(byte a, byte b, byte c) throws IOException {
+        int bits = ((a & 0xFF) << 16) | ((b & 0xFF) << 8) | (c & 0xFF);
+        room();
+        staging.put(ALPHABET[bits >>> 18]);
+        staging.put(ALPHABET[(bits >>> 12) & 0x3F]);
+        staging.put(ALPHABET[(bits >>> 6) & 0x3F]);
+        staging.put(ALPHABET[bits & 0x3F]);
+    }
+
+    private void room() throws IOException {
+        if (staging.remaining() < 4) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        staging.flip();
+        if (channel != null) {
+            while (staging.hasRemaining()) {
+                channel.write(staging);
+            }
+        } else {
+            stream.write(heap, 0, staging.limit());
+        }
+        staging.clear();
+    }
+}
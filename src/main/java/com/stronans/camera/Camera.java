@@ -1,14 +1,21 @@
 package com.stronans.camera;
 
+import com.stronans.metrics.Metrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.Base64;
 import java.util.Optional;
 import java.util.StringJoiner;
 
+import static org.apache.logging.log4j.util.Unbox.box;
+
 /**
  * Composites an image drawn from an external program which dumps the image to the output stream
  * of the running process. Converts that image into a Base64 string.
@@ -28,6 +35,15 @@ public class Camera {
     // Specify the output filename. If not specified, no file is saved. If the filename is '-', then all output is sent to stdout.
     private static final String FINAL_STILL_SETTINGS = "-n -o -";
 
+    // --keypress,      -k      Take a picture each time ENTER is read on stdin, 'x' ENTER exits.
+    // --thumb,         -th     'none' leaves the EXIF thumbnail out, it is never used and only adds bytes.
+    private static final String WARM_STILL_SETTINGS = "-k -t 0 -th none -n -o -";
+
+    private static final long STILL_TIMEOUT_MS = 5000;
+
+    // --luma,          -y      Only write the luma (Y) plane of each frame.
+    private static final String LUMA_SETTINGS = "-y -t 0 -n -o -";
+
     private static final String EXTERNAL_VIDEO_TOOL = "raspivid";
 
     // --nopreview,     -n      Do not display a preview window
@@ -35,31 +51,138 @@ public class Camera {
     // Specify the output filename. If not specified, no file is saved. If the filename is '-', then all output is sent to stdout.
     private static final String FINAL_VIDEO_SETTINGS = "-n -o ";
 
+    // --inline,        -ih     Insert PPS, SPS headers ahead of every I-frame so the stream can be cut at any keyframe.
+    // --timeout,       -t      Zero runs until the process is killed.
+    private static final String STREAM_VIDEO_SETTINGS = "-ih -t 0 -n -o -";
+
+    private static String videoTool = EXTERNAL_VIDEO_TOOL;
+    private static String stillTool = EXTERNAL_STILL_TOOL;
+
+    private static volatile StillEngine stillEngine;
+
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    /**
+     * Replace the external video program, e.g. with a script that emits a synthetic H.264 stream for testing.
+     */
+    public static void setVideoTool(String tool) {
+        videoTool = tool;
+    }
+
+    public static String getVideoTool() {
+        return videoTool;
+    }
+
+    /**
+     * Replace the external still program, e.g. with a script that writes a test JPEG for testing.
+     */
+    public static void setStillTool(String tool) {
+        stillTool = tool;
+    }
+
+    /**
+     * Keep the still camera running so {@link #getImage} costs a frame rather than a camera start. Once started, the
+     * settings given here are used for every still.
+     *
+     * @param buffers    Number of stills that can be held at once
+     * @param bufferSize Largest still expected, in bytes
+     */
+    public static synchronized StillEngine startStillEngine(String settings, int buffers, int bufferSize) throws IOException {
+        if (stillEngine != null && stillEngine.isAlive()) {
+            return stillEngine;
+        }
+
+        String finalSettings = command(stillTool, settings, WARM_STILL_SETTINGS);
+
+        log.info("Start still camera with settings [" + finalSettings + "]");
+        stillEngine = new StillEngine(Runtime.getRuntime().exec(finalSettings), buffers, bufferSize);
+
+        return stillEngine;
+    }
+
+    /**
+     * @return The running still engine, if one was started.
+     */
+    public static Optional<StillEngine> getStillEngine() {
+        StillEngine engine = stillEngine;
+        return (engine != null && engine.isAlive()) ? Optional.of(engine) : Optional.empty();
+    }
+
+    public static synchronized void stopStillEngine() {
+        if (stillEngine != null) {
+            stillEngine.shutdown();
+            stillEngine = null;
+        }
+    }
+
+    /**
+     * Join a program and its settings into a command line.
+     */
+    static String command(String... parts) {
+        StringJoiner joiner = new StringJoiner(" ");
+        for (String part : parts) {
+            joiner.add(part);
+        }
+
+        return joiner.toString();
+    }
+
     public static byte[] getImage(String settings) throws IOException {
         byte[] image = new byte[0];
 
         log.debug("Start getting Camera Image");
         long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
 
-        StringJoiner joiner = new StringJoiner(" ");
-        String finalSettings = joiner.add(EXTERNAL_STILL_TOOL).add(settings).add(FINAL_STILL_SETTINGS).toString();
+        Optional<StillEngine> engine = getStillEngine();
+        if (engine.isPresent()) {
+            try {
+                StillFrame frame = engine.get().capture(STILL_TIMEOUT_MS);
+                if (frame != null) {
+                    image = frame.toByteArray();
+                    frame.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            String finalSettings = command(stillTool, settings, FINAL_STILL_SETTINGS);
 
-        try {
-            log.info("Capture image with settings [" + finalSettings + "]");
-            Process p = Runtime.getRuntime().exec(finalSettings);
-            image = new byte[p.getInputStream().available()];
+            try {
+                log.info("Capture image with settings [{}]", finalSettings);
+                Process p = Runtime.getRuntime().exec(finalSettings);
+                image = readAll(p.getInputStream());
 
-        } catch (Exception e) {
-            log.error("During reading input stream, Camera settings [" + finalSettings + "]", e);
+            } catch (Exception e) {
+                log.error("During reading input stream, Camera settings [" + finalSettings + "]", e);
+            }
         }
 
+        if (image.length > 0) {
+            Metrics.STILL.recordSince(startNanos);
+        }
         log.debug("Stop getting Camera Image");
-        log.debug("Gathered " + image.length + " bytes");
-        log.debug("Duration in ms: " + (System.currentTimeMillis() - start));
+        log.debug("Gathered {} bytes in {} ms", box(image.length), box(System.currentTimeMillis() - start));
 
         return image;
     }
 
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+
+        try {
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+
     public static Optional<String> getEncodedStillImage(String settings) {
         String result = null;
 
@@ -74,12 +197,79 @@ public class Camera {
         return Optional.ofNullable(result);
     }
 
+    /**
+     * Write a still as Base64 straight to a channel, the same text as {@link #getEncodedStillImage} but encoded as
+     * it is read in constant memory, with no image array or String built on the heap.
+     *
+     * @return true if a whole image was written.
+     */
+    public static boolean writeEncodedStillImage(String settings, WritableByteChannel out) {
+        Base64Writer writer = Base64Writer.acquire();
+        try {
+            return writeEncodedStillImage(settings, writer.to(out));
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * As {@link #writeEncodedStillImage(String, WritableByteChannel)} for a stream.
+     */
+    public static boolean writeEncodedStillImage(String settings, OutputStream out) {
+        Base64Writer writer = Base64Writer.acquire();
+        try {
+            return writeEncodedStillImage(settings, writer.to(out));
+        } finally {
+            writer.release();
+        }
+    }
+
+    private static boolean writeEncodedStillImage(String settings, Base64Writer writer) {
+        boolean result = false;
+
+        try {
+            Optional<StillEngine> engine = getStillEngine();
+            if (engine.isPresent()) {
+                StillFrame frame = engine.get().capture(STILL_TIMEOUT_MS);
+                if (frame != null) {
+                    try {
+                        writer.write(frame.data(), 0, frame.length());
+                        result = true;
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } else {
+                String finalSettings = command(stillTool, settings, FINAL_STILL_SETTINGS);
+
+                log.info("Capture image with settings [{}]", finalSettings);
+                Process p = Runtime.getRuntime().exec(finalSettings);
+                try (InputStream in = p.getInputStream()) {
+                    byte[] buffer = STREAM_BUFFER.get();
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        writer.write(buffer, 0, count);
+                        result = true;
+                    }
+                }
+            }
+            writer.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = false;
+        } catch (Exception exp) {
+            log.error("During encoding of image", exp);
+            result = false;
+        }
+
+        return result;
+    }
+
     public static boolean getNamedVideo(String name, String settings) {
         boolean result = true;
 
         log.debug("Start getting video Image");
-        StringJoiner joiner = new StringJoiner(" ");
-        String finalSettings = joiner.add(EXTERNAL_VIDEO_TOOL).add(settings).add(FINAL_VIDEO_SETTINGS).add(name).toString();
+        String finalSettings = command(videoTool, settings, FINAL_VIDEO_SETTINGS, name);
 
         try {
             log.info("Capture video image with settings [" + finalSettings + "]");
@@ -100,34 +290,111 @@ public class Camera {
     }
 
     public static CameraProcess getPausedNamedVideo(String name, String settings) {
-        Process process = null;
-        log.debug("Start video paused");
-        StringJoiner joiner = new StringJoiner(" ");
+        return getPausedNamedVideo(videoTool, name, settings);
+    }
 
-        File fileFolder = new File(name);
-        if(fileFolder.mkdirs()) {
+    /**
+     * As {@link #getPausedNamedVideo(String, String)} with a given video program, for hosts with more than one camera.
+     */
+    public static CameraProcess getPausedNamedVideo(String tool, String name, String settings) {
+        return getNamedVideo(tool, name, settings, CameraProcess.Status.Paused);
+    }
+
+    /**
+     * As {@link #getPausedNamedVideo(String, String, String)} starting in the state given, so a camera can start
+     * recording without being signalled before it is ready for it.
+     */
+    public static CameraProcess getNamedVideo(String tool, String name, String settings, CameraProcess.Status initial) {
+        boolean recording = initial == CameraProcess.Status.Recording;
+        Process process;
+        log.debug("Start video " + (recording ? "recording" : "paused"));
+        File fileFolder = new File(name).getAbsoluteFile().getParentFile();
+        if (fileFolder.isDirectory() || fileFolder.mkdirs()) {
             // --signal,   -s      Toggle between record and pause according to SIGUSR1
             // Sending a USR1 signal to the raspivid process will toggle between recording and paused.
             // --initial,  -i      Define initial state on startup.
             // Define whether the camera will start paused or will immediately start recording. Options are 'record' or 'pause'.
             // Note that if you are using a simple timeout, and initial is set to 'pause', no output will be recorded.
-            String finalSettings = joiner.add(EXTERNAL_VIDEO_TOOL).add("-s -i pause").add(settings).add(FINAL_VIDEO_SETTINGS).add(name).toString();
+            String initialState = recording ? "-s -i record" : "-s -i pause";
+            String finalSettings = command(tool, initialState, settings, FINAL_VIDEO_SETTINGS, name);
 
             try {
                 log.info("Capture video image with settings [" + finalSettings + "]");
 
                 // Note that this process will wait for the process created to complete before continuing.
+                long start = System.nanoTime();
                 process = Runtime.getRuntime().exec(finalSettings);
+                Metrics.SPAWN.recordSince(start);
 
             } catch (Exception e) {
                 log.error("During video capture, Camera settings [" + finalSettings + "]", e);
-                process = null;
+                throw new IllegalStateException("Unable to start video [" + finalSettings + "]", e);
             }
         }
         else {
             throw new IllegalArgumentException("One or more directories cannot be created [" + name + "]");
         }
 
-        return new CameraProcess(process);
+        return new CameraProcess(process, SignalChannel.getInstance(), initial);
+    }
+
+    /**
+     * Start the video camera streaming to stdout with recording controlled in process, holding back a pre-roll of
+     * the stream so recordings include the moments before they were triggered.
+     *
+     * @param output        Where recordings are written, changing file at keyframes as it needs to
+     * @param settings      Camera settings, any timeout is overridden so the camera runs continuously
+     * @param bufferSize    Bytes of stream to hold back
+     * @param preRollMillis How far before the trigger recordings should start
+     */
+    public static VideoCapture getStreamingVideo(StreamOutput output, String settings, int bufferSize, long preRollMillis) {
+        return getStreamingVideo(videoTool, output, settings, bufferSize, preRollMillis);
+    }
+
+    /**
+     * As {@link #getStreamingVideo(StreamOutput, String, int, long)} with a given video program.
+     */
+    public static VideoCapture getStreamingVideo(String tool, StreamOutput output, String settings, int bufferSize, long preRollMillis) {
+        log.debug("Start video streaming");
+        String finalSettings = command(tool, settings, STREAM_VIDEO_SETTINGS);
+
+        try {
+            log.info("Stream video image with settings [" + finalSettings + "]");
+            long start = System.nanoTime();
+            Process process = Runtime.getRuntime().exec(finalSettings);
+            Metrics.SPAWN.recordSince(start);
+
+            return new PreRollCamera(process, output, bufferSize, preRollMillis);
+        } catch (IOException e) {
+            log.error("During video capture, Camera settings [" + finalSettings + "]", e);
+            throw new IllegalStateException("Unable to start video stream [" + finalSettings + "]", e);
+        }
+    }
+
+    /**
+     * Start a low resolution luma camera (raspividyuv) and watch it for movement. raspividyuv pads rows to a
+     * multiple of 32 pixels and frames to a multiple of 16 rows, so width and height should be multiples of those.
+     *
+     * @param tool              Raw video program, normally raspividyuv
+     * @param settings          Extra camera settings, e.g. frame rate
+     * @param width             Frame width
+     * @param height            Frame height
+     * @param step              Look at every step'th pixel
+     * @param pixelThreshold    Luma change for a pixel to count as changed
+     * @param thresholdPermille Changed pixels per thousand for a frame to count as movement
+     */
+    public static LumaMonitor getLumaMonitor(String tool, String settings, int width, int height, int step,
+                                             int pixelThreshold, int thresholdPermille) {
+        String finalSettings = command(tool, "-w " + width, "-h " + height, settings, LUMA_SETTINGS);
+
+        try {
+            log.info("Motion camera with settings [" + finalSettings + "]");
+            Process process = Runtime.getRuntime().exec(finalSettings);
+
+            return new LumaMonitor(process, new MotionDetector(width, height, step, pixelThreshold), width * height, thresholdPermille);
+        } catch (IOException e) {
+            log.error("During motion capture, Camera settings [" + finalSettings + "]", e);
+            throw new IllegalStateException("Unable to start motion camera [" + finalSettings + "]", e);
+        }
     }
 }
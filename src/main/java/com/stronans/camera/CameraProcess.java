@@ -3,14 +3,14 @@ package com.stronans.camera;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 
 /**
  * Controlling the RPi video Camera using *nix signals.
  * Created by S.King on 08/01/2016.
  */
-public class CameraProcess {
+public class CameraProcess implements VideoCapture {
     /**
      * The <code>Logger</code> to be used.
      */
@@ -18,12 +18,27 @@ public class CameraProcess {
 
     public static enum Status {Recording, Paused}
 
+    private final Process process;
     private final Long pid;
+    private final SignalChannel signals;
     private volatile Status status;
 
     public CameraProcess(final Process process) {
-        this.pid = unixLikeProcessId(process);
-        this.status = Status.Paused;          // Initial state is paused.
+        this(process, SignalChannel.getInstance());
+    }
+
+    public CameraProcess(final Process process, SignalChannel signals) {
+        this(process, signals, Status.Paused);
+    }
+
+    /**
+     * @param status The state the camera program was started in
+     */
+    public CameraProcess(final Process process, SignalChannel signals, Status status) {
+        this.process = process;
+        this.pid = processId(process);
+        this.signals = signals;
+        this.status = status;
 
         if (pid == null) {
             String err = "Unable to get pid for process: " + process.toString();
@@ -32,19 +47,28 @@ public class CameraProcess {
         }
     }
 
+    @Override
     public Status status() {
         return status;
     }
 
+    public long pid() {
+        return pid;
+    }
+
+    @Override
+    public Process process() {
+        return process;
+    }
+
     private void sendSignal(Status status)
     {
-        try {
-            Runtime.getRuntime().exec("kill -SIGUSR1 " + pid.toString());
-        } catch (IOException e) {
-            log.error("IOException: ", e);
+        if (!signals.signal(pid, "USR1")) {
+            log.error("Unable to signal camera process " + pid + " to " + status);
         }
     }
 
+    @Override
     public void setActive(boolean changeState) {
         if (changeState && (status == Status.Paused)) {
             log.info("Camera Recording");
@@ -57,13 +81,29 @@ public class CameraProcess {
         }
     }
 
+    @Override
     public void shutdown() {
-        try {
-            Runtime.getRuntime().exec("kill " + pid.toString());
-            log.info("Sent TERM kill");
+        if (!process.isAlive()) {
+            return;         // Its pid may belong to something else by now.
+        }
+        signals.signal(pid, "TERM");
+        log.info("Sent TERM kill");
+    }
 
-        } catch (IOException e) {
-            log.error("IOException: ", e);
+    /**
+     * Process.pid() where the runtime has it (Java 9 on), otherwise the pid field of the Java 8 process class.
+     */
+    private Long processId(Process process) {
+        try {
+            Method pidMethod = Process.class.getMethod("pid");
+            Object value = pidMethod.invoke(process);
+            log.debug("Detected pid: " + value);
+            return (Long) value;
+        } catch (NoSuchMethodException e) {
+            return unixLikeProcessId(process);
+        } catch (ReflectiveOperationException e) {
+            log.error("Process.pid() failed: ", e);
+            return null;
         }
     }
 
@@ -0,0 +1,226 @@
+package com.stronans.camera;
+
+import com.stronans.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Keeps a camera program running. A thread waits on the process, so a camera that dies is seen the moment it
+ * exits rather than days later, and a new one is started after a back off that doubles with each crash in a row,
+ * up to a limit, and starts again from the least once a camera has run for a while. If the camera was recording
+ * the new one is started recording, as a signal sent before it is listening for signals would kill it. The
+ * camera's stderr is read and logged, so it cannot fill up and stall the camera and the last thing it said is in
+ * the crash report. The time without a camera is logged and recorded in {@link Metrics#CAMERA_GAP}.
+ */
+public class CameraSupervisor implements VideoCapture {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(CameraSupervisor.class);
+
+    private static final long MIN_STABLE_MS = 60_000;
+
+    private final String name;
+    private final Function<CameraProcess.Status, VideoCapture> spawner;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long stableMillis;
+    private final Object lock = new Object();           // Held while the camera is changed or switched.
+    private final Thread watcher;
+
+    private volatile VideoCapture camera;               // Null while there is none.
+    private volatile CameraProcess.Status status = CameraProcess.Status.Paused;
+    private volatile boolean running = true;
+    private volatile long startedMillis;
+    private volatile String lastError;
+    private Thread stderr;                              // Reading the running camera's stderr.
+    private volatile long restarts;
+    private volatile long lastGapMillis;
+    private volatile long totalGapMillis;
+
+    /**
+     * Start a camera and watch it. If it cannot be started it is tried again as if it had crashed.
+     *
+     * @param name             Used in thread names and the log
+     * @param spawner          Starts a camera in the state given, throwing an unchecked exception if it cannot
+     * @param minBackoffMillis Wait before the first start after a crash
+     * @param maxBackoffMillis Most to wait between starts
+     */
+    public CameraSupervisor(String name, Function<CameraProcess.Status, VideoCapture> spawner, long minBackoffMillis,
+                            long maxBackoffMillis) {
+        this.name = name;
+        this.spawner = spawner;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+        this.stableMillis = Math.max(MIN_STABLE_MS, 2 * this.maxBackoffMillis);
+
+        try {
+            camera = spawn();
+        } catch (RuntimeException e) {
+            log.error("Camera " + name + " did not start, trying again", e);
+        }
+
+        watcher = new Thread(this::watch, "camera-watch-" + name);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public CameraProcess.Status status() {
+        return status;
+    }
+
+    /**
+     * Switch the camera. With no camera running the state is kept for the next one.
+     */
+    @Override
+    public void setActive(boolean changeState) {
+        synchronized (lock) {
+            status = changeState ? CameraProcess.Status.Recording : CameraProcess.Status.Paused;
+            VideoCapture current = camera;
+            if (current != null) {
+                current.setActive(changeState);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        watcher.interrupt();
+        synchronized (lock) {
+            if (camera != null) {
+                camera.shutdown();
+                camera = null;
+            }
+        }
+        if (restarts > 0) {
+            log.info("Camera " + name + " restarted " + restarts + " times, " + totalGapMillis + " ms without a camera");
+        }
+    }
+
+    /**
+     * @return The running camera program, null while there is none.
+     */
+    @Override
+    public Process process() {
+        VideoCapture current = camera;
+        return current != null ? current.process() : null;
+    }
+
+    /**
+     * @return The camera being supervised, null while there is none.
+     */
+    public VideoCapture camera() {
+        return camera;
+    }
+
+    public long restarts() {
+        return restarts;
+    }
+
+    /**
+     * @return Time from the last crash to the new camera running.
+     */
+    public long lastGapMillis() {
+        return lastGapMillis;
+    }
+
+    public long totalGapMillis() {
+        return totalGapMillis;
+    }
+
+    private VideoCapture spawn() {
+        VideoCapture started = spawner.apply(status);
+        startedMillis = System.currentTimeMillis();
+        lastError = null;
+        stderr = drain(started.process());
+        return started;
+    }
+
+    private void watch() {
+        long backoff = 0;
+        long lostMillis = System.currentTimeMillis();
+
+        while (running) {
+            VideoCapture current = camera;
+            if (current != null) {
+                int code;
+                try {
+                    code = current.process().waitFor();
+                    lostMillis = System.currentTimeMillis();
+                    stderr.join(200);   // Its last words.
+                } catch (InterruptedException e) {
+                    continue;           // Shutting down.
+                }
+                if (!running) {
+                    break;
+                }
+
+                long ran = lostMillis - startedMillis;
+                log.error("Camera " + name + " exited with " + code + " after " + ran + " ms"
+                        + (lastError != null ? ", last said: " + lastError : ""));
+                synchronized (lock) {
+                    camera = null;
+                }
+                current.shutdown();     // Let go of what it was writing.
+                backoff = ran >= stableMillis || backoff == 0 ? minBackoffMillis : Math.min(2 * backoff, maxBackoffMillis);
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            synchronized (lock) {
+                if (!running) {
+                    break;
+                }
+                try {
+                    camera = spawn();
+                } catch (RuntimeException e) {
+                    backoff = Math.max(minBackoffMillis, Math.min(2 * backoff, maxBackoffMillis));
+                    log.error("Camera " + name + " did not start, next try in " + backoff + " ms", e);
+                    continue;
+                }
+                if (status == CameraProcess.Status.Recording && camera.status() != status) {
+                    camera.setActive(true);     // One that records in process, with no signal to send.
+                }
+            }
+
+            long gap = System.currentTimeMillis() - lostMillis;
+            lastGapMillis = gap;
+            totalGapMillis += gap;
+            restarts++;
+            Metrics.CAMERA_GAP.record(gap);
+            log.warn("Camera " + name + " running again, " + gap + " ms without a camera");
+        }
+    }
+
+    /**
+     * Log what the camera writes to stderr until it exits.
+     */
+    private Thread drain(Process process) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lastError = line;
+                    log.warn("Camera " + name + ": " + line);
+                }
+            } catch (IOException e) {
+                log.debug("Camera " + name + " stderr closed");
+            }
+        }, "camera-stderr-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,299 @@
+package com.stronans.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Cuts a recording, or the recordings in a time range, out of the day's video file into a clip of its own without
+ * decoding it. The {@link EventIndex} says where a recording starts in its file, it runs to where the next one in the
+ * same file starts, or to the end of the file. The clip starts at the first keyframe from there, with the parameter
+ * sets from the start of the file put in front if the keyframe does not carry its own, as a paused camera's do not.
+ * The rest is copied with {@link FileChannel#transferTo}, the kernel moving the bytes, so the time taken depends on
+ * the clip and not the file, only a few GOPs are read looking for the keyframe.
+ * <p>
+ * Cuts are made where recordings start, a time range gives the whole of each recording it overlaps. Only raw H.264
+ * can be cut, a fragmented MP4 needs its own header. A recording still going is cut at what is in the file so far,
+ * one carried on into the next file by a segment change at the end of the file it started in. Nothing is held
+ * between calls, any number can run at once while the camera writes.
+ */
+public class ClipExtractor {
+    private static final int WINDOW = 64 * 1024;
+    private static final long MAX_SCAN = 4 * 1024 * 1024;      // Furthest looked for a keyframe.
+    private static final byte[] NONE = new byte[0];
+
+    /**
+     * Where a clip's bytes are.
+     */
+    public static class Cut {
+        private final Path file;
+        private final byte[] parameterSets;
+        private final long from;
+        private final long to;
+
+        Cut(Path file, byte[] parameterSets, long from, long to) {
+            this.file = file;
+            this.parameterSets = parameterSets;
+            this.from = from;
+            this.to = to;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        /**
+         * @return Byte offset in the file the clip starts at, a keyframe.
+         */
+        public long from() {
+            return from;
+        }
+
+        /**
+         * @return Byte offset in the file the clip ends at, exclusive.
+         */
+        public long to() {
+            return to;
+        }
+
+        /**
+         * @return Bytes in the clip, with any parameter sets put in front.
+         */
+        public long length() {
+            return parameterSets.length + to - from;
+        }
+
+        @Override
+        public String toString() {
+            return "Cut[" + file + " " + from + "-" + to + (parameterSets.length > 0 ? " +sets" : "") + "]";
+        }
+    }
+
+    /**
+     * Looks through the units for something, scanning stops once it is found.
+     */
+    private abstract static class Finder implements NalScanner.Listener {
+        abstract boolean found();
+    }
+
+    /**
+     * Keeps the first keyframe seen and whether its parameter sets came with it.
+     */
+    private static class KeyframeFinder extends Finder {
+        private long keyframe = -1;
+        private boolean sets;
+        private boolean spsSeen;
+
+        @Override
+        public void nal(int type, long offset, long start) {
+            if (keyframe >= 0) {
+                return;
+            }
+            if (type == NalScanner.NAL_SPS) {
+                spsSeen = true;
+            } else if (type == NalScanner.NAL_IDR) {
+                keyframe = start;
+                sets = spsSeen;
+            } else if (type != NalScanner.NAL_PPS && type != NalScanner.NAL_SEI && type != NalScanner.NAL_AUD) {
+                spsSeen = false;
+            }
+        }
+
+        @Override
+        boolean found() {
+            return keyframe >= 0;
+        }
+    }
+
+    /**
+     * Keeps the first run of parameter sets, from an SPS to the first unit that is not one.
+     */
+    private static class ParameterSetFinder extends Finder {
+        private long from = -1;
+        private long to = -1;
+
+        @Override
+        public void nal(int type, long offset, long keyframe) {
+            if (to >= 0) {
+                return;
+            }
+            if (from < 0) {
+                if (type == NalScanner.NAL_SPS) {
+                    from = offset;
+                }
+            } else if (type != NalScanner.NAL_SPS && type != NalScanner.NAL_PPS) {
+                to = offset;
+            }
+        }
+
+        @Override
+        boolean found() {
+            return to >= 0;
+        }
+    }
+
+    private final EventIndex index;
+
+    public ClipExtractor(EventIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return Where the recording with the given id is, see {@link EventIndex.Clip#id()}, null if there is no such
+     * recording or nothing of it was written.
+     * @throws IllegalArgumentException if the recording is not raw H.264.
+     */
+    public Cut cut(int id) throws IOException {
+        EventIndex.Clip clip = index.get(id);
+        if (clip == null || clip.file() == null) {
+            return null;
+        }
+        return cut(clip, index.get(id + 1));
+    }
+
+    /**
+     * @return Where each recording overlapping a time range is, in order, empty if none.
+     * @throws IllegalArgumentException if one of them is not raw H.264.
+     */
+    public List<Cut> cuts(long fromMillis, long toMillis) throws IOException {
+        List<Cut> result = new ArrayList<>();
+        for (EventIndex.Clip clip : index.query(fromMillis, toMillis)) {
+            if (clip.file() != null) {
+                Cut cut = cut(clip, index.get(clip.id() + 1));
+                if (cut.length() > 0) {
+                    result.add(cut);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the recording with the given id to a clip file of its own.
+     *
+     * @return Bytes written, -1 if there is no such recording.
+     */
+    public long extract(int id, Path clip) throws IOException {
+        Cut cut = cut(id);
+        if (cut == null) {
+            return -1;
+        }
+        try (FileChannel out = FileChannel.open(clip, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            return copy(cut, out);
+        }
+    }
+
+    /**
+     * Write the recordings overlapping a time range, one after another, to a clip file of its own.
+     *
+     * @return Bytes written, -1 if there are no recordings in the range.
+     */
+    public long extract(long fromMillis, long toMillis, Path clip) throws IOException {
+        List<Cut> cuts = cuts(fromMillis, toMillis);
+        if (cuts.isEmpty()) {
+            return -1;
+        }
+        long written = 0;
+        try (FileChannel out = FileChannel.open(clip, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            for (Cut cut : cuts) {
+                written += copy(cut, out);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Write a clip, the parameter sets and then the bytes from the file, straight from the file to the channel.
+     *
+     * @return Bytes written, fewer than its length if the file has been cut short since.
+     */
+    public static long copy(Cut cut, WritableByteChannel out) throws IOException {
+        ByteBuffer sets = ByteBuffer.wrap(cut.parameterSets);
+        while (sets.hasRemaining()) {
+            out.write(sets);
+        }
+
+        try (FileChannel channel = FileChannel.open(cut.file, READ)) {
+            long position = cut.from;
+            while (position < cut.to) {
+                long sent = channel.transferTo(position, cut.to - position, out);
+                if (sent <= 0 && (position >= channel.size() || !out.isOpen())) {
+                    break;
+                }
+                position += sent;
+            }
+            return cut.parameterSets.length + position - cut.from;
+        }
+    }
+
+    private static Cut cut(EventIndex.Clip clip, EventIndex.Clip next) throws IOException {
+        Path file = Paths.get(clip.file());
+        if (!clip.file().endsWith(".h264")) {
+            throw new IllegalArgumentException("Only H.264 recordings can be cut [" + file + "]");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            long end = next != null && clip.file().equals(next.file()) ? Math.min(next.offset(), size) : size;
+            long start = Math.min(clip.offset(), end);
+
+            KeyframeFinder keyframe = new KeyframeFinder();
+            scan(channel, start, Math.min(end, start + MAX_SCAN), keyframe);
+            if (keyframe.keyframe >= 0) {
+                start = keyframe.keyframe;
+            }
+            byte[] sets = keyframe.sets || start == 0 ? NONE : parameterSets(channel, size);
+            return new Cut(file, sets, start, end);
+        }
+    }
+
+    /**
+     * @return The camera's parameter sets from the start of the file, empty if there are none.
+     */
+    private static byte[] parameterSets(FileChannel channel, long size) throws IOException {
+        ParameterSetFinder finder = new ParameterSetFinder();
+        scan(channel, 0, Math.min(size, WINDOW), finder);
+        if (finder.from < 0 || finder.to < 0) {
+            return NONE;
+        }
+
+        ByteBuffer sets = ByteBuffer.allocate((int) (finder.to - finder.from));
+        while (sets.hasRemaining()) {
+            if (channel.read(sets, finder.from + sets.position()) < 0) {
+                return NONE;
+            }
+        }
+        return sets.array();
+    }
+
+    /**
+     * Scan part of a file a window at a time until the finder has what it is after, telling it absolute offsets.
+     */
+    private static void scan(FileChannel channel, long from, long to, Finder finder) throws IOException {
+        NalScanner scanner = new NalScanner();
+        NalScanner.Listener absolute = (type, offset, keyframe) ->
+                finder.nal(type, from + offset, keyframe >= 0 ? from + keyframe : -1);
+        ByteBuffer window = ByteBuffer.allocate(WINDOW);
+        long position = from;
+        while (position < to && !finder.found()) {
+            window.clear();
+            window.limit((int) Math.min(WINDOW, to - position));
+            int count = channel.read(window, position);
+            if (count <= 0) {
+                break;
+            }
+            scanner.scan(window.array(), 0, count, absolute);
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append only index of recordings, one fixed size record per recording in a memory mapped file, so a time can be
+ * turned into a video file and a byte offset into it by binary search without reading the log or the video.
+ * <p>
+ * The file is a 32 byte header, holding the number of committed records, followed by 32 byte records of start
+ * millis, end millis, byte offset, file id and a check value. A record is written and then committed by bumping
+ * the count, and only the last record is ever changed after that, when its recording ends. On opening, a last
+ * record that fails its check was torn by a crash and is dropped. An end of 0 means the recording was still going
+ * when the program stopped. File names are kept in a text file beside the index, the file id being the line.
+ * Records are kept in start order, one recording at a time.
+ */
+public class EventIndex implements Closeable {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(EventIndex.class);
+
+    private static final int MAGIC = 0x43434549;        // "CCEI"
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int RECORD = 32;
+    private static final int INITIAL_RECORDS = 4096;
+
+    private static final int START = 0;
+    private static final int END = 8;
+    private static final int OFFSET = 16;
+    private static final int FILE = 24;
+    private static final int CHECK = 28;
+
+    private static final int COUNT = 8;
+
+    /**
+     * One recording, or the part of one that was in the index.
+     */
+    public static class Clip {
+        private final int id;
+        private final long startMillis;
+        private final long endMillis;
+        private final String file;
+        private final long offset;
+
+        Clip(int id, long startMillis, long endMillis, String file, long offset) {
+            this.id = id;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.file = file;
+            this.offset = offset;
+        }
+
+        /**
+         * @return Place of the recording in the index, counting from 0, see {@link EventIndex#get(int)}.
+         */
+        public int id() {
+            return id;
+        }
+
+        public long startMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return End of the recording, 0 if it never ended cleanly.
+         */
+        public long endMillis() {
+            return endMillis;
+        }
+
+        /**
+         * @return Video file the recording starts in, null if nothing was written.
+         */
+        public String file() {
+            return file;
+        }
+
+        /**
+         * @return Byte offset of the start of the recording in the file.
+         */
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return "Clip[" + id + " " + startMillis + "-" + endMillis + " " + file + "@" + offset + "]";
+        }
+    }
+
+    private final FileChannel channel;
+    private final Writer namesOut;
+    private final FileChannel namesChannel;
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private volatile MappedByteBuffer map;
+    private volatile int count;
+    private boolean open;           // Last record has not ended yet.
+
+    /**
+     * Open an index, creating it if it does not exist. The names are kept in the same path plus ".names".
+     */
+    public EventIndex(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        Path namesPath = Paths.get(path + ".names");
+        namesChannel = FileChannel.open(namesPath, CREATE, READ, WRITE);
+        // A name cut off by a crash has no newline, and the next written after it would share its line.
+        long complete = lineEnd(namesChannel);
+        if (complete < namesChannel.size()) {
+            log.warn("Dropping a file name torn by a crash from " + namesPath);
+            namesChannel.truncate(complete);
+        }
+        namesChannel.position(complete);
+        try (BufferedReader in = Files.newBufferedReader(namesPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ids.put(line, names.size());
+                names.add(line);
+            }
+        }
+        namesOut = Channels.newWriter(namesChannel, StandardCharsets.UTF_8.newEncoder(), 1024);
+
+        channel = FileChannel.open(path, CREATE, READ, WRITE);
+        boolean created = channel.size() < HEADER;
+        long records = Math.max(INITIAL_RECORDS, (channel.size() - HEADER) / RECORD);
+        map(records);
+
+        if (created) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putLong(COUNT, 0);
+            map.force();
+        } else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            channel.close();
+            namesOut.close();
+            throw new IOException("Not an event index [" + path + "]");
+        }
+
+        recover();
+        log.info("Event index " + path + " has " + count + " recordings");
+    }
+
+    /**
+     * A recording started, written straight away so it survives a crash part way through.
+     *
+     * @param startMillis Epoch millis of the start, earlier than the last recording's start is moved up to it
+     * @param file        Video file being written, null if not yet known
+     * @param offset      Byte offset in that file where the recording starts
+     */
+    public synchronized void recordingStarted(long startMillis, String file, long offset) throws IOException {
+        if (open) {
+            recordingStopped(startMillis);
+        }
+        if (count > 0) {
+            long last = map.getLong(record(count - 1) + START);
+            if (startMillis < last) {
+                log.warn("Clock went back, recording at " + startMillis + " indexed at " + last);
+                startMillis = last;
+            }
+        }
+
+        if (HEADER + (long) (count + 1) * RECORD > map.capacity()) {
+            map(2L * ((map.capacity() - HEADER) / RECORD));
+        }
+
+        int at = record(count);
+        map.putLong(at + START, startMillis);
+        map.putLong(at + END, 0);
+        map.putLong(at + OFFSET, offset);
+        map.putInt(at + FILE, fileId(file));
+        map.putInt(at + CHECK, check(at));
+        map.putLong(COUNT, count + 1);
+        map.force();
+
+        count++;
+        open = true;
+    }
+
+    /**
+     * Where the open recording starts has become known, e.g. once the pre-roll has been written out.
+     */
+    public synchronized void moved(String file, long offset) throws IOException {
+        if (!open) {
+            return;
+        }
+
+        int at = record(count - 1);
+        map.putLong(at + OFFSET, offset);
+        map.putInt(at + FILE, fileId(file));
+        map.putInt(at + CHECK, check(at));
+        map.force();
+    }
+
+    /**
+     * The open recording ended.
+     */
+    public synchronized void recordingStopped(long endMillis) {
+        if (!open) {
+            return;
+        }
+
+        int at = record(count - 1);
+        map.putLong(at + END, Math.max(endMillis, map.getLong(at + START)));
+        map.putInt(at + CHECK, check(at));
+        map.force();
+        open = false;
+    }
+
+    /**
+     * @return Number of recordings in the index.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Recordings that overlap a time range. A recording with no end is taken to run until the next one started.
+     *
+     * @param fromMillis Start of the range, epoch millis
+     * @param toMillis   End of the range, epoch millis
+     * @return Recordings in start order, empty if none.
+     */
+    public List<Clip> query(long fromMillis, long toMillis) {
+        // Count first, the map is replaced before the count grows past it.
+        int size = count;
+        MappedByteBuffer records = map;
+
+        // First recording starting after fromMillis, the one before it may still be running at fromMillis.
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (records.getLong(record(mid) + START) <= fromMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        List<Clip> result = null;
+        for (int i = Math.max(0, low - 1); i < size; i++) {
+            int at = record(i);
+            long start = records.getLong(at + START);
+            if (start > toMillis) {
+                break;
+            }
+            long end = records.getLong(at + END);
+            long effectiveEnd = end != 0 ? end : (i + 1 < size ? records.getLong(record(i + 1) + START) : Long.MAX_VALUE);
+            if (effectiveEnd < fromMillis) {
+                continue;
+            }
+
+            if (result == null) {
+                result = new ArrayList<>();
+            }
+            result.add(clip(records, i));
+        }
+
+        return result != null ? result : Collections.<Clip>emptyList();
+    }
+
+    /**
+     * @return The recording with the given id, null if there is none.
+     */
+    public Clip get(int id) {
+        int size = count;
+        MappedByteBuffer records = map;
+        return id >= 0 && id < size ? clip(records, id) : null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+        namesOut.close();
+    }
+
+    private Clip clip(MappedByteBuffer records, int id) {
+        int at = record(id);
+        int file = records.getInt(at + FILE);
+        return new Clip(id, records.getLong(at + START), records.getLong(at + END), file >= 0 ? names.get(file) : null,
+                records.getLong(at + OFFSET));
+    }
+
+    private void map(long records) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + records * RECORD);
+        mapped.order(ByteOrder.BIG_ENDIAN);
+        map = mapped;
+    }
+
+    /**
+     * Trust the committed count, drop a last record torn by a crash.
+     */
+    private void recover() {
+        long committed = map.getLong(COUNT);
+        long fits = (map.capacity() - HEADER) / RECORD;
+        int size = (int) Math.max(0, Math.min(committed, fits));
+
+        if (size > 0 && map.getInt(record(size - 1) + CHECK) != check(record(size - 1))) {
+            log.warn("Event index last record torn, dropped");
+            size--;
+        }
+        if (size != committed) {
+            map.putLong(COUNT, size);
+            map.force();
+        }
+
+        count = size;
+        open = false;
+    }
+
+    private int fileId(String file) throws IOException {
+        if (file == null) {
+            return -1;
+        }
+
+        Integer id = ids.get(file);
+        if (id == null) {
+            // The name is on disk before any record refers to it.
+            namesOut.write(file);
+            namesOut.write('\n');
+            namesOut.flush();
+            namesChannel.force(false);
+            id = names.size();
+            names.add(file);
+            ids.put(file, id);
+        }
+
+        return id;
+    }
+
+    private int check(int at) {
+        long hash = MAGIC;
+        hash = hash * 31 + map.getLong(at + START);
+        hash = hash * 31 + map.getLong(at + END);
+        hash = hash * 31 + map.getLong(at + OFFSET);
+        hash = hash * 31 + map.getInt(at + FILE);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static int record(int index) {
+        return HEADER + index * RECORD;
+    }
+
+    /**
+     * @return Length of the file up to and including its last newline.
+     */
+    private static long lineEnd(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = channel.size();
+        while (end > 0) {
+            int length = (int) Math.min(buffer.capacity(), end);
+            long from = end - length;
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) {
+                // Until the block is read.
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+            end = from;
+        }
+        return 0;
+    }
+}
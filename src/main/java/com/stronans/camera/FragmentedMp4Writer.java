@@ -0,0 +1,887 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Turns the camera's Annex-B H.264 stream into fragmented MP4 as it is written, so recordings can be played and
+ * seeked as soon as they are on the card with no remux afterwards. Each file written by the {@link SegmentWriter}
+ * starts with an initialisation segment, the track set up from the stream's SPS and PPS, then has a fragment, a
+ * moof box and its mdat, for each group of pictures. A fragment is only written once whole, so a file cut short by
+ * a crash or power cut plays up to the last keyframe before it. When a file is finished a random access box,
+ * listing every fragment, is added at the end for players that seek with it.
+ * <p>
+ * Pictures are timed from the frame rate, one frame apart, and recording resumed after a pause starts at the
+ * time its keyframe was captured, so a file's timeline follows the clock across its gaps. The camera does not
+ * use B-frames, so decode and presentation times are the same. Parameter sets and access unit delimiters are
+ * taken out of the pictures, everything else is kept.
+ * <p>
+ * Each byte is copied twice, out of the buffer it is written from and into the fragment, and the stream is
+ * searched for start codes three bytes at a time. Nothing is allocated per picture or fragment once the buffers
+ * have grown to the stream. Not thread safe, it is written by the one thread reading the camera.
+ */
+public class FragmentedMp4Writer implements StreamOutput {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(FragmentedMp4Writer.class);
+
+    private static final int TIMESCALE = 90_000;            // Track time units a second, as for MPEG video.
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK = 1;
+    private static final int DEFAULT_WIDTH = 1920;          // raspivid's own, for an SPS that cannot be read.
+    private static final int DEFAULT_HEIGHT = 1080;
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;   // Fragment early rather than grow past this.
+    private static final int MAX_PARAMETER_SET = 256;
+
+    // Box types written for every fragment.
+    private static final int MOOF = fourCc("moof");
+    private static final int MFHD = fourCc("mfhd");
+    private static final int TRAF = fourCc("traf");
+    private static final int TFHD = fourCc("tfhd");
+    private static final int TFDT = fourCc("tfdt");
+    private static final int TRUN = fourCc("trun");
+    private static final int MDAT = fourCc("mdat");
+    private static final int MFRA = fourCc("mfra");
+    private static final int TFRA = fourCc("tfra");
+    private static final int MFRO = fourCc("mfro");
+    private static final byte[] HANDLER_NAME = "VideoHandler\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMPRESSOR_NAME = new byte[32];
+
+    private static final int SYNC_SAMPLE = 0x02000000;      // Depends on no other sample.
+    private static final int OTHER_SAMPLE = 0x01010000;     // Depends on others, not a sync sample.
+
+    private final SegmentWriter segments;
+    private final int sampleDuration;
+
+    // Chunk being scanned, copied out of the buffer it was written from.
+    private final byte[] in = new byte[64 * 1024];
+
+    // The fragment being built: pictures as length prefixed NAL units, the mdat payload.
+    private byte[] mdat = new byte[1024 * 1024];
+    private ByteBuffer mdatBuffer = ByteBuffer.wrap(mdat);
+    private int mdatLength;
+    private int nalStart = -1;      // Of the length of the NAL unit being read, -1 until a start code is seen.
+    private int zeros;              // Zero bytes in a row, the start of a start code or the end of a NAL unit.
+
+    // Pictures, samples, wholly read.
+    private int[] sampleSizes = new int[512];
+    private int samples;
+    private boolean firstSync;
+    // The picture being read.
+    private int sampleStart;
+    private boolean sampleVcl;
+    private boolean sampleSync;
+
+    private final byte[] sps = new byte[MAX_PARAMETER_SET];
+    private final byte[] pps = new byte[MAX_PARAMETER_SET];
+    private int spsLength;
+    private int ppsLength;
+    private final SpsReader spsReader = new SpsReader();
+    private boolean warned;
+
+    private ByteBuffer header = ByteBuffer.allocate(16 * 1024);   // Boxes written ahead of the mdat.
+    private final ByteBuffer[] fragment = new ByteBuffer[2];
+
+    private long decodeTime;        // Of the next sample, track units since recording first started.
+    private long originMillis = -1;  // When the first keyframe recorded was captured.
+    private long fileBase;          // Decode time the current file starts at.
+    private int initFor;            // Segment number the initialisation segment was written for.
+    private int sequence;
+
+    // Fragments in the current file starting with a sync sample, for the random access box.
+    private long[] fragmentTimes = new long[1024];
+    private long[] fragmentOffsets = new long[1024];
+    private int fragments;
+
+    /**
+     * @param segments  Files to write the MP4 to
+     * @param frameRate Frames a second the camera is set to
+     */
+    public FragmentedMp4Writer(SegmentWriter segments, double frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be above 0 [" + frameRate + "]");
+        }
+        this.segments = segments;
+        this.sampleDuration = (int) Math.round(TIMESCALE / frameRate);
+        fragment[1] = mdatBuffer;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), in.length);
+            src.get(in, 0, length);
+            scan(in, length);
+        }
+        return count;
+    }
+
+    /**
+     * Everything before the next byte is whole, so it is written as a fragment, and a new file is started here if
+     * one is due.
+     */
+    @Override
+    public void keyframe() throws IOException {
+        // The start code of the keyframe is still to come, zeros here end the last NAL unit.
+        endNal(mdatLength - zeros);
+        zeros = 0;
+        endSample(mdatLength);
+        writeFragment();
+
+        if (segments.rollDue()) {
+            finishFile();
+        }
+        segments.keyframe();
+    }
+
+    @Override
+    public void resumed(long capturedMillis) throws IOException {
+        keyframe();
+        if (capturedMillis >= 0) {
+            if (originMillis < 0) {
+                originMillis = capturedMillis;
+            }
+            decodeTime = Math.max(decodeTime, (capturedMillis - originMillis) * TIMESCALE / 1000);
+        }
+    }
+
+    /**
+     * Recording paused. The picture being read when the camera stopped being written is dropped, the rest of it
+     * will never come, and the pictures before it are written as a fragment. If the NAL unit cut short starts a
+     * picture, the one before it is whole and kept.
+     */
+    @Override
+    public void flush() throws IOException {
+        dropPicture();
+        writeFragment();
+        segments.flush();
+    }
+
+    @Override
+    public String currentName() {
+        return segments.currentName();
+    }
+
+    /**
+     * @return Where the next fragment will start in the current file, 0 for the start of a file still to be begun.
+     */
+    @Override
+    public long segmentBytes() {
+        return segments.segments() != initFor ? 0 : segments.segmentBytes();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return segments.isOpen();
+    }
+
+    /**
+     * The camera has stopped, the picture being read may be cut short and is dropped as for {@link #flush()}.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            dropPicture();
+            writeFragment();
+            finishFile();
+        } finally {
+            segments.close();
+        }
+    }
+
+    /**
+     * Copy a chunk into the fragment, replacing each start code with the length of the NAL unit it starts.
+     */
+    private void scan(byte[] data, int length) throws IOException {
+        int from = 0;
+        for (int i = 0; i < length; i++) {
+            if (zeros == 0) {
+                // No start code ends in the next three bytes if the third is above 1, most of the stream.
+                while (i + 2 < length && (data[i + 2] & 0xFF) > 1) {
+                    i += 3;
+                }
+                if (i == length) {
+                    break;
+                }
+            }
+            byte b = data[i];
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                append(data, from, i - from);
+                endNal(mdatLength - zeros);
+                beginNal();
+                from = i + 1;
+            }
+            zeros = 0;
+        }
+        append(data, from, length - from);
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (nalStart < 0 || length <= 0) {
+            return;
+        }
+        ensureCapacity(mdatLength + length);
+        System.arraycopy(data, offset, mdat, mdatLength, length);
+        mdatLength += length;
+    }
+
+    private void beginNal() {
+        ensureCapacity(mdatLength + 4);
+        nalStart = mdatLength;
+        mdatLength += 4;
+    }
+
+    /**
+     * The NAL unit being read ends at the given offset, work out where it belongs now its type is known.
+     */
+    private void endNal(int end) throws IOException {
+        if (nalStart < 0) {
+            return;
+        }
+        int length = end - nalStart - 4;
+        if (length <= 0) {
+            mdatLength = nalStart;
+            nalStart = -1;
+            return;
+        }
+
+        int type = mdat[nalStart + 4] & 0x1F;
+        boolean vcl = type >= NalScanner.NAL_SLICE && type <= NalScanner.NAL_IDR;
+
+        if (sampleVcl && startsPicture(length)) {
+            endSample(nalStart);
+        }
+        if (type == NalScanner.NAL_IDR && !sampleVcl && samples > 0) {
+            // A new group of pictures, write the last one.
+            writeFragment();
+        }
+
+        switch (type) {
+            case NalScanner.NAL_SPS:
+                spsLength = keep(sps, spsLength, length);
+                mdatLength = nalStart;
+                break;
+            case NalScanner.NAL_PPS:
+                ppsLength = keep(pps, ppsLength, length);
+                mdatLength = nalStart;
+                break;
+            case NalScanner.NAL_AUD:
+                mdatLength = nalStart;
+                break;
+            default:
+                mdat[nalStart] = (byte) (length >>> 24);
+                mdat[nalStart + 1] = (byte) (length >>> 16);
+                mdat[nalStart + 2] = (byte) (length >>> 8);
+                mdat[nalStart + 3] = (byte) length;
+                mdatLength = nalStart + 4 + length;
+                if (vcl) {
+                    sampleVcl = true;
+                    sampleSync |= type == NalScanner.NAL_IDR;
+                }
+                break;
+        }
+        nalStart = -1;
+    }
+
+    /**
+     * Keep a parameter set from the NAL unit being read, if it fits, reading the picture size from an SPS.
+     *
+     * @return Length now held.
+     */
+    private int keep(byte[] target, int held, int length) {
+        if (length > target.length || same(target, held, length)) {
+            return held;
+        }
+        System.arraycopy(mdat, nalStart + 4, target, 0, length);
+        if (target == sps && !spsReader.read(target, length)) {
+            log.warn("Cannot read the SPS, the picture size is taken as {}x{}", box(DEFAULT_WIDTH), box(DEFAULT_HEIGHT));
+        }
+        return length;
+    }
+
+    /**
+     * @return true if the NAL unit being read is the parameter set already held, as it is ahead of every keyframe.
+     */
+    private boolean same(byte[] target, int held, int length) {
+        if (held != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (target[i] != mdat[nalStart + 4 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The picture being read ends at the given offset.
+     */
+    private void endSample(int end) throws IOException {
+        if (!sampleVcl) {
+            return;
+        }
+        if (samples == sampleSizes.length) {
+            int[] grown = new int[samples * 2];
+            System.arraycopy(sampleSizes, 0, grown, 0, samples);
+            sampleSizes = grown;
+        }
+        if (samples == 0) {
+            firstSync = sampleSync;
+        }
+        sampleSizes[samples++] = end - sampleStart;
+        sampleStart = end;
+        sampleVcl = false;
+        sampleSync = false;
+
+        if (sampleStart >= MAX_FRAGMENT_BYTES) {
+            writeFragment();
+        }
+    }
+
+    /**
+     * @return true if the NAL unit being read, of which this much is held, is the first of a new picture.
+     */
+    private boolean startsPicture(int length) {
+        int type = mdat[nalStart + 4] & 0x1F;
+        if (type >= NalScanner.NAL_SLICE && type <= NalScanner.NAL_IDR) {
+            return length > 1 && (mdat[nalStart + 5] & 0x80) != 0;    // first_mb_in_slice is 0
+        }
+        return (type >= NalScanner.NAL_SEI && type <= NalScanner.NAL_AUD) || (type >= 14 && type <= 18);
+    }
+
+    /**
+     * Forget the NAL unit being read, which may be cut short, and the rest of its picture if it was not the first
+     * of one.
+     */
+    private void dropPicture() throws IOException {
+        if (nalStart >= 0) {
+            int held = mdatLength - nalStart - 4;
+            if (held > 0 && startsPicture(held)) {
+                endSample(nalStart);
+            }
+        }
+        mdatLength = sampleStart;
+        nalStart = -1;
+        zeros = 0;
+        sampleVcl = false;
+        sampleSync = false;
+    }
+
+    /**
+     * Write the pictures wholly read as a fragment, moving what there is of the next one to the front.
+     */
+    private void writeFragment() throws IOException {
+        if (samples > 0) {
+            if (spsLength == 0 || ppsLength == 0) {
+                if (!warned) {
+                    log.warn("No SPS or PPS in the stream, pictures are dropped until there is");
+                    warned = true;
+                }
+            } else {
+                if (segments.currentName() == null) {
+                    segments.keyframe();
+                }
+                if (segments.segments() != initFor) {
+                    writeInit();
+                }
+                long offset = segments.segmentBytes();
+                if (firstSync) {
+                    addRandomAccess(decodeTime - fileBase, offset);
+                }
+
+                writeMoof(decodeTime - fileBase);
+                mdatBuffer.clear();
+                mdatBuffer.limit(sampleStart);
+                fragment[0] = header;
+                for (ByteBuffer buffer : fragment) {
+                    while (buffer.hasRemaining()) {
+                        segments.write(buffer);
+                    }
+                }
+            }
+            decodeTime += (long) samples * sampleDuration;
+            samples = 0;
+        }
+
+        if (sampleStart > 0) {
+            System.arraycopy(mdat, sampleStart, mdat, 0, mdatLength - sampleStart);
+            mdatLength -= sampleStart;
+            if (nalStart >= 0) {
+                nalStart -= sampleStart;
+            }
+            sampleStart = 0;
+        }
+    }
+
+    /**
+     * End the current file with the random access box, once it has fragments.
+     */
+    private void finishFile() throws IOException {
+        if (fragments == 0 || segments.segments() != initFor) {
+            return;
+        }
+
+        ensureHeader(64 + fragments * 19);
+        header.clear();
+        int mfra = open(MFRA);
+        int tfra = open(TFRA);
+        header.putInt(0x01000000);          // Version 1, 64 bit times and offsets.
+        header.putInt(TRACK);
+        header.putInt(0);                   // One byte each for traf, trun and sample numbers.
+        header.putInt(fragments);
+        for (int i = 0; i < fragments; i++) {
+            header.putLong(fragmentTimes[i]);
+            header.putLong(fragmentOffsets[i]);
+            header.put((byte) 1).put((byte) 1).put((byte) 1);
+        }
+        close(tfra);
+        int mfro = open(MFRO);
+        header.putInt(0);
+        header.putInt(header.position() - mfra + 4);
+        close(mfro);
+        close(mfra);
+        header.flip();
+        while (header.hasRemaining()) {
+            segments.write(header);
+        }
+        fragments = 0;
+    }
+
+    private void addRandomAccess(long time, long offset) {
+        if (fragments == fragmentTimes.length) {
+            long[] times = new long[fragments * 2];
+            long[] offsets = new long[fragments * 2];
+            System.arraycopy(fragmentTimes, 0, times, 0, fragments);
+            System.arraycopy(fragmentOffsets, 0, offsets, 0, fragments);
+            fragmentTimes = times;
+            fragmentOffsets = offsets;
+        }
+        fragmentTimes[fragments] = time;
+        fragmentOffsets[fragments++] = offset;
+    }
+
+    /**
+     * The moof box for the pictures wholly read, and the mdat box header, ready to write.
+     */
+    private void writeMoof(long baseTime) {
+        ensureHeader(256 + samples * 4);
+        header.clear();
+        int moof = open(MOOF);
+        int mfhd = open(MFHD);
+        header.putInt(0);
+        header.putInt(++sequence);
+        close(mfhd);
+
+        int traf = open(TRAF);
+        int tfhd = open(TFHD);
+        header.putInt(0x020028);            // Base is the moof, default duration and flags given.
+        header.putInt(TRACK);
+        header.putInt(sampleDuration);
+        header.putInt(OTHER_SAMPLE);
+        close(tfhd);
+        int tfdt = open(TFDT);
+        header.putInt(0x01000000);
+        header.putLong(baseTime);
+        close(tfdt);
+        int trun = open(TRUN);
+        header.putInt(0x000205);            // Data offset, first sample flags and sample sizes given.
+        header.putInt(samples);
+        int dataOffset = header.position();
+        header.putInt(0);
+        header.putInt(firstSync ? SYNC_SAMPLE : OTHER_SAMPLE);
+        for (int i = 0; i < samples; i++) {
+            header.putInt(sampleSizes[i]);
+        }
+        close(trun);
+        close(traf);
+        close(moof);
+        header.putInt(dataOffset, header.position() - moof + 8);
+
+        header.putInt(8 + sampleStart);
+        header.putInt(MDAT);
+        header.flip();
+    }
+
+    /**
+     * Start a file: ftyp and a moov box describing the one video track, its samples all in fragments to come.
+     */
+    private void writeInit() throws IOException {
+        int width = spsReader.valid ? spsReader.width : DEFAULT_WIDTH;
+        int height = spsReader.valid ? spsReader.height : DEFAULT_HEIGHT;
+
+        ensureHeader(1024 + spsLength + ppsLength);
+        header.clear();
+        int ftyp = open(fourCc("ftyp"));
+        header.putInt(fourCc("isom"));
+        header.putInt(0x200);
+        header.putInt(fourCc("isom")).putInt(fourCc("iso6")).putInt(fourCc("avc1")).putInt(fourCc("mp41"));
+        close(ftyp);
+
+        int moov = open(fourCc("moov"));
+        int mvhd = open(fourCc("mvhd"));
+        header.putInt(0);
+        header.putInt(0).putInt(0);         // Created and modified.
+        header.putInt(MOVIE_TIMESCALE);
+        header.putInt(0);                   // Duration, all in fragments.
+        header.putInt(0x00010000);          // Rate 1.0.
+        header.putShort((short) 0x0100);    // Volume 1.0.
+        header.putShort((short) 0).putInt(0).putInt(0);
+        matrix();
+        for (int i = 0; i < 6; i++) {
+            header.putInt(0);
+        }
+        header.putInt(TRACK + 1);
+        close(mvhd);
+
+        int trak = open(fourCc("trak"));
+        int tkhd = open(fourCc("tkhd"));
+        header.putInt(0x000003);            // Enabled and in the movie.
+        header.putInt(0).putInt(0);
+        header.putInt(TRACK);
+        header.putInt(0);
+        header.putInt(0);                   // Duration.
+        header.putInt(0).putInt(0);
+        header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        matrix();
+        header.putInt(width << 16);
+        header.putInt(height << 16);
+        close(tkhd);
+
+        int mdia = open(fourCc("mdia"));
+        int mdhd = open(fourCc("mdhd"));
+        header.putInt(0);
+        header.putInt(0).putInt(0);
+        header.putInt(TIMESCALE);
+        header.putInt(0);
+        header.putShort((short) 0x55C4);    // Language "und".
+        header.putShort((short) 0);
+        close(mdhd);
+        int hdlr = open(fourCc("hdlr"));
+        header.putInt(0).putInt(0);
+        header.putInt(fourCc("vide"));
+        header.putInt(0).putInt(0).putInt(0);
+        header.put(HANDLER_NAME);
+        close(hdlr);
+
+        int minf = open(fourCc("minf"));
+        int vmhd = open(fourCc("vmhd"));
+        header.putInt(0x000001);
+        header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        close(vmhd);
+        int dinf = open(fourCc("dinf"));
+        int dref = open(fourCc("dref"));
+        header.putInt(0);
+        header.putInt(1);
+        int url = open(fourCc("url "));
+        header.putInt(0x000001);            // Media is in this file.
+        close(url);
+        close(dref);
+        close(dinf);
+
+        int stbl = open(fourCc("stbl"));
+        int stsd = open(fourCc("stsd"));
+        header.putInt(0);
+        header.putInt(1);
+        int avc1 = open(fourCc("avc1"));
+        header.putInt(0).putShort((short) 0);
+        header.putShort((short) 1);         // Data reference.
+        header.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).putInt(0);
+        header.putShort((short) width).putShort((short) height);
+        header.putInt(0x00480000).putInt(0x00480000);   // 72 dpi.
+        header.putInt(0);
+        header.putShort((short) 1);         // Frames per sample.
+        header.put(COMPRESSOR_NAME);
+        header.putShort((short) 0x0018);    // Colour, no alpha.
+        header.putShort((short) -1);
+        avcC();
+        close(avc1);
+        close(stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = open(fourCc(empty));
+            header.putInt(0).putInt(0);
+            close(box);
+        }
+        int stsz = open(fourCc("stsz"));
+        header.putInt(0).putInt(0).putInt(0);
+        close(stsz);
+        close(stbl);
+        close(minf);
+        close(mdia);
+        close(trak);
+
+        int mvex = open(fourCc("mvex"));
+        int trex = open(fourCc("trex"));
+        header.putInt(0);
+        header.putInt(TRACK);
+        header.putInt(1);                   // Sample description.
+        header.putInt(sampleDuration);
+        header.putInt(0);
+        header.putInt(OTHER_SAMPLE);
+        close(trex);
+        close(mvex);
+        close(moov);
+
+        header.flip();
+        while (header.hasRemaining()) {
+            segments.write(header);
+        }
+
+        initFor = segments.segments();
+        fileBase = decodeTime;
+        sequence = 0;
+        fragments = 0;
+        log.debug("MP4 {} is {}x{} at {} units a frame", segments.currentName(), box(width), box(height),
+                box(sampleDuration));
+    }
+
+    /**
+     * The decoder configuration, from the latest SPS and PPS.
+     */
+    private void avcC() {
+        int avcC = open(fourCc("avcC"));
+        header.put((byte) 1);
+        header.put(sps[1]).put(sps[2]).put(sps[3]);     // Profile, compatibility and level.
+        header.put((byte) 0xFF);            // Lengths are 4 bytes.
+        header.put((byte) 0xE1);            // One SPS.
+        header.putShort((short) spsLength).put(sps, 0, spsLength);
+        header.put((byte) 1);
+        header.putShort((short) ppsLength).put(pps, 0, ppsLength);
+        if (spsReader.highProfile()) {
+            header.put((byte) (0xFC | spsReader.chromaFormat));
+            header.put((byte) (0xF8 | spsReader.lumaDepth - 8));
+            header.put((byte) (0xF8 | spsReader.chromaDepth - 8));
+            header.put((byte) 0);
+        }
+        close(avcC);
+    }
+
+    private void matrix() {
+        header.putInt(0x00010000).putInt(0).putInt(0);
+        header.putInt(0).putInt(0x00010000).putInt(0);
+        header.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private int open(int type) {
+        int start = header.position();
+        header.putInt(0);
+        header.putInt(type);
+        return start;
+    }
+
+    private void close(int start) {
+        header.putInt(start, header.position() - start);
+    }
+
+    private static int fourCc(String type) {
+        byte[] bytes = type.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+
+    private void ensureHeader(int size) {
+        if (header.capacity() < size) {
+            header = ByteBuffer.allocate(Integer.highestOneBit(size) * 2);
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > mdat.length) {
+            byte[] grown = new byte[Math.max(size, mdat.length * 2)];
+            System.arraycopy(mdat, 0, grown, 0, mdatLength);
+            mdat = grown;
+            mdatBuffer = ByteBuffer.wrap(mdat);
+            fragment[1] = mdatBuffer;
+        }
+    }
+
+    /**
+     * The few SPS fields the MP4 boxes need, read through its exp-Golomb codes.
+     */
+    static class SpsReader {
+        private final byte[] rbsp = new byte[MAX_PARAMETER_SET];
+        private int length;
+        private int bit;
+
+        boolean valid;
+        int profile;
+        int chromaFormat;
+        int lumaDepth;
+        int chromaDepth;
+        int width;
+        int height;
+
+        /**
+         * @return true if the SPS was read, otherwise the fields are left as they were.
+         */
+        boolean read(byte[] sps, int spsLength) {
+            // Take out the emulation prevention bytes, 3 after two zeros.
+            length = 0;
+            int zeros = 0;
+            for (int i = 0; i < spsLength; i++) {
+                int b = sps[i] & 0xFF;
+                if (zeros >= 2 && b == 3) {
+                    zeros = 0;
+                    continue;
+                }
+                zeros = b == 0 ? zeros + 1 : 0;
+                rbsp[length++] = (byte) b;
+            }
+            bit = 8;        // Past the NAL header.
+
+            try {
+                int profileIdc = bits(8);
+                bits(16);   // Constraints and level.
+                ue();       // seq_parameter_set_id
+                int chroma = 1;
+                int luma = 8;
+                int chromaBits = 8;
+                boolean separatePlanes = false;
+                if (isHigh(profileIdc)) {
+                    chroma = ue();
+                    if (chroma == 3) {
+                        separatePlanes = bits(1) == 1;
+                    }
+                    luma = ue() + 8;
+                    chromaBits = ue() + 8;
+                    bits(1);    // qpprime_y_zero_transform_bypass_flag
+                    if (bits(1) == 1) {
+                        for (int i = 0; i < (chroma != 3 ? 8 : 12); i++) {
+                            if (bits(1) == 1) {
+                                skipScalingList(i < 6 ? 16 : 64);
+                            }
+                        }
+                    }
+                }
+                ue();       // log2_max_frame_num_minus4
+                int pocType = ue();
+                if (pocType == 0) {
+                    ue();
+                } else if (pocType == 1) {
+                    bits(1);
+                    se();
+                    se();
+                    int cycle = ue();
+                    for (int i = 0; i < cycle; i++) {
+                        se();
+                    }
+                }
+                ue();       // max_num_ref_frames
+                bits(1);
+                int widthMbs = ue() + 1;
+                int heightUnits = ue() + 1;
+                int frameMbsOnly = bits(1);
+                if (frameMbsOnly == 0) {
+                    bits(1);
+                }
+                bits(1);    // direct_8x8_inference_flag
+                int cropLeft = 0;
+                int cropRight = 0;
+                int cropTop = 0;
+                int cropBottom = 0;
+                if (bits(1) == 1) {
+                    cropLeft = ue();
+                    cropRight = ue();
+                    cropTop = ue();
+                    cropBottom = ue();
+                }
+
+                int arrayType = separatePlanes ? 0 : chroma;
+                int cropX = arrayType == 0 ? 1 : (arrayType == 3 ? 1 : 2);
+                int cropY = (arrayType == 1 ? 2 : 1) * (2 - frameMbsOnly);
+                width = widthMbs * 16 - (cropLeft + cropRight) * cropX;
+                height = (2 - frameMbsOnly) * heightUnits * 16 - (cropTop + cropBottom) * cropY;
+                profile = profileIdc;
+                chromaFormat = chroma;
+                lumaDepth = luma;
+                chromaDepth = chromaBits;
+                valid = width > 0 && height > 0;
+                return valid;
+            } catch (IndexOutOfBoundsException e) {
+                return false;
+            }
+        }
+
+        boolean highProfile() {
+            return valid && isHigh(profile);
+        }
+
+        private static boolean isHigh(int profile) {
+            switch (profile) {
+                case 100:
+                case 110:
+                case 122:
+                case 244:
+                case 44:
+                case 83:
+                case 86:
+                case 118:
+                case 128:
+                case 138:
+                case 139:
+                case 134:
+                case 135:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void skipScalingList(int size) {
+            int last = 8;
+            int next = 8;
+            for (int j = 0; j < size; j++) {
+                if (next != 0) {
+                    next = (last + se() + 256) % 256;
+                }
+                last = next == 0 ? last : next;
+            }
+        }
+
+        private int bits(int count) {
+            int result = 0;
+            for (int i = 0; i < count; i++) {
+                if (bit >= length * 8) {
+                    throw new IndexOutOfBoundsException("SPS ends early");
+                }
+                result = result << 1 | (rbsp[bit >> 3] >> (7 - (bit & 7))) & 1;
+                bit++;
+            }
+            return result;
+        }
+
+        private int ue() {
+            int leading = 0;
+            while (bits(1) == 0) {
+                if (++leading > 31) {
+                    throw new IndexOutOfBoundsException("Bad exp-Golomb code in SPS");
+                }
+            }
+            return (int) ((1L << leading) - 1 + (leading == 0 ? 0 : bitsLong(leading)));
+        }
+
+        private long bitsLong(int count) {
+            long result = 0;
+            for (int i = 0; i < count; i++) {
+                result = result << 1 | bits(1);
+            }
+            return result;
+        }
+
+        private int se() {
+            int value = ue();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.stronans.camera;
+
+/**
+ * Splits a stream of back to back JPEG images, as raspistill writes to stdout, into single images. The marker
+ * segments are walked by their lengths so that an EOI inside an EXIF thumbnail does not end the image early, and
+ * the entropy coded data is scanned for the real EOI. Bytes are copied into the caller's buffer in bulk.
+ */
+public class JpegFramer {
+    /**
+     * Supplies the buffers images are assembled in and takes them back once complete.
+     */
+    public interface Listener {
+        /**
+         * @return Array to assemble the next image in, or null to skip the image.
+         */
+        byte[] startImage();
+
+        /**
+         * @param image  Array given by startImage
+         * @param length Bytes of image, or -1 if the image did not fit and has been dropped
+         */
+        void endImage(byte[] image, int length);
+    }
+
+    private static final int SEEK = 0;          // Looking for the FF of an SOI.
+    private static final int SEEK_SOI = 1;      // Seen FF, looking for D8.
+    private static final int MARKER = 2;        // Expecting the FF of the next marker.
+    private static final int MARKER_TYPE = 3;
+    private static final int LENGTH_HIGH = 4;
+    private static final int LENGTH_LOW = 5;
+    private static final int SKIP = 6;          // Inside a marker segment.
+    private static final int ENTROPY = 7;       // Inside scan data, looking for FF.
+    private static final int ENTROPY_FF = 8;
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+
+    private final Listener listener;
+
+    private int state = SEEK;
+    private int marker;
+    private int remaining;
+
+    private byte[] image;       // Null while skipping an image.
+    private int length;
+    private boolean overflow;
+
+    public JpegFramer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Feed the next chunk of the stream.
+     */
+    public void feed(byte[] data, int offset, int count) {
+        int end = offset + count;
+        int copyFrom = offset;
+        int i = offset;
+
+        while (i < end) {
+            int b = data[i] & 0xFF;
+
+            switch (state) {
+                case SEEK:
+                    if (b == 0xFF) {
+                        state = SEEK_SOI;
+                    }
+                    break;
+                case SEEK_SOI:
+                    if (b == SOI) {
+                        begin();
+                        copyFrom = i + 1;
+                        state = MARKER;
+                    } else if (b != 0xFF) {
+                        state = SEEK;
+                    }
+                    break;
+                case MARKER:
+                    if (b == 0xFF) {
+                        state = MARKER_TYPE;
+                    } else {
+                        abandon();
+                    }
+                    break;
+                case MARKER_TYPE:
+                    if (b == EOI) {
+                        copy(data, copyFrom, i + 1);
+                        finish();
+                        copyFrom = i + 1;
+                    } else if (b == SOI) {
+                        // Previous image was cut short, start again from here.
+                        abandon();
+                        begin();
+                        copyFrom = i + 1;
+                        state = MARKER;
+                    } else if (b == 0x01 || (b >= 0xD0 && b <= 0xD7)) {
+                        state = MARKER;
+                    } else if (b != 0xFF) {
+                        marker = b;
+                        state = LENGTH_HIGH;
+                    }
+                    break;
+                case LENGTH_HIGH:
+                    remaining = b << 8;
+                    state = LENGTH_LOW;
+                    break;
+                case LENGTH_LOW:
+                    remaining = (remaining | b) - 2;
+                    state = remaining > 0 ? SKIP : afterSegment();
+                    break;
+                case SKIP: {
+                    int skip = Math.min(remaining, end - i);
+                    remaining -= skip;
+                    i += skip;
+                    if (remaining == 0) {
+                        state = afterSegment();
+                    }
+                    continue;
+                }
+                case ENTROPY:
+                    while (i < end && data[i] != (byte) 0xFF) {
+                        i++;
+                    }
+                    if (i < end) {
+                        state = ENTROPY_FF;
+                        i++;
+                    }
+                    continue;
+                case ENTROPY_FF:
+                    if (b == EOI) {
+                        copy(data, copyFrom, i + 1);
+                        finish();
+                        copyFrom = i + 1;
+                    } else if (b == 0x00 || (b >= 0xD0 && b <= 0xD7)) {
+                        state = ENTROPY;
+                    } else if (b != 0xFF) {
+                        marker = b;
+                        state = LENGTH_HIGH;
+                    }
+                    break;
+                default:
+                    state = SEEK;
+                    break;
+            }
+            i++;
+        }
+
+        if (state >= MARKER) {
+            copy(data, copyFrom, end);
+        }
+    }
+
+    private int afterSegment() {
+        return marker == SOS ? ENTROPY : MARKER;
+    }
+
+    private void begin() {
+        image = listener.startImage();
+        length = 0;
+        overflow = false;
+        if (image != null && image.length >= 2) {
+            image[length++] = (byte) 0xFF;
+            image[length++] = (byte) SOI;
+        }
+    }
+
+    private void copy(byte[] data, int from, int to) {
+        int count = to - from;
+        if (image == null || overflow || count <= 0) {
+            return;
+        }
+        if (length + count > image.length) {
+            overflow = true;
+            return;
+        }
+        System.arraycopy(data, from, image, length, count);
+        length += count;
+    }
+
+    private void finish() {
+        if (image != null) {
+            listener.endImage(image, overflow ? -1 : length);
+            image = null;
+        }
+        state = SEEK;
+    }
+
+    private void abandon() {
+        if (image != null) {
+            listener.endImage(image, -1);
+            image = null;
+        }
+        state = SEEK;
+    }
+}
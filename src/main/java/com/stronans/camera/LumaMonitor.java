@@ -0,0 +1,115 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads low resolution frames from a camera writing raw YUV or luma to stdout (raspividyuv) and runs them through a
+ * {@link MotionDetector}, remembering when the picture last changed enough to count as movement. Frames are read
+ * into one reused array. A camera that cannot be opened, as the Pi's one camera cannot while the video camera has
+ * it, ends without a frame, see {@link #awaitFrame(long)}.
+ */
+public class LumaMonitor {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(LumaMonitor.class);
+
+    private final Process process;
+    private final MotionDetector detector;
+    private final int frameSize;
+    private final int thresholdPermille;
+    private final Thread reader;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private volatile long lastMotionMillis;
+    private volatile int lastPermille;
+    private volatile long frames;
+
+    /**
+     * @param process           Camera writing frames to stdout
+     * @param detector          Detector sized for the frames
+     * @param frameSize         Bytes per frame on the stream, the luma plane is the first detector.frameSize() of them
+     * @param thresholdPermille Changed pixels per thousand for a frame to count as movement
+     */
+    public LumaMonitor(Process process, MotionDetector detector, int frameSize, int thresholdPermille) {
+        if (frameSize < detector.frameSize()) {
+            throw new IllegalArgumentException("Frame smaller than the luma plane [" + frameSize + "]");
+        }
+        this.process = process;
+        this.detector = detector;
+        this.frameSize = frameSize;
+        this.thresholdPermille = thresholdPermille;
+
+        reader = new Thread(this::readFrames, "luma-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return true if the picture changed enough at or after the given time.
+     */
+    public boolean motionSince(long millis) {
+        return lastMotionMillis >= millis;
+    }
+
+    public long lastMotionMillis() {
+        return lastMotionMillis;
+    }
+
+    public int lastPermille() {
+        return lastPermille;
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    /**
+     * Wait for the first frame.
+     *
+     * @return true once a frame has been read, false if the camera ended or gave none in time.
+     */
+    public boolean awaitFrame(long millis) throws InterruptedException {
+        started.await(millis, TimeUnit.MILLISECONDS);
+        return frames > 0;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    public void shutdown() {
+        process.destroy();
+        log.info("shutdown motion camera.");
+    }
+
+    private void readFrames() {
+        byte[] frame = new byte[frameSize];
+
+        try (DataInputStream in = new DataInputStream(process.getInputStream())) {
+            for (; ; ) {
+                in.readFully(frame);
+                int permille = detector.changedPermille(frame, 0);
+                lastPermille = permille;
+                frames++;
+                started.countDown();
+                if (permille >= thresholdPermille) {
+                    lastMotionMillis = System.currentTimeMillis();
+                }
+            }
+        } catch (EOFException e) {
+            log.info("Motion camera stream ended");
+        } catch (IOException e) {
+            log.error("During reading motion camera stream", e);
+        } finally {
+            started.countDown();
+        }
+    }
+}
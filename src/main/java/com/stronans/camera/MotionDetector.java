@@ -0,0 +1,101 @@
+package com.stronans.camera;
+
+/**
+ * Frame differencing over low resolution luma (Y) frames. Each frame is compared with a slowly adapting background
+ * so gradual light changes, sun moving across the floor, are absorbed, and the frame's mean brightness is matched
+ * to the background's first so an exposure change does not count as movement. Works on primitive arrays held by
+ * the detector, nothing is allocated per frame.
+ */
+public class MotionDetector {
+    private static final int FIXED = 4;             // Background is held as luma << FIXED.
+    private static final int ADAPT = 3;             // Background moves 1/8 of the way to each frame.
+
+    private final int width;
+    private final int height;
+    private final int step;
+    private final int pixelThreshold;
+    private final int[] background;
+    private final int samples;
+    private boolean primed;
+
+    /**
+     * @param width          Frame width in pixels, also the row stride
+     * @param height         Frame height in pixels
+     * @param step           Look at every step'th pixel across and down, 1 for all of them
+     * @param pixelThreshold Change in luma (0-255) for a pixel to count as changed
+     */
+    public MotionDetector(int width, int height, int step, int pixelThreshold) {
+        if (width <= 0 || height <= 0 || step <= 0) {
+            throw new IllegalArgumentException("Bad frame geometry [" + width + "x" + height + " step " + step + "]");
+        }
+        this.width = width;
+        this.height = height;
+        this.step = step;
+        this.pixelThreshold = pixelThreshold;
+        this.samples = ((width + step - 1) / step) * ((height + step - 1) / step);
+        this.background = new int[samples];
+    }
+
+    public int frameSize() {
+        return width * height;
+    }
+
+    /**
+     * Compare a frame with the background and fold it into the background.
+     *
+     * @param frame  Luma bytes, width x height from offset
+     * @param offset Start of the frame in the array
+     * @return Changed pixels per thousand sampled, 0 for the first frame.
+     */
+    public int changedPermille(byte[] frame, int offset) {
+        if (!primed) {
+            int s = 0;
+            for (int y = 0; y < height; y += step) {
+                int row = offset + y * width;
+                for (int x = 0; x < width; x += step) {
+                    background[s++] = (frame[row + x] & 0xFF) << FIXED;
+                }
+            }
+            primed = true;
+            return 0;
+        }
+
+        // Mean brightness difference between frame and background, removed before comparing pixels.
+        long frameSum = 0;
+        long backgroundSum = 0;
+        int s = 0;
+        for (int y = 0; y < height; y += step) {
+            int row = offset + y * width;
+            for (int x = 0; x < width; x += step) {
+                frameSum += frame[row + x] & 0xFF;
+                backgroundSum += background[s++];
+            }
+        }
+        int shift = (int) (((frameSum << FIXED) - backgroundSum) / samples);
+        int threshold = pixelThreshold << FIXED;
+
+        int changed = 0;
+        s = 0;
+        for (int y = 0; y < height; y += step) {
+            int row = offset + y * width;
+            for (int x = 0; x < width; x += step) {
+                int pixel = (frame[row + x] & 0xFF) << FIXED;
+                int reference = background[s];
+                int diff = pixel - reference - shift;
+                if (diff > threshold || diff < -threshold) {
+                    changed++;
+                }
+                background[s++] = reference + ((pixel - reference) >> ADAPT);
+            }
+        }
+
+        return (int) ((changed * 1000L) / samples);
+    }
+
+    /**
+     * Forget the background, the next frame becomes the new one.
+     */
+    public void reset() {
+        primed = false;
+    }
+}
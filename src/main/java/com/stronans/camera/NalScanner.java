@@ -0,0 +1,112 @@
+package com.stronans.camera;
+
+/**
+ * Finds the NAL unit boundaries in an Annex-B H.264 byte stream as it is read from the camera.
+ * The stream is fed in arbitrary sized chunks, so the start code state is carried between calls.
+ */
+public class NalScanner {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    /**
+     * Told about each NAL unit as its header byte is seen.
+     */
+    public interface Listener {
+        /**
+         * @param type     NAL unit type (low 5 bits of the header)
+         * @param offset   Absolute stream offset of the first byte of the start code
+         * @param keyframe Absolute stream offset where a decoder could start, if this NAL is an IDR slice, otherwise -1
+         */
+        void nal(int type, long offset, long keyframe);
+    }
+
+    private int zeros;              // Consecutive zero bytes seen so far.
+    private boolean header;         // Next byte is a NAL header.
+    private long startCode;         // Offset of the start code for the pending header.
+    private long accessUnit = -1;   // Offset of the SPS/PPS/SEI run that leads up to an IDR.
+    private long position;          // Absolute offset of the next byte to be scanned.
+
+    /**
+     * Scan the next chunk of the stream.
+     */
+    public void scan(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++, position++) {
+            int b = data[i] & 0xFF;
+
+            if (header) {
+                header = false;
+                int type = b & 0x1F;
+                long keyframe = -1;
+
+                switch (type) {
+                    case NAL_SPS:
+                    case NAL_PPS:
+                    case NAL_SEI:
+                    case NAL_AUD:
+                        // Parameter sets are sent inline ahead of each IDR (raspivid -ih), keep the earliest one.
+                        if (accessUnit < 0) {
+                            accessUnit = startCode;
+                        }
+                        break;
+                    case NAL_IDR:
+                        keyframe = accessUnit >= 0 ? accessUnit : startCode;
+                        accessUnit = -1;
+                        break;
+                    default:
+                        accessUnit = -1;
+                        break;
+                }
+
+                listener.nal(type, startCode, keyframe);
+            }
+
+            if (b == 0) {
+                zeros++;
+            } else {
+                if (b == 1 && zeros >= 2) {
+                    header = true;
+                    startCode = position - Math.min(zeros, 3);
+                }
+                zeros = 0;
+            }
+        }
+    }
+
+    /**
+     * @return Absolute offset of bytes at the end of what has been scanned that could yet turn out to be the start of
+     * a keyframe, parameter sets or a start code still waiting for their IDR slice, or -1 if there are none.
+     */
+    public long pendingKeyframe() {
+        if (accessUnit >= 0) {
+            return accessUnit;
+        }
+        if (header) {
+            return startCode;
+        }
+        if (zeros > 0) {
+            return position - Math.min(zeros, 3);
+        }
+        return -1;
+    }
+
+    /**
+     * @return Number of bytes scanned since this scanner was created or reset.
+     */
+    public long position() {
+        return position;
+    }
+
+    public void reset() {
+        zeros = 0;
+        header = false;
+        startCode = 0;
+        accessUnit = -1;
+        position = 0;
+    }
+}
@@ -0,0 +1,200 @@
+package com.stronans.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fixed size circular buffer holding the last few seconds of the H.264 stream, so that when motion is
+ * detected the recording can start from the keyframe before the event rather than after it.
+ * The buffer is a single direct allocation so memory use is bounded regardless of bit rate.
+ * Not thread safe, it is meant to be written and drained by the one thread reading the camera output.
+ */
+public class PreRollBuffer {
+    private static final int MAX_KEYFRAMES = 256;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+
+    // Ring of keyframe positions, absolute stream offsets and the time they were seen.
+    private final long[] keyframeOffset = new long[MAX_KEYFRAMES];
+    private final long[] keyframeTime = new long[MAX_KEYFRAMES];
+    private int keyframeHead;       // Index of the oldest keyframe.
+    private int keyframeCount;
+
+    private long written;           // Total number of bytes ever written, the absolute end of the stream.
+
+    public PreRollBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pre-roll buffer size must be positive [" + capacity + "]");
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Absolute stream offset of the end of the data written so far.
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * @return Absolute stream offset of the oldest byte still held.
+     */
+    public long oldest() {
+        return Math.max(0, written - capacity);
+    }
+
+    /**
+     * Append data from the camera, overwriting the oldest data once the buffer is full.
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (length > capacity) {
+            offset += length - capacity;
+            written += length - capacity;
+            length = capacity;
+        }
+
+        int position = (int) (written % capacity);
+        int first = Math.min(length, capacity - position);
+
+        buffer.clear();
+        buffer.position(position);
+        buffer.put(data, offset, first);
+        if (first < length) {
+            buffer.position(0);
+            buffer.put(data, offset + first, length - first);
+        }
+        written += length;
+
+        expireKeyframes();
+    }
+
+    /**
+     * Record that a decodable keyframe starts at the given absolute stream offset.
+     */
+    public void markKeyframe(long offset, long timeMillis) {
+        if (keyframeCount == MAX_KEYFRAMES) {
+            keyframeHead = (keyframeHead + 1) % MAX_KEYFRAMES;
+            keyframeCount--;
+        }
+        int index = (keyframeHead + keyframeCount) % MAX_KEYFRAMES;
+        keyframeOffset[index] = offset;
+        keyframeTime[index] = timeMillis;
+        keyframeCount++;
+    }
+
+    public int keyframes() {
+        return keyframeCount;
+    }
+
+    /**
+     * Find where playback should start to include everything from the given time.
+     *
+     * @param sinceMillis Start of the pre-roll window
+     * @return Absolute offset of the latest keyframe at or before the window start, or the oldest keyframe still held
+     * if the buffer does not reach back that far, or -1 if no keyframe is held.
+     */
+    public long keyframeBefore(long sinceMillis) {
+        if (keyframeCount == 0) {
+            return -1;
+        }
+
+        long result = keyframeOffset[keyframeHead];
+        for (int i = 0; i < keyframeCount; i++) {
+            int index = (keyframeHead + i) % MAX_KEYFRAMES;
+            if (keyframeTime[index] > sinceMillis) {
+                break;
+            }
+            result = keyframeOffset[index];
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Epoch millis the keyframe starting at the given absolute offset was seen, or -1 if it is not held.
+     */
+    public long keyframeTime(long offset) {
+        for (int i = 0; i < keyframeCount; i++) {
+            int index = (keyframeHead + i) % MAX_KEYFRAMES;
+            if (keyframeOffset[index] == offset) {
+                return keyframeTime[index];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Write everything held from the given absolute offset up to the end of the stream.
+     *
+     * @return Number of bytes written.
+     */
+    public long drain(long from, WritableByteChannel channel) throws IOException {
+        return drain(from, written, channel);
+    }
+
+    /**
+     * Write everything held between two absolute offsets.
+     *
+     * @return Number of bytes written.
+     */
+    public long drain(long from, long to, WritableByteChannel channel) throws IOException {
+        if (from < oldest() || to > written || from > to) {
+            throw new IllegalArgumentException("Offsets no longer held in pre-roll buffer [" + from + "-" + to + "]");
+        }
+
+        long remaining = to - from;
+        int position = (int) (from % capacity);
+
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, capacity - position);
+            buffer.clear();
+            buffer.position(position);
+            buffer.limit(position + length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            remaining -= length;
+            position = 0;
+        }
+
+        return to - from;
+    }
+
+    /**
+     * Copy everything held between two absolute offsets into a buffer, which must have room for it.
+     */
+    public void copy(long from, long to, ByteBuffer into) {
+        if (from < oldest() || to > written || from > to || to - from > into.remaining()) {
+            throw new IllegalArgumentException("Offsets no longer held in pre-roll buffer or too many [" + from + "-" + to + "]");
+        }
+
+        long remaining = to - from;
+        int position = (int) (from % capacity);
+
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, capacity - position);
+            buffer.clear();
+            buffer.position(position);
+            buffer.limit(position + length);
+            into.put(buffer);
+            remaining -= length;
+            position = 0;
+        }
+    }
+
+    private void expireKeyframes() {
+        long oldest = oldest();
+        while (keyframeCount > 0 && keyframeOffset[keyframeHead] < oldest) {
+            keyframeHead = (keyframeHead + 1) % MAX_KEYFRAMES;
+            keyframeCount--;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Controlling the RPi video camera by reading its H.264 output continuously and only writing it to disk while
+ * recording. The last few seconds are held in a {@link PreRollBuffer} so that a recording starts from the
+ * keyframe before the trigger, not after it. Output goes through a {@link StreamOutput}, a {@link SegmentWriter}
+ * or a {@link FragmentedMp4Writer} in front of one, so files can be changed at keyframes without restarting the
+ * camera. While paused, keyframes can be kept as timelapse stills, see {@link #setTimelapse}.
+ */
+public class PreRollCamera implements VideoCapture {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(PreRollCamera.class);
+
+    /**
+     * Told where each recording starts in the output, on the camera reader thread.
+     */
+    public interface ClipListener {
+        void clipStarted(String file, long offset);
+    }
+
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_KEYFRAMES = 16;
+
+    private final Process process;
+    private final PreRollBuffer preRoll;
+    private final long preRollMillis;
+    private final NalScanner scanner = new NalScanner();
+    private final StreamOutput output;
+    private final Thread reader;
+
+    private volatile CameraProcess.Status status = CameraProcess.Status.Paused;
+    private volatile long triggeredAt;
+    private volatile int recordings;    // Counts recordings started, so a pause and resume between reads is seen.
+    private volatile ClipListener clipListener;
+
+    // Keyframes found in the chunk currently being handled, as absolute stream offsets.
+    private final long[] chunkKeyframes = new long[MAX_CHUNK_KEYFRAMES];
+    private int chunkKeyframeCount;
+    private long flushedTo;         // Absolute offset of the end of what has gone to the output.
+    private boolean writing;
+    private int writingRecording;   // Recording being written.
+
+    // Timelapse stills taken from keyframes while paused, none without an archive.
+    private volatile TimelapseSchedule timelapse;
+    private volatile TimelapseArchive archive;
+    private long stillFrom = -1;    // Keyframe being kept as a still, and its end once the next NAL unit starts.
+    private long stillTo = -1;
+    private long stillMillis;
+
+    public PreRollCamera(final Process process, StreamOutput output, int bufferSize, long preRollMillis) {
+        this.process = process;
+        this.preRoll = new PreRollBuffer(bufferSize);
+        this.preRollMillis = preRollMillis;
+        this.output = output;
+
+        reader = new Thread(this::readStream, "camera-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public CameraProcess.Status status() {
+        return status;
+    }
+
+    @Override
+    public void setActive(boolean changeState) {
+        if (changeState && (status == CameraProcess.Status.Paused)) {
+            log.info("Camera Recording");
+            triggeredAt = System.currentTimeMillis();
+            recordings++;           // Before the status, the reader reads them the other way round.
+            status = CameraProcess.Status.Recording;
+        } else if (!changeState && (status == CameraProcess.Status.Recording)) {
+            log.info("Camera Paused");
+            status = CameraProcess.Status.Paused;
+        }
+    }
+
+    @Override
+    public Process process() {
+        return process;
+    }
+
+    public void setClipListener(ClipListener clipListener) {
+        this.clipListener = clipListener;
+    }
+
+    /**
+     * While paused keep a keyframe in the archive whenever the schedule says a still is due. A keyframe is copied
+     * from the pre-roll buffer on the camera reader thread once it is whole and written by the archive's thread, a
+     * recording starting never waits for it.
+     */
+    public void setTimelapse(TimelapseSchedule timelapse, TimelapseArchive archive) {
+        this.timelapse = timelapse;
+        this.archive = archive;
+    }
+
+    @Override
+    public void shutdown() {
+        process.destroy();
+        log.info("Sent TERM kill");
+        try {
+            reader.join(2000);
+            output.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("IOException: ", e);
+        }
+    }
+
+    private void readStream() {
+        byte[] chunk = new byte[READ_SIZE];
+        NalScanner.Listener keyframes = (type, offset, keyframe) -> {
+            if (stillFrom >= 0 && stillTo < 0 && type != NalScanner.NAL_IDR) {
+                stillTo = offset;
+            }
+            if (keyframe >= 0) {
+                long now = System.currentTimeMillis();
+                preRoll.markKeyframe(keyframe, now);
+                if (chunkKeyframeCount < MAX_CHUNK_KEYFRAMES) {
+                    chunkKeyframes[chunkKeyframeCount++] = keyframe;
+                }
+                TimelapseSchedule schedule = timelapse;
+                if (stillFrom < 0 && schedule != null && status == CameraProcess.Status.Paused && schedule.due(now)) {
+                    stillFrom = keyframe;
+                    stillMillis = now;
+                }
+            }
+        };
+
+        try (InputStream in = process.getInputStream()) {
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                try {
+                    chunkKeyframeCount = 0;
+                    scanner.scan(chunk, 0, count, keyframes);
+                    preRoll.write(chunk, 0, count);
+                    handleChunk();
+                } catch (RuntimeException e) {
+                    // Lose what could not be written rather than the reader, and with it the camera.
+                    log.error("Handling camera stream, skipping to the latest", e);
+                    flushedTo = preRoll.written();
+                    stillFrom = -1;
+                    stillTo = -1;
+                }
+            }
+        } catch (IOException e) {
+            log.error("During reading camera stream", e);
+        }
+
+        log.info("Camera stream ended");
+    }
+
+    /**
+     * Write out the chunk just read if recording, starting with the pre-roll if the recording has just started.
+     */
+    private void handleChunk() throws IOException {
+        boolean recording = (status == CameraProcess.Status.Recording);
+        int started = recordings;
+        if (recording && (!writing || started != writingRecording)) {
+            if (writing) {
+                // Paused and resumed since the last read, end the one before as a pause would.
+                output.flush();
+                writing = false;
+            }
+            // Just triggered, catch up from the keyframe before the pre-roll window, which includes this chunk.
+            long from = preRoll.keyframeBefore(triggeredAt - preRollMillis);
+            if (from >= 0) {
+                output.resumed(preRoll.keyframeTime(from));
+                ClipListener listener = clipListener;
+                if (listener != null) {
+                    listener.clipStarted(output.currentName(), output.segmentBytes());
+                }
+                flushedTo = from;
+                writeLive();
+                log.debug("Pre-roll flushed {} bytes", box(flushedTo - from));
+                writing = true;
+                writingRecording = started;
+            }
+        } else if (recording) {
+            writeLive();
+        } else if (writing) {
+            // Paused, get what is held for the write behind onto the card.
+            output.flush();
+            writing = false;
+        }
+
+        if (stillTo >= 0) {
+            keepStill();
+        }
+    }
+
+    /**
+     * Copy the keyframe just read to the timelapse archive, unless recording has started since it began.
+     */
+    private void keepStill() {
+        long from = stillFrom;
+        long to = stillTo;
+        stillFrom = -1;
+        stillTo = -1;
+
+        TimelapseArchive target = archive;
+        if (target == null || status != CameraProcess.Status.Paused || from < preRoll.oldest()) {
+            return;
+        }
+        timelapse.taken(stillMillis);
+        TimelapseArchive.Still still = target.take();
+        if (still == null) {
+            return;
+        }
+        if (to - from > still.data().remaining()) {
+            target.release(still);
+            log.warn("Keyframe of {} bytes too large for a timelapse still, skipped", box(to - from));
+            return;
+        }
+        preRoll.copy(from, to, still.data());
+        target.submit(still, stillMillis);
+    }
+
+    /**
+     * Write the stream out from where the output got to, telling the segment writer where each keyframe starts so
+     * it can change file there. Bytes at the end that may be the start of a keyframe still being read, parameter
+     * sets whose IDR slice is in the next chunk, are held back in the pre-roll buffer until it is known.
+     */
+    private void writeLive() throws IOException {
+        for (int i = 0; i < chunkKeyframeCount; i++) {
+            long keyframe = chunkKeyframes[i];
+            if (keyframe >= flushedTo) {
+                preRoll.drain(flushedTo, keyframe, output);
+                output.keyframe();
+                flushedTo = keyframe;
+            }
+        }
+
+        long end = scanner.pendingKeyframe();
+        if (end < flushedTo) {
+            end = preRoll.written();
+        }
+        preRoll.drain(flushedTo, end, output);
+        flushedTo = end;
+    }
+}
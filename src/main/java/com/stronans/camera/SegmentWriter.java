@@ -0,0 +1,276 @@
+package com.stronans.camera;
+
+import com.stronans.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.function.Function;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Writes one continuous camera stream as a series of files, starting a new file at a keyframe once the current
+ * one has crossed midnight, grown past a size or run past a duration. The camera never has to be restarted to
+ * change file, a rollover is one file open. With a {@link WriteBehind} writes are gathered into its blocks, each
+ * ending on a block boundary in the file, and written by its thread. Every segment is a new file, a name already
+ * taken, as when two segments start in the same second, gets "-1", "-2" and so on in front of its extension.
+ */
+public class SegmentWriter implements StreamOutput {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(SegmentWriter.class);
+    private static final int MAX_SUFFIX = 1000;     // Names tried after the namer's before giving up.
+
+    private final Function<LocalDateTime, String> namer;
+    private final long maxBytes;
+    private final long maxMillis;
+    private final Clock clock;
+    private final WriteBehind writeBehind;
+
+    private FileChannel channel;
+    private WriteBehind.Block block;
+    private long position;          // Of the next byte in the file.
+    private volatile String name;
+    private LocalDateTime started;
+    private long startMillis;
+    private long bytes;
+    private int segments;
+    private boolean closed;
+
+    /**
+     * @param namer     Gives the file name for a segment started at the given time
+     * @param maxBytes  Roll once a segment is this large, 0 for no limit
+     * @param maxMillis Roll once a segment has run this long, 0 for no limit
+     */
+    public SegmentWriter(Function<LocalDateTime, String> namer, long maxBytes, long maxMillis) {
+        this(namer, maxBytes, maxMillis, Clock.systemDefaultZone(), null);
+    }
+
+    /**
+     * @param writeBehind Write through this rather than on the caller's thread, null to write directly
+     */
+    public SegmentWriter(Function<LocalDateTime, String> namer, long maxBytes, long maxMillis, WriteBehind writeBehind) {
+        this(namer, maxBytes, maxMillis, Clock.systemDefaultZone(), writeBehind);
+    }
+
+    public SegmentWriter(Function<LocalDateTime, String> namer, long maxBytes, long maxMillis, Clock clock) {
+        this(namer, maxBytes, maxMillis, clock, null);
+    }
+
+    public SegmentWriter(Function<LocalDateTime, String> namer, long maxBytes, long maxMillis, Clock clock,
+                         WriteBehind writeBehind) {
+        this.namer = namer;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.clock = clock;
+        this.writeBehind = writeBehind;
+    }
+
+    @Override
+    public void keyframe() throws IOException {
+        if (channel == null || rolloverDue()) {
+            roll();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (channel == null) {
+            roll();
+        }
+
+        int count = src.remaining();
+        if (writeBehind == null) {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            position += count;
+        } else {
+            gather(src);
+        }
+        bytes += count;
+
+        return count;
+    }
+
+    /**
+     * Hand anything held in RAM to the write behind, e.g. when recording pauses, so it is on the card soon.
+     */
+    @Override
+    public void flush() {
+        if (block != null && block.buffer.position() > 0) {
+            writeBehind.submit(block);
+            block = null;
+        }
+    }
+
+    /**
+     * Write part of an array, a convenience for callers holding the stream in a read buffer.
+     */
+    public void write(ByteBuffer wrapped, int offset, int length) throws IOException {
+        if (length > 0) {
+            wrapped.clear();
+            wrapped.position(offset);
+            wrapped.limit(offset + length);
+            write(wrapped);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (channel != null) {
+            closeChannel();
+            channel = null;
+        }
+        if (writeBehind != null) {
+            try {
+                writeBehind.sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String currentName() {
+        return name;
+    }
+
+    @Override
+    public long segmentBytes() {
+        return bytes;
+    }
+
+    public int segments() {
+        return segments;
+    }
+
+    /**
+     * @return true if {@link #keyframe()} would start a new file now, so whatever ends a file can be written first.
+     */
+    public boolean rollDue() {
+        return channel == null || rolloverDue();
+    }
+
+    private boolean rolloverDue() {
+        if (!clock.instant().atZone(clock.getZone()).toLocalDate().equals(started.toLocalDate())) {
+            return true;
+        }
+        if (maxBytes > 0 && bytes >= maxBytes) {
+            return true;
+        }
+        return maxMillis > 0 && clock.millis() - startMillis >= maxMillis;
+    }
+
+    private void roll() throws IOException {
+        if (closed) {
+            throw new IOException("Segment writer closed");
+        }
+
+        LocalDateTime now = LocalDateTime.now(clock);
+        String next = namer.apply(now);
+
+        File parent = new File(next).getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("One or more directories cannot be created [" + next + "]");
+        }
+
+        String base = next;
+        FileChannel opened = null;
+        for (int attempt = 1; opened == null; attempt++) {
+            Path path = Paths.get(next);
+            try {
+                opened = FileChannel.open(path, CREATE_NEW, WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (!Files.isRegularFile(path)) {
+                    opened = FileChannel.open(path, WRITE);     // A device, /dev/null say.
+                } else if (attempt > MAX_SUFFIX) {
+                    throw e;
+                } else {
+                    next = withSuffix(base, attempt);
+                }
+            }
+        }
+        if (channel != null) {
+            closeChannel();
+            log.info("Closed segment {} at {} bytes", name, box(bytes));
+        }
+
+        channel = opened;
+        name = next;
+        started = now;
+        startMillis = clock.millis();
+        bytes = 0;
+        position = 0;
+        segments++;
+        log.info("Started segment {}", name);
+    }
+
+    /**
+     * @return The name with "-n" put in front of its extension, so a segment started in the same second as another
+     * still gets a file of its own.
+     */
+    static String withSuffix(String name, int n) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf(File.separatorChar)) {
+            return name + "-" + n;
+        }
+        return name.substring(0, dot) + "-" + n + name.substring(dot);
+    }
+
+    /**
+     * Copy into blocks, each filled up to the next block boundary in the file and handed over once full.
+     */
+    private void gather(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (block == null) {
+                block = writeBehind.take();
+                block.channel = channel;
+                int size = writeBehind.blockSize();
+                block.buffer.limit(size - (int) (position % size));
+            }
+
+            ByteBuffer target = block.buffer;
+            int count = Math.min(src.remaining(), target.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            target.put(src);
+            src.limit(limit);
+            position += count;
+
+            if (!target.hasRemaining()) {
+                writeBehind.submit(block);
+                block = null;
+            }
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        Metrics.SEGMENT_BYTES.record(bytes);
+        if (writeBehind == null) {
+            channel.close();
+        } else {
+            flush();
+            writeBehind.close(channel);
+        }
+    }
+}
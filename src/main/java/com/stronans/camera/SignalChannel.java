@@ -0,0 +1,186 @@
+package com.stronans.camera;
+
+import com.stronans.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Sends *nix signals to the camera through one long lived shell. <code>kill</code> and <code>echo</code> are shell
+ * built ins, so a signal costs a write to the shell's stdin and a line back, with no fork/exec on the path between
+ * motion and recording. If the shell cannot be started or dies, signals go by running <code>kill</code> as before.
+ * The command and the reply are built and read in buffers kept for the purpose, so sending a signal allocates
+ * nothing.
+ */
+public class SignalChannel {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(SignalChannel.class);
+
+    private static final String SHELL = "/bin/sh";
+    private static final byte[] KILL = "kill -".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REPLY = " 2>/dev/null && echo ok || echo failed\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static SignalChannel _instance = null;
+
+    private Process shell;
+    private OutputStream commands;
+    private InputStream replies;
+    private final byte[] command = new byte[128];
+    private final byte[] reply = new byte[16];
+
+    private long signals;
+    private long lastNanos;
+    private long maxNanos;
+    private long totalNanos;
+
+    private SignalChannel() {
+        try {
+            shell = new ProcessBuilder(SHELL).redirectErrorStream(true).start();
+            commands = shell.getOutputStream();
+            replies = shell.getInputStream();
+            log.info("Signal shell started");
+        } catch (IOException e) {
+            log.warn("Signal shell unavailable, falling back to kill per signal: " + e.getMessage());
+            shell = null;
+        }
+    }
+
+    /**
+     * @return The shared channel, starting its shell on first use.
+     */
+    public synchronized static SignalChannel getInstance() {
+        if (_instance == null) {
+            _instance = new SignalChannel();
+        }
+
+        return (_instance);
+    }
+
+    /**
+     * Send a signal to a process.
+     *
+     * @param pid    Process to signal
+     * @param signal Signal name without the SIG prefix, e.g. USR1 or TERM
+     * @return true if the signal was delivered.
+     */
+    public synchronized boolean signal(long pid, String signal) {
+        long start = System.nanoTime();
+        boolean result;
+
+        if (shell != null && shell.isAlive()) {
+            result = signalThroughShell(pid, signal);
+        } else {
+            result = signalByExec(pid, signal);
+        }
+
+        lastNanos = System.nanoTime() - start;
+        maxNanos = Math.max(maxNanos, lastNanos);
+        totalNanos += lastNanos;
+        signals++;
+        Metrics.SIGNAL.record(lastNanos);
+        log.debug("Signal {} to {} took {} us", signal, box(pid), box(lastNanos / 1000));
+
+        return result;
+    }
+
+    public synchronized boolean isFastPath() {
+        return shell != null && shell.isAlive();
+    }
+
+    public synchronized long signals() {
+        return signals;
+    }
+
+    public synchronized long lastLatencyNanos() {
+        return lastNanos;
+    }
+
+    public synchronized long maxLatencyNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long meanLatencyNanos() {
+        return signals == 0 ? 0 : totalNanos / signals;
+    }
+
+    /**
+     * Stop the shell, later signals fall back to running kill.
+     */
+    public synchronized void close() {
+        if (shell != null) {
+            shell.destroy();
+            shell = null;
+        }
+    }
+
+    private boolean signalThroughShell(long pid, String signal) {
+        try {
+            commands.write(command, 0, command(pid, signal));
+            commands.flush();
+
+            // One line back, "ok" or "failed".
+            int length = 0;
+            int next;
+            while ((next = replies.read()) != '\n') {
+                if (next < 0) {
+                    throw new IOException("Signal shell closed");
+                }
+                if (length < reply.length) {
+                    reply[length++] = (byte) next;
+                }
+            }
+
+            return length == 2 && reply[0] == 'o' && reply[1] == 'k';
+        } catch (IOException e) {
+            log.error("Signal shell failed, falling back to kill per signal", e);
+            close();
+            return signalByExec(pid, signal);
+        }
+    }
+
+    /**
+     * Write "kill -SIGNAL PID ..." into the command buffer.
+     *
+     * @return Its length.
+     */
+    private int command(long pid, String signal) {
+        int at = 0;
+        System.arraycopy(KILL, 0, command, at, KILL.length);
+        at += KILL.length;
+        for (int i = 0; i < signal.length(); i++) {
+            command[at++] = (byte) signal.charAt(i);
+        }
+        command[at++] = ' ';
+
+        int digits = 1;
+        for (long rest = pid / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--, pid /= 10) {
+            command[at + i] = (byte) ('0' + pid % 10);
+        }
+        at += digits;
+
+        System.arraycopy(REPLY, 0, command, at, REPLY.length);
+        return at + REPLY.length;
+    }
+
+    private boolean signalByExec(long pid, String signal) {
+        try {
+            return Runtime.getRuntime().exec("kill -" + signal + " " + pid).waitFor() == 0;
+        } catch (IOException e) {
+            log.error("IOException: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
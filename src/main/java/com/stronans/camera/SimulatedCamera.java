@@ -0,0 +1,54 @@
+package com.stronans.camera;
+
+/**
+ * A camera with no camera program behind it, for replaying motion. It keeps the state a {@link CameraProcess}
+ * would and counts the signals one would have been sent, a toggle each time the state changes.
+ */
+public class SimulatedCamera implements VideoCapture {
+    private volatile CameraProcess.Status status = CameraProcess.Status.Paused;
+    private volatile long toggles;
+    private volatile long unchanged;
+
+    @Override
+    public CameraProcess.Status status() {
+        return status;
+    }
+
+    @Override
+    public synchronized void setActive(boolean changeState) {
+        CameraProcess.Status next = changeState ? CameraProcess.Status.Recording : CameraProcess.Status.Paused;
+        if (next == status) {
+            unchanged++;
+        } else {
+            status = next;
+            toggles++;
+        }
+    }
+
+    /**
+     * @return Times the camera was switched between recording and paused.
+     */
+    public long toggles() {
+        return toggles;
+    }
+
+    /**
+     * @return Times the camera was told to be what it already was, a real camera would have been toggled wrongly.
+     */
+    public long unchanged() {
+        return unchanged;
+    }
+
+    @Override
+    public void shutdown() {
+        status = CameraProcess.Status.Paused;
+    }
+
+    /**
+     * @return null, there is no camera program.
+     */
+    @Override
+    public Process process() {
+        return null;
+    }
+}
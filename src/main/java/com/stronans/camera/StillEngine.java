@@ -0,0 +1,175 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps one raspistill running in keypress mode so a still costs a newline on its stdin and the time to read one
+ * frame, instead of starting the camera for every shot. Images are cut from stdout by {@link JpegFramer} into a
+ * fixed pool of buffers and handed out as {@link StillFrame}s without copying.
+ */
+public class StillEngine {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(StillEngine.class);
+
+    private static final int READ_SIZE = 64 * 1024;
+    private static final byte[] SHOOT = {'\n'};
+    private static final byte[] EXIT = {'x', '\n'};
+
+    private final Process process;
+    private final OutputStream keys;
+    private final BlockingQueue<byte[]> pool;
+    private final BlockingQueue<StillFrame> completed;
+    private final Thread reader;
+
+    private volatile long lastShotMillis;
+
+    /**
+     * @param process    raspistill started with -k and writing to stdout
+     * @param buffers    Number of images that can be held at once
+     * @param bufferSize Largest image expected, in bytes
+     */
+    public StillEngine(final Process process, int buffers, int bufferSize) {
+        this.process = process;
+        this.keys = process.getOutputStream();
+        this.pool = new ArrayBlockingQueue<>(buffers);
+        this.completed = new ArrayBlockingQueue<>(buffers);
+
+        for (int i = 0; i < buffers; i++) {
+            pool.offer(new byte[bufferSize]);
+        }
+
+        reader = new Thread(this::readStream, "still-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * @return Milliseconds from asking for the last still to it being complete.
+     */
+    public long lastShotMillis() {
+        return lastShotMillis;
+    }
+
+    /**
+     * Take one still.
+     *
+     * @return The image, or null if none arrived in time. The caller must release it.
+     */
+    public synchronized StillFrame capture(long timeoutMillis) throws IOException, InterruptedException {
+        discardStale();
+
+        long start = System.currentTimeMillis();
+        shoot();
+        StillFrame frame = completed.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        lastShotMillis = System.currentTimeMillis() - start;
+
+        if (frame == null) {
+            log.warn("No still within " + timeoutMillis + " ms");
+        }
+
+        return frame;
+    }
+
+    /**
+     * Take a series of stills at a fixed interval. Each frame is given to the consumer as it arrives, the consumer
+     * must release it.
+     *
+     * @return Number of frames delivered.
+     */
+    public synchronized int burst(int count, long intervalMillis, long timeoutMillis, Consumer<StillFrame> consumer)
+            throws IOException, InterruptedException {
+        discardStale();
+
+        int delivered = 0;
+        long next = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long wait = next - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            next += intervalMillis;
+
+            shoot();
+            StillFrame frame = completed.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                consumer.accept(frame);
+                delivered++;
+            }
+        }
+
+        return delivered;
+    }
+
+    public void shutdown() {
+        try {
+            keys.write(EXIT);
+            keys.flush();
+        } catch (IOException e) {
+            log.debug("Still camera already gone: " + e.getMessage());
+        }
+        process.destroy();
+        log.info("shutdown still camera.");
+    }
+
+    private void shoot() throws IOException {
+        keys.write(SHOOT);
+        keys.flush();
+    }
+
+    private void discardStale() {
+        StillFrame stale;
+        while ((stale = completed.poll()) != null) {
+            stale.release();
+        }
+    }
+
+    private void readStream() {
+        byte[] chunk = new byte[READ_SIZE];
+        JpegFramer framer = new JpegFramer(new JpegFramer.Listener() {
+            @Override
+            public byte[] startImage() {
+                byte[] buffer = pool.poll();
+                if (buffer == null) {
+                    log.warn("No free still buffer, image skipped");
+                }
+                return buffer;
+            }
+
+            @Override
+            public void endImage(byte[] image, int length) {
+                if (length < 0) {
+                    log.warn("Still image too large or cut short, dropped");
+                    pool.offer(image);
+                } else if (!completed.offer(new StillFrame(image, length, System.currentTimeMillis(), pool))) {
+                    pool.offer(image);
+                }
+            }
+        });
+
+        try (InputStream in = process.getInputStream()) {
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                framer.feed(chunk, 0, count);
+            }
+        } catch (IOException e) {
+            log.error("During reading still stream", e);
+        }
+
+        log.info("Still stream ended");
+    }
+}
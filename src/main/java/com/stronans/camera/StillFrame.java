@@ -0,0 +1,58 @@
+package com.stronans.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One JPEG from the still engine, held in a pooled buffer. The bytes are not copied on the way to the caller,
+ * so the caller must {@link #release()} the frame once done with it or the engine runs out of buffers.
+ */
+public class StillFrame {
+    private final byte[] data;
+    private final int length;
+    private final long capturedMillis;
+    private final BlockingQueue<byte[]> pool;
+
+    StillFrame(byte[] data, int length, long capturedMillis, BlockingQueue<byte[]> pool) {
+        this.data = data;
+        this.length = length;
+        this.capturedMillis = capturedMillis;
+        this.pool = pool;
+    }
+
+    /**
+     * @return The buffer holding the image, only the first {@link #length()} bytes are the image.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public long capturedMillis() {
+        return capturedMillis;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    /**
+     * @return A copy of the image, for callers that need to keep it.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Hand the buffer back to the engine.
+     */
+    public void release() {
+        pool.offer(data);
+    }
+}
@@ -0,0 +1,196 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a store folder within a quota, and a minimum of free space on its disk, by deleting the oldest
+ * recordings. Only files with the recording extensions are looked at and the files cameras are writing are never
+ * touched. Files whose names match the keep pattern, e.g. clips cut out around events, count as younger than they
+ * are by the keep time, so they outlive plain recordings of the same age.
+ */
+public class StorageManager {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(StorageManager.class);
+
+    private final Path root;
+    private final Set<String> extensions;
+    private final long quotaBytes;
+    private final long minFreeBytes;
+    private final PathMatcher keep;
+    private final long keepMillis;
+    private final List<Supplier<String>> active = new CopyOnWriteArrayList<>();
+
+    private volatile long usedBytes;
+    private volatile long evicted;
+    private volatile long evictedBytes;
+
+    /**
+     * @param root         Folder holding the recordings
+     * @param extensions   Extensions of the files that may be deleted, e.g. ".h264"
+     * @param quotaBytes   Most the recordings may take up, 0 for no limit
+     * @param minFreeBytes Least free space to leave on the disk, 0 for no limit
+     * @param keepPattern  Glob for file names to keep longer, null for none
+     * @param keepMillis   How much longer
+     */
+    public StorageManager(Path root, Collection<String> extensions, long quotaBytes, long minFreeBytes,
+                          String keepPattern, long keepMillis) {
+        this.root = root;
+        this.extensions = new HashSet<>(extensions);
+        this.quotaBytes = quotaBytes;
+        this.minFreeBytes = minFreeBytes;
+        this.keep = keepPattern != null ? FileSystems.getDefault().getPathMatcher("glob:" + keepPattern) : null;
+        this.keepMillis = keepMillis;
+    }
+
+    /**
+     * Never delete the file this names, e.g. the one a camera is writing. Null means no file.
+     */
+    public void addActive(Supplier<String> file) {
+        active.add(file);
+    }
+
+    /**
+     * Sweep now and then every period on the given scheduler.
+     */
+    public void start(ScheduledExecutorService scheduler, long periodMillis) {
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delete the oldest recordings until within quota and free space.
+     *
+     * @return Bytes freed.
+     */
+    public synchronized long sweep() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+
+        Set<Path> inUse = new HashSet<>();
+        for (Supplier<String> file : active) {
+            String name = file.get();
+            if (name != null) {
+                inUse.add(root.getFileSystem().getPath(name).toAbsolutePath().normalize());
+            }
+        }
+
+        List<Recording> recordings = new ArrayList<>();
+        long used = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path file : files) {
+                if (!isRecording(file)) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                used += attributes.size();
+                if (!inUse.contains(file.toAbsolutePath().normalize())) {
+                    long rank = attributes.lastModifiedTime().toMillis();
+                    if (keep != null && keep.matches(file.getFileName())) {
+                        rank += keepMillis;
+                    }
+                    recordings.add(new Recording(file, attributes.size(), rank));
+                }
+            }
+        }
+        usedBytes = used;
+
+        long excess = 0;
+        if (quotaBytes > 0) {
+            excess = used - quotaBytes;
+        }
+        if (minFreeBytes > 0) {
+            excess = Math.max(excess, minFreeBytes - Files.getFileStore(root).getUsableSpace());
+        }
+        if (excess <= 0) {
+            return 0;
+        }
+
+        recordings.sort((a, b) -> Long.compare(a.rank, b.rank));
+        long freed = 0;
+        for (Recording recording : recordings) {
+            if (freed >= excess) {
+                break;
+            }
+            try {
+                Files.delete(recording.file);
+                freed += recording.size;
+                evicted++;
+                log.info("Deleted " + recording.file + " (" + recording.size + " bytes) for space");
+            } catch (IOException e) {
+                log.error("Deleting " + recording.file, e);
+            }
+        }
+        evictedBytes += freed;
+        usedBytes = used - freed;
+
+        if (freed < excess) {
+            log.warn("Store " + root + " still " + (excess - freed) + " bytes over, nothing more can be deleted");
+        }
+
+        return freed;
+    }
+
+    /**
+     * @return Bytes taken by recordings at the last sweep.
+     */
+    public long usedBytes() {
+        return usedBytes;
+    }
+
+    public long evicted() {
+        return evicted;
+    }
+
+    public long evictedBytes() {
+        return evictedBytes;
+    }
+
+    private boolean isRecording(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && extensions.contains(name.substring(dot));
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (IOException | RuntimeException e) {
+            log.error("During storage sweep of " + root, e);
+        }
+    }
+
+    private static class Recording {
+        private final Path file;
+        private final long size;
+        private final long rank;       // Modified time, pushed later for files kept longer.
+
+        Recording(Path file, long size, long rank) {
+            this.file = file;
+            this.size = size;
+            this.rank = rank;
+        }
+    }
+}
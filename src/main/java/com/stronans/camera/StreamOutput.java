@@ -0,0 +1,40 @@
+package com.stronans.camera;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where a streaming camera's recordings are written, the Annex-B H.264 stream from a keyframe on, told where
+ * keyframes and pauses fall so files can be changed and timed at them.
+ */
+public interface StreamOutput extends WritableByteChannel {
+    /**
+     * The next byte written starts a keyframe, so this is a point where a new file can be started.
+     */
+    void keyframe() throws IOException;
+
+    /**
+     * Recording starts, or starts again after a pause. The next byte written starts a keyframe the camera captured
+     * at the given time.
+     *
+     * @param capturedMillis Epoch millis the keyframe was read from the camera, -1 if not known
+     */
+    default void resumed(long capturedMillis) throws IOException {
+        keyframe();
+    }
+
+    /**
+     * Recording paused, get anything held in RAM on its way to the card.
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return Name of the file currently being written, null before anything has been written.
+     */
+    String currentName();
+
+    /**
+     * @return Bytes in the current file, where the next keyframe written will start.
+     */
+    long segmentBytes();
+}
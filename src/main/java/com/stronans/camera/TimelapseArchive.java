@@ -0,0 +1,339 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Timelapse stills, one file a day of keyframes taken from the camera stream and an index of where each starts.
+ * Each still is a whole H.264 keyframe, parameter sets and IDR slices, so it decodes on its own and the file played
+ * as it is is the timelapse. The index beside it is 24 byte records of taken millis, byte offset, length and a
+ * check value, so a still can be found by time without reading the stills.
+ * <p>
+ * The camera thread takes a buffer from a small pool, copies a keyframe into it and hands it over, a thread of the
+ * archive's own writes it, so the camera never waits on the card. With no buffer free the still is skipped. A still
+ * is written before its record, on opening a day's files again anything after the last whole still recorded is
+ * cut off, as is a torn record.
+ */
+public class TimelapseArchive implements Closeable {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(TimelapseArchive.class);
+
+    public static final String EXTENSION = ".h264";
+    public static final String INDEX_EXTENSION = ".tlx";
+
+    private static final int RECORD = 24;
+    private static final int TAKEN = 0;
+    private static final int OFFSET = 8;
+    private static final int LENGTH = 16;
+    private static final int CHECK = 20;
+
+    private static final long POLL_MS = 500;
+
+    /**
+     * A buffer to copy a still into, from the archive's pool.
+     */
+    public static class Still {
+        private final ByteBuffer data;
+        private long takenMillis;
+
+        Still(int size) {
+            data = ByteBuffer.allocateDirect(size);
+        }
+
+        /**
+         * @return Buffer to put the still in, cleared.
+         */
+        public ByteBuffer data() {
+            return data;
+        }
+    }
+
+    /**
+     * Where a still is in its day's file.
+     */
+    public static class Frame {
+        private final long takenMillis;
+        private final long offset;
+        private final int length;
+
+        Frame(long takenMillis, long offset, int length) {
+            this.takenMillis = takenMillis;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long takenMillis() {
+            return takenMillis;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public int length() {
+            return length;
+        }
+    }
+
+    private final String stem;
+    private final ZoneId zone;
+    private final BlockingQueue<Still> pool;
+    private final BlockingQueue<Still> pending;
+    private final Thread writer;
+
+    // Used by the writer thread only.
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD).order(ByteOrder.BIG_ENDIAN);
+    private LocalDate day;
+    private FileChannel video;
+    private FileChannel index;
+    private long position;
+
+    private volatile boolean running = true;
+    private volatile String currentName;
+    private volatile long stills;
+    private volatile long bytes;
+    private volatile long skipped;
+
+    /**
+     * @param stem       Path and start of the file names, the date and extension are added
+     * @param zone       Time zone the days are in
+     * @param buffers    Stills that can be waiting to be written at once
+     * @param bufferSize Largest still, in bytes
+     */
+    public TimelapseArchive(String stem, ZoneId zone, int buffers, int bufferSize) {
+        this.stem = stem;
+        this.zone = zone;
+        this.pool = new ArrayBlockingQueue<>(buffers);
+        this.pending = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            pool.offer(new Still(bufferSize));
+        }
+
+        writer = new Thread(this::writeStills, "timelapse-writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * @return A cleared buffer for the next still, null if all are waiting to be written, in which case the still
+     * is skipped. It must be given back with {@link #submit} or {@link #release}.
+     */
+    public Still take() {
+        Still still = pool.poll();
+        if (still == null) {
+            skipped++;
+            return null;
+        }
+        still.data.clear();
+        return still;
+    }
+
+    /**
+     * Write the still put in the buffer, from its start to its position.
+     */
+    public void submit(Still still, long takenMillis) {
+        still.takenMillis = takenMillis;
+        still.data.flip();
+        if (!pending.offer(still)) {
+            pool.offer(still);
+        }
+    }
+
+    /**
+     * Give back a buffer without writing it.
+     */
+    public void release(Still still) {
+        pool.offer(still);
+    }
+
+    /**
+     * @return Name of the file being written, null before the first still.
+     */
+    public String currentName() {
+        return currentName;
+    }
+
+    public long stills() {
+        return stills;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Stills not taken because every buffer was waiting to be written.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    /**
+     * Write what is waiting and close the files.
+     */
+    @Override
+    public void close() throws IOException {
+        // Not interrupted, that would close a file part way through a write.
+        running = false;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Still still;
+        while ((still = pending.poll()) != null) {
+            write(still);
+        }
+        closeDay();
+        log.info("Timelapse " + stills + " stills, " + bytes + " bytes, " + skipped + " skipped");
+    }
+
+    /**
+     * Read a day's index.
+     *
+     * @return Its stills in the order taken, up to any torn record.
+     */
+    public static List<Frame> frames(Path index) throws IOException {
+        List<Frame> result = new ArrayList<>();
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(index));
+        while (records.remaining() >= RECORD) {
+            int at = records.position();
+            if (records.getInt(at + CHECK) != check(records, at)) {
+                break;
+            }
+            result.add(new Frame(records.getLong(at + TAKEN), records.getLong(at + OFFSET), records.getInt(at + LENGTH)));
+            records.position(at + RECORD);
+        }
+        return result;
+    }
+
+    /**
+     * @return The index belonging to a day's stills file.
+     */
+    public static Path indexFor(Path video) {
+        String name = video.toString();
+        if (name.endsWith(EXTENSION)) {
+            name = name.substring(0, name.length() - EXTENSION.length());
+        }
+        return Paths.get(name + INDEX_EXTENSION);
+    }
+
+    private void writeStills() {
+        try {
+            while (running) {
+                Still still = pending.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (still != null) {
+                    write(still);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shut down, what is left is written by close.
+        }
+    }
+
+    private void write(Still still) {
+        try {
+            LocalDate taken = Instant.ofEpochMilli(still.takenMillis).atZone(zone).toLocalDate();
+            if (!taken.equals(day)) {
+                openDay(taken);
+            }
+
+            int length = still.data.remaining();
+            long offset = position;
+            while (still.data.hasRemaining()) {
+                position += video.write(still.data, position);
+            }
+
+            record.clear();
+            record.putLong(TAKEN, still.takenMillis);
+            record.putLong(OFFSET, offset);
+            record.putInt(LENGTH, length);
+            record.putInt(CHECK, check(record, 0));
+            long end = index.size();
+            while (record.hasRemaining()) {
+                end += index.write(record, end);
+            }
+
+            stills++;
+            bytes += length;
+        } catch (IOException e) {
+            log.error("Writing timelapse still", e);
+        } finally {
+            pool.offer(still);
+        }
+    }
+
+    /**
+     * Open a day's files, carrying on after the last whole still if they are there already.
+     */
+    private void openDay(LocalDate date) throws IOException {
+        closeDay();
+
+        Path videoPath = Paths.get(stem + date + EXTENSION);
+        Path indexPath = indexFor(videoPath);
+        Path parent = videoPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        List<Frame> frames = Files.exists(indexPath) ? frames(indexPath) : new ArrayList<>();
+        video = FileChannel.open(videoPath, CREATE, READ, WRITE);
+        index = FileChannel.open(indexPath, CREATE, READ, WRITE);
+        int whole = frames.size();
+        while (whole > 0 && frames.get(whole - 1).offset + frames.get(whole - 1).length > video.size()) {
+            whole--;
+        }
+        position = whole > 0 ? frames.get(whole - 1).offset + frames.get(whole - 1).length : 0;
+        if (video.size() > position || index.size() > (long) whole * RECORD) {
+            log.warn("Timelapse " + videoPath + " cut back to " + whole + " whole stills");
+            video.truncate(position);
+            index.truncate((long) whole * RECORD);
+        }
+
+        day = date;
+        currentName = videoPath.toString();
+        log.info("Timelapse writing " + videoPath + ", " + whole + " stills so far");
+    }
+
+    private void closeDay() throws IOException {
+        if (video != null) {
+            video.close();
+            index.force(false);
+            index.close();
+            video = null;
+            index = null;
+        }
+    }
+
+    private static int check(ByteBuffer records, int at) {
+        long hash = RECORD;
+        hash = hash * 31 + records.getLong(at + TAKEN);
+        hash = hash * 31 + records.getLong(at + OFFSET);
+        hash = hash * 31 + records.getInt(at + LENGTH);
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,79 @@
+package com.stronans.camera;
+
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * When the next timelapse still is due. Stills are taken every interval, more often for a while after motion and
+ * less often at night. Asking whether one is due is a few comparisons, the time of day is only worked out once a
+ * still has been taken. Motion may be noted from any thread, the rest is for the one thread taking stills.
+ */
+public class TimelapseSchedule {
+    private final long intervalMillis;
+    private final long motionIntervalMillis;
+    private final long motionWindowMillis;
+    private final long nightIntervalMillis;
+    private final int nightFrom;
+    private final int nightTo;
+    private final ZoneId zone;
+
+    private volatile long motionMillis = Long.MIN_VALUE / 2;
+    private long takenMillis = Long.MIN_VALUE / 2;
+    private long nextMillis = Long.MIN_VALUE;
+
+    /**
+     * @param intervalMillis       Between stills normally
+     * @param motionIntervalMillis Between stills for the motion window after motion
+     * @param motionWindowMillis   How long after motion stills are taken more often
+     * @param nightIntervalMillis  Between stills at night
+     * @param nightFrom            Hour of the day night starts, 0-23
+     * @param nightTo              Hour of the day night ends, the same as nightFrom for no night
+     * @param zone                 Time zone the hours are in
+     */
+    public TimelapseSchedule(long intervalMillis, long motionIntervalMillis, long motionWindowMillis,
+                             long nightIntervalMillis, int nightFrom, int nightTo, ZoneId zone) {
+        this.intervalMillis = intervalMillis;
+        this.motionIntervalMillis = motionIntervalMillis;
+        this.motionWindowMillis = motionWindowMillis;
+        this.nightIntervalMillis = nightIntervalMillis;
+        this.nightFrom = nightFrom;
+        this.nightTo = nightTo;
+        this.zone = zone;
+    }
+
+    /**
+     * Motion at the given epoch millis, e.g. a recording starting or stopping.
+     */
+    public void motion(long millis) {
+        motionMillis = millis;
+    }
+
+    /**
+     * @return true if a still should be taken at the given epoch millis.
+     */
+    public boolean due(long nowMillis) {
+        if (nowMillis >= nextMillis) {
+            return true;
+        }
+        return nowMillis - motionMillis <= motionWindowMillis && nowMillis - takenMillis >= motionIntervalMillis;
+    }
+
+    /**
+     * A still was taken at the given epoch millis.
+     */
+    public void taken(long nowMillis) {
+        takenMillis = nowMillis;
+        nextMillis = nowMillis + (isNight(nowMillis) ? nightIntervalMillis : intervalMillis);
+    }
+
+    /**
+     * @return true if the given epoch millis falls in the night hours.
+     */
+    public boolean isNight(long millis) {
+        if (nightFrom == nightTo) {
+            return false;
+        }
+        int hour = Instant.ofEpochMilli(millis).atZone(zone).getHour();
+        return nightFrom < nightTo ? hour >= nightFrom && hour < nightTo : hour >= nightFrom || hour < nightTo;
+    }
+}
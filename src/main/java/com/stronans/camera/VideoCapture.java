@@ -0,0 +1,18 @@
+package com.stronans.camera;
+
+/**
+ * A running video camera that can be switched between recording and paused.
+ */
+public interface VideoCapture {
+
+    CameraProcess.Status status();
+
+    void setActive(boolean changeState);
+
+    void shutdown();
+
+    /**
+     * @return The camera program, to watch for it ending.
+     */
+    Process process();
+}
@@ -0,0 +1,189 @@
+package com.stronans.camera;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes file writes off the camera reader thread. Writers fill fixed size blocks held in RAM and hand them over
+ * whole, one thread writes them out in order, so the card sees large sequential writes and a slow write only
+ * holds up the camera once every block is full. Blocks and the queues between the threads are made up front,
+ * nothing is allocated per write. Any number of files can share one write behind, their blocks stay in order.
+ */
+public class WriteBehind {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(WriteBehind.class);
+
+    /**
+     * Data for one file, or when closing is set, the request to close it once everything before has been written.
+     */
+    static class Block {
+        final ByteBuffer buffer;
+        FileChannel channel;
+        boolean closing;
+
+        Block(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private final int blockSize;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> full;
+    private final Thread writer;
+
+    private volatile boolean running = true;
+    private volatile long bytes;
+    private volatile long writes;
+    private final AtomicLong stalls = new AtomicLong();
+    private volatile long maxWriteNanos;
+    private int pending;            // Blocks handed over and not yet written, guarded by this.
+
+    /**
+     * @param blocks    Number of blocks, at least 2
+     * @param blockSize Bytes per block, a multiple of 4096 keeps writes aligned with the card's pages
+     */
+    public WriteBehind(int blocks, int blockSize) {
+        if (blocks < 2) {
+            throw new IllegalArgumentException("Write behind needs at least two blocks [" + blocks + "]");
+        }
+        this.blockSize = blockSize;
+        free = new ArrayBlockingQueue<>(blocks);
+        full = new ArrayBlockingQueue<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            free.add(new Block(blockSize));
+        }
+
+        writer = new Thread(this::writeBlocks, "write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * An empty block, waiting for one to be written out if they are all full.
+     */
+    Block take() throws IOException {
+        Block block = free.poll();
+        if (block == null) {
+            stalls.incrementAndGet();
+            try {
+                block = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for write behind", e);
+            }
+        }
+        block.buffer.clear();
+        block.closing = false;
+        return block;
+    }
+
+    /**
+     * Write out a block, up to its position, to its channel.
+     */
+    void submit(Block block) {
+        synchronized (this) {
+            pending++;
+        }
+        full.add(block);        // Never full, there are only as many blocks as it holds.
+    }
+
+    /**
+     * Close a channel after everything already handed over for it has been written.
+     */
+    void close(FileChannel channel) throws IOException {
+        Block block = take();
+        block.channel = channel;
+        block.closing = true;
+        submit(block);
+    }
+
+    /**
+     * Wait for every block handed over so far to be written.
+     */
+    public synchronized void sync() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        writer.interrupt();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    /**
+     * @return Times a writer had to wait for a free block.
+     */
+    public long stalls() {
+        return stalls.get();
+    }
+
+    public long maxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    private void writeBlocks() {
+        while (running) {
+            Block block;
+            try {
+                block = full.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            try {
+                if (block.closing) {
+                    block.channel.close();
+                } else {
+                    long start = System.nanoTime();
+                    block.buffer.flip();
+                    int count = 0;
+                    while (block.buffer.hasRemaining()) {
+                        count += block.channel.write(block.buffer);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    bytes += count;
+                    writes++;
+                    if (elapsed > maxWriteNanos) {
+                        maxWriteNanos = elapsed;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("During write behind", e);
+            }
+
+            block.channel = null;
+            free.add(block);
+            synchronized (this) {
+                pending--;
+                notifyAll();
+            }
+        }
+    }
+}
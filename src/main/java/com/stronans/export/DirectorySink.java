@@ -0,0 +1,84 @@
+package com.stronans.export;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Exports to a folder, e.g. a mounted network share, and is the far side of an {@link HttpSink} too. A bundle is
+ * written under its own name as it arrives, so its length is what has been received, and unpacked into the folder
+ * when complete. A bundle completed again, because the answer was lost on the way back, is simply sent and
+ * unpacked again.
+ */
+public class DirectorySink implements ExportSink {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(DirectorySink.class);
+
+    private final Path folder;
+
+    public DirectorySink(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+    }
+
+    public Path folder() {
+        return folder;
+    }
+
+    @Override
+    public synchronized long received(String bundle) throws IOException {
+        Path file = bundleFile(bundle);
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    @Override
+    public synchronized void append(String bundle, long offset, long total, ByteBuffer data) throws IOException {
+        if (offset + data.remaining() > total) {
+            throw new IOException("Bundle " + bundle + " sent past its end " + total);
+        }
+        try (FileChannel out = FileChannel.open(bundleFile(bundle), CREATE, WRITE)) {
+            if (offset > out.size()) {
+                throw new IOException("Bundle " + bundle + " sent from " + offset + ", only " + out.size() + " received");
+            }
+            out.truncate(offset);
+            while (data.hasRemaining()) {
+                offset += out.write(data, offset);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void complete(String bundle, long total) throws IOException {
+        Path file = bundleFile(bundle);
+        long size = Files.exists(file) ? Files.size(file) : 0;
+        if (size != total) {
+            throw new IOException("Bundle " + bundle + " completed with " + size + " of " + total + " bytes");
+        }
+
+        try (FileChannel out = FileChannel.open(file, WRITE)) {
+            out.force(false);
+        }
+        List<Path> recordings = ExportBundle.unpack(file, folder);
+        Files.delete(file);
+        log.info("Received " + recordings.size() + " recordings in " + bundle);
+    }
+
+    private Path bundleFile(String bundle) throws IOException {
+        if (!bundle.endsWith(ExportBundle.EXTENSION) || bundle.contains("/") || bundle.contains("\\")
+                || bundle.startsWith(".")) {
+            throw new IOException("Not a bundle name [" + bundle + "]");
+        }
+        return folder.resolve(bundle);
+    }
+}
@@ -0,0 +1,284 @@
+package com.stronans.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * One or more recordings sent as one piece. A bundle is a magic number, the length of a gzipped manifest, the
+ * manifest, a line of name, size and modified time for each recording, then the recordings one after the other.
+ * Small recordings share a bundle so the link sees fewer, larger uploads. Its bytes are read straight from the
+ * recordings, never copied, and are the same each time they are made, so an upload can be carried on after a
+ * reboot. The name comes from the first recording and the manifest.
+ */
+public class ExportBundle implements Closeable {
+    public static final String EXTENSION = ".ccx";
+
+    private static final int MAGIC = 0x43435831;    // CCX1
+
+    /**
+     * A recording in a bundle.
+     */
+    public static class Member {
+        private final Path file;
+        private final long size;
+        private final long modified;
+
+        public Member(Path file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long modified() {
+            return modified;
+        }
+    }
+
+    private final String name;
+    private final List<Member> members;
+    private final byte[] header;
+    private final long[] starts;            // Offset in the bundle of each member.
+    private final FileChannel[] channels;   // Opened as they are first read.
+    private final long length;
+
+    public ExportBundle(List<Member> members) throws IOException {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A bundle needs at least one recording");
+        }
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+
+        StringBuilder manifest = new StringBuilder();
+        for (Member member : members) {
+            manifest.append(member.file.getFileName()).append('\t').append(member.size).append('\t')
+                    .append(member.modified).append('\n');
+        }
+        byte[] text = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(text);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream zip = new GZIPOutputStream(bytes)) {
+            zip.write(text);
+        }
+        byte[] packed = bytes.toByteArray();
+        header = ByteBuffer.allocate(8 + packed.length).putInt(MAGIC).putInt(packed.length).put(packed).array();
+
+        starts = new long[members.size()];
+        channels = new FileChannel[members.size()];
+        long at = header.length;
+        for (int i = 0; i < members.size(); i++) {
+            starts[i] = at;
+            at += members.get(i).size;
+        }
+        length = at;
+
+        String first = members.get(0).file.getFileName().toString();
+        int dot = first.lastIndexOf('.');
+        name = (dot > 0 ? first.substring(0, dot) : first) + "-" + Long.toHexString(crc.getValue()) + EXTENSION;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public List<Member> members() {
+        return members;
+    }
+
+    /**
+     * @return Bytes in the whole bundle.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return Bytes of recordings, without the manifest.
+     */
+    public long recordingBytes() {
+        return length - header.length;
+    }
+
+    /**
+     * @return true if every recording is still there at the size it was bundled at.
+     */
+    public boolean intact() {
+        for (Member member : members) {
+            try {
+                if (Files.size(member.file) != member.size) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the bundle's bytes from the offset on into the buffer, until it is full or the bundle ends.
+     *
+     * @return Bytes read, -1 at the end of the bundle.
+     */
+    public int read(long offset, ByteBuffer into) throws IOException {
+        if (offset >= length) {
+            return -1;
+        }
+
+        int start = into.position();
+        if (offset < header.length) {
+            int count = (int) Math.min(into.remaining(), header.length - offset);
+            into.put(header, (int) offset, count);
+            offset += count;
+        }
+
+        int member = members.size() - 1;
+        while (member > 0 && starts[member] > offset) {
+            member--;
+        }
+        while (into.hasRemaining() && offset < length) {
+            long end = starts[member] + members.get(member).size;
+            if (offset >= end) {
+                member++;
+                continue;
+            }
+            FileChannel channel = channel(member);
+            int limit = into.limit();
+            into.limit((int) Math.min(limit, into.position() + end - offset));
+            try {
+                int count = channel.read(into, offset - starts[member]);
+                if (count < 0) {
+                    throw new IOException(members.get(member).file + " is shorter than when it was bundled");
+                }
+                offset += count;
+            } finally {
+                into.limit(limit);
+            }
+        }
+
+        return into.position() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                channels[i].close();
+                channels[i] = null;
+            }
+        }
+    }
+
+    private FileChannel channel(int member) throws IOException {
+        if (channels[member] == null) {
+            channels[member] = FileChannel.open(members.get(member).file, READ);
+        }
+        return channels[member];
+    }
+
+    /**
+     * Unpack a bundle's recordings into a folder, keeping their modified times. Each is written under a temporary
+     * name and moved into place, a recording only appears whole.
+     *
+     * @return The recordings.
+     */
+    public static List<Path> unpack(Path bundle, Path folder) throws IOException {
+        List<Path> unpacked = new ArrayList<>();
+
+        try (FileChannel in = FileChannel.open(bundle, READ)) {
+            ByteBuffer start = ByteBuffer.allocate(8);
+            readFully(in, start, 0);
+            start.flip();
+            if (start.getInt() != MAGIC) {
+                throw new IOException(bundle + " is not an export bundle");
+            }
+            int packedLength = start.getInt();
+            if (packedLength < 0 || packedLength > in.size() - 8) {
+                throw new IOException(bundle + " manifest is damaged");
+            }
+            ByteBuffer packed = ByteBuffer.allocate(packedLength);
+            readFully(in, packed, 8);
+
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            try (InputStream zip = new GZIPInputStream(new ByteArrayInputStream(packed.array()))) {
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = zip.read(buffer)) > 0) {
+                    text.write(buffer, 0, count);
+                }
+            }
+
+            long at = 8 + packedLength;
+            for (String line : new String(text.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                String fileName = fields[0];
+                if (fields.length != 3 || fileName.contains("/") || fileName.contains("\\") || fileName.startsWith(".")) {
+                    throw new IOException(bundle + " manifest has a bad line [" + line + "]");
+                }
+                long size = Long.parseLong(fields[1]);
+                if (at + size > in.size()) {
+                    throw new IOException(bundle + " is shorter than its manifest");
+                }
+
+                Path target = folder.resolve(fileName);
+                Path part = folder.resolve(fileName + ".part");
+                try (FileChannel out = FileChannel.open(part, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                    long done = 0;
+                    while (done < size) {
+                        done += in.transferTo(at + done, size - done, out);
+                    }
+                    out.force(false);
+                }
+                Files.setLastModifiedTime(part, FileTime.fromMillis(Long.parseLong(fields[2])));
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                unpacked.add(target);
+                at += size;
+            }
+        }
+
+        return unpacked;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer into, long position) throws IOException {
+        while (into.hasRemaining()) {
+            int count = in.read(into, position);
+            if (count < 0) {
+                throw new IOException("Export bundle is too short");
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.stronans.export;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Finished recordings in a store folder waiting to be exported, kept in a journal in the folder so they survive a
+ * reboot. A scan bundles recordings newer than the last one queued, skipping those being written, and small ones
+ * are held back until there are enough of them to fill a bundle or the oldest has waited long enough. The queue
+ * holds at most a set number of bytes of recordings, the oldest bundles not being sent are dropped to make room, so
+ * a long time without a link costs the oldest recordings their export and never the disk. Bundles that fail go
+ * to the back of the queue.
+ * <p>
+ * The journal is lines of tab separated fields: w, modified time and name of the newest recording queued; +,
+ * bundle name, then name, size and modified time of each recording in it; -, bundle name, once it is sent or
+ * dropped. It is written over with only what is waiting when opened and every so often after.
+ */
+public class ExportQueue {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(ExportQueue.class);
+
+    public static final String JOURNAL = "export.queue";
+
+    private static final long SETTLE_MS = 5000;         // Untouched this long, a recording is finished.
+    private static final int COMPACT_LINES = 1000;
+
+    private static class Entry {
+        private final ExportBundle bundle;
+        private boolean sending;
+        private int attempts;
+
+        Entry(ExportBundle bundle) {
+            this.bundle = bundle;
+        }
+    }
+
+    private final Path root;
+    private final Path journal;
+    private final Set<String> extensions;
+    private final long maxBytes;
+    private final long batchBytes;
+    private final long batchWaitMillis;
+    private final List<Supplier<String>> active = new CopyOnWriteArrayList<>();
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private FileChannel out;
+    private int journalLines;
+    private long watermarkModified = Long.MIN_VALUE;
+    private String watermarkName = "";
+    private long pendingBytes;
+    private long dropped;
+    private long droppedBytes;
+
+    /**
+     * Read the journal in the folder, if there is one, and carry on from it.
+     *
+     * @param root            Folder holding the recordings
+     * @param extensions      Extensions of the files to export, e.g. ".h264"
+     * @param maxBytes        Most bytes of recordings to hold, 0 for no limit
+     * @param batchBytes      Recordings smaller than this share bundles of up to this size
+     * @param batchWaitMillis Longest a small recording waits for others to fill its bundle
+     */
+    public ExportQueue(Path root, Collection<String> extensions, long maxBytes, long batchBytes, long batchWaitMillis)
+            throws IOException {
+        this.root = root;
+        this.journal = root.resolve(JOURNAL);
+        this.extensions = new HashSet<>(extensions);
+        this.maxBytes = maxBytes;
+        this.batchBytes = batchBytes;
+        this.batchWaitMillis = batchWaitMillis;
+
+        Files.createDirectories(root);
+        if (Files.exists(journal)) {
+            load();
+        }
+        compact();
+        if (!entries.isEmpty()) {
+            log.info("Export of " + root + " resuming with " + entries.size() + " bundles, " + pendingBytes + " bytes");
+        }
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * Never export the file this names, e.g. the one a camera is writing. Null means no file.
+     */
+    public void addActive(Supplier<String> file) {
+        active.add(file);
+    }
+
+    /**
+     * Queue finished recordings newer than the last queued.
+     *
+     * @return Bundles queued.
+     */
+    public synchronized int scan() throws IOException {
+        Set<Path> inUse = new HashSet<>();
+        for (Supplier<String> file : active) {
+            String name = file.get();
+            if (name != null) {
+                inUse.add(root.getFileSystem().getPath(name).toAbsolutePath().normalize());
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<ExportBundle.Member> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path file : files) {
+                if (!isRecording(file) || inUse.contains(file.toAbsolutePath().normalize())) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                long modified = attributes.lastModifiedTime().toMillis();
+                if (attributes.isRegularFile() && modified <= now - SETTLE_MS
+                        && compare(modified, file.getFileName().toString(), watermarkModified, watermarkName) > 0) {
+                    found.add(new ExportBundle.Member(file, attributes.size(), modified));
+                }
+            }
+        }
+        found.sort((a, b) -> compare(a.modified(), a.file().getFileName().toString(),
+                b.modified(), b.file().getFileName().toString()));
+
+        List<ExportBundle> bundles = new ArrayList<>();
+        List<ExportBundle.Member> batch = new ArrayList<>();
+        long batched = 0;
+        for (ExportBundle.Member member : found) {
+            if (!batch.isEmpty() && (member.size() >= batchBytes || batched + member.size() > batchBytes)) {
+                bundles.add(new ExportBundle(batch));
+                batch = new ArrayList<>();
+                batched = 0;
+            }
+            if (member.size() >= batchBytes) {
+                bundles.add(new ExportBundle(Collections.singletonList(member)));
+            } else {
+                batch.add(member);
+                batched += member.size();
+            }
+        }
+        // Left for the next scan unless it has waited long enough.
+        if (!batch.isEmpty() && batch.get(0).modified() <= now - batchWaitMillis) {
+            bundles.add(new ExportBundle(batch));
+        }
+
+        if (bundles.isEmpty()) {
+            return 0;
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (ExportBundle bundle : bundles) {
+            makeRoom(bundle.recordingBytes(), lines);
+            add(bundle, lines);
+        }
+        List<ExportBundle.Member> last = bundles.get(bundles.size() - 1).members();
+        ExportBundle.Member newest = last.get(last.size() - 1);
+        watermarkModified = newest.modified();
+        watermarkName = newest.file().getFileName().toString();
+        lines.append("w\t").append(watermarkModified).append('\t').append(watermarkName).append('\n');
+        write(lines);
+
+        return bundles.size();
+    }
+
+    /**
+     * @return The next bundle to send, now being sent, null if there is none.
+     */
+    public synchronized ExportBundle take() {
+        for (Entry entry : entries.values()) {
+            if (!entry.sending) {
+                entry.sending = true;
+                return entry.bundle;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A bundle has been sent.
+     */
+    public synchronized void done(ExportBundle bundle) throws IOException {
+        if (remove(bundle) != null) {
+            write(new StringBuilder("-\t").append(bundle.name()).append('\n'));
+        }
+    }
+
+    /**
+     * Sending a bundle failed, it goes to the back of the queue.
+     *
+     * @return Times it has failed since being queued or the program started.
+     */
+    public synchronized int retry(ExportBundle bundle) {
+        Entry entry = entries.remove(bundle.name());
+        if (entry == null) {
+            return 0;
+        }
+        entry.sending = false;
+        entries.put(bundle.name(), entry);
+        return ++entry.attempts;
+    }
+
+    /**
+     * Recordings in a bundle have gone, e.g. deleted for space, or changed. Bundle the ones still as they were again.
+     *
+     * @return The new bundle, null if there is nothing left of it.
+     */
+    public synchronized ExportBundle rebuild(ExportBundle bundle) throws IOException {
+        if (remove(bundle) == null) {
+            return null;
+        }
+
+        List<ExportBundle.Member> left = new ArrayList<>();
+        for (ExportBundle.Member member : bundle.members()) {
+            try {
+                if (Files.size(member.file()) == member.size()) {
+                    left.add(member);
+                    continue;
+                }
+            } catch (IOException e) {
+                // Gone.
+            }
+            dropped++;
+            droppedBytes += member.size();
+            log.warn("Recording " + member.file() + " gone or changed before it was exported");
+        }
+
+        StringBuilder lines = new StringBuilder("-\t").append(bundle.name()).append('\n');
+        ExportBundle rebuilt = left.isEmpty() ? null : new ExportBundle(left);
+        if (rebuilt != null) {
+            add(rebuilt, lines);
+        }
+        write(lines);
+        return rebuilt;
+    }
+
+    /**
+     * @return Bundles waiting or being sent.
+     */
+    public synchronized int pending() {
+        return entries.size();
+    }
+
+    /**
+     * @return Bytes of recordings waiting or being sent.
+     */
+    public synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return Recordings dropped for room or because they went before they were sent.
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    public synchronized long droppedBytes() {
+        return droppedBytes;
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+        for (Entry entry : entries.values()) {
+            entry.bundle.close();
+        }
+    }
+
+    /**
+     * Drop the oldest bundles not being sent until the given bytes fit.
+     */
+    private void makeRoom(long bytes, StringBuilder lines) throws IOException {
+        if (maxBytes <= 0) {
+            return;
+        }
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (pendingBytes + bytes > maxBytes && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (entry.sending) {
+                continue;
+            }
+            oldest.remove();
+            pendingBytes -= entry.bundle.recordingBytes();
+            dropped += entry.bundle.members().size();
+            droppedBytes += entry.bundle.recordingBytes();
+            entry.bundle.close();
+            lines.append("-\t").append(entry.bundle.name()).append('\n');
+            log.warn("Export queue for " + root + " full, dropped " + entry.bundle.name() + " ("
+                    + entry.bundle.recordingBytes() + " bytes)");
+        }
+    }
+
+    private void add(ExportBundle bundle, StringBuilder lines) {
+        entries.put(bundle.name(), new Entry(bundle));
+        pendingBytes += bundle.recordingBytes();
+        added(bundle, lines);
+    }
+
+    /**
+     * The journal line for a bundle being queued.
+     */
+    private static void added(ExportBundle bundle, StringBuilder lines) {
+        lines.append("+\t").append(bundle.name());
+        for (ExportBundle.Member member : bundle.members()) {
+            lines.append('\t').append(member.file().getFileName()).append('\t').append(member.size()).append('\t')
+                    .append(member.modified());
+        }
+        lines.append('\n');
+    }
+
+    private Entry remove(ExportBundle bundle) throws IOException {
+        Entry entry = entries.remove(bundle.name());
+        if (entry != null) {
+            pendingBytes -= bundle.recordingBytes();
+            bundle.close();
+        }
+        return entry;
+    }
+
+    /**
+     * Add lines to the journal and force them out, writing it over once it has grown long.
+     */
+    private void write(StringBuilder lines) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        out.force(false);
+
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') {
+                journalLines++;
+            }
+        }
+        if (journalLines > COMPACT_LINES + 2 * entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the journal over with the watermark and what is waiting, under a temporary name then moved into place.
+     */
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        if (!watermarkName.isEmpty()) {
+            lines.append("w\t").append(watermarkModified).append('\t').append(watermarkName).append('\n');
+        }
+        for (Entry entry : entries.values()) {
+            added(entry.bundle, lines);
+        }
+
+        if (out != null) {
+            out.close();
+        }
+        Path temporary = root.resolve(JOURNAL + ".new");
+        try (FileChannel file = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            file.force(false);
+        }
+        Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = FileChannel.open(journal, CREATE, WRITE, APPEND);
+        journalLines = entries.size() + 1;
+    }
+
+    private void load() throws IOException {
+        int number = 0;
+        for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+            number++;
+            String[] fields = line.split("\t");
+            try {
+                switch (fields[0]) {
+                    case "w":
+                        watermarkModified = Long.parseLong(fields[1]);
+                        watermarkName = fields[2];
+                        break;
+                    case "+":
+                        List<ExportBundle.Member> members = new ArrayList<>();
+                        for (int i = 2; i + 2 < fields.length; i += 3) {
+                            members.add(new ExportBundle.Member(root.resolve(fields[i]), Long.parseLong(fields[i + 1]),
+                                    Long.parseLong(fields[i + 2])));
+                        }
+                        ExportBundle bundle = new ExportBundle(members);
+                        if (!bundle.name().equals(fields[1])) {
+                            throw new IllegalArgumentException("bundle name " + bundle.name());
+                        }
+                        entries.put(bundle.name(), new Entry(bundle));
+                        pendingBytes += bundle.recordingBytes();
+                        break;
+                    case "-":
+                        Entry entry = entries.remove(fields[1]);
+                        if (entry != null) {
+                            pendingBytes -= entry.bundle.recordingBytes();
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("type");
+                }
+            } catch (RuntimeException e) {
+                // Most likely the last line, cut off by a crash.
+                log.warn("Export journal " + journal + " line " + number + " not understood, skipped [" + line + "]");
+            }
+        }
+    }
+
+    private boolean isRecording(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && extensions.contains(name.substring(dot));
+    }
+
+    /**
+     * Order recordings by modified time, then name.
+     */
+    private static int compare(long modified, String name, long otherModified, String otherName) {
+        int order = Long.compare(modified, otherModified);
+        return order != 0 ? order : name.compareTo(otherName);
+    }
+}
@@ -0,0 +1,29 @@
+package com.stronans.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where exported bundles go. A bundle is sent in pieces, in order, and the far side keeps what it has been sent, so
+ * an upload cut off by the link or a reboot carries on from where it got to. Once the last piece is in, the bundle
+ * is completed and the far side unpacks its recordings, see {@link ExportBundle#unpack}.
+ */
+public interface ExportSink {
+    /**
+     * @return Bytes of the bundle the far side already holds, 0 if none.
+     */
+    long received(String bundle) throws IOException;
+
+    /**
+     * Send the data's remaining bytes as the bundle's bytes from the offset on. Anything the far side holds past the
+     * offset is thrown away.
+     *
+     * @param total Length of the whole bundle
+     */
+    void append(String bundle, long offset, long total, ByteBuffer data) throws IOException;
+
+    /**
+     * Every byte of the bundle has been sent.
+     */
+    void complete(String bundle, long total) throws IOException;
+}
@@ -0,0 +1,303 @@
+package com.stronans.export;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Sends queued bundles to a sink on a few threads of its own, in pieces, so capture always comes first: no piece
+ * is read or sent while a camera is recording and pieces go no faster than a set rate. Thread priorities are not
+ * used, the JVM ignores them on Linux. A bundle is carried on from what the far side already holds, after a
+ * failure or a reboot alike. When sending fails the link is left alone for a back off that doubles with each
+ * failure in a row, up to a limit, and the bundle goes to the back of its queue.
+ */
+public class Exporter {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(Exporter.class);
+
+    private static final long BUSY_CHECK_MS = 200;
+    private static final long IDLE_CHECK_MS = 5000;
+
+    private final List<ExportQueue> queues;
+    private final ExportSink sink;
+    private final int chunkBytes;
+    private final long bytesPerSecond;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final BooleanSupplier busy;
+    private final List<Thread> workers = new ArrayList<>();
+    private ScheduledExecutorService scanner;
+
+    private volatile boolean running = true;
+    private int nextQueue;                  // Round robin over the queues, guarded by this.
+    private long backoffMillis;             // Guarded by this, as is the rest.
+    private long linkReadyMillis;
+    private long sendNanos;                 // When the rate lets the next byte go.
+
+    private final AtomicLong bundles = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong resumedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong pausedMillis = new AtomicLong();
+
+    /**
+     * @param queues           Queues to send from, taken in turn
+     * @param sink             Where to send them
+     * @param threads          Bundles sent at once
+     * @param chunkBytes       Bytes sent in one piece
+     * @param bytesPerSecond   Most bytes to send a second over all threads, 0 for no limit
+     * @param minBackoffMillis Wait before trying again after the first failure
+     * @param maxBackoffMillis Most to wait
+     * @param busy             true while capture needs the Pi to itself
+     */
+    public Exporter(List<ExportQueue> queues, ExportSink sink, int threads, int chunkBytes, long bytesPerSecond,
+                    long minBackoffMillis, long maxBackoffMillis, BooleanSupplier busy) {
+        this.queues = new ArrayList<>(queues);
+        this.sink = sink;
+        this.chunkBytes = chunkBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+        this.busy = busy;
+        sendNanos = System.nanoTime();
+
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread worker = new Thread(this::send, "export-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Scan the queues for new recordings now and every period after, and start sending.
+     */
+    public void start(long scanMillis) {
+        scanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "export-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scanner.scheduleWithFixedDelay(this::scan, 0, scanMillis, TimeUnit.MILLISECONDS);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stop sending. A bundle part way through is carried on from where it got to next time.
+     */
+    public void shutdown() {
+        running = false;
+        if (scanner != null) {
+            scanner.shutdownNow();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ExportQueue queue : queues) {
+            try {
+                queue.close();
+            } catch (IOException e) {
+                log.error("Closing export queue for " + queue.root(), e);
+            }
+        }
+        log.info("Exported " + bundles.get() + " bundles, " + bytes.get() + " bytes sent, " + resumedBytes.get()
+                + " bytes not sent again, " + failures.get() + " failures, paused " + pausedMillis.get() + " ms");
+    }
+
+    /**
+     * @return Bundles sent whole.
+     */
+    public long bundles() {
+        return bundles.get();
+    }
+
+    /**
+     * @return Bytes sent.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Bytes the far side already held when a bundle was carried on.
+     */
+    public long resumedBytes() {
+        return resumedBytes.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Millis sending waited for capture.
+     */
+    public long pausedMillis() {
+        return pausedMillis.get();
+    }
+
+    private void scan() {
+        int found = 0;
+        for (ExportQueue queue : queues) {
+            try {
+                found += queue.scan();
+            } catch (IOException | RuntimeException e) {
+                log.error("During export scan of " + queue.root(), e);
+            }
+        }
+        if (found > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void send() {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkBytes);
+        try {
+            while (running) {
+                ExportQueue queue = null;
+                ExportBundle bundle = null;
+                synchronized (this) {
+                    long wait = linkReadyMillis - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        for (int i = 0; i < queues.size() && bundle == null; i++) {
+                            queue = queues.get(nextQueue);
+                            nextQueue = (nextQueue + 1) % queues.size();
+                            bundle = queue.take();
+                        }
+                    }
+                    if (bundle == null) {
+                        wait(wait > 0 ? wait : IDLE_CHECK_MS);
+                        continue;
+                    }
+                }
+                send(queue, bundle, buffer);
+            }
+        } catch (InterruptedException e) {
+            // Shut down.
+        }
+    }
+
+    private void send(ExportQueue queue, ExportBundle bundle, ByteBuffer buffer) throws InterruptedException {
+        String name = bundle.name();
+        long length = bundle.length();
+        try {
+            waitWhileBusy();
+            long offset = sink.received(name);
+            if (offset > length) {
+                offset = 0;
+            } else if (offset > 0) {
+                resumedBytes.addAndGet(offset);
+                log.info("Export of " + name + " carried on from " + offset + " of " + length + " bytes");
+            }
+
+            while (offset < length) {
+                waitWhileBusy();
+                buffer.clear();
+                int count = bundle.read(offset, buffer);
+                buffer.flip();
+                sink.append(name, offset, length, buffer);
+                offset += count;
+                bytes.addAndGet(count);
+                pace(count);
+            }
+            sink.complete(name, length);
+            queue.done(bundle);
+            bundles.incrementAndGet();
+            synchronized (this) {
+                backoffMillis = 0;
+            }
+            log.info("Exported " + name + ", " + bundle.members().size() + " recordings, " + length + " bytes");
+        } catch (IOException e) {
+            if (!running) {
+                return;
+            }
+            if (!bundle.intact()) {
+                rebuild(queue, bundle);
+                return;
+            }
+            failures.incrementAndGet();
+            int attempts = queue.retry(bundle);
+            long wait;
+            synchronized (this) {
+                backoffMillis = backoffMillis == 0 ? minBackoffMillis : Math.min(2 * backoffMillis, maxBackoffMillis);
+                wait = backoffMillis;
+                linkReadyMillis = System.currentTimeMillis() + wait;
+            }
+            log.warn("Export of " + name + " failed " + attempts + " times, trying again in " + wait + " ms: "
+                    + e.getMessage());
+        } finally {
+            try {
+                bundle.close();
+            } catch (IOException e) {
+                log.error("Closing " + name, e);
+            }
+        }
+    }
+
+    private void rebuild(ExportQueue queue, ExportBundle bundle) {
+        try {
+            queue.rebuild(bundle);
+        } catch (IOException e) {
+            log.error("Bundling again what is left of " + bundle.name(), e);
+        }
+    }
+
+    private void waitWhileBusy() throws InterruptedException {
+        if (!busy.getAsBoolean()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        while (running && busy.getAsBoolean()) {
+            Thread.sleep(BUSY_CHECK_MS);
+        }
+        pausedMillis.addAndGet(System.currentTimeMillis() - start);
+        if (!running) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Hold back to keep within the rate.
+     */
+    private void pace(int count) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this) {
+            if (sendNanos - now < 0) {
+                sendNanos = now;
+            }
+            sendNanos += count * 1_000_000_000L / bytesPerSecond;
+            wait = sendNanos - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
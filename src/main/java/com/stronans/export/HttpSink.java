@@ -0,0 +1,125 @@
+package com.stronans.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Exports to a web server, with a protocol after tus's resumable uploads:
+ * <ul>
+ * <li>HEAD url/bundle answers 200 with an Upload-Offset header of the bytes held, or 404 for none.</li>
+ * <li>PUT url/bundle with Upload-Offset and Upload-Length headers sends bytes from the offset on.</li>
+ * <li>POST url/bundle with an Upload-Length header completes the bundle.</li>
+ * </ul>
+ * Any 2xx answer is success. {@link DirectorySink} does what the far side needs with what it is sent. Connections
+ * are kept alive between requests by {@link HttpURLConnection}.
+ */
+public class HttpSink implements ExportSink {
+    private static final String OFFSET = "Upload-Offset";
+    private static final String LENGTH = "Upload-Length";
+
+    private final String url;
+    private final int timeoutMillis;
+
+    /**
+     * @param url           Where bundles go, http://host:port/path
+     * @param timeoutMillis Longest to wait to connect, or for the server to answer
+     */
+    public HttpSink(String url, int timeoutMillis) {
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public long received(String bundle) throws IOException {
+        HttpURLConnection connection = open(bundle, "HEAD");
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return 0;
+        }
+        check(connection, status);
+        String offset = connection.getHeaderField(OFFSET);
+        if (offset == null) {
+            throw new IOException("No " + OFFSET + " for " + bundle + " from " + url);
+        }
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad " + OFFSET + " for " + bundle + " [" + offset + "]", e);
+        }
+    }
+
+    @Override
+    public void append(String bundle, long offset, long total, ByteBuffer data) throws IOException {
+        int position = data.position();
+        try {
+            put(bundle, offset, total, data);
+        } catch (SocketException e) {
+            // Most likely a kept alive connection the server had closed, as some do after a HEAD. Sending from an
+            // offset can be repeated, so once more on a new connection.
+            data.position(position);
+            put(bundle, offset, total, data);
+        }
+    }
+
+    private void put(String bundle, long offset, long total, ByteBuffer data) throws IOException {
+        HttpURLConnection connection = open(bundle, "PUT");
+        connection.setRequestProperty(OFFSET, Long.toString(offset));
+        connection.setRequestProperty(LENGTH, Long.toString(total));
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(data.remaining());
+        try (OutputStream out = connection.getOutputStream()) {
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            } else {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                out.write(bytes);
+            }
+        }
+        check(connection, connection.getResponseCode());
+    }
+
+    @Override
+    public void complete(String bundle, long total) throws IOException {
+        HttpURLConnection connection = open(bundle, "POST");
+        connection.setRequestProperty(LENGTH, Long.toString(total));
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(0);
+        connection.getOutputStream().close();
+        check(connection, connection.getResponseCode());
+    }
+
+    private HttpURLConnection open(String bundle, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + bundle).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * Fail unless the answer is a 2xx, reading what is left of it either way so the connection can be used again.
+     */
+    private void check(HttpURLConnection connection, int status) throws IOException {
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                byte[] discard = new byte[1024];
+                while (in.read(discard) > 0) {
+                    // Drained.
+                }
+            }
+        }
+        if (status / 100 != 2) {
+            throw new IOException(connection.getRequestMethod() + " " + connection.getURL() + " answered " + status);
+        }
+    }
+}
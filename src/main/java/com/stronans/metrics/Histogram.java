@@ -0,0 +1,188 @@
+package com.stronans.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of values falling into fixed buckets, for latencies and sizes. Recording is a binary search over the
+ * bucket bounds and a few atomic adds, no locks and nothing allocated, so it can sit on the paths it measures.
+ * Values are recorded in a raw unit, nanoseconds or bytes, and shown in a larger one, e.g. seconds.
+ */
+public class Histogram implements HistogramMBean {
+    private static final long[] STEPS = {1, 2, 5};
+
+    private final String name;
+    private final String help;
+    private final long[] bounds;        // Upper bound of each bucket, inclusive, the last bucket has none.
+    private final double unit;          // Raw units in one unit shown.
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name   Prometheus name
+     * @param help   One line description
+     * @param bounds Upper bounds of the buckets in the raw unit, ascending
+     * @param unit   Raw units in one of the unit shown, e.g. 1_000_000_000 for nanoseconds shown as seconds
+     */
+    public Histogram(String name, String help, long[] bounds, long unit) {
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds.clone();
+        this.unit = unit;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Buckets at 1, 2 and 5 times each power of ten from low to high, for nanoseconds from 10 us to 100 s use
+     * (10_000, 100_000_000_000).
+     */
+    public static long[] decades(long low, long high) {
+        int size = 0;
+        for (long decade = low; decade <= high; decade *= 10) {
+            for (long step : STEPS) {
+                if (decade * step <= high) {
+                    size++;
+                }
+            }
+        }
+
+        long[] result = new long[size];
+        int i = 0;
+        for (long decade = low; decade <= high; decade *= 10) {
+            for (long step : STEPS) {
+                if (decade * step <= high) {
+                    result[i++] = decade * step;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Buckets at each power of two from low to high.
+     */
+    public static long[] powersOfTwo(long low, long high) {
+        int size = 0;
+        for (long bound = low; bound <= high; bound <<= 1) {
+            size++;
+        }
+
+        long[] result = new long[size];
+        long bound = low;
+        for (int i = 0; i < size; i++, bound <<= 1) {
+            result[i] = bound;
+        }
+        return result;
+    }
+
+    public void record(long value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        counts.incrementAndGet(low);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            // Another thread raised it, look again.
+        }
+    }
+
+    /**
+     * Record the time since a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getSum() {
+        return sum.get() / unit;
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / unit / n;
+    }
+
+    @Override
+    public double getMax() {
+        return max.get() / unit;
+    }
+
+    @Override
+    public double getP50() {
+        return quantile(0.5);
+    }
+
+    @Override
+    public double getP90() {
+        return quantile(0.9);
+    }
+
+    @Override
+    public double getP99() {
+        return quantile(0.99);
+    }
+
+    /**
+     * @return Upper bound of the bucket holding the given quantile, the largest value seen if above every bound.
+     */
+    public double quantile(double q) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bounds[i], max.get()) / unit;
+            }
+        }
+        return max.get() / unit;
+    }
+
+    /**
+     * Write in the Prometheus text format, cumulative buckets then sum and count.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{le=\"").append(Double.toString(bounds[i] / unit)).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+        cumulative += counts.get(bounds.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+        out.append(name).append("_sum ").append(Double.toString(getSum())).append('\n');
+        out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+    }
+}
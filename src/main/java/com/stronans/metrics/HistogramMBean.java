@@ -0,0 +1,20 @@
+package com.stronans.metrics;
+
+/**
+ * What a {@link Histogram} shows over JMX, values in its unit (seconds or bytes).
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    double getSum();
+
+    double getMean();
+
+    double getMax();
+
+    double getP50();
+
+    double getP90();
+
+    double getP99();
+}
@@ -0,0 +1,89 @@
+package com.stronans.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The capture pipeline's histograms, recorded where the work happens and read over JMX
+ * (<code>com.stronans.catcam:type=Histogram,name=...</code>) or as Prometheus text.
+ */
+public final class Metrics {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(Metrics.class);
+
+    private static final long NANOS = 1_000_000_000L;
+    private static final long MILLIS = 1_000L;
+
+    private static final long[] LATENCY = Histogram.decades(10_000L, 100_000_000_000L);         // 10 us to 100 s
+    private static final long[] STATE = Histogram.decades(100L, 100_000_000L);                  // 0.1 s to a day
+    private static final long[] SIZE = Histogram.powersOfTwo(64 * 1024L, 16L * 1024 * 1024 * 1024);
+
+    public static final Histogram TRIGGER = new Histogram("catcam_trigger_seconds",
+            "PIR edge to the camera being told to record", LATENCY, NANOS);
+    public static final Histogram TRIGGER_TO_RECORDING = new Histogram("catcam_trigger_to_recording_seconds",
+            "PIR edge to the camera having been told, signal delivered", LATENCY, NANOS);
+    public static final Histogram SIGNAL = new Histogram("catcam_signal_seconds",
+            "Sending a signal to a camera process until it is delivered", LATENCY, NANOS);
+    public static final Histogram SPAWN = new Histogram("catcam_camera_spawn_seconds",
+            "Starting a camera process", LATENCY, NANOS);
+    public static final Histogram CAMERA_GAP = new Histogram("catcam_camera_gap_seconds",
+            "Time without a camera after one died, until another was running", STATE, MILLIS);
+    public static final Histogram STILL = new Histogram("catcam_still_capture_seconds",
+            "Taking one still", LATENCY, NANOS);
+    public static final Histogram SEGMENT_BYTES = new Histogram("catcam_segment_bytes",
+            "Bytes written to each segment file when it is closed", SIZE, 1);
+    public static final Histogram RECORDING = new Histogram("catcam_recording_state_seconds",
+            "Time spent in each spell of recording", STATE, MILLIS);
+    public static final Histogram PAUSED = new Histogram("catcam_paused_state_seconds",
+            "Time spent in each spell of being paused", STATE, MILLIS);
+
+    private static final List<Histogram> ALL = Collections.unmodifiableList(Arrays.asList(
+            TRIGGER, TRIGGER_TO_RECORDING, SIGNAL, SPAWN, CAMERA_GAP, STILL, SEGMENT_BYTES, RECORDING, PAUSED));
+
+    private static boolean registered;
+
+    private Metrics() {
+    }
+
+    public static List<Histogram> all() {
+        return ALL;
+    }
+
+    /**
+     * Make every histogram visible over JMX, once.
+     */
+    public static synchronized void registerMBeans() {
+        if (registered) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Histogram histogram : ALL) {
+            try {
+                server.registerMBean(histogram, new ObjectName("com.stronans.catcam:type=Histogram,name=" + histogram.name()));
+            } catch (Exception e) {
+                log.error("Registering " + histogram.name() + " with JMX", e);
+            }
+        }
+        registered = true;
+    }
+
+    /**
+     * Every histogram in the Prometheus text format.
+     */
+    public static void writePrometheus(Appendable out) throws IOException {
+        for (Histogram histogram : ALL) {
+            histogram.writePrometheus(out);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.stronans.web;
+
+import com.stronans.camera.Camera;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest still, shared by every viewer. A still is only taken when the one held is older than the maximum
+ * age, so the camera is asked for at most one still per period however many viewers there are. It is taken on a
+ * thread of its own, one at a time, and viewers asking meanwhile are given the still held rather than waiting on
+ * the camera. Only before the first still do they wait, all for the same one.
+ */
+public class StillCache {
+    /**
+     * A still and when it was taken, swapped whole so the two always match.
+     */
+    private static class Still {
+        private final byte[] image;
+        private final long takenMillis;
+
+        Still(byte[] image, long takenMillis) {
+            this.image = image;
+            this.takenMillis = takenMillis;
+        }
+    }
+
+    private final String settings;
+    private final long maxAgeMillis;
+    private final ExecutorService camera = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "still-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Still held;
+    private FutureTask<byte[]> refresh;     // The still being taken, null if none, guarded by this.
+    private final AtomicLong stills = new AtomicLong();
+
+    /**
+     * @param settings     Camera settings for the stills, see {@link Camera#getImage(String)}
+     * @param maxAgeMillis How old a still may be and still be handed out without a new one being asked for
+     */
+    public StillCache(String settings, long maxAgeMillis) {
+        this.settings = settings;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return The latest JPEG, a new one being taken if it is older than the maximum age, null if the camera has
+     * never given one. Must not be changed.
+     */
+    public byte[] latest() throws IOException {
+        Still still = held;
+        if (still != null && System.currentTimeMillis() - still.takenMillis < maxAgeMillis) {
+            return still.image;
+        }
+
+        Future<byte[]> pending = refresh();
+        if (still != null) {
+            return still.image;
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Taking a still", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return Stills taken from the camera.
+     */
+    public long stills() {
+        return stills.get();
+    }
+
+    public long maxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @return The still being taken, started now if none is.
+     */
+    private synchronized Future<byte[]> refresh() {
+        if (refresh == null) {
+            refresh = new FutureTask<>(this::take);
+            camera.execute(refresh);
+        }
+        return refresh;
+    }
+
+    /**
+     * @return The new still, the one held if the camera gave nothing.
+     */
+    private byte[] take() throws IOException {
+        try {
+            byte[] taken = Camera.getImage(settings);
+            if (taken.length > 0) {
+                held = new Still(taken, System.currentTimeMillis());
+                stills.incrementAndGet();
+            }
+            Still still = held;
+            return still != null ? still.image : null;
+        } finally {
+            synchronized (this) {
+                refresh = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.stronans.web;
+
+import com.stronans.camera.Base64Writer;
+import com.stronans.camera.ClipExtractor;
+import com.stronans.camera.EventIndex;
+import com.stronans.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A small HTTP server for getting pictures and recordings off the Pi.
+ * <pre>
+ *   /still.jpg              latest still
+ *   /still.b64              latest still as Base64, the same text as Camera.getEncodedStillImage
+ *   /live.mjpg              stills as an MJPEG stream
+ *   /files/zone/            recordings in a zone's store folder, one name per line
+ *   /files/zone/name        a recording, Range requests supported
+ *   /events/zone?from=&amp;to=  recordings indexed between two epoch millis times, one per line, with the
+ *                           file name, the byte offset the recording starts at and its event id
+ *   /clips/zone?event=      one recording as a clip of its own, cut from the day's file, see ClipExtractor
+ *   /clips/zone?from=&amp;to=   the recordings between two epoch millis times as one clip
+ *   /metrics                capture pipeline histograms in the Prometheus text format, local clients only
+ * </pre>
+ * Each connection is served on a thread from a fixed pool, separate from the camera threads, so viewers can only hold
+ * each other up. An MJPEG viewer holds its thread for as long as it watches, so only so many are let in at once, the
+ * rest of the pool is kept for stills and downloads. There is no authentication, the server listens on the loopback
+ * address unless given another, and anyone who can reach it can fetch any recording. Recordings and clips are sent with
+ * {@link FileChannel#transferTo}, the kernel copies straight from the file to the socket without the bytes passing
+ * through the heap. Stills come from one {@link StillCache}, so viewers share stills rather than each asking the
+ * camera. Every response closes the connection.
+ */
+public class WebServer {
+    /**
+     * The <code>Logger</code> to be used.
+     */
+    private static final Logger log = LogManager.getLogger(WebServer.class);
+
+    private static final int MAX_HEADER = 8192;
+    private static final int READ_TIMEOUT_MS = 10_000;
+    private static final String BOUNDARY = "catcamframe";
+
+    private final StillCache stills;
+    private final Map<String, Path> stores;
+    private final Map<String, EventIndex> indexes;
+    private final Map<String, ClipExtractor> extractors = new LinkedHashMap<>();
+    private final long frameMillis;
+    private final int maxStreams;
+    private final AtomicInteger streams = new AtomicInteger();
+    private final ServerSocketChannel server;
+    private final ThreadPoolExecutor workers;
+    private final Thread acceptor;
+
+    private volatile boolean running = true;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param bind    Address to listen on, 127.0.0.1 for the Pi only, 0.0.0.0 for every interface
+     * @param port    Port to listen on, 0 for any free port
+     * @param threads Connections served at once, further ones wait up to the same number again and are then refused
+     * @param streams MJPEG viewers at once, fewer than threads, further ones are refused
+     * @param stills  Source of stills
+     * @param stores  Store folder for each zone name
+     * @param indexes Event index for each zone name, zones without one can be left out
+     * @param fps     MJPEG frames a second
+     */
+    public WebServer(String bind, int port, int threads, int streams, StillCache stills, Map<String, Path> stores,
+                     Map<String, EventIndex> indexes, int fps) throws IOException {
+        if (streams < 0 || streams >= threads) {
+            throw new IllegalArgumentException("MJPEG viewers must leave a thread for other requests [" + streams
+                    + " of " + threads + "]");
+        }
+        this.maxStreams = streams;
+        this.stills = stills;
+        this.stores = new LinkedHashMap<>(stores);
+        this.indexes = new LinkedHashMap<>(indexes);
+        for (Map.Entry<String, EventIndex> index : indexes.entrySet()) {
+            extractors.put(index.getKey(), new ClipExtractor(index.getValue()));
+        }
+        this.frameMillis = 1000L / Math.max(1, fps);
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(bind, port));
+
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "http-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        acceptor = new Thread(this::accept, "http");
+        acceptor.setDaemon(true);
+    }
+
+    public void start() {
+        acceptor.start();
+        log.info("Web server on " + server.socket().getInetAddress().getHostAddress() + " port " + port());
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.error("Closing web server", e);
+        }
+        workers.shutdownNow();
+        log.info("Web server served " + requests.get() + " requests, " + bytesSent.get() + " bytes, refused "
+                + rejected.get());
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    private void accept() {
+        while (running) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Accepting connection", e);
+                continue;
+            }
+
+            try {
+                workers.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                try {
+                    status(client, 503, "Service Unavailable");
+                    client.close();
+                } catch (IOException ignored) {
+                    // Nothing more to tell a client we cannot reach.
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try {
+            client.socket().setSoTimeout(READ_TIMEOUT_MS);
+            client.socket().setTcpNoDelay(true);
+            Request request = Request.read(client.socket().getInputStream());
+            requests.incrementAndGet();
+
+            if (request == null) {
+                status(client, 400, "Bad Request");
+            } else if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+                status(client, 405, "Method Not Allowed");
+            } else {
+                route(client, request);
+            }
+        } catch (IOException e) {
+            log.debug("Connection ended: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // Already gone.
+            }
+        }
+    }
+
+    private void route(SocketChannel client, Request request) throws IOException, InterruptedException {
+        String path = request.path;
+
+        if (path.equals("/still.jpg")) {
+            byte[] image = stills.latest();
+            if (image == null) {
+                status(client, 503, "Service Unavailable");
+                return;
+            }
+            headers(client, 200, "OK", "image/jpeg", image.length, "Cache-Control: no-cache\r\n");
+            if (!request.head) {
+                send(client, ByteBuffer.wrap(image));
+            }
+        } else if (path.equals("/still.b64")) {
+            byte[] image = stills.latest();
+            if (image == null) {
+                status(client, 503, "Service Unavailable");
+                return;
+            }
+            headers(client, 200, "OK", "text/plain", 4L * ((image.length + 2) / 3), "Cache-Control: no-cache\r\n");
+            if (!request.head) {
+                Base64Writer writer = Base64Writer.acquire();
+                try {
+                    writer.to(client).write(image, 0, image.length);
+                    writer.finish();
+                } finally {
+                    writer.release();
+                }
+                bytesSent.addAndGet(4L * ((image.length + 2) / 3));
+            }
+        } else if (path.equals("/live.mjpg")) {
+            if (streams.incrementAndGet() > maxStreams) {
+                streams.decrementAndGet();
+                rejected.incrementAndGet();
+                status(client, 503, "Service Unavailable");
+                return;
+            }
+            try {
+                mjpeg(client, request);
+            } finally {
+                streams.decrementAndGet();
+            }
+        } else if (path.startsWith("/files/")) {
+            file(client, request, path.substring("/files/".length()));
+        } else if (path.startsWith("/events/")) {
+            events(client, request, path.substring("/events/".length()));
+        } else if (path.startsWith("/clips/")) {
+            clip(client, request, path.substring("/clips/".length()));
+        } else if (path.equals("/metrics")) {
+            metrics(client, request);
+        } else {
+            status(client, 404, "Not Found");
+        }
+    }
+
+    /**
+     * Stills one after another until the viewer goes away, each a part of a multipart/x-mixed-replace response.
+     */
+    private void mjpeg(SocketChannel client, Request request) throws IOException, InterruptedException {
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY
+                + "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n";
+        send(client, ascii(head));
+        if (request.head) {
+            return;
+        }
+
+        long next = System.currentTimeMillis();
+        while (running) {
+            byte[] image = stills.latest();
+            if (image != null) {
+                send(client, ascii("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                        + image.length + "\r\n\r\n"));
+                send(client, ByteBuffer.wrap(image));
+                send(client, ascii("\r\n"));
+            }
+
+            next += frameMillis;
+            long wait = next - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            } else {
+                next = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void file(SocketChannel client, Request request, String rest) throws IOException {
+        int slash = rest.indexOf('/');
+        Path store = slash > 0 ? stores.get(rest.substring(0, slash)) : null;
+        if (store == null) {
+            status(client, 404, "Not Found");
+            return;
+        }
+
+        String name = rest.substring(slash + 1);
+        if (name.isEmpty()) {
+            listing(client, request, store);
+            return;
+        }
+
+        // Only plain names within the store folder.
+        Path file = store.resolve(name).normalize();
+        if (name.contains("/") || name.startsWith(".") || !file.getParent().equals(store.normalize())
+                || !Files.isRegularFile(file)) {
+            status(client, 404, "Not Found");
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            long start = 0;
+            long end = size;
+            int code = 200;
+            String reason = "OK";
+            String extra = "Accept-Ranges: bytes\r\n";
+
+            if (request.range != null) {
+                long[] range = parseRange(request.range, size);
+                if (range == null) {
+                    headers(client, 416, "Range Not Satisfiable", "text/plain", 0,
+                            "Content-Range: bytes */" + size + "\r\n");
+                    return;
+                }
+                if (range.length == 2) {
+                    start = range[0];
+                    end = range[1];
+                    code = 206;
+                    reason = "Partial Content";
+                    extra += "Content-Range: bytes " + start + "-" + (end - 1) + "/" + size + "\r\n";
+                }
+            }
+
+            headers(client, code, reason, contentType(name), end - start, extra);
+            if (request.head) {
+                return;
+            }
+
+            long position = start;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, client);
+                if (sent <= 0 && !client.isOpen()) {
+                    break;
+                }
+                position += sent;
+            }
+            bytesSent.addAndGet(position - start);
+        }
+    }
+
+    private void listing(SocketChannel client, Request request, Path store) throws IOException {
+        StringBuilder body = new StringBuilder();
+        if (Files.isDirectory(store)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(store)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)) {
+                        body.append(file.getFileName()).append('\t').append(Files.size(file)).append('\n');
+                    }
+                }
+            }
+        }
+        text(client, request, body.toString());
+    }
+
+    private void events(SocketChannel client, Request request, String zone) throws IOException {
+        EventIndex index = indexes.get(zone);
+        if (index == null) {
+            status(client, 404, "Not Found");
+            return;
+        }
+
+        long from;
+        long to;
+        try {
+            from = Long.parseLong(request.query.getOrDefault("from", "0"));
+            to = Long.parseLong(request.query.getOrDefault("to", Long.toString(Long.MAX_VALUE)));
+        } catch (NumberFormatException e) {
+            status(client, 400, "Bad Request");
+            return;
+        }
+
+        StringBuilder body = new StringBuilder();
+        List<EventIndex.Clip> clips = index.query(from, to);
+        for (EventIndex.Clip clip : clips) {
+            String file = clip.file();
+            body.append(clip.startMillis()).append('\t').append(clip.endMillis()).append('\t')
+                    .append(file != null ? Paths.get(file).getFileName().toString() : "-")
+                    .append('\t').append(clip.offset()).append('\t').append(clip.id()).append('\n');
+        }
+        text(client, request, body.toString());
+    }
+
+    private void clip(SocketChannel client, Request request, String zone) throws IOException {
+        ClipExtractor extractor = extractors.get(zone);
+        if (extractor == null) {
+            status(client, 404, "Not Found");
+            return;
+        }
+
+        List<ClipExtractor.Cut> cuts;
+        try {
+            String event = request.query.get("event");
+            if (event != null) {
+                ClipExtractor.Cut cut = extractor.cut(Integer.parseInt(event));
+                cuts = cut != null ? Collections.singletonList(cut) : Collections.<ClipExtractor.Cut>emptyList();
+            } else {
+                cuts = extractor.cuts(Long.parseLong(request.query.getOrDefault("from", "0")),
+                        Long.parseLong(request.query.getOrDefault("to", Long.toString(Long.MAX_VALUE))));
+            }
+        } catch (NumberFormatException e) {
+            status(client, 400, "Bad Request");
+            return;
+        } catch (IllegalArgumentException e) {
+            status(client, 415, "Unsupported Media Type");
+            return;
+        } catch (NoSuchFileException e) {
+            status(client, 404, "Not Found");
+            return;
+        }
+        if (cuts.isEmpty()) {
+            status(client, 404, "Not Found");
+            return;
+        }
+
+        long length = 0;
+        for (ClipExtractor.Cut cut : cuts) {
+            length += cut.length();
+        }
+        headers(client, 200, "OK", "video/h264", length, "");
+        if (request.head) {
+            return;
+        }
+        for (ClipExtractor.Cut cut : cuts) {
+            bytesSent.addAndGet(ClipExtractor.copy(cut, client));
+        }
+    }
+
+    /**
+     * Only for a scraper on the Pi itself, the numbers say when the house is empty.
+     */
+    private void metrics(SocketChannel client, Request request) throws IOException {
+        SocketAddress remote = client.getRemoteAddress();
+        if (!(remote instanceof InetSocketAddress) || !((InetSocketAddress) remote).getAddress().isLoopbackAddress()) {
+            status(client, 403, "Forbidden");
+            return;
+        }
+
+        StringBuilder body = new StringBuilder(16 * 1024);
+        Metrics.writePrometheus(body);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        headers(client, 200, "OK", "text/plain; version=0.0.4; charset=utf-8", bytes.length,
+                "Cache-Control: no-cache\r\n");
+        if (!request.head) {
+            send(client, ByteBuffer.wrap(bytes));
+        }
+    }
+
+    private void text(SocketChannel client, Request request, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        headers(client, 200, "OK", "text/plain; charset=utf-8", bytes.length, "");
+        if (!request.head) {
+            send(client, ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * @return null if no part of the range is in the file, an empty array to send the whole file for a form not
+     * supported (several ranges), otherwise start and end (exclusive).
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // Suffix, the last n bytes.
+                long length = Long.parseLong(last);
+                if (length == 0) {
+                    return null;
+                }
+                start = Math.max(0, size - length);
+                end = size;
+            } else {
+                start = Long.parseLong(first);
+                end = size;
+                if (!last.isEmpty()) {
+                    long lastByte = Long.parseLong(last);
+                    if (lastByte < start) {
+                        return new long[0];
+                    }
+                    end = Math.min(size, lastByte + 1);
+                }
+            }
+            if (start >= size) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static String contentType(String name) {
+        if (name.endsWith(".h264")) {
+            return "video/h264";
+        }
+        if (name.endsWith(".mp4")) {
+            return "video/mp4";
+        }
+        if (name.endsWith(".jpg")) {
+            return "image/jpeg";
+        }
+        return "application/octet-stream";
+    }
+
+    private void status(SocketChannel client, int code, String reason) throws IOException {
+        byte[] body = (code + " " + reason + "\n").getBytes(StandardCharsets.US_ASCII);
+        headers(client, code, reason, "text/plain", body.length, "");
+        send(client, ByteBuffer.wrap(body));
+    }
+
+    private void headers(SocketChannel client, int code, String reason, String type, long length, String extra)
+            throws IOException {
+        send(client, ascii("HTTP/1.1 " + code + " " + reason + "\r\nContent-Type: " + type + "\r\nContent-Length: "
+                + length + "\r\n" + extra + "Connection: close\r\n\r\n"));
+    }
+
+    private void send(SocketChannel client, ByteBuffer buffer) throws IOException {
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+        bytesSent.addAndGet(count);
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The parts of a request this server looks at.
+     */
+    private static class Request {
+        private String method;
+        private String path;
+        private boolean head;
+        private String range;
+        private Map<String, String> query = Collections.emptyMap();
+
+        /**
+         * @return The request, or null if it is not one.
+         */
+        static Request read(InputStream in) throws IOException {
+            byte[] buffer = new byte[MAX_HEADER];
+            int length = 0;
+            int end = -1;
+            while (end < 0) {
+                if (length == buffer.length) {
+                    return null;
+                }
+                int count = in.read(buffer, length, buffer.length - length);
+                if (count < 0) {
+                    return null;
+                }
+                for (int i = Math.max(0, length - 3); i + 3 < length + count; i++) {
+                    if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                length += count;
+            }
+
+            String[] lines = new String(buffer, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] parts = lines[0].split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+                return null;
+            }
+
+            Request request = new Request();
+            request.method = parts[0];
+            request.head = "HEAD".equals(parts[0]);
+            String target = parts[1];
+            int question = target.indexOf('?');
+            request.path = URLDecoder.decode(question >= 0 ? target.substring(0, question) : target, "UTF-8");
+            if (question >= 0) {
+                request.query = new LinkedHashMap<>();
+                for (String pair : target.substring(question + 1).split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        request.query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                                URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                    }
+                }
+            }
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    request.range = lines[i].substring(colon + 1).trim();
+                }
+            }
+
+            return request;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Counts the bytes the motion thread allocates per motion edge on tests/fake-raspivid.sh with the event index on,
+ * once warmed up. Edges that start a recording, signalling the camera and logging it, and edges that only push a
+ * recording's drop off back must both allocate nothing. The JIT allocates a little on the thread now and then as it
+ * compiles the path, so rounds are run until two in a row allocate nothing, failing if that takes too many.
+ */
+public class AllocationCheck {
+    private static final int EDGES = 200;
+    private static final int CLEAN = 2;
+    private static final int ROUNDS = 10;
+
+    public static void main(String args[]) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        boolean ok = true;
+
+        for (boolean starts : new boolean[]{true, false}) {
+            Path store = Files.createTempDirectory("allocation");
+            Properties properties = new Properties();
+            properties.setProperty("com.stronans.catcam.video.tool", "tests/fake-raspivid.sh");
+            properties.setProperty("com.stronans.catcam.video.settings", "");
+            properties.setProperty("com.stronans.catcam.time.record", "0");
+            properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+            properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+            // Short, every edge starts a recording. Long, every edge after the first pushes the drop off back.
+            properties.setProperty("com.stronans.catcam.drop.off.ms", starts ? "20" : "60000");
+            properties.setProperty("com.stronans.catcam.store.path", store.toString());
+            properties.setProperty("com.stronans.catcam.event.index", store.resolve("events.idx").toString());
+
+            SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+            ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                    pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+            controller.start();
+            Zone zone = controller.zones().get(0);
+            Thread.sleep(500);
+            long motion = motionThread();
+
+            int clean = 0;
+            int edges = 0;
+            for (int round = 0; round < ROUNDS && clean < CLEAN; round++) {
+                long before = threads.getThreadAllocatedBytes(motion);
+                for (int i = 0; i < EDGES; i++) {
+                    source[0].edge(0, true);
+                    source[0].edge(0, false);
+                    Thread.sleep(starts ? 40 : 5);
+                }
+                long allocated = threads.getThreadAllocatedBytes(motion) - before;
+                System.out.println((starts ? "Starting" : "Retriggering") + " round " + round + ": " + allocated
+                        + " bytes for " + EDGES + " edges, recordings indexed " + zone.events().size());
+                clean = allocated == 0 ? clean + 1 : 0;
+                edges += EDGES;
+            }
+            int indexed = zone.events().size();
+            controller.shutdown();
+
+            ok &= clean == CLEAN;
+            ok &= starts ? indexed >= edges - 5 : indexed == 1;
+        }
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static long motionThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("motion")) {
+                return thread.getId();
+            }
+        }
+        throw new IllegalStateException("No motion thread");
+    }
+}
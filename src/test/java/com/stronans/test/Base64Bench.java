@@ -0,0 +1,79 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Bytes allocated per Base64 still, building the String with getEncodedStillImage against streaming it with
+ * writeEncodedStillImage, using the warm engine on tests/fake-raspistill.sh.
+ */
+public class Base64Bench {
+    private static final int SHOTS = 20;
+
+    public static void main(String args[]) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        Camera.setStillTool("tests/fake-raspistill.sh");
+        Camera.startStillEngine(Camera.STILL_DEFAULTS, 4, 4 * 1024 * 1024);
+
+        // Check both give the same text.
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        Camera.writeEncodedStillImage(Camera.STILL_DEFAULTS, streamed);
+        Optional<String> built = Camera.getEncodedStillImage(Camera.STILL_DEFAULTS);
+        boolean same = built.isPresent() && built.get().equals(streamed.toString("US-ASCII"));
+        byte[] decoded = Base64.getDecoder().decode(streamed.toByteArray());
+
+        WritableByteChannel discard = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int count = src.remaining();
+                src.position(src.limit());
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        for (int i = 0; i < 5; i++) {
+            Camera.getEncodedStillImage(Camera.STILL_DEFAULTS);
+            Camera.writeEncodedStillImage(Camera.STILL_DEFAULTS, discard);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < SHOTS; i++) {
+            Camera.getEncodedStillImage(Camera.STILL_DEFAULTS);
+        }
+        long stringPerShot = (threads.getThreadAllocatedBytes(thread) - before) / SHOTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < SHOTS; i++) {
+            Camera.writeEncodedStillImage(Camera.STILL_DEFAULTS, discard);
+        }
+        long streamPerShot = (threads.getThreadAllocatedBytes(thread) - before) / SHOTS;
+
+        Camera.stopStillEngine();
+
+        System.out.println("Image " + decoded.length + " bytes, same text = " + same);
+        System.out.println("getEncodedStillImage   " + stringPerShot + " bytes allocated per shot");
+        System.out.println("writeEncodedStillImage " + streamPerShot + " bytes allocated per shot");
+        if (!same || streamPerShot * 100 > stringPerShot) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,183 @@
+package com.stronans.test;
+
+import com.stronans.camera.ClipExtractor;
+import com.stronans.camera.EventIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Cuts events out of a 10 GB day's file, sparse, the camera's parameter sets at its start and the recordings after
+ * the gap: one resumed part way through a GOP, as a paused camera's are, one carrying its own parameter sets, and one
+ * still being written. Each clip must be the recording from its first keyframe to the next recording, with the
+ * file's parameter sets in front only where the keyframe has none, and take milliseconds. Then clips are cut from
+ * several threads at once while the last recording grows, each must match the file as finally written.
+ */
+public class ClipCheck {
+    private static final long GAP = 10L * 1024 * 1024 * 1024;
+    private static final long BASE = 1_700_000_000_000L;
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+        Path store = Files.createTempDirectory("clips");
+        Path video = store.resolve("cc-2026-10-17.h264");
+
+        byte[] sets = concat(nal(7, 12), nal(8, 4));
+        byte[] resumed = concat(nal(1, 300), nal(1, 300), nal(5, 2000), frames(20));
+        byte[] inline = concat(sets, nal(5, 2000), frames(20));
+        byte[] live = concat(nal(1, 300), nal(5, 2000), frames(5));
+
+        long first = GAP;
+        long second = first + resumed.length;
+        long third = second + inline.length;
+        try (FileChannel out = FileChannel.open(video, CREATE, WRITE)) {
+            out.write(ByteBuffer.wrap(concat(sets, nal(5, 2000))), 0);
+            out.write(ByteBuffer.wrap(concat(resumed, inline, live)), first);
+        }
+
+        EventIndex index = new EventIndex(store.resolve("events.idx"));
+        index.recordingStarted(BASE, video.toString(), first);
+        index.recordingStopped(BASE + 10_000);
+        index.recordingStarted(BASE + 60_000, video.toString(), second);
+        index.recordingStopped(BASE + 70_000);
+        index.recordingStarted(BASE + 120_000, video.toString(), third);
+        ClipExtractor extractor = new ClipExtractor(index);
+
+        // Each event on its own, timed.
+        byte[][] expected = {
+                concat(sets, Arrays.copyOfRange(resumed, 2 * 305, resumed.length)),
+                inline,
+                concat(sets, Arrays.copyOfRange(live, 305, live.length))};
+        long worstMicros = 0;
+        for (int id = 0; id < expected.length; id++) {
+            Path clip = store.resolve("clip-" + id + ".h264");
+            long start = System.nanoTime();
+            long written = extractor.extract(id, clip);
+            worstMicros = Math.max(worstMicros, (System.nanoTime() - start) / 1000);
+            boolean same = written == expected[id].length && Arrays.equals(Files.readAllBytes(clip), expected[id]);
+            System.out.println("Event " + id + ": " + extractor.cut(id) + ", " + written + " bytes, as expected " + same);
+            ok &= same;
+        }
+        System.out.println("Slowest cut from a " + Files.size(video) / (1024 * 1024 * 1024) + " GB file " + worstMicros
+                + " us");
+        ok &= worstMicros < 100_000;
+
+        // By time, and the odd cases.
+        boolean byTime = extractor.cuts(BASE + 65_000, BASE + 130_000).size() == 2
+                && extractor.cuts(BASE + 5_000, BASE + 5_000).size() == 1
+                && extractor.cuts(BASE + 20_000, BASE + 30_000).isEmpty()
+                && extractor.extract(BASE + 20_000, BASE + 30_000, store.resolve("none.h264")) == -1
+                && extractor.cut(3) == null && extractor.cut(-1) == null;
+        EventIndex mp4Index = new EventIndex(store.resolve("mp4.idx"));
+        mp4Index.recordingStarted(BASE, store.resolve("cc.mp4").toString(), 0);
+        try {
+            new ClipExtractor(mp4Index).cut(0);
+            byTime = false;
+        } catch (IllegalArgumentException e) {
+            // Expected, MP4 is not cut.
+        }
+        mp4Index.close();
+        System.out.println("By time and odd cases " + byTime);
+        ok &= byTime;
+
+        // Several at once while the camera appends to the last recording.
+        AtomicInteger wrong = new AtomicInteger();
+        AtomicInteger cuts = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        byte[][] seen = new byte[4 * 50][];
+        for (int r = 0; r < 4; r++) {
+            final int reader = r;
+            readers.execute(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        ClipExtractor.copy(extractor.cut(i % 2 == 0 ? 1 : 2), Channels.newChannel(bytes));
+                        if (i % 2 == 0 && !Arrays.equals(bytes.toByteArray(), inline)) {
+                            wrong.incrementAndGet();
+                        }
+                        seen[reader * 50 + i] = bytes.toByteArray();
+                        cuts.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    wrong.incrementAndGet();
+                }
+            });
+        }
+        try (FileChannel out = FileChannel.open(video, WRITE, APPEND)) {
+            for (int i = 0; i < 200; i++) {
+                out.write(ByteBuffer.wrap(nal(1, 500)));
+                Thread.sleep(1);
+            }
+        }
+        readers.shutdown();
+        readers.awaitTermination(30, TimeUnit.SECONDS);
+
+        byte[] whole = new byte[(int) (Files.size(video) - third)];
+        try (FileChannel in = FileChannel.open(video)) {
+            in.read(ByteBuffer.wrap(whole), third);
+        }
+        byte[] liveNow = concat(sets, Arrays.copyOfRange(whole, 305, whole.length));
+        for (int i = 1; i < seen.length; i += 2) {
+            if (seen[i] == null || seen[i].length < expected[2].length
+                    || !Arrays.equals(seen[i], Arrays.copyOf(liveNow, seen[i].length))) {
+                wrong.incrementAndGet();
+            }
+        }
+        index.recordingStopped(BASE + 130_000);
+        index.close();
+        System.out.println("While recording: " + cuts.get() + " cuts on 4 threads, " + wrong.get() + " wrong");
+        ok &= cuts.get() == seen.length && wrong.get() == 0;
+
+        for (java.io.File file : store.toFile().listFiles()) {
+            file.delete();
+        }
+        store.toFile().delete();
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return A NAL unit of the given type with a 4 byte start code, the payload free of start codes.
+     */
+    private static byte[] nal(int type, int payload) {
+        byte[] unit = new byte[5 + payload];
+        unit[3] = 1;
+        unit[4] = (byte) (0x60 | type);
+        Arrays.fill(unit, 5, unit.length, (byte) 0x55);
+        return unit;
+    }
+
+    private static byte[] frames(int count) {
+        byte[] result = new byte[0];
+        for (int i = 0; i < count; i++) {
+            result = concat(result, nal(1, 300));
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
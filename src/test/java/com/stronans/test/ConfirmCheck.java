@@ -0,0 +1,83 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.camera.CameraProcess;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Triggers two zones whose motion cameras are tests/fake-raspividyuv.sh, one showing a still picture and one a
+ * changing one. The still zone must stop recording once the confirmation window has passed, long before drop off,
+ * and the moving zone must keep recording. A zone whose motion camera ends without a picture, as a second camera
+ * program does on a Pi with one camera, must refuse to start.
+ */
+public class ConfirmCheck {
+
+    public static void main(String args[]) throws Exception {
+        File store = Files.createTempDirectory("confirm").toFile();
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.video.tool", "tests/fake-raspivid.sh");
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.drop.off.ms", "3000");
+        properties.setProperty("com.stronans.catcam.confirm.enabled", "true");
+        properties.setProperty("com.stronans.catcam.confirm.tool", "tests/fake-raspividyuv.sh");
+        properties.setProperty("com.stronans.catcam.confirm.window.ms", "500");
+        properties.setProperty("com.stronans.catcam.zones", "still,moving");
+        properties.setProperty("com.stronans.catcam.zone.still.sensor.pins", "0");
+        properties.setProperty("com.stronans.catcam.zone.still.store.path", new File(store, "still").getPath());
+        properties.setProperty("com.stronans.catcam.zone.moving.sensor.pins", "1");
+        properties.setProperty("com.stronans.catcam.zone.moving.store.path", new File(store, "moving").getPath());
+        properties.setProperty("com.stronans.catcam.zone.moving.confirm.tool", "env FAKE_MOTION=1 tests/fake-raspividyuv.sh");
+
+        SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+        ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+        controller.start();
+        Thread.sleep(1000);     // Let the motion cameras settle on a background.
+
+        source[0].edge(0, true);
+        source[0].edge(1, true);
+        Thread.sleep(1000);
+
+        boolean ok = true;
+        for (Zone zone : controller.zones()) {
+            boolean recording = zone.camera().status() == CameraProcess.Status.Recording;
+            System.out.println(zone.config().name() + ": " + zone.confirmation().frames() + " frames, last "
+                    + zone.confirmation().lastPermille() + " permille changed, recording " + recording);
+            ok &= recording == zone.config().name().equals("moving");
+        }
+        controller.shutdown();
+
+        properties.setProperty("com.stronans.catcam.zones", "busy");
+        properties.setProperty("com.stronans.catcam.zone.busy.store.path", new File(store, "busy").getPath());
+        properties.setProperty("com.stronans.catcam.zone.busy.confirm.tool", "false");
+        ZoneController busy = new ZoneController(ZoneConfig.load(properties::getProperty),
+                pins -> new SimulatedMotionSource(pins.length), 0, 0);
+        boolean refused = false;
+        try {
+            busy.start();
+            busy.shutdown();
+        } catch (IllegalStateException e) {
+            refused = true;
+            System.out.println("No motion camera: " + e.getMessage());
+        }
+        boolean stopped = busy.zones().get(0).camera().process() == null;
+        System.out.println("Zone without a motion camera refused to start " + refused
+                + ", video camera stopped " + stopped);
+        ok &= refused && stopped;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,308 @@
+package com.stronans.test;
+
+import com.stronans.export.DirectorySink;
+import com.stronans.export.ExportBundle;
+import com.stronans.export.ExportQueue;
+import com.stronans.export.ExportSink;
+import com.stronans.export.Exporter;
+import com.stronans.export.HttpSink;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Exports recordings to a folder and to a web server standing in for one over a poor link, which refuses some
+ * requests and cuts others off part way, and checks every recording arrives as it was. An export stopped part way
+ * through a large recording, as by a reboot, must carry on from where it got to. Nothing may be sent while capture
+ * is busy, the queue must keep to its size, and a recording deleted before it was sent must not hold up the rest.
+ */
+public class ExportCheck {
+    private static final long OLD = System.currentTimeMillis() - 60_000;
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+        Random random = new Random(3);
+
+        // A bundle sent in odd sized pieces and unpacked.
+        Path store = Files.createTempDirectory("export");
+        List<ExportBundle.Member> members = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Path file = recording(store, "cc-" + i + ".h264", 1000 + i * 50000, random);
+            members.add(new ExportBundle.Member(file, Files.size(file), OLD));
+        }
+        Path far = Files.createTempDirectory("far");
+        DirectorySink folder = new DirectorySink(far);
+        try (ExportBundle bundle = new ExportBundle(members)) {
+            ByteBuffer piece = ByteBuffer.allocate(7777);
+            long offset = 0;
+            while (offset < bundle.length()) {
+                piece.clear();
+                int count = bundle.read(offset, piece);
+                piece.flip();
+                folder.append(bundle.name(), offset, bundle.length(), piece);
+                offset += count;
+            }
+            folder.complete(bundle.name(), bundle.length());
+            System.out.println("Bundle of 3, " + bundle.length() + " bytes, manifest "
+                    + (bundle.length() - bundle.recordingBytes()) + " bytes");
+        }
+        boolean same = arrived(store, far);
+        System.out.println("Unpacked the same " + same);
+        ok &= same;
+
+        // Many small and a few large recordings to a folder, flat out.
+        store = Files.createTempDirectory("export");
+        for (int i = 0; i < 40; i++) {
+            recording(store, String.format("cc-a%02d.h264", i), 100_000 + random.nextInt(50_000), random);
+        }
+        for (int i = 0; i < 4; i++) {
+            recording(store, "cc-b" + i + ".h264", 3_000_000, random);
+        }
+        far = Files.createTempDirectory("far");
+        ExportQueue queue = queue(store, 0);
+        Exporter exporter = exporter(queue, new DirectorySink(far), 2, 0, () -> false);
+        long start = System.nanoTime();
+        exporter.start(100);
+        boolean finished = await(queue, 30_000);
+        long elapsed = System.nanoTime() - start;
+        exporter.shutdown();
+        same = finished && arrived(store, far);
+        System.out.printf("Folder: 44 recordings, %d bytes in %d bundles, %.1f MB/s, same %b%n", exporter.bytes(),
+                exporter.bundles(), exporter.bytes() / (elapsed / 1e9) / 1e6, same);
+        ok &= same && exporter.bundles() < 44;
+
+        // Over HTTP to a server that refuses one request in five and cuts one upload in seven off half way.
+        store = Files.createTempDirectory("export");
+        for (int i = 0; i < 12; i++) {
+            recording(store, String.format("cc-c%02d.h264", i), 50_000 + random.nextInt(1_500_000), random);
+        }
+        far = Files.createTempDirectory("far");
+        ExecutorService handlers = Executors.newFixedThreadPool(4);
+        HttpServer server = flakyServer(new DirectorySink(far), handlers);
+        queue = queue(store, 0);
+        exporter = exporter(queue, new HttpSink("http://127.0.0.1:" + server.getAddress().getPort() + "/export", 2000),
+                2, 0, () -> false);
+        start = System.nanoTime();
+        exporter.start(100);
+        finished = await(queue, 60_000);
+        elapsed = System.nanoTime() - start;
+        exporter.shutdown();
+        same = finished && arrived(store, far);
+        System.out.printf("Flaky HTTP: %d bytes in %d bundles, %d failures, %d bytes carried on, %.1f MB/s, same %b%n",
+                exporter.bytes(), exporter.bundles(), exporter.failures(), exporter.resumedBytes(),
+                exporter.bytes() / (elapsed / 1e9) / 1e6, same);
+        ok &= same && exporter.failures() > 0 && exporter.resumedBytes() > 0;
+
+        // Stopped part way through, as by a reboot, at 2 MB/s, then carried on from the journal.
+        store = Files.createTempDirectory("export");
+        recording(store, "cc-d.h264", 8_000_000, random);
+        far = Files.createTempDirectory("far");
+        queue = queue(store, 0);
+        exporter = exporter(queue, new DirectorySink(far), 1, 2 * 1024 * 1024, () -> false);
+        exporter.start(100);
+        Thread.sleep(1500);
+        exporter.shutdown();
+        long before = exporter.bytes();
+        queue = queue(store, 0);
+        int waiting = queue.pending();
+        exporter = exporter(queue, new DirectorySink(far), 1, 0, () -> false);
+        exporter.start(100);
+        finished = await(queue, 30_000);
+        exporter.shutdown();
+        same = finished && arrived(store, far);
+        System.out.println("Reboot: " + before + " bytes sent before, " + waiting + " bundle waiting after, "
+                + exporter.resumedBytes() + " bytes not sent again, " + exporter.bytes() + " sent after, same " + same);
+        ok &= same && waiting == 1 && before > 1_000_000 && exporter.resumedBytes() >= before - 256 * 1024
+                && exporter.bytes() < 8_000_000 - 1_000_000;
+
+        // Nothing sent while capture is busy.
+        store = Files.createTempDirectory("export");
+        recording(store, "cc-e.h264", 500_000, random);
+        far = Files.createTempDirectory("far");
+        AtomicBoolean recording = new AtomicBoolean(true);
+        queue = queue(store, 0);
+        exporter = exporter(queue, new DirectorySink(far), 1, 0, recording::get);
+        exporter.start(100);
+        Thread.sleep(1000);
+        long whileBusy = exporter.bytes();
+        recording.set(false);
+        finished = await(queue, 10_000);
+        exporter.shutdown();
+        same = finished && arrived(store, far);
+        System.out.println("Busy: " + whileBusy + " bytes sent while recording, paused " + exporter.pausedMillis()
+                + " ms, same after " + same);
+        ok &= same && whileBusy == 0 && exporter.pausedMillis() >= 500;
+
+        // The queue keeps to its size, dropping the oldest.
+        store = Files.createTempDirectory("export");
+        for (int i = 0; i < 5; i++) {
+            recording(store, "cc-f" + i + ".h264", 400_000, random);
+            Files.setLastModifiedTime(store.resolve("cc-f" + i + ".h264"), FileTime.fromMillis(OLD + i * 1000));
+        }
+        queue = new ExportQueue(store, Collections.singleton(".h264"), 1_000_000, 0, 0);   // One recording a bundle.
+        queue.scan();
+        System.out.println("Bounded: " + queue.pending() + " waiting, " + queue.pendingBytes() + " bytes, "
+                + queue.dropped() + " dropped");
+        ok &= queue.pendingBytes() <= 1_000_000 && queue.dropped() == 3;
+        ExportBundle next = queue.take();
+        ok &= next != null && next.members().get(0).file().getFileName().toString().equals("cc-f3.h264");
+        queue.close();
+
+        // A recording deleted for space before it was sent.
+        store = Files.createTempDirectory("export");
+        for (int i = 0; i < 3; i++) {
+            recording(store, "cc-g" + i + ".h264", 10_000, random);
+        }
+        queue = queue(store, 0);
+        queue.scan();
+        Files.delete(store.resolve("cc-g1.h264"));
+        far = Files.createTempDirectory("far");
+        exporter = exporter(queue, new DirectorySink(far), 1, 0, () -> false);
+        exporter.start(100);
+        finished = await(queue, 10_000);
+        exporter.shutdown();
+        same = finished && arrived(store, far) && !Files.exists(far.resolve("cc-g1.h264"));
+        System.out.println("Deleted before sending: " + queue.dropped() + " dropped, rest the same " + same);
+        ok &= same && queue.dropped() == 1;
+
+        server.stop(0);
+        handlers.shutdownNow();
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static ExportQueue queue(Path store, long maxBytes) throws IOException {
+        return new ExportQueue(store, Collections.singleton(".h264"), maxBytes, 1024 * 1024, 0);
+    }
+
+    private static Exporter exporter(ExportQueue queue, ExportSink sink, int threads,
+                                     long bytesPerSecond, BooleanSupplier busy) {
+        return new Exporter(Collections.singletonList(queue), sink, threads, 64 * 1024, bytesPerSecond, 20, 200, busy);
+    }
+
+    private static Path recording(Path store, String name, int size, Random random) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        Path file = store.resolve(name);
+        Files.write(file, bytes);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(OLD));
+        return file;
+    }
+
+    /**
+     * Wait for the queue to have been filled and emptied.
+     */
+    private static boolean await(ExportQueue queue, long millis) throws InterruptedException {
+        long until = System.currentTimeMillis() + millis;
+        Thread.sleep(300);
+        while (queue.pending() > 0) {
+            if (System.currentTimeMillis() > until) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every recording in the store is in the far folder, the same.
+     */
+    private static boolean arrived(Path store, Path far) throws IOException {
+        try (Stream<Path> files = Files.list(store)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.toString().endsWith(".h264")) {
+                    continue;
+                }
+                Path copy = far.resolve(file.getFileName());
+                if (!Files.exists(copy) || !Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(copy))
+                        || !Files.getLastModifiedTime(copy).equals(Files.getLastModifiedTime(file))) {
+                    System.out.println(file.getFileName() + " did not arrive whole");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The far side of {@link HttpSink}, over a folder, refusing some requests and cutting some uploads off.
+     */
+    private static HttpServer flakyServer(DirectorySink sink, ExecutorService handlers) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger puts = new AtomicInteger();
+        server.createContext("/export/", exchange -> {
+            String bundle = exchange.getRequestURI().getPath().substring("/export/".length());
+            try {
+                if (requests.incrementAndGet() % 5 == 0) {
+                    drain(exchange.getRequestBody());
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                switch (exchange.getRequestMethod()) {
+                    case "HEAD":
+                        exchange.getResponseHeaders().set("Upload-Offset", Long.toString(sink.received(bundle)));
+                        exchange.sendResponseHeaders(200, -1);
+                        break;
+                    case "PUT":
+                        long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+                        long total = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length"));
+                        byte[] body = drain(exchange.getRequestBody());
+                        if (puts.incrementAndGet() % 7 == 0) {
+                            // Half arrives, then the link goes.
+                            sink.append(bundle, offset, total, ByteBuffer.wrap(body, 0, body.length / 2));
+                            return;
+                        }
+                        sink.append(bundle, offset, total, ByteBuffer.wrap(body));
+                        exchange.sendResponseHeaders(204, -1);
+                        break;
+                    case "POST":
+                        drain(exchange.getRequestBody());
+                        sink.complete(bundle, Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length")));
+                        exchange.sendResponseHeaders(204, -1);
+                        break;
+                    default:
+                        exchange.sendResponseHeaders(405, -1);
+                }
+            } catch (IOException | RuntimeException e) {
+                exchange.sendResponseHeaders(409, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+        return server;
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
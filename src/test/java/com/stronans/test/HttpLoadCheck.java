@@ -0,0 +1,262 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.EventIndex;
+import com.stronans.web.StillCache;
+import com.stronans.web.WebServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test against localhost: MJPEG viewers, still and Base64 fetchers and clients downloading a 64 MB recording
+ * whole and in random ranges, all at once, with the warm still engine on tests/fake-raspistill.sh. Every body is
+ * checked, and a thread standing in for the camera reader measures how late it is woken while the server is busy.
+ * A viewer past the MJPEG limit must be refused.
+ */
+public class HttpLoadCheck {
+    private static final int SECONDS = 5;
+
+    public static void main(String args[]) throws Exception {
+        byte[] jpeg = Files.readAllBytes(new java.io.File("tests/image.jpg").toPath());
+        Path store = Files.createTempDirectory("http");
+        byte[] recording = new byte[64 * 1024 * 1024];
+        new Random(42).nextBytes(recording);
+        Files.write(store.resolve("cc-1.h264"), recording);
+
+        EventIndex index = new EventIndex(store.resolve("events.idx"));
+        index.recordingStarted(1000, store.resolve("cc-1.h264").toString(), 4096);
+        index.recordingStopped(2000);
+
+        Camera.setStillTool("tests/fake-raspistill.sh");
+        Camera.startStillEngine(Camera.STILL_DEFAULTS, 4, 4 * 1024 * 1024);
+        StillCache stills = new StillCache(Camera.STILL_DEFAULTS, 200);
+        WebServer web = new WebServer("127.0.0.1", 0, 16, 4, stills, Collections.singletonMap("default", store),
+                Collections.singletonMap("default", index), 10);
+        web.start();
+        int port = web.port();
+
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong frames = new AtomicLong();
+        AtomicLong downloads = new AtomicLong();
+        AtomicLong ranges = new AtomicLong();
+        AtomicLong fetched = new AtomicLong();
+        long until = System.currentTimeMillis() + SECONDS * 1000;
+        ExecutorService clients = Executors.newCachedThreadPool();
+
+        // Camera reader stand in, wakes every 33 ms and notes how late.
+        AtomicLong worstLate = new AtomicLong();
+        Thread camera = new Thread(() -> {
+            long next = System.nanoTime();
+            while (System.currentTimeMillis() < until) {
+                next += 33_000_000L;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                worstLate.set(Math.max(worstLate.get(), System.nanoTime() - next));
+            }
+        });
+        camera.start();
+
+        for (int i = 0; i < 4; i++) {
+            clients.execute(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.getOutputStream().write("GET /live.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    readHead(in);
+                    while (System.currentTimeMillis() < until) {
+                        String part = readHead(in);
+                        int length = Integer.parseInt(header(part, "Content-Length"));
+                        byte[] image = new byte[length];
+                        in.readFully(image);
+                        in.readFully(new byte[2]);
+                        if (!Arrays.equals(jpeg, image)) {
+                            errors.incrementAndGet();
+                        }
+                        frames.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        for (int i = 0; i < 4; i++) {
+            boolean base64 = i % 2 == 1;
+            clients.execute(() -> {
+                while (System.currentTimeMillis() < until) {
+                    byte[] body = get(port, base64 ? "/still.b64" : "/still.jpg", null);
+                    byte[] image = body != null && base64 ? Base64.getDecoder().decode(body) : body;
+                    if (!Arrays.equals(jpeg, image)) {
+                        errors.incrementAndGet();
+                    }
+                    fetched.incrementAndGet();
+                }
+            });
+        }
+        for (int i = 0; i < 6; i++) {
+            boolean whole = i < 2;
+            Random random = new Random(i);
+            clients.execute(() -> {
+                while (System.currentTimeMillis() < until) {
+                    if (whole) {
+                        if (!matches(port, "/files/default/cc-1.h264", null, recording, 0, recording.length)) {
+                            errors.incrementAndGet();
+                        }
+                        downloads.incrementAndGet();
+                    } else {
+                        int start = random.nextInt(recording.length);
+                        int end = Math.min(recording.length, start + random.nextInt(4 * 1024 * 1024));
+                        if (!matches(port, "/files/default/cc-1.h264", "bytes=" + start + "-" + (end - 1), recording, start, end)) {
+                            errors.incrementAndGet();
+                        }
+                        ranges.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        // A fifth viewer while the four watch is refused, downloads keep their threads.
+        AtomicInteger overLimit = new AtomicInteger();
+        clients.execute(() -> {
+            try (Socket socket = new Socket("localhost", port)) {
+                Thread.sleep(1000);
+                socket.getOutputStream().write("GET /live.mjpg HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                if (readHead(new DataInputStream(socket.getInputStream())).startsWith("HTTP/1.1 503")) {
+                    overLimit.incrementAndGet();
+                }
+            } catch (IOException | InterruptedException e) {
+                errors.incrementAndGet();
+            }
+        });
+
+        clients.shutdown();
+        clients.awaitTermination(SECONDS + 30, TimeUnit.SECONDS);
+        camera.join();
+
+        // The odd cases.
+        boolean ok = errors.get() == 0 && overLimit.get() == 1;
+        ok &= get(port, "/files/default/../events.idx", null) == null;
+        ok &= get(port, "/files/default/cc-1.h264", "bytes=" + recording.length + "-") == null;
+        byte[] tail = get(port, "/files/default/cc-1.h264", "bytes=-100");
+        ok &= Arrays.equals(Arrays.copyOfRange(recording, recording.length - 100, recording.length), tail);
+        byte[] events = get(port, "/events/default?from=0&to=5000", null);
+        ok &= events != null && new String(events, StandardCharsets.UTF_8).equals("1000\t2000\tcc-1.h264\t4096\t0\n");
+
+        web.shutdown();
+        Camera.stopStillEngine();
+        index.close();
+        for (java.io.File file : store.toFile().listFiles()) {
+            file.delete();
+        }
+        store.toFile().delete();
+
+        System.out.println(SECONDS + " s: " + frames.get() + " MJPEG frames to 4 viewers, " + fetched.get()
+                + " stills, " + downloads.get() + " whole downloads (" + downloads.get() * 64 / SECONDS + " MB/s), "
+                + ranges.get() + " range requests, " + stills.stills() + " stills taken, " + web.rejected()
+                + " refused (" + overLimit.get() + " viewer over the limit), " + errors.get() + " errors, camera thread at most " + worstLate.get() / 1000 + " us late");
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return Body of a 200 or 206 response, null for anything else.
+     */
+    private static byte[] get(int port, String path, String range) {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (range != null ? "Range: " + range + "\r\n" : "")
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String head = readHead(in);
+            if (!head.startsWith("HTTP/1.1 200") && !head.startsWith("HTTP/1.1 206")) {
+                return null;
+            }
+            byte[] body = new byte[Integer.parseInt(header(head, "Content-Length"))];
+            in.readFully(body);
+            return body;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * As {@link #get} comparing the body with part of an array as it arrives, so the clients do not fill the heap.
+     */
+    private static boolean matches(int port, String path, String range, byte[] expected, int start, int end) {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (range != null ? "Range: " + range + "\r\n" : "")
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String head = readHead(in);
+            if (Long.parseLong(header(head, "Content-Length")) != end - start) {
+                return false;
+            }
+            byte[] chunk = new byte[64 * 1024];
+            for (int position = start; position < end; ) {
+                int count = in.read(chunk, 0, Math.min(chunk.length, end - position));
+                if (count < 0) {
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (chunk[i] != expected[position + i]) {
+                        return false;
+                    }
+                }
+                position += count;
+            }
+            return in.read() < 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Ended in headers");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        String text = head.toString("US-ASCII").trim();
+        return text.isEmpty() ? readHead(in) : text;
+    }
+
+    private static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return "0";
+    }
+}
@@ -0,0 +1,140 @@
+package com.stronans.test;
+
+import com.stronans.camera.EventIndex;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills an event index with ten years of recordings and times queries over it, then has a second JVM append to an
+ * index flat out, kills it with SIGKILL and checks every recording that survived reopens intact and in order.
+ * Last, a file name cut off part way must not run into the next one written.
+ */
+public class IndexCheck {
+    private static final long MINUTE = 60_000L;
+    private static final long BASE = 1_500_000_000_000L;
+
+    public static void main(String args[]) throws Exception {
+        if (args.length == 1) {
+            writeForever(new File(args[0]).toPath());
+            return;
+        }
+
+        boolean ok = true;
+        Path dir = Files.createTempDirectory("index");
+
+        // Ten years at 48 recordings a day, one every half hour lasting a minute.
+        int recordings = 10 * 365 * 48;
+        try (EventIndex index = new EventIndex(dir.resolve("years.idx"))) {
+            for (int i = 0; i < recordings; i++) {
+                long start = BASE + i * 30 * MINUTE;
+                index.recordingStarted(start, "/store/cc-" + (i / 48) + ".h264", i % 48 * 1000L);
+                index.recordingStopped(start + MINUTE);
+            }
+        }
+
+        try (EventIndex index = new EventIndex(dir.resolve("years.idx"))) {
+            ok &= index.size() == recordings;
+
+            // Warm up, then time one hour windows across the whole range.
+            int found = 0;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int q = 0; q < 100_000; q++) {
+                    long from = BASE + (long) (q * 7919 % (recordings - 2)) * 30 * MINUTE + 10 * MINUTE;
+                    found += index.query(from, from + 60 * MINUTE).size();
+                }
+                if (round == 1) {
+                    System.out.println(recordings + " recordings, " + (System.nanoTime() - start) / 100_000
+                            + " ns per one hour query");
+                }
+            }
+            ok &= found == 2 * 2 * 100_000;
+
+            List<EventIndex.Clip> clips = index.query(BASE + 30 * MINUTE + 30_000, BASE + 30 * MINUTE + 30_000);
+            ok &= clips.size() == 1 && clips.get(0).offset() == 1000 && "/store/cc-0.h264".equals(clips.get(0).file());
+            ok &= index.query(BASE + 2 * MINUTE, BASE + 29 * MINUTE).isEmpty();
+        }
+
+        // Crash part way through writing.
+        Path crash = dir.resolve("crash.idx");
+        for (int round = 0; round < 5; round++) {
+            Process child = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp",
+                    System.getProperty("java.class.path"), IndexCheck.class.getName(), crash.toString())
+                    .redirectErrorStream(true).redirectOutput(new File("/dev/null")).start();
+            Thread.sleep(1500 + round * 100);
+            new ProcessBuilder("kill", "-9", Long.toString(pid(child))).start().waitFor();
+            child.waitFor(5, TimeUnit.SECONDS);
+
+            try (EventIndex index = new EventIndex(crash)) {
+                List<EventIndex.Clip> all = index.query(0, Long.MAX_VALUE);
+                long last = 0;
+                int cutOff = 0;
+                for (EventIndex.Clip clip : all) {
+                    boolean closed = clip.endMillis() == clip.startMillis() + MINUTE
+                            && clip.file() != null && clip.offset() == clip.startMillis() % 1000;
+                    // One recording per crash can have been cut off, before or after its place in the file was known.
+                    if (clip.endMillis() == 0) {
+                        cutOff++;
+                    } else {
+                        ok &= closed;
+                    }
+                    ok &= clip.startMillis() > last;
+                    last = clip.startMillis();
+                }
+                ok &= cutOff <= round + 1;
+                System.out.println("Crash " + round + ": " + all.size() + " recordings intact, " + cutOff + " cut off");
+            }
+        }
+
+        // A name torn by a crash, no newline.
+        Path torn = dir.resolve("torn.idx");
+        try (EventIndex index = new EventIndex(torn)) {
+            index.recordingStarted(BASE, "/store/a.h264", 0);
+            index.recordingStopped(BASE + MINUTE);
+        }
+        Files.write(Paths.get(torn + ".names"), "/store/b.h".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        try (EventIndex index = new EventIndex(torn)) {
+            index.recordingStarted(BASE + 30 * MINUTE, "/store/c.h264", 0);
+            index.recordingStopped(BASE + 31 * MINUTE);
+        }
+        try (EventIndex index = new EventIndex(torn)) {
+            List<EventIndex.Clip> all = index.query(0, Long.MAX_VALUE);
+            System.out.println("Torn name: " + all);
+            ok &= all.size() == 2 && "/store/a.h264".equals(all.get(0).file())
+                    && "/store/c.h264".equals(all.get(1).file());
+        }
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Child side of the crash test, carries on from whatever the index already holds.
+     */
+    private static void writeForever(Path path) throws Exception {
+        try (EventIndex index = new EventIndex(path)) {
+            List<EventIndex.Clip> all = index.query(0, Long.MAX_VALUE);
+            long start = all.isEmpty() ? BASE : all.get(all.size() - 1).startMillis() + 30 * MINUTE;
+            for (int i = 0; ; i++, start += 30 * MINUTE) {
+                index.recordingStarted(start, null, 0);
+                index.moved("/store/cc-" + (i / 48) + ".h264", start % 1000);
+                index.recordingStopped(start + MINUTE);
+            }
+        }
+    }
+
+    private static long pid(Process process) throws Exception {
+        return (Long) Process.class.getMethod("pid").invoke(process);
+    }
+}
@@ -0,0 +1,145 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.metrics.Histogram;
+import com.stronans.metrics.Metrics;
+import com.stronans.web.StillCache;
+import com.stronans.web.WebServer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+
+/**
+ * Recording into a histogram allocates nothing, quantiles land in the right bucket, and one zone driven by a
+ * simulated sensor against tests/fake-raspivid.sh fills the trigger, signal, spawn and state histograms, which
+ * show up over JMX and on /metrics.
+ */
+public class MetricsCheck {
+    private static final int RECORDS = 1_000_000;
+
+    public static void main(String args[]) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        boolean ok = true;
+
+        // Allocation, after warming up so the JIT is done.
+        Histogram histogram = new Histogram("check_seconds", "Check", Histogram.decades(10_000L, 100_000_000_000L), 1_000_000_000L);
+        for (int i = 0; i < RECORDS; i++) {
+            histogram.record(i * 1000L);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < RECORDS; i++) {
+            histogram.record(i * 1000L);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            histogram.recordSince(start);
+        }
+        long perRecord = (System.nanoTime() - start) / RECORDS;
+        System.out.println("Allocated " + allocated + " bytes over " + RECORDS + " records, " + perRecord + " ns each");
+        ok &= allocated < 1024;
+
+        // Values 0..999 ms twice over: p50 in the 500 ms bucket, p99 in the 1 s bucket.
+        Histogram quantiles = new Histogram("q_seconds", "Quantiles", Histogram.decades(10_000L, 100_000_000_000L), 1_000_000_000L);
+        for (int i = 0; i < 1000; i++) {
+            quantiles.record(i * 1_000_000L);
+        }
+        System.out.println("p50 " + quantiles.getP50() + " p90 " + quantiles.getP90() + " p99 " + quantiles.getP99()
+                + " max " + quantiles.getMax());
+        ok &= quantiles.getP50() == 0.5 && quantiles.getP90() == 0.999 && quantiles.getP99() == 0.999;
+        ok &= Math.abs(quantiles.getMean() - 0.4995) < 1e-9;
+
+        StringBuilder text = new StringBuilder();
+        quantiles.writePrometheus(text);
+        ok &= text.toString().contains("q_seconds_bucket{le=\"0.5\"} 501\n")
+                && text.toString().contains("q_seconds_bucket{le=\"+Inf\"} 1000\n")
+                && text.toString().contains("q_seconds_count 1000\n");
+
+        // End to end through one zone.
+        File store = Files.createTempDirectory("metrics").toFile();
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.video.tool", "tests/fake-raspivid.sh");
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.drop.off.ms", "200");
+        properties.setProperty("com.stronans.catcam.store.path", store.getPath());
+
+        Metrics.registerMBeans();
+        SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+        ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+        controller.start();
+        Thread.sleep(300);
+
+        int triggers = 5;
+        for (int i = 0; i < triggers; i++) {
+            source[0].edge(0, true);
+            source[0].edge(0, false);
+            Thread.sleep(400);
+        }
+
+        Path root = store.toPath();
+        WebServer web = new WebServer("127.0.0.1", 0, 2, 1, new StillCache("", 500),
+                Collections.singletonMap("default", root), Collections.emptyMap(), 2);
+        web.start();
+        String body = get(web.port(), "/metrics");
+        web.shutdown();
+        controller.shutdown();
+
+        for (Histogram h : Metrics.all()) {
+            System.out.println(h.name() + " count " + h.getCount() + " p50 " + h.getP50() + " p99 " + h.getP99()
+                    + " max " + h.getMax());
+        }
+        ok &= Metrics.TRIGGER.getCount() == triggers && Metrics.TRIGGER_TO_RECORDING.getCount() == triggers;
+        ok &= Metrics.SIGNAL.getCount() >= 2 * triggers && Metrics.SPAWN.getCount() >= 1;
+        ok &= Metrics.RECORDING.getCount() == triggers && Metrics.PAUSED.getCount() == triggers;
+        ok &= Metrics.TRIGGER_TO_RECORDING.getMax() < 1;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object jmxCount = server.getAttribute(
+                new ObjectName("com.stronans.catcam:type=Histogram,name=catcam_trigger_to_recording_seconds"), "Count");
+        ok &= Long.valueOf(triggers).equals(jmxCount);
+
+        ok &= body.startsWith("HTTP/1.1 200") && body.contains("catcam_trigger_seconds_count " + triggers + "\n")
+                && body.contains("# TYPE catcam_segment_bytes histogram\n");
+
+        if (!ok) {
+            System.out.println(body);
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String get(int port, String path) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                response.write(buffer, 0, count);
+            }
+            return response.toString("UTF-8");
+        }
+    }
+}
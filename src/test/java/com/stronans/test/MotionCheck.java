@@ -0,0 +1,74 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.MotionPipeline;
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the motion pipeline from a simulated source: a chattering sensor must give one event, two clean sensors
+ * must both be reported, and several threads flooding edges must be absorbed with few events delivered.
+ */
+public class MotionCheck {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String args[]) throws Exception {
+        SimulatedMotionSource source = new SimulatedMotionSource(4);
+        AtomicLong events = new AtomicLong();
+        AtomicInteger seen = new AtomicInteger();
+        MotionPipeline pipeline = new MotionPipeline(source, 20, 250, (sensors, nanos) -> {
+            events.incrementAndGet();
+            seen.accumulateAndGet(sensors, (a, b) -> a | b);
+        });
+        pipeline.start();
+
+        // One second of a sensor chattering every millisecond.
+        long t = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            source.edge(0, i % 2 == 0, t + i * MS);
+        }
+        Thread.sleep(50);
+        long chatterEvents = events.get();
+
+        // Two clean triggers on other sensors.
+        t += TimeUnit.SECONDS.toNanos(2);
+        source.edge(1, true, t);
+        source.edge(2, true, t + MS);
+        Thread.sleep(50);
+        boolean both = (seen.get() & 0b110) == 0b110;
+
+        // Flood from several threads.
+        final long base = t + TimeUnit.SECONDS.toNanos(2);
+        final int perThread = 1_000_000;
+        Thread[] threads = new Thread[4];
+        long start = System.nanoTime();
+        for (int n = 0; n < threads.length; n++) {
+            final int sensor = n;
+            threads[n] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    source.edge(sensor, (i & 1) == 0, base + i * 10_000L);     // An edge every 10 us.
+                }
+            });
+            threads[n].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(50);
+        pipeline.shutdown();
+
+        long flood = (long) perThread * threads.length;
+        System.out.println("Chatter gave " + chatterEvents + " event(s), both clean sensors seen = " + both);
+        System.out.println("Flood " + flood + " edges at " + (flood * 1_000_000_000L / elapsed) + " edges/s, events delivered "
+                + (events.get() - chatterEvents) + ", chatter " + pipeline.chatter() + ", held off " + pipeline.heldOff());
+
+        if (chatterEvents != 1 || !both || events.get() - chatterEvents > 100) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,497 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.FragmentedMp4Writer;
+import com.stronans.camera.SegmentWriter;
+import com.stronans.camera.VideoCapture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a synthetic H.264 stream, SPS, PPS, SEI, delimiters, pictures of one and two slices, 3 and 4 byte start
+ * codes, in random sized writes through the MP4 writer, paused part way through a picture, resumed 10 s later and
+ * rolled over by size, then reads the files back box by box. Every picture must come out as written, parameter
+ * sets and delimiters aside, all but the one cut short by the pause and the last, with keyframes starting
+ * fragments, times one frame apart across the files and the gap at the pause, and a random access box naming
+ * every fragment. A file left unfinished, as by a crash, must read to its last whole fragment, and the fake camera
+ * must give a playable file end to end.
+ */
+public class Mp4Check {
+    private static final int FPS = 25;
+    private static final int DURATION = 90_000 / FPS;
+    private static final int GOP = 25;
+    private static final long T0 = 1_700_000_000_000L;
+
+    private static final byte[] AUD = {0x09, (byte) 0xF0};
+    private static final byte[] PPS = {0x68, (byte) 0xEE, 0x3C, (byte) 0x80};
+    private static final byte[] SEI = {0x06, 0x05, 0x04, 0x11, 0x22, 0x33, 0x44, (byte) 0x80};
+
+    private final Random random = new Random(19);
+    private final byte[] sps = highSps(1920, 1080);
+
+    /**
+     * A picture as written, and as it should come out.
+     */
+    private static class Picture {
+        final byte[] annexB;
+        final byte[] sample;
+        final boolean sync;
+
+        Picture(byte[] annexB, byte[] sample, boolean sync) {
+            this.annexB = annexB;
+            this.sample = sample;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * One fragment read back.
+     */
+    private static class Fragment {
+        long offset;
+        long time;
+        List<byte[]> samples = new ArrayList<>();
+        List<Boolean> sync = new ArrayList<>();
+    }
+
+    /**
+     * One file read back.
+     */
+    private static class Mp4 {
+        int width;
+        int height;
+        byte[] sps;
+        byte[] pps;
+        List<Fragment> fragments = new ArrayList<>();
+        long[][] randomAccess;      // Time and offset of each entry, null without one.
+        boolean whole = true;       // Every box complete.
+    }
+
+    public static void main(String args[]) throws Exception {
+        new Mp4Check().run();
+    }
+
+    private void run() throws Exception {
+        boolean ok = true;
+
+        // Picture sizes from the SPS.
+        int[] high = size(highSps(1920, 1080));
+        int[] baseline = size(baselineSps(640, 480));
+        System.out.println("SPS read as " + high[0] + "x" + high[1] + " and " + baseline[0] + "x" + baseline[1]);
+        ok &= Arrays.equals(high, new int[]{1920, 1080}) && Arrays.equals(baseline, new int[]{640, 480});
+
+        File folder = Files.createTempDirectory("mp4").toFile();
+        AtomicInteger count = new AtomicInteger();
+        SegmentWriter segments = new SegmentWriter(time -> new File(folder, String.format("seg-%04d.mp4",
+                count.getAndIncrement())).getPath(), 200_000, 0);
+        FragmentedMp4Writer mp4 = new FragmentedMp4Writer(segments, FPS);
+
+        // Four groups of pictures, a new file allowed at two of them, then five pictures and part of a sixth.
+        List<Picture> expected = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        mp4.resumed(T0);
+        for (int gop = 0; gop < 4; gop++) {
+            if (gop == 1 || gop == 3) {
+                mp4.keyframe();
+            }
+            for (int i = 0; i < GOP; i++) {
+                Picture picture = picture(i == 0);
+                write(mp4, picture.annexB);
+                expected.add(picture);
+                times.add((long) (expected.size() - 1) * DURATION);
+            }
+        }
+        mp4.keyframe();
+        for (int i = 0; i < 6; i++) {
+            Picture picture = picture(i == 0);
+            if (i < 5) {
+                write(mp4, picture.annexB);
+                expected.add(picture);
+                times.add((long) (expected.size() - 1) * DURATION);
+            } else {
+                write(mp4, Arrays.copyOf(picture.annexB, 100));
+            }
+        }
+        mp4.flush();
+
+        // Resumed 10 s after the first keyframe, five more groups rolling over by size.
+        long resumedAt = 10 * 90_000L;
+        mp4.resumed(T0 + 10_000);
+        for (int gop = 0; gop < 5; gop++) {
+            if (gop > 0) {
+                mp4.keyframe();
+            }
+            for (int i = 0; i < GOP; i++) {
+                Picture picture = picture(i == 0);
+                write(mp4, picture.annexB);
+                times.add(resumedAt + (long) (i + gop * GOP) * DURATION);
+                expected.add(picture);
+            }
+        }
+        mp4.close();
+        // Whether the last picture is whole is never known, it is dropped as well.
+        expected.remove(expected.size() - 1);
+        times.remove(times.size() - 1);
+
+        File[] files = folder.listFiles();
+        Arrays.sort(files);
+        List<byte[]> samples = new ArrayList<>();
+        List<Boolean> sync = new ArrayList<>();
+        List<Long> sampleTimes = new ArrayList<>();
+        boolean filesOk = files.length >= 3;
+        for (File file : files) {
+            Mp4 read = read(Files.readAllBytes(file.toPath()));
+            filesOk &= read.whole && read.width == 1920 && read.height == 1080 && Arrays.equals(read.sps, sps)
+                    && Arrays.equals(read.pps, PPS) && !read.fragments.isEmpty() && read.fragments.get(0).time == 0;
+
+            // Times in a file run from its first fragment, line them up with the samples before it.
+            long base = samples.size() < times.size() ? times.get(samples.size()) : 0;
+            List<long[]> access = new ArrayList<>();
+            for (Fragment fragment : read.fragments) {
+                if (fragment.sync.get(0)) {
+                    access.add(new long[]{fragment.time, fragment.offset});
+                }
+                for (int i = 0; i < fragment.samples.size(); i++) {
+                    samples.add(fragment.samples.get(i));
+                    sync.add(fragment.sync.get(i));
+                    sampleTimes.add(base + fragment.time + (long) i * DURATION);
+                }
+            }
+            filesOk &= read.randomAccess != null && Arrays.deepEquals(read.randomAccess, access.toArray(new long[0][]));
+            file.delete();
+        }
+        folder.delete();
+
+        boolean same = samples.size() == expected.size();
+        for (int i = 0; same && i < samples.size(); i++) {
+            same = Arrays.equals(samples.get(i), expected.get(i).sample) && sync.get(i) == expected.get(i).sync
+                    && sampleTimes.get(i).equals(times.get(i));
+        }
+        System.out.println("Files " + files.length + " well formed " + filesOk + ", pictures " + samples.size() + " of "
+                + expected.size() + " as written, keyframes and times " + same);
+        ok &= filesOk && same;
+
+        // Left unfinished, as by a crash part way through a keyframe.
+        File crashed = File.createTempFile("crashed-", ".mp4");
+        crashed.delete();       // The writer makes a file of its own, only the name is wanted.
+        SegmentWriter single = new SegmentWriter(time -> crashed.getPath(), 0, 0);
+        FragmentedMp4Writer unfinished = new FragmentedMp4Writer(single, FPS);
+        unfinished.resumed(T0);
+        List<Picture> written = new ArrayList<>();
+        for (int i = 0; i < 3 * GOP; i++) {
+            Picture picture = picture(i % GOP == 0);
+            write(unfinished, picture.annexB);
+            written.add(picture);
+        }
+        byte[] partial = picture(true).annexB;
+        write(unfinished, Arrays.copyOf(partial, partial.length / 2));
+        Mp4 read = read(Files.readAllBytes(crashed.toPath()));
+        crashed.delete();
+        int readBack = 0;
+        boolean prefix = read.whole && read.randomAccess == null;
+        for (Fragment fragment : read.fragments) {
+            for (byte[] sample : fragment.samples) {
+                prefix &= Arrays.equals(sample, written.get(readBack++).sample);
+            }
+        }
+        System.out.println("Unfinished file reads " + read.fragments.size() + " fragments, " + readBack
+                + " pictures as written " + prefix);
+        ok &= prefix && readBack >= 2 * GOP;
+
+        // End to end with the fake camera.
+        File live = File.createTempFile("live-", ".mp4");
+        live.delete();
+        live.deleteOnExit();
+        Camera.setVideoTool("tests/fake-raspivid.sh");
+        VideoCapture camera = Camera.getStreamingVideo(new FragmentedMp4Writer(new SegmentWriter(time -> live.getPath(),
+                0, 0), 30), "", 256 * 1024, 1500);
+        Thread.sleep(3000);
+        camera.setActive(true);
+        Thread.sleep(500);
+        camera.setActive(false);
+        camera.shutdown();
+        read = read(Files.readAllBytes(live.toPath()));
+        int pictures = 0;
+        for (Fragment fragment : read.fragments) {
+            pictures += fragment.samples.size();
+        }
+        boolean playable = read.whole && !read.fragments.isEmpty() && read.fragments.get(0).sync.get(0)
+                && read.randomAccess != null && read.randomAccess.length == read.fragments.size();
+        System.out.println("Fake camera recorded " + live.length() + " bytes, " + read.fragments.size() + " fragments, "
+                + pictures + " pictures, " + read.width + "x" + read.height + ", playable " + playable);
+        ok &= playable && pictures >= 40;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * A picture, a keyframe with its parameter sets or another, of one or two slices of random content.
+     */
+    private Picture picture(boolean keyframe) throws Exception {
+        ByteArrayOutputStream annexB = new ByteArrayOutputStream();
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        if (random.nextInt(3) == 0) {
+            nal(annexB, null, AUD, true);
+        }
+        if (keyframe) {
+            nal(annexB, null, sps, true);
+            nal(annexB, null, PPS, true);
+            nal(annexB, sample, SEI, random.nextBoolean());
+        }
+        int slices = random.nextInt(4) == 0 ? 2 : 1;
+        for (int slice = 0; slice < slices; slice++) {
+            byte[] nal = new byte[(keyframe ? 4000 : 300) + random.nextInt(keyframe ? 8000 : 2000)];
+            for (int i = 0; i < nal.length; i++) {
+                nal[i] = (byte) (1 + random.nextInt(255));
+            }
+            nal[0] = (byte) (keyframe ? 0x65 : 0x41);
+            // first_mb_in_slice, 0 for the first slice and 1 for the second.
+            nal[1] = (byte) (slice == 0 ? 0x80 | nal[1] & 0x7F : 0x40 | nal[1] & 0x3F);
+            nal(annexB, sample, nal, slice == 0 && random.nextBoolean());
+        }
+        return new Picture(annexB.toByteArray(), sample.toByteArray(), keyframe);
+    }
+
+    private static void nal(ByteArrayOutputStream annexB, ByteArrayOutputStream sample, byte[] nal, boolean longStart)
+            throws Exception {
+        annexB.write(longStart ? new byte[]{0, 0, 0, 1} : new byte[]{0, 0, 1});
+        annexB.write(nal);
+        if (sample != null) {
+            sample.write(ByteBuffer.allocate(4).putInt(nal.length).array());
+            sample.write(nal);
+        }
+    }
+
+    /**
+     * Write in random sized pieces, as the camera is read.
+     */
+    private void write(FragmentedMp4Writer mp4, byte[] data) throws Exception {
+        int position = 0;
+        while (position < data.length) {
+            int length = Math.min(data.length - position, 1 + random.nextInt(5000));
+            mp4.write(ByteBuffer.wrap(data, position, length));
+            position += length;
+        }
+    }
+
+    /**
+     * The picture size an SPS gives, read from the initialisation segment of a file written with it.
+     */
+    private static int[] size(byte[] sps) throws Exception {
+        File file = File.createTempFile("sps-", ".mp4");
+        file.delete();
+        FragmentedMp4Writer mp4 = new FragmentedMp4Writer(new SegmentWriter(time -> file.getPath(), 0, 0), FPS);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] nal : new byte[][]{sps, PPS, {0x65, (byte) 0x88, 0x11}, {0x65, (byte) 0x88, 0x22}}) {
+            nal(stream, null, nal, true);
+        }
+        mp4.resumed(T0);
+        mp4.write(ByteBuffer.wrap(stream.toByteArray()));
+        mp4.close();
+        Mp4 read = read(Files.readAllBytes(file.toPath()));
+        file.delete();
+        return new int[]{read.width, read.height};
+    }
+
+    /**
+     * Read the boxes of a fragmented MP4 file, stopping at the first that is cut short.
+     */
+    private static Mp4 read(byte[] file) {
+        Mp4 result = new Mp4();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        Fragment pending = null;
+        List<Integer> sizes = new ArrayList<>();
+        int firstFlags = 0;
+        int otherFlags = 0;
+        int dataOffset = 0;
+
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            String type = type(buffer.getInt());
+            if (size < 8 || start + size > file.length) {
+                result.whole = false;
+                break;
+            }
+            ByteBuffer box = ByteBuffer.wrap(file, start, size).slice();
+            switch (type) {
+                case "moov":
+                    ByteBuffer tkhd = find(box, "moov", "trak", "tkhd");
+                    result.width = tkhd.getInt(8 + 76) >>> 16;
+                    result.height = tkhd.getInt(8 + 80) >>> 16;
+                    ByteBuffer avcC = find(box, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+                    avcC.position(8 + 8 + 8 + 78 + 8 + 6);
+                    result.sps = new byte[avcC.getShort()];
+                    avcC.get(result.sps);
+                    avcC.get();
+                    result.pps = new byte[avcC.getShort()];
+                    avcC.get(result.pps);
+                    break;
+                case "moof":
+                    pending = new Fragment();
+                    pending.offset = start;
+                    ByteBuffer tfhd = find(box, "moof", "traf", "tfhd");
+                    otherFlags = tfhd.getInt(8 + 12);
+                    pending.time = find(box, "moof", "traf", "tfdt").getLong(12);
+                    ByteBuffer trun = find(box, "moof", "traf", "trun");
+                    int count = trun.getInt(12);
+                    dataOffset = trun.getInt(16);
+                    firstFlags = trun.getInt(20);
+                    sizes.clear();
+                    for (int i = 0; i < count; i++) {
+                        sizes.add(trun.getInt(24 + i * 4));
+                    }
+                    break;
+                case "mdat":
+                    if (pending == null || pending.offset + dataOffset != start + 8) {
+                        result.whole = false;
+                        return result;
+                    }
+                    int at = start + 8;
+                    for (int i = 0; i < sizes.size(); i++) {
+                        pending.samples.add(Arrays.copyOfRange(file, at, at + sizes.get(i)));
+                        pending.sync.add(((i == 0 ? firstFlags : otherFlags) & 0x01010000) == 0);
+                        at += sizes.get(i);
+                    }
+                    result.fragments.add(pending);
+                    pending = null;
+                    break;
+                case "mfra":
+                    ByteBuffer tfra = find(box, "mfra", "tfra");
+                    int entries = tfra.getInt(20);
+                    result.randomAccess = new long[entries][];
+                    for (int i = 0; i < entries; i++) {
+                        result.randomAccess[i] = new long[]{tfra.getLong(24 + i * 19), tfra.getLong(32 + i * 19)};
+                    }
+                    break;
+                default:
+                    break;
+            }
+            buffer.position(start + size);
+        }
+        result.whole &= !buffer.hasRemaining() && pending == null;
+
+        return result;
+    }
+
+    /**
+     * Find a box by its path, the first being the box given.
+     */
+    private static ByteBuffer find(ByteBuffer box, String... path) {
+        ByteBuffer current = box;
+        for (int level = 1; level < path.length; level++) {
+            int position = "stsd".equals(path[level - 1]) ? 16 : 8;
+            ByteBuffer next = null;
+            while (position + 8 <= current.limit()) {
+                int size = current.getInt(position);
+                if (type(current.getInt(position + 4)).equals(path[level])) {
+                    ByteBuffer slice = current.duplicate();
+                    slice.position(position);
+                    slice.limit(position + size);
+                    next = slice.slice();
+                    break;
+                }
+                position += size;
+            }
+            if (next == null) {
+                throw new IllegalStateException("No " + path[level] + " box");
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static String type(int type) {
+        return new String(new byte[]{(byte) (type >>> 24), (byte) (type >>> 16), (byte) (type >>> 8), (byte) type});
+    }
+
+    /**
+     * High profile 4:2:0 SPS for the given size, cropped from whole macroblocks.
+     */
+    private static byte[] highSps(int width, int height) {
+        Bits bits = new Bits();
+        bits.u(8, 0x67).u(8, 100).u(8, 0).u(8, 40);
+        bits.ue(0).ue(1).ue(0).ue(0).u(1, 0).u(1, 0);
+        return common(bits, width, height);
+    }
+
+    private static byte[] baselineSps(int width, int height) {
+        Bits bits = new Bits();
+        bits.u(8, 0x67).u(8, 66).u(8, 0xC0).u(8, 30);
+        bits.ue(0);
+        return common(bits, width, height);
+    }
+
+    private static byte[] common(Bits bits, int width, int height) {
+        int widthMbs = (width + 15) / 16;
+        int heightMbs = (height + 15) / 16;
+        bits.ue(0).ue(0).ue(2).ue(1).u(1, 0);
+        bits.ue(widthMbs - 1).ue(heightMbs - 1);
+        bits.u(1, 1).u(1, 1);
+        boolean crop = widthMbs * 16 != width || heightMbs * 16 != height;
+        bits.u(1, crop ? 1 : 0);
+        if (crop) {
+            bits.ue(0).ue((widthMbs * 16 - width) / 2).ue(0).ue((heightMbs * 16 - height) / 2);
+        }
+        bits.u(1, 0).u(1, 1);
+        return bits.bytes();
+    }
+
+    /**
+     * Writes an SPS bit by bit, emulation prevention added.
+     */
+    private static class Bits {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        Bits u(int bits, int value) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = current << 1 | (value >>> i) & 1;
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+            return this;
+        }
+
+        Bits ue(int value) {
+            int coded = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(coded);
+            u(length - 1, 0);
+            return u(length, coded);
+        }
+
+        byte[] bytes() {
+            while (count != 0) {
+                u(1, 0);
+            }
+            byte[] raw = out.toByteArray();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte b : raw) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    result.write(3);
+                    zeros = 0;
+                }
+                result.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return result.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.PreRollCamera;
+import com.stronans.camera.SegmentWriter;
+import com.stronans.camera.VideoCapture;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pre-roll camera against tests/fake-raspivid.sh and checks the recording starts on a keyframe from
+ * before the trigger, and that a pause and resume between two reads of the stream still starts a new recording.
+ */
+public class PreRollCheck {
+
+    public static void main(String args[]) throws Exception {
+        File file = File.createTempFile("preroll-", ".h264");
+        file.delete();
+        file.deleteOnExit();
+
+        Camera.setVideoTool("tests/fake-raspivid.sh");
+        VideoCapture camera = Camera.getStreamingVideo(new SegmentWriter(time -> file.getPath(), 0, 0), "", 256 * 1024, 1500);
+
+        Thread.sleep(3000);                 // Let the buffer fill.
+        camera.setActive(true);
+        Thread.sleep(500);
+        camera.setActive(false);
+        camera.shutdown();
+
+        byte[] video = Files.readAllBytes(file.toPath());
+        int frames = 0;
+        for (int i = 0; i + 4 < video.length; i++) {
+            if (video[i] == 0 && video[i + 1] == 0 && video[i + 2] == 1 && ((video[i + 3] & 0x1F) == 1 || (video[i + 3] & 0x1F) == 5)) {
+                frames++;
+            }
+        }
+
+        boolean keyframeFirst = video.length > 5 && video[4] == 0x27;
+        System.out.println("Recorded " + video.length + " bytes, " + frames + " frames, starts on SPS = " + keyframeFirst);
+
+        // Paused and resumed at once, well inside one frame.
+        File folder = Files.createTempDirectory("preroll").toFile();
+        int[] files = new int[1];
+        PreRollCamera resumed = (PreRollCamera) Camera.getStreamingVideo(
+                new SegmentWriter(time -> new File(folder, "resumed-" + files[0]++ + ".h264").getPath(), 0, 0),
+                "", 256 * 1024, 1500);
+        AtomicInteger clips = new AtomicInteger();
+        resumed.setClipListener((name, offset) -> clips.incrementAndGet());
+        Thread.sleep(2000);
+        resumed.setActive(true);
+        Thread.sleep(500);
+        resumed.setActive(false);
+        resumed.setActive(true);
+        Thread.sleep(500);
+        resumed.shutdown();
+        System.out.println("Paused and resumed between reads, recordings started " + clips.get());
+
+        // 0.5 seconds live is about 15 frames, anything well beyond that came from the pre-roll.
+        if (!keyframeFirst || frames < 40 || clips.get() != 2) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,190 @@
+package com.stronans.test;
+
+import com.stronans.ProgramProperties;
+import com.stronans.PropertiesWatcher;
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.camera.CameraProcess;
+import com.stronans.camera.VideoCapture;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Edits a properties file under a running zone on tests/fake-raspivid.sh. A shorter drop off must stop a
+ * recording under way, new video settings must leave the recording alone and start a new camera once it stops, a
+ * bad edit must be refused whole, and a setting that needs a restart must be reported and not applied. A
+ * streaming camera given new settings must go on in a new segment file.
+ */
+public class ReloadCheck {
+    private static final String FILE = "target/reload/catcam.properties";
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+        Path dir = Paths.get("target/reload");
+        Files.createDirectories(dir);
+        Path store = dir.resolve("store");
+
+        write(1500, "-fps 25", store.toString());
+        ProgramProperties properties = ProgramProperties.getInstance(FILE);
+
+        SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+        ZoneController controller = new ZoneController(ZoneConfig.load(properties),
+                pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+        controller.start();
+        Zone zone = controller.zones().get(0);
+
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        AtomicInteger incomplete = new AtomicInteger();
+        PropertiesWatcher watcher = new PropertiesWatcher(properties, () -> {
+            try {
+                if (!controller.reconfigure(ZoneConfig.load(properties))) {
+                    incomplete.incrementAndGet();
+                }
+                applied.incrementAndGet();
+            } catch (IllegalArgumentException e) {
+                refused.incrementAndGet();
+            }
+        });
+        Thread.sleep(1100);     // Camera files are named to the second.
+
+        // Shorter drop off during a recording.
+        source[0].edge(0, true);
+        source[0].edge(0, false);
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        write(300, "-fps 25", store.toString());
+        long stopped = waitForPaused(zone, 3000);
+        long stopMillis = (stopped - start) / 1_000_000;
+        System.out.println("Drop off 1500 -> 300 ms, recording stopped " + stopMillis + " ms after the edit");
+        ok &= stopped > 0 && stopMillis < 1000 && zone.session().dropOffMillis() == 300;
+
+        // New camera settings while recording, applied when it stops.
+        write(2000, "-fps 25", store.toString());
+        Thread.sleep(1100);
+        source[0].edge(0, true);
+        source[0].edge(0, false);
+        Thread.sleep(100);
+        VideoCapture before = zone.camera();
+        write(2000, "-fps 30", store.toString());
+        Thread.sleep(700);
+        boolean cameraKept = before == zone.camera() && zone.camera().status() == CameraProcess.Status.Recording;
+        long waited = waitForPaused(zone, 3000);
+        Thread.sleep(200);
+        boolean cameraChanged = waited > 0 && before != zone.camera() && zone.config().videoSettings().contains("-fps 30");
+        System.out.println("Video settings changed while recording: camera kept " + cameraKept + ", restarted after "
+                + cameraChanged + ", settings [" + zone.config().videoSettings().trim() + "]");
+        ok &= cameraKept && cameraChanged && zone.camera().status() == CameraProcess.Status.Paused;
+
+        // While paused, applied straight away.
+        Thread.sleep(1000);
+        before = zone.camera();
+        write(2000, "-fps 20", store.toString());
+        Thread.sleep(700);
+        cameraChanged = before != zone.camera() && zone.config().videoSettings().contains("-fps 20");
+        System.out.println("Video settings changed while paused: camera restarted " + cameraChanged);
+        ok &= cameraChanged;
+
+        // A bad edit is refused, the old drop off stays.
+        int refusedBefore = refused.get();
+        writeRaw("com.stronans.catcam.drop.off.ms=soon\n" + common(store.toString(), "-fps 20"));
+        Thread.sleep(800);
+        System.out.println("Bad edit refused " + (refused.get() - refusedBefore) + ", drop off " + zone.session().dropOffMillis());
+        ok &= refused.get() == refusedBefore + 1 && zone.session().dropOffMillis() == 2000;
+
+        // Needs a restart, reported and not applied.
+        int incompleteBefore = incomplete.get();
+        write(2000, "-fps 20", dir.resolve("elsewhere").toString());
+        Thread.sleep(800);
+        System.out.println("Store path change reported " + (incomplete.get() - incompleteBefore) + ", store "
+                + zone.config().storePath());
+        ok &= incomplete.get() == incompleteBefore + 1 && zone.config().storePath().equals(store.toString());
+
+        watcher.shutdown();
+        controller.shutdown();
+        System.out.println("Reloads applied " + applied.get() + ", refused " + refused.get());
+
+        // A streaming camera changed while idle starts a new segment file.
+        Path streamStore = dir.resolve("stream");
+        Properties stream = new Properties();
+        stream.load(new StringReader(common(streamStore.toString(), "-fps 25") + "com.stronans.catcam.capture.stream=true\n"
+                + "com.stronans.catcam.drop.off.ms=300\n"));
+        ZoneController streaming = new ZoneController(ZoneConfig.load(stream::getProperty),
+                pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+        streaming.start();
+        Zone streamZone = streaming.zones().get(0);
+        Thread.sleep(1100);
+        source[0].edge(0, true);
+        Thread.sleep(600);
+        int filesBefore = count(streamStore);
+        before = streamZone.camera();
+        stream.setProperty("com.stronans.catcam.video.settings", "-fps 30");
+        boolean complete = streaming.reconfigure(ZoneConfig.load(stream::getProperty));
+        Thread.sleep(1100);
+        source[0].edge(0, false);
+        source[0].edge(0, true);
+        Thread.sleep(600);
+        int filesAfter = count(streamStore);
+        streaming.shutdown();
+        System.out.println("Streaming camera restarted " + (before != streamZone.camera()) + ", segment files "
+                + filesBefore + " -> " + filesAfter);
+        ok &= complete && before != streamZone.camera() && filesAfter == filesBefore + 1;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static int count(Path folder) {
+        String[] names = folder.toFile().list((parent, name) -> name.endsWith(".h264"));
+        return names == null ? 0 : names.length;
+    }
+
+    private static long waitForPaused(Zone zone, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < end) {
+            if (!zone.session().isRecording()) {
+                return System.nanoTime();
+            }
+            Thread.sleep(5);
+        }
+        return 0;
+    }
+
+    private static void write(long dropOffMillis, String settings, String store) throws Exception {
+        writeRaw("com.stronans.catcam.drop.off.ms=" + dropOffMillis + "\n" + common(store, settings));
+    }
+
+    private static String common(String store, String settings) {
+        return "com.stronans.catcam.video.tool=tests/fake-raspivid.sh\n"
+                + "com.stronans.catcam.video.settings=" + settings + "\n"
+                + "com.stronans.catcam.time.record=0\n"
+                + "com.stronans.catcam.filename.stub=cc-\n"
+                + "com.stronans.catcam.file.extension=.h264\n"
+                + "com.stronans.catcam.event.index=none\n"
+                + "com.stronans.catcam.store.path=" + store + "\n";
+    }
+
+    /**
+     * Save the way editors do, a new file renamed over the old.
+     */
+    private static void writeRaw(String text) throws Exception {
+        Path target = Paths.get(FILE);
+        Path temp = target.resolveSibling(".catcam.properties.tmp");
+        Files.write(temp, text.getBytes(StandardCharsets.ISO_8859_1));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new File(temp.toString()).delete();
+    }
+}
@@ -0,0 +1,267 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.EdgeTrace;
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.TraceRecorder;
+import com.stronans.PIRcatcam.TraceReplay;
+import com.stronans.PIRcatcam.ZoneConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records edges through a {@link TraceRecorder} and reads them back, then makes up a month of cat visits on two
+ * sensors, with chatter, and replays it flat out through two zones. The recordings must match a plain model of
+ * debounce, hold off and drop off worked out from the same trace, every start and stop must toggle the camera
+ * once, and the month must replay in seconds. A short trace replayed in real time must give the same recordings
+ * as flat out, and take as long as the trace.
+ */
+public class ReplayCheck {
+    private static final long DEBOUNCE_MS = 20;
+    private static final long HOLD_OFF_MS = 250;
+    private static final long[] DROP_OFF_MS = {3000, 6000};
+    private static final int[] PINS = {6, 5};
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+        Path dir = Paths.get("target/replay");
+        Files.createDirectories(dir);
+
+        // Recorded and read back.
+        Path recorded = dir.resolve("recorded.trace");
+        SimulatedMotionSource sensors = new SimulatedMotionSource(2);
+        TraceRecorder recorder = new TraceRecorder(sensors, PINS, recorded);
+        List<long[]> seen = new ArrayList<>();
+        recorder.start((sensor, high, nanos) -> seen.add(new long[]{sensor, high ? 1 : 0, nanos}));
+        long first = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            sensors.edge(i % 2, i % 3 == 0, first + i * 1_234_567L);
+        }
+        recorder.shutdown();
+        boolean same = seen.size() == 1000;
+        long base = -1;
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(recorded)) {
+            same &= Arrays.equals(trace.pins(), PINS);
+            for (long[] edge : seen) {
+                same &= trace.next() && trace.sensor() == edge[0] && trace.high() == (edge[1] == 1);
+                if (base < 0) {
+                    base = edge[2] - trace.nanos();
+                }
+                same &= Math.abs(base + trace.nanos() - edge[2]) < 2000;
+            }
+            same &= !trace.next();
+        }
+        long size = Files.size(recorded);
+        System.out.println("Recorded 1000 edges in " + size + " bytes, read back the same " + same);
+        ok &= same && size < 1000 * 4 + 64;
+
+        // Bytes an edge takes, by the time since the one before.
+        long[] gaps = {TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(3), TimeUnit.MINUTES.toNanos(5)};
+        int[] sizes = new int[gaps.length];
+        for (int i = 0; i < gaps.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (EdgeTrace.Writer trace = new EdgeTrace.Writer(out, PINS, START_MILLIS, 0)) {
+                int header = out.size();
+                trace.edge(1, true, gaps[i]);
+                sizes[i] = out.size() - header;
+            }
+        }
+        System.out.println("Edge 10 ms, 3 s and 5 minutes after the last takes " + Arrays.toString(sizes) + " bytes");
+        ok &= Arrays.equals(sizes, new int[]{3, 4, 5});
+
+        // A month, flat out.
+        byte[] month = month(new Random(17));
+        List<ZoneConfig> zones = zones();
+        TraceReplay replay = new TraceReplay(zones, DEBOUNCE_MS, HOLD_OFF_MS);
+        TraceReplay.Result result;
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(new ByteArrayInputStream(month))) {
+            result = replay.run(trace, 0);
+        }
+        result.print(System.out, false);
+        List<List<long[]>> expected = model(month);
+        for (int z = 0; z < zones.size(); z++) {
+            TraceReplay.ZoneResult zone = result.zones().get(z);
+            boolean matches = equal(zone.recordings(), expected.get(z));
+            System.out.println("Zone " + zone.name() + " matches the model " + matches + " (" + expected.get(z).size()
+                    + " recordings)");
+            ok &= matches && zone.toggles() == 2L * zone.recordings().size() && zone.unchanged() == 0;
+        }
+        ok &= result.chatter() > 0 && result.heldOff() > 0 && result.traceNanos() > TimeUnit.DAYS.toNanos(29);
+        ok &= result.wallNanos() < TimeUnit.SECONDS.toNanos(20);
+
+        // Real time against flat out.
+        byte[] shortTrace = shortTrace(new Random(5));
+        TraceReplay quick = new TraceReplay(zones, DEBOUNCE_MS, HOLD_OFF_MS);
+        TraceReplay.Result flat;
+        TraceReplay.Result real;
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(new ByteArrayInputStream(shortTrace))) {
+            flat = quick.run(trace, 0);
+        }
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(new ByteArrayInputStream(shortTrace))) {
+            real = quick.run(trace, 1);
+        }
+        long span = lastStop(flat);
+        boolean alike = true;
+        for (int z = 0; z < zones.size(); z++) {
+            alike &= equal(flat.zones().get(z).recordings(), real.zones().get(z).recordings());
+        }
+        long realMillis = TimeUnit.NANOSECONDS.toMillis(real.wallNanos());
+        System.out.println("Real time replay of " + span + " ms took " + realMillis + " ms, same recordings as flat out "
+                + alike);
+        ok &= alike && realMillis >= span - 5 && realMillis < span + 500;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return Millis from the start of the trace to the last recording stopping.
+     */
+    private static long lastStop(TraceReplay.Result result) {
+        long end = 0;
+        for (TraceReplay.ZoneResult zone : result.zones()) {
+            for (long[] recording : zone.recordings()) {
+                end = Math.max(end, recording[1] - START_MILLIS);
+            }
+        }
+        return end;
+    }
+
+    private static List<ZoneConfig> zones() {
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.zones", "flap,garden");
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.store.path", "target/replay");
+        properties.setProperty("com.stronans.catcam.event.index", "none");
+        properties.setProperty("com.stronans.catcam.zone.flap.sensor.pins", Integer.toString(PINS[0]));
+        properties.setProperty("com.stronans.catcam.zone.flap.drop.off.ms", Long.toString(DROP_OFF_MS[0]));
+        // The garden camera sees both.
+        properties.setProperty("com.stronans.catcam.zone.garden.sensor.pins", PINS[0] + "," + PINS[1]);
+        properties.setProperty("com.stronans.catcam.zone.garden.drop.off.ms", Long.toString(DROP_OFF_MS[1]));
+        return ZoneConfig.load(properties::getProperty);
+    }
+
+    /**
+     * Visits every 20 minutes or so, each a burst of motion up to 2.5 s apart, some edges chattering.
+     */
+    private static byte[] month(Random random) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (EdgeTrace.Writer trace = new EdgeTrace.Writer(out, PINS, START_MILLIS, 0)) {
+            long at = 0;
+            long end = TimeUnit.DAYS.toNanos(30);
+            while (at < end) {
+                at += TimeUnit.SECONDS.toNanos(60) + (long) (-Math.log(1 - random.nextDouble()) * 20 * 60e9);
+                at = visit(trace, random, at, 5 + random.nextInt(40));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A few visits, the last recording stopping about 20 s in, for real time.
+     */
+    private static byte[] shortTrace(Random random) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (EdgeTrace.Writer trace = new EdgeTrace.Writer(out, PINS, START_MILLIS, 0)) {
+            long at = TimeUnit.MILLISECONDS.toNanos(100);
+            for (int i = 0; i < 3; i++) {
+                at = visit(trace, random, at, 4) + TimeUnit.MILLISECONDS.toNanos(700);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static long visit(EdgeTrace.Writer trace, Random random, long at, int moves) throws Exception {
+        for (int i = 0; i < moves; i++) {
+            int sensor = random.nextInt(2);
+            trace.edge(sensor, true, at);
+            at += TimeUnit.MILLISECONDS.toNanos(2 + random.nextInt(300));
+            trace.edge(sensor, false, at);
+            if (random.nextInt(4) == 0) {
+                // Chatter.
+                at += TimeUnit.MILLISECONDS.toNanos(1 + random.nextInt(5));
+                trace.edge(sensor, true, at);
+                at += TimeUnit.MILLISECONDS.toNanos(1 + random.nextInt(5));
+                trace.edge(sensor, false, at);
+            }
+            at += TimeUnit.MILLISECONDS.toNanos(1 + random.nextInt(2200));
+        }
+        return at;
+    }
+
+    /**
+     * The recordings worked out straight from the edges.
+     */
+    private static List<List<long[]>> model(byte[] month) throws Exception {
+        long debounce = TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS);
+        long holdOff = TimeUnit.MILLISECONDS.toNanos(HOLD_OFF_MS);
+        long[] lastEdge = {Long.MIN_VALUE / 2, Long.MIN_VALUE / 2};
+        long[] lastMotion = {Long.MIN_VALUE / 2, Long.MIN_VALUE / 2};
+        int[] zoneSensors = {1, 3};
+        long[] started = new long[2];
+        long[] deadline = {-1, -1};
+        List<List<long[]>> recordings = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+
+        try (EdgeTrace.Reader trace = new EdgeTrace.Reader(new ByteArrayInputStream(month))) {
+            while (trace.next()) {
+                int sensor = trace.sensor();
+                long at = trace.nanos();
+                long previous = lastEdge[sensor];
+                lastEdge[sensor] = at;
+                if (!trace.high() || at - previous < debounce || at - lastMotion[sensor] < holdOff) {
+                    continue;
+                }
+                lastMotion[sensor] = at;
+
+                long millis = START_MILLIS + at / 1_000_000;
+                for (int z = 0; z < 2; z++) {
+                    if ((zoneSensors[z] & 1 << sensor) == 0) {
+                        continue;
+                    }
+                    if (deadline[z] >= 0 && millis >= deadline[z]) {
+                        recordings.get(z).add(new long[]{started[z], deadline[z]});
+                        deadline[z] = -1;
+                    }
+                    if (deadline[z] < 0) {
+                        started[z] = millis;
+                    }
+                    deadline[z] = millis + DROP_OFF_MS[z];
+                }
+            }
+        }
+        for (int z = 0; z < 2; z++) {
+            if (deadline[z] >= 0) {
+                recordings.get(z).add(new long[]{started[z], deadline[z]});
+            }
+        }
+        return recordings;
+    }
+
+    private static boolean equal(List<long[]> a, List<long[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
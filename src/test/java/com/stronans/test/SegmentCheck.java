@@ -0,0 +1,177 @@
+package com.stronans.test;
+
+import com.stronans.camera.PreRollCamera;
+import com.stronans.camera.SegmentWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes a synthetic H.264 stream, in randomly sized reads, through the streaming camera with a small segment
+ * size and checks the segments joined back together are the stream byte for byte, so no NAL unit was dropped
+ * or duplicated at a rollover, and that every segment starts on a keyframe. Then again with every read ending
+ * between the parameter sets and their IDR slice, so a keyframe never arrives whole in one read. Then with the
+ * same name for every segment, as when several start in the same second, each must still get a file of its own.
+ */
+public class SegmentCheck {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x27, 0x64, 0x00, 0x28};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x28, (byte) 0xee, 0x02};
+    private static final byte[] IDR = {0, 0, 0, 1, 0x25, (byte) 0xb8, 0x00, 0x04, 0x11};
+    private static final byte[] SLICE = {0, 0, 0, 1, 0x21, (byte) 0x9a, 0x02, 0x04, 0x22, 0x33};
+
+    public static void main(String args[]) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<Integer> idrs = new ArrayList<>();
+        for (int frame = 0; frame < 3000; frame++) {
+            if (frame % 30 == 0) {
+                stream.write(SPS);
+                stream.write(PPS);
+                idrs.add(stream.size());
+                stream.write(IDR);
+            } else {
+                stream.write(SLICE);
+            }
+        }
+        byte[] input = stream.toByteArray();
+
+        boolean ok = check("Random reads", input, null, false);
+        ok &= check("Parameter sets and IDR in different reads", input, idrs, false);
+        ok &= check("Same name for every segment", input, null, true);
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @param splits   Stream offsets every read must end at, null for random reads only
+     * @param sameName The namer gives every segment the same name
+     * @return true if the segments are the input, keyframe aligned, and there is more than one.
+     */
+    private static boolean check(String name, byte[] input, List<Integer> splits, boolean sameName)
+            throws Exception {
+        File folder = Files.createTempDirectory("segments").toFile();
+        AtomicInteger count = new AtomicInteger();
+        SegmentWriter writer = new SegmentWriter(time -> new File(folder,
+                sameName ? "seg.h264" : String.format("seg-%04d.h264", count.getAndIncrement())).getPath(), 1000, 0);
+
+        FakeProcess process = new FakeProcess(input, splits);
+        PreRollCamera camera = new PreRollCamera(process, writer, 64 * 1024, 60_000);
+        camera.setActive(true);
+        process.go.countDown();
+        camera.shutdown();
+
+        File[] files = folder.listFiles();
+        Arrays.sort(files, Comparator.comparingInt(SegmentCheck::order));
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        boolean aligned = true;
+        for (File file : files) {
+            byte[] segment = Files.readAllBytes(file.toPath());
+            aligned &= segment.length > 4 && segment[4] == 0x27;
+            joined.write(segment);
+            file.delete();
+        }
+        folder.delete();
+
+        boolean same = Arrays.equals(input, joined.toByteArray());
+        System.out.println(name + ": segments " + files.length + ", input " + input.length + " bytes, output "
+                + joined.size() + " bytes, identical = " + same + ", keyframe aligned = " + aligned);
+
+        return same && aligned && files.length >= 2;
+    }
+
+    /**
+     * @return The number in a segment's name, 0 for none, so "seg.h264" comes before "seg-1.h264" and "seg-2.h264".
+     */
+    private static int order(File file) {
+        String digits = file.getName().replaceAll("[^0-9]", "");
+        return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+    }
+
+    /**
+     * A camera process that hands out its stream in random sized reads once told to start, then ends. Reads never
+     * run past the next of the given split offsets, if any.
+     */
+    private static class FakeProcess extends Process {
+        private final CountDownLatch go = new CountDownLatch(1);
+        private final InputStream in;
+
+        FakeProcess(byte[] data, List<Integer> splits) {
+            Random random = new Random(42);
+            in = new InputStream() {
+                private int position;
+
+                @Override
+                public int read() throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    if (position == data.length) {
+                        return -1;
+                    }
+                    int count = Math.min(Math.min(len, 1 + random.nextInt(97)), data.length - position);
+                    if (splits != null) {
+                        for (int split : splits) {
+                            if (split > position) {
+                                count = Math.min(count, split - position);
+                                break;
+                            }
+                        }
+                    }
+                    System.arraycopy(data, position, b, off, count);
+                    position += count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.RecordingSession;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how closely a recording session drops off to its deadline, then hammers it with motion from several
+ * threads and checks the camera only ever sees start, stop, start, stop in order and ends stopped. Then changes
+ * the drop off back and forth while motion arrives, the last change must hold: the recording stops the short drop
+ * off after the last motion, not the long one.
+ */
+public class SessionCheck {
+    private static final long DROP_OFF = 50;
+
+    public static void main(String args[]) throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger starts = new AtomicInteger();
+        AtomicLong stoppedAt = new AtomicLong();
+
+        RecordingSession session = new RecordingSession(new RecordingSession.Listener() {
+            @Override
+            public void recordingStarted() {
+                starts.incrementAndGet();
+                if (active.getAndIncrement() != 0) {
+                    errors.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void recordingStopped() {
+                stoppedAt.set(System.nanoTime());
+                if (active.getAndDecrement() != 1) {
+                    errors.incrementAndGet();
+                }
+            }
+        }, DROP_OFF, scheduler);
+
+        long late = 0;
+        for (int i = 0; i < 20; i++) {
+            session.trigger();
+            long deadline = session.deadline();
+            while (session.isRecording()) {
+                Thread.sleep(1);
+            }
+            late = Math.max(late, (stoppedAt.get() - deadline) / 1_000_000);
+        }
+        System.out.println("Worst drop off lateness " + late + " ms");
+
+        // Bursts of motion from several threads, with gaps around the drop off so some land as it is stopping.
+        for (int round = 0; round < 100; round++) {
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        session.trigger();
+                        try {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Thread.sleep(DROP_OFF - 2 + ThreadLocalRandom.current().nextInt(5));
+        }
+        Thread.sleep(DROP_OFF * 3);
+
+        // Drop off changed while motion arrives.
+        long stuck = 0;
+        for (int round = 0; round < 20; round++) {
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        session.trigger();
+                    }
+                });
+                threads[t].start();
+            }
+            for (int i = 0; i < 2000; i++) {
+                session.setDropOffMillis(i % 2 == 0 ? 10 * DROP_OFF : DROP_OFF);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            session.setDropOffMillis(DROP_OFF);
+            long triggered = System.nanoTime();
+            while (session.isRecording() && System.nanoTime() - triggered < 20 * DROP_OFF * 1_000_000) {
+                Thread.sleep(1);
+            }
+            stuck = Math.max(stuck, (System.nanoTime() - triggered) / 1_000_000);
+        }
+        System.out.println("Drop off changed under motion, slowest stop " + stuck + " ms");
+        scheduler.shutdown();
+
+        System.out.println("Starts " + starts.get() + ", out of order " + errors.get() + ", still recording " + session.isRecording());
+        if (errors.get() != 0 || session.isRecording() || active.get() != 0 || late > 20 || stuck > 2 * DROP_OFF) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,44 @@
+package com.stronans.test;
+
+import com.stronans.camera.CameraProcess;
+import com.stronans.camera.SignalChannel;
+
+/**
+ * Toggles a stand in camera process, one that ignores SIGUSR1, through the signal shell and then by running kill
+ * per signal, and compares the cost of a toggle.
+ */
+public class SignalCheck {
+    private static final int TOGGLES = 200;
+
+    public static void main(String args[]) throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "trap '' USR1; while true; do sleep 1; done").start();
+        Thread.sleep(200);      // Let the trap be set before signalling.
+
+        SignalChannel signals = SignalChannel.getInstance();
+        CameraProcess camera = new CameraProcess(process, signals);
+
+        for (int i = 0; i < TOGGLES; i++) {
+            camera.setActive(i % 2 == 0);
+        }
+        long fast = signals.meanLatencyNanos();
+        boolean fastPath = signals.isFastPath();
+
+        signals.close();
+        long before = signals.signals();
+        long start = System.nanoTime();
+        for (int i = 0; i < TOGGLES / 10; i++) {
+            camera.setActive(i % 2 == 0);
+        }
+        long slow = (System.nanoTime() - start) / (signals.signals() - before);
+
+        camera.shutdown();
+        process.waitFor();
+
+        System.out.println("Fast path " + fastPath + ", mean toggle " + (fast / 1000) + " us, kill per signal " + (slow / 1000) + " us");
+        if (!fastPath || process.isAlive() || fast >= slow) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,81 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Starts three zones on tests/fake-raspivid.sh with sensors that take a while to set up, as GPIO does, and raises
+ * motion for one zone part way through. The motion must be held until every zone is ready and then start that
+ * zone's recording, and only that zone's. Starting must take about as long as the sensors, the cameras starting
+ * alongside them.
+ */
+public class StartupCheck {
+    private static final int ZONES = 3;
+    private static final long GPIO_MS = 1000;
+
+    public static void main(String args[]) throws Exception {
+        File store = Files.createTempDirectory("startup").toFile();
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.video.tool", "tests/fake-raspivid.sh");
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.drop.off.ms", "2000");
+        StringBuilder zones = new StringBuilder();
+        for (int z = 0; z < ZONES; z++) {
+            zones.append(z == 0 ? "" : ",").append("z").append(z);
+            properties.setProperty("com.stronans.catcam.zone.z" + z + ".sensor.pins", Integer.toString(z));
+            properties.setProperty("com.stronans.catcam.zone.z" + z + ".store.path", new File(store, "z" + z).getPath());
+        }
+        properties.setProperty("com.stronans.catcam.zones", zones.toString());
+
+        SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+        ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                pins -> source[0] = new SimulatedMotionSource(pins.length, GPIO_MS), 0, 0);
+
+        long[] deliveredEarly = {-1};
+        Thread motion = new Thread(() -> {
+            try {
+                Thread.sleep(GPIO_MS / 2);
+                source[0].edge(1, true);
+                deliveredEarly[0] = controller.motion().delivered();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        motion.start();
+
+        long start = System.nanoTime();
+        controller.start();
+        long readyMillis = (System.nanoTime() - start) / 1_000_000;
+        motion.join();
+        Thread.sleep(200);
+
+        boolean recording = true;
+        for (int z = 0; z < ZONES; z++) {
+            Zone zone = controller.zones().get(z);
+            recording &= zone.session().isRecording() == (z == 1);
+        }
+        long delivered = controller.motion().delivered();
+        controller.shutdown();
+
+        System.out.println("Ready in " + readyMillis + " ms with sensors taking " + GPIO_MS + " ms, motion before ready "
+                + (deliveredEarly[0] == 0 ? "held" : "not held") + ", delivered " + delivered + ", zone z1 alone recording "
+                + recording);
+        boolean ok = readyMillis >= GPIO_MS && readyMillis < GPIO_MS + 500 && deliveredEarly[0] == 0 && delivered == 1
+                && recording;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
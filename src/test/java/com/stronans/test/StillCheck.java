@@ -0,0 +1,88 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.StillEngine;
+import com.stronans.camera.StillFrame;
+import com.stronans.web.StillCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes stills from tests/fake-raspistill.sh, once by starting the camera per shot and then from the warm engine,
+ * checks each image comes back whole (tests/image.jpg carries an EXIF thumbnail with its own SOI/EOI), and
+ * compares shot times. Then has viewers ask the web still cache for a still gone stale, each must be given the one
+ * held at once while a single new one is taken.
+ */
+public class StillCheck {
+
+    public static void main(String args[]) throws Exception {
+        byte[] expected = Files.readAllBytes(Paths.get("tests/image.jpg"));
+        Camera.setStillTool("tests/fake-raspistill.sh");
+
+        long start = System.currentTimeMillis();
+        byte[] cold = Camera.getImage(Camera.STILL_DEFAULTS);
+        long coldMillis = System.currentTimeMillis() - start;
+
+        StillEngine engine = Camera.startStillEngine(Camera.STILL_DEFAULTS, 4, 4 * 1024 * 1024);
+        Camera.getImage(Camera.STILL_DEFAULTS);      // First shot warms the reader.
+
+        start = System.currentTimeMillis();
+        byte[] warm = Camera.getImage(Camera.STILL_DEFAULTS);
+        long warmMillis = System.currentTimeMillis() - start;
+
+        AtomicInteger good = new AtomicInteger();
+        start = System.currentTimeMillis();
+        int delivered = engine.burst(10, 50, 2000, (StillFrame frame) -> {
+            if (frame.length() == expected.length && Arrays.equals(expected, frame.toByteArray())) {
+                good.incrementAndGet();
+            }
+            frame.release();
+        });
+        long burstMillis = System.currentTimeMillis() - start;
+        Camera.stopStillEngine();
+
+        System.out.println("Cold " + cold.length + " bytes in " + coldMillis + " ms, warm " + warm.length + " bytes in "
+                + warmMillis + " ms, burst " + good.get() + "/" + delivered + " good in " + burstMillis + " ms");
+
+        // Stale stills served while the next is taken, each cold shot takes over 100 ms.
+        StillCache cache = new StillCache(Camera.STILL_DEFAULTS, 50);
+        boolean first = Arrays.equals(expected, cache.latest());
+        Thread.sleep(60);
+        Thread[] viewers = new Thread[8];
+        AtomicLong slowest = new AtomicLong();
+        AtomicInteger held = new AtomicInteger();
+        for (int v = 0; v < viewers.length; v++) {
+            viewers[v] = new Thread(() -> {
+                try {
+                    long asked = System.nanoTime();
+                    byte[] image = cache.latest();
+                    slowest.accumulateAndGet((System.nanoTime() - asked) / 1_000_000, Math::max);
+                    if (Arrays.equals(expected, image)) {
+                        held.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            viewers[v].start();
+        }
+        for (Thread viewer : viewers) {
+            viewer.join();
+        }
+        Thread.sleep(500);
+        boolean cached = first && held.get() == viewers.length && slowest.get() < 50 && cache.stills() == 2;
+        System.out.println("Stale still: " + held.get() + " viewers served in at most " + slowest.get() + " ms, "
+                + cache.stills() + " stills taken");
+
+        if (!Arrays.equals(expected, cold) || !Arrays.equals(expected, warm) || good.get() != 10 || !cached) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
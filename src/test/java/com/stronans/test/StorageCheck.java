@@ -0,0 +1,156 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.camera.SegmentWriter;
+import com.stronans.camera.StorageManager;
+import com.stronans.camera.WriteBehind;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage in a tmpfs folder. Checks a stream written in random sized pieces through the write behind comes out
+ * byte for byte and compares the slowest write seen by the camera thread with and without it, checks the
+ * storage manager deletes oldest first, keeps matching files longer and never deletes the active file, then runs
+ * a streaming zone against tests/fake-raspivid.sh with a quota and checks the folder stays within it.
+ */
+public class StorageCheck {
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String args[]) throws Exception {
+        Path base = Files.createTempDirectory(Paths.get("/dev/shm"), "storage");
+        boolean ok = true;
+
+        // Write behind gives the same bytes.
+        byte[] input = new byte[8 * 1024 * 1024 + 12345];
+        new Random(42).nextBytes(input);
+        long direct = 0;
+        long behind = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            Path folder = Files.createDirectory(base.resolve("pass" + pass));
+            WriteBehind writeBehind = pass == 1 ? new WriteBehind(8, 64 * 1024) : null;
+            AtomicInteger count = new AtomicInteger();
+            SegmentWriter writer = new SegmentWriter(time -> folder.resolve(String.format("seg-%04d.h264",
+                    count.getAndIncrement())).toString(), MB, 0, writeBehind);
+
+            Random random = new Random(7);
+            long slowest = 0;
+            for (int position = 0; position < input.length; ) {
+                int length = Math.min(1 + random.nextInt(64 * 1024), input.length - position);
+                long start = System.nanoTime();
+                writer.keyframe();
+                writer.write(ByteBuffer.wrap(input, position, length));
+                slowest = Math.max(slowest, System.nanoTime() - start);
+                position += length;
+            }
+            writer.close();
+
+            File[] files = folder.toFile().listFiles();
+            Arrays.sort(files);
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (File file : files) {
+                joined.write(Files.readAllBytes(file.toPath()));
+            }
+            ok &= Arrays.equals(input, joined.toByteArray());
+            if (pass == 0) {
+                direct = slowest;
+            } else {
+                behind = slowest;
+                writeBehind.shutdown();
+                System.out.println("Write behind " + writeBehind.writes() + " writes, " + writeBehind.stalls()
+                        + " stalls, identical " + Arrays.equals(input, joined.toByteArray()));
+            }
+        }
+        System.out.println("Slowest write on the camera thread, direct " + direct / 1000 + " us, write behind "
+                + behind / 1000 + " us");
+
+        // Eviction order.
+        Path store = Files.createDirectory(base.resolve("evict"));
+        long now = System.currentTimeMillis();
+        String[] names = {"a.h264", "b.h264", "clip-c.h264", "d.h264", "e.h264", "events.idx"};
+        for (int i = 0; i < names.length; i++) {
+            Path file = store.resolve(names[i]);
+            Files.write(file, new byte[(int) MB]);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - (10 - i) * 3_600_000L));
+        }
+        StorageManager manager = new StorageManager(store, Collections.singleton(".h264"), 2 * MB, 0, "clip-*", 24 * 3_600_000L);
+        manager.addActive(() -> store.resolve("a.h264").toString());
+        manager.sweep();
+        // Over by 3 MB, a is being written and clip-c is kept longer, so b, d and e go.
+        ok &= Files.exists(store.resolve("a.h264")) && Files.exists(store.resolve("clip-c.h264"))
+                && !Files.exists(store.resolve("b.h264")) && !Files.exists(store.resolve("d.h264"))
+                && !Files.exists(store.resolve("e.h264")) && Files.exists(store.resolve("events.idx"));
+        System.out.println("Evicted " + manager.evicted() + " files, " + manager.usedBytes() / MB + " MB left");
+
+        // A streaming zone writing about 600 KB/s into a 3 MB quota.
+        Path zoneStore = base.resolve("zone");
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.video.tool", "env FAKE_PAD=20000 tests/fake-raspivid.sh");
+        properties.setProperty("com.stronans.catcam.video.settings", "");
+        properties.setProperty("com.stronans.catcam.time.record", "0");
+        properties.setProperty("com.stronans.catcam.store.path", zoneStore.toString());
+        properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.drop.off.ms", "60000");
+        properties.setProperty("com.stronans.catcam.capture.stream", "true");
+        properties.setProperty("com.stronans.catcam.segment.max.mb", "1");
+        properties.setProperty("com.stronans.catcam.storage.quota.mb", "3");
+        properties.setProperty("com.stronans.catcam.storage.sweep.seconds", "1");
+        properties.setProperty("com.stronans.catcam.writebehind.kb", "1024");
+
+        SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+        ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+        controller.start();
+        source[0].edge(0, true);
+
+        long most = 0;
+        for (int i = 0; i < 16; i++) {
+            Thread.sleep(500);
+            long used = 0;
+            for (File file : zoneStore.toFile().listFiles()) {
+                if (file.getName().endsWith(".h264")) {
+                    used += file.length();
+                }
+            }
+            most = Math.max(most, used);
+        }
+        Zone zone = controller.zones().get(0);
+        StorageManager zoneManager = controller.storage(zone);
+        long evicted = zoneManager.evicted();
+        long written = controller.writeBehind().bytes();
+        controller.shutdown();
+
+        // Within quota after each sweep, so at most a second's writing and one segment over it.
+        System.out.println("Zone wrote " + written / 1024 + " KB, evicted " + evicted + " files, most on disk "
+                + most / 1024 + " KB");
+        ok &= evicted > 0 && most < 5 * MB;
+
+        for (File folder : base.toFile().listFiles()) {
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+        base.toFile().delete();
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,131 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.camera.Camera;
+import com.stronans.camera.CameraProcess;
+import com.stronans.camera.CameraSupervisor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Crashes tests/fake-raspivid.sh under a recording, in a paused and a streaming zone. The camera must be running
+ * again within a bounded time, still recording, and a streaming zone must go on writing. Then a camera that
+ * crashes every third of a second must be restarted with a growing back off that stops at the limit.
+ */
+public class SuperviseCheck {
+    private static final long RESPAWN_MIN_MS = 200;
+    private static final long RESPAWN_MAX_MS = 800;
+    private static final long BOUND_MS = RESPAWN_MIN_MS + 500;
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+
+        for (boolean streaming : new boolean[]{false, true}) {
+            Path store = Files.createTempDirectory("supervise");
+            File crash = store.resolve("crash").toFile();
+            Properties properties = new Properties();
+            properties.setProperty("com.stronans.catcam.video.tool", "env FAKE_CRASH_FILE=" + crash + " tests/fake-raspivid.sh");
+            properties.setProperty("com.stronans.catcam.video.settings", "");
+            properties.setProperty("com.stronans.catcam.time.record", "0");
+            properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+            properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+            properties.setProperty("com.stronans.catcam.drop.off.ms", "5000");
+            properties.setProperty("com.stronans.catcam.store.path", store.toString());
+            properties.setProperty("com.stronans.catcam.event.index", "none");
+            properties.setProperty("com.stronans.catcam.capture.stream", Boolean.toString(streaming));
+            properties.setProperty("com.stronans.catcam.camera.respawn.min.ms", Long.toString(RESPAWN_MIN_MS));
+            properties.setProperty("com.stronans.catcam.camera.respawn.max.ms", Long.toString(RESPAWN_MAX_MS));
+
+            SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+            ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                    pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+            controller.start();
+            Zone zone = controller.zones().get(0);
+            CameraSupervisor supervisor = (CameraSupervisor) zone.camera();
+            Thread.sleep(500);
+
+            source[0].edge(0, true);
+            Thread.sleep(500);
+            Process first = supervisor.process();
+            long crashed = System.nanoTime();
+            if (!crash.createNewFile()) {
+                throw new IllegalStateException("Cannot make " + crash);
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (supervisor.restarts() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(2);
+            }
+            long seen = (System.nanoTime() - crashed) / 1_000_000;
+            boolean recording = supervisor.camera() != null
+                    && supervisor.camera().status() == CameraProcess.Status.Recording;
+            Thread.sleep(1200);
+            long bytes = streaming ? size(store) : 0;
+            Thread.sleep(500);
+            long grew = streaming ? size(store) - bytes : 0;
+
+            System.out.println((streaming ? "Streaming" : "Paused") + ": restarts " + supervisor.restarts() + ", gap "
+                    + supervisor.lastGapMillis() + " ms, running again " + seen + " ms after the crash was asked for,"
+                    + " recording " + recording + (streaming ? ", still writing " + grew + " bytes/0.5 s" : "")
+                    + ", first camera dead " + !first.isAlive());
+            ok &= supervisor.restarts() == 1 && supervisor.lastGapMillis() < BOUND_MS && seen < BOUND_MS + 100;
+            ok &= recording && !first.isAlive() && supervisor.process() != first;
+            ok &= !streaming || grew > 0;
+
+            controller.shutdown();
+            ok &= supervisor.process() == null;
+        }
+
+        // Crash loop: every 10 frames.
+        Path store = Files.createTempDirectory("supervise");
+        long[] spawned = new long[64];
+        int[] spawns = new int[1];
+        CameraSupervisor looping = new CameraSupervisor("loop", initial -> {
+            spawned[spawns[0]++ % spawned.length] = System.currentTimeMillis();
+            return Camera.getPausedNamedVideo("env FAKE_CRASH=10 tests/fake-raspivid.sh",
+                    store.resolve("loop-" + spawns[0] + ".h264").toString(), "");
+        }, 100, RESPAWN_MAX_MS);
+        Thread.sleep(6000);
+        looping.shutdown();
+
+        StringBuilder waits = new StringBuilder();
+        long longest = 0;
+        boolean growing = true;
+        long previous = 0;
+        for (int i = 1; i < spawns[0] && i < spawned.length; i++) {
+            long wait = spawned[i] - spawned[i - 1];
+            waits.append(wait).append(' ');
+            longest = Math.max(longest, wait);
+            if (i <= 3) {
+                growing &= wait > previous;
+            }
+            previous = wait;
+        }
+        System.out.println("Crash loop: " + looping.restarts() + " restarts in 6 s, spawn to spawn ms " + waits);
+        // A camera lasts about 0.4 s, the back off goes 100, 200, 400, 800, 800...
+        ok &= growing && looping.restarts() >= 4 && looping.restarts() <= 12 && longest < 400 + RESPAWN_MAX_MS + 300;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static long size(Path folder) {
+        long total = 0;
+        File[] files = folder.toFile().listFiles((parent, name) -> name.endsWith(".h264"));
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,140 @@
+package com.stronans.test;
+
+import com.stronans.camera.Camera;
+import com.stronans.camera.PreRollCamera;
+import com.stronans.camera.SegmentWriter;
+import com.stronans.camera.TimelapseArchive;
+import com.stronans.camera.TimelapseSchedule;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Keeps timelapse stills from tests/fake-raspivid.sh while paused and checks each is a whole keyframe, parameter
+ * sets and IDR slice and nothing else, indexed where it is in the day's file. None may be kept while recording and
+ * the recording must still start from the pre-roll. The schedule is checked in made up time, faster after motion
+ * and slower at night, and a day's files are opened again after a crash left a torn still and record behind.
+ */
+public class TimelapseCheck {
+
+    public static void main(String args[]) throws Exception {
+        boolean ok = true;
+
+        // The schedule, 60 s normally, 10 s for 10 minutes after motion, 600 s from 22:00 to 06:00 UTC.
+        TimelapseSchedule schedule = new TimelapseSchedule(60_000, 10_000, 600_000, 600_000, 22, 6, ZoneOffset.UTC);
+        long noon = LocalDateTime.of(2026, 10, 17, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        long night = LocalDateTime.of(2026, 10, 17, 23, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        boolean first = schedule.due(noon);
+        schedule.taken(noon);
+        boolean day = !schedule.due(noon + 59_000) && schedule.due(noon + 60_000);
+        schedule.motion(noon + 20_000);
+        boolean motion = !schedule.due(noon + 9_000) && schedule.due(noon + 20_000);
+        schedule.taken(noon + 20_000);
+        motion &= schedule.due(noon + 30_000);
+        schedule.taken(noon + 620_000);
+        boolean motionEnds = !schedule.due(noon + 630_000) && schedule.due(noon + 680_000);
+        schedule.taken(night);
+        boolean dark = schedule.isNight(night) && !schedule.isNight(noon) && !schedule.due(night + 599_000)
+                && schedule.due(night + 600_000);
+        System.out.println("Schedule: first " + first + ", day " + day + ", after motion " + motion + ", motion ends "
+                + motionEnds + ", night " + dark);
+        ok &= first && day && motion && motionEnds && dark;
+
+        // Stills from the fake camera every keyframe, then a recording.
+        Path store = Files.createTempDirectory("timelapse");
+        File recording = store.resolve("recording.h264").toFile();
+        Camera.setVideoTool("tests/fake-raspivid.sh");
+        PreRollCamera camera = (PreRollCamera) Camera.getStreamingVideo(
+                new SegmentWriter(time -> recording.getPath(), 0, 0), "", 256 * 1024, 1500);
+        TimelapseArchive archive = new TimelapseArchive(store.resolve("cc-timelapse-").toString(), ZoneId.systemDefault(),
+                2, 64 * 1024);
+        camera.setTimelapse(new TimelapseSchedule(100, 100, 0, 100, 0, 0, ZoneId.systemDefault()), archive);
+
+        Thread.sleep(4000);
+        long stillsPaused = archive.stills();
+        long start = System.nanoTime();
+        camera.setActive(true);
+        long switchNanos = System.nanoTime() - start;
+        Thread.sleep(1500);
+        long stillsRecording = archive.stills() - stillsPaused;
+        camera.setActive(false);
+        camera.shutdown();
+        archive.close();
+
+        Path video = Files.list(store).filter(p -> p.getFileName().toString().startsWith("cc-timelapse-")
+                && p.toString().endsWith(TimelapseArchive.EXTENSION)).findFirst().orElse(null);
+        List<TimelapseArchive.Frame> frames = TimelapseArchive.frames(TimelapseArchive.indexFor(video));
+        byte[] stills = Files.readAllBytes(video);
+        boolean whole = !frames.isEmpty() && frames.get(0).offset() == 0;
+        long end = 0;
+        for (TimelapseArchive.Frame frame : frames) {
+            whole &= frame.offset() == end && keyframeOnly(stills, (int) frame.offset(), frame.length());
+            end = frame.offset() + frame.length();
+        }
+        whole &= end == stills.length;
+        byte[] recorded = Files.readAllBytes(recording.toPath());
+        boolean preRolled = recorded.length > 5 && recorded[4] == 0x27 && nals(recorded, 1) >= 40;
+        System.out.println("Stream: " + stillsPaused + " stills paused, " + stillsRecording + " while recording, "
+                + frames.size() + " indexed, whole keyframes " + whole + ", recording from pre-roll " + preRolled
+                + ", switch " + switchNanos / 1000 + " us");
+        ok &= stillsPaused >= 2 && stillsRecording == 0 && frames.size() == stillsPaused && whole && preRolled;
+
+        // A crash part way through the next still, its bytes written and half its record.
+        int before = frames.size();
+        Files.write(video, new byte[]{0, 0, 0, 1, 0x27, 0x64}, StandardOpenOption.APPEND);
+        Files.write(TimelapseArchive.indexFor(video), new byte[10], StandardOpenOption.APPEND);
+        archive = new TimelapseArchive(store.resolve("cc-timelapse-").toString(), ZoneId.systemDefault(), 2, 64 * 1024);
+        TimelapseArchive.Still still = archive.take();
+        ByteBuffer data = still.data();
+        data.put(stills, (int) frames.get(0).offset(), frames.get(0).length());
+        archive.submit(still, System.currentTimeMillis());
+        archive.close();
+        frames = TimelapseArchive.frames(TimelapseArchive.indexFor(video));
+        TimelapseArchive.Frame last = frames.get(frames.size() - 1);
+        boolean recovered = frames.size() == before + 1 && last.offset() == end
+                && Files.size(video) == end + frames.get(0).length()
+                && Files.size(TimelapseArchive.indexFor(video)) == frames.size() * 24L;
+        System.out.println("After a crash: " + frames.size() + " stills, carried on from the last whole one " + recovered);
+        ok &= recovered;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return true if the bytes are SPS, PPS and IDR NAL units only, with an IDR.
+     */
+    private static boolean keyframeOnly(byte[] stream, int offset, int length) {
+        boolean idr = false;
+        for (int i = offset; i + 3 < offset + length; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1) {
+                int type = stream[i + 3] & 0x1F;
+                if (type != 5 && type != 7 && type != 8) {
+                    return false;
+                }
+                idr |= type == 5;
+            }
+        }
+        return idr && stream[offset + 4] == 0x27;
+    }
+
+    private static int nals(byte[] stream, int type) {
+        int count = 0;
+        for (int i = 0; i + 3 < stream.length; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1 && (stream[i + 3] & 0x1F) == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,109 @@
+package com.stronans.test;
+
+import com.stronans.PIRcatcam.SimulatedMotionSource;
+import com.stronans.PIRcatcam.Zone;
+import com.stronans.PIRcatcam.ZoneConfig;
+import com.stronans.PIRcatcam.ZoneController;
+import com.stronans.camera.CameraProcess;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs 1, 4 and 16 zones against tests/fake-raspivid.sh with simulated sensors. Every zone must record on its own
+ * pin only and drop off on time, and idle CPU and thread count must not grow with the number of zones. Zones
+ * must not be able to share an event index, and a zone's own drop off must win over the plain one.
+ */
+public class ZoneCheck {
+
+    public static void main(String args[]) throws Exception {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        boolean ok = true;
+
+        for (int count : new int[]{1, 4, 16}) {
+            File store = Files.createTempDirectory("zones").toFile();
+            Properties properties = new Properties();
+            properties.setProperty("com.stronans.catcam.video.tool", "tests/fake-raspivid.sh");
+            properties.setProperty("com.stronans.catcam.video.settings", "");
+            properties.setProperty("com.stronans.catcam.time.record", "0");
+            properties.setProperty("com.stronans.catcam.filename.stub", "cc-");
+            properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+            properties.setProperty("com.stronans.catcam.drop.off.ms", "200");
+            StringBuilder zones = new StringBuilder();
+            for (int z = 0; z < count; z++) {
+                zones.append(z == 0 ? "" : ",").append("z").append(z);
+                properties.setProperty("com.stronans.catcam.zone.z" + z + ".sensor.pins", Integer.toString(z));
+                properties.setProperty("com.stronans.catcam.zone.z" + z + ".store.path", new File(store, "z" + z).getPath());
+            }
+            properties.setProperty("com.stronans.catcam.zones", zones.toString());
+
+            SimulatedMotionSource[] source = new SimulatedMotionSource[1];
+            int threadsBefore = Thread.activeCount();
+            ZoneController controller = new ZoneController(ZoneConfig.load(properties::getProperty),
+                    pins -> source[0] = new SimulatedMotionSource(pins.length), 0, 0);
+            controller.start();
+            int threads = Thread.activeCount() - threadsBefore;
+
+            // Idle CPU over one second.
+            Thread.sleep(500);
+            long cpu = os.getProcessCpuTime();
+            Thread.sleep(1000);
+            long idleCpu = (os.getProcessCpuTime() - cpu) / 1_000_000;
+
+            // Trigger the odd zones only.
+            for (int z = 1; z < count; z += 2) {
+                source[0].edge(z, true);
+            }
+            Thread.sleep(100);
+            for (Zone zone : controller.zones()) {
+                int z = Integer.parseInt(zone.config().name().substring(1));
+                boolean recording = zone.camera().status() == CameraProcess.Status.Recording;
+                ok &= recording == (z % 2 == 1);
+            }
+            Thread.sleep(400);
+            for (Zone zone : controller.zones()) {
+                ok &= zone.camera().status() == CameraProcess.Status.Paused;
+            }
+
+            controller.shutdown();
+            System.out.println(count + " zones: idle CPU " + idleCpu + " ms/s, threads added " + threads);
+        }
+
+        // One index file per zone, never shared.
+        Properties properties = new Properties();
+        properties.setProperty("com.stronans.catcam.store.path", "/tmp/zones");
+        properties.setProperty("com.stronans.catcam.file.extension", ".h264");
+        properties.setProperty("com.stronans.catcam.event.index", "/tmp/zones/events.idx");
+        properties.setProperty("com.stronans.catcam.zones", "front,back");
+        List<ZoneConfig> configs = ZoneConfig.load(properties::getProperty);
+        System.out.println("Global event index: " + configs.get(0).eventIndex() + ", " + configs.get(1).eventIndex());
+        ok &= "/tmp/zones/events-front.idx".equals(configs.get(0).eventIndex())
+                && "/tmp/zones/events-back.idx".equals(configs.get(1).eventIndex());
+        properties.setProperty("com.stronans.catcam.drop.off.ms", "6000");
+        properties.setProperty("com.stronans.catcam.zone.front.drop.off", "2");
+        configs = ZoneConfig.load(properties::getProperty);
+        System.out.println("Drop off: front " + configs.get(0).dropOffMillis() + " ms, back "
+                + configs.get(1).dropOffMillis() + " ms");
+        ok &= configs.get(0).dropOffMillis() == 2000 && configs.get(1).dropOffMillis() == 6000;
+        properties.setProperty("com.stronans.catcam.zone.front.event.index", "/tmp/zones/shared.idx");
+        properties.setProperty("com.stronans.catcam.zone.back.event.index", "/tmp/zones/./shared.idx");
+        boolean refused = false;
+        try {
+            ZoneConfig.load(properties::getProperty);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+            System.out.println("Shared event index: " + e.getMessage());
+        }
+        ok &= refused;
+
+        if (!ok) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
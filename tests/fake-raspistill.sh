@@ -0,0 +1,21 @@
+#!/bin/bash
+#
+# Stand in for raspistill when testing without a camera. Writes tests/image.jpg to stdout once, or with -k once
+# for every line read on stdin until a line starting with x.
+#
+IMAGE="$(dirname "$0")/image.jpg"
+
+case " $* " in
+    *" -k "*)
+        while read -r line; do
+            case "$line" in
+                x*) exit 0 ;;
+            esac
+            cat "$IMAGE"
+        done
+        ;;
+    *)
+        sleep 0.1
+        cat "$IMAGE"
+        ;;
+esac
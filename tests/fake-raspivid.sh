@@ -0,0 +1,40 @@
+#!/bin/bash
+#
+# Stand in for raspivid when testing without a camera. Ignores its arguments and writes a synthetic
+# Annex-B H.264 stream to stdout at roughly 30 frames/sec, with inline SPS/PPS ahead of an IDR every 30 frames.
+# SIGUSR1, raspivid's record/pause toggle, is counted and otherwise ignored.
+#   FAKE_FRAMES  number of frames to send before exiting, default runs forever
+#   FAKE_CRASH   exit with an error after this many frames
+#   FAKE_PAD     bytes of filler added to every frame, to make the stream as large as a real one
+#   FAKE_CRASH_FILE  exit with an error as soon as this file exists, removing it, to crash on demand
+#
+FRAMES=${FAKE_FRAMES:-0}
+CRASH=${FAKE_CRASH:-0}
+PAD=${FAKE_PAD:-0}
+CRASH_FILE=${FAKE_CRASH_FILE:-}
+n=0
+toggles=0
+trap 'toggles=$((toggles + 1))' USR1
+while [ "$FRAMES" -eq 0 ] || [ "$n" -lt "$FRAMES" ]; do
+    if [ $((n % 30)) -eq 0 ]; then
+        printf '\x00\x00\x00\x01\x27\x64\x00\x28\xac\x2b\x40'      # SPS
+        printf '\x00\x00\x00\x01\x28\xee\x02\x5c\xb0'              # PPS
+        printf '\x00\x00\x00\x01\x25\xb8\x00\x04\x00\x00\x0f\xff'  # IDR slice
+    else
+        printf '\x00\x00\x00\x01\x21\x9a\x02\x04\x11\x22\x33'      # Non-IDR slice
+    fi
+    if [ "$PAD" -gt 0 ]; then
+        head -c "$PAD" /dev/zero | tr '\0' '\377'
+    fi
+    n=$((n + 1))
+    if [ "$CRASH" -gt 0 ] && [ "$n" -ge "$CRASH" ]; then
+        echo "fake-raspivid: crashing after $n frames" >&2
+        exit 70
+    fi
+    if [ -n "$CRASH_FILE" ] && [ -e "$CRASH_FILE" ]; then
+        rm -f "$CRASH_FILE"
+        echo "fake-raspivid: crashing on demand after $n frames" >&2
+        exit 70
+    fi
+    sleep 0.033
+done
@@ -0,0 +1,25 @@
+#!/bin/bash
+#
+# Stand in for raspividyuv -y when testing without a camera. Writes still (all zero) luma frames at about 5 a
+# second to stdout, or changing ones from /dev/urandom when FAKE_MOTION is set.
+#
+WIDTH=128
+HEIGHT=96
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        -w) WIDTH="$2"; shift ;;
+        -h) HEIGHT="$2"; shift ;;
+    esac
+    shift
+done
+
+SOURCE=/dev/zero
+if [ -n "$FAKE_MOTION" ]; then
+    SOURCE=/dev/urandom
+fi
+
+while true; do
+    head -c $((WIDTH * HEIGHT)) "$SOURCE" || exit 0
+    sleep 0.2
+done